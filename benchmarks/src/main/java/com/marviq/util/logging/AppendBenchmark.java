@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost that the appender adds to a logging call, from {@link JIRALog4jAppender#doAppend(LoggingEvent)}
+ * through the XML-RPC client to an in-process {@link StubJira}, on a single thread and on many contending threads.
+ * When the appender dispatches asynchronously, only the work that is done on the logging thread is measured; events
+ * that do not fit in the buffer are dropped.
+ *
+ * <ul>
+ * <li><em>filtered</em>: an event below the threshold of the appender;</li>
+ * <li><em>comment</em>: an event of which the issue exists already, which results in a comment;</li>
+ * <li><em>issue</em>: an event with a new fingerprint, which results in a new issue;</li>
+ * <li><em>freshComment</em>: as <em>comment</em>, but with a Throwable (of about 40 frames, with a cause) that is
+ * created for the event, so its stack trace has not been read yet. <em>freshThrowable</em> measures the creation of
+ * that Throwable alone.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AppendBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(AppendBenchmark.class);
+
+    /** The number of distinct fingerprints that the 'issue' benchmarks cycle through; more than the appender caches. */
+    private static final int DISTINCT_THROWABLES = 8192;
+
+    /** Whether the appender dispatches events on a worker thread. */
+    @Param({"false", "true"})
+    public boolean async;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private JIRALog4jAppender appender;
+    private LoggingEvent filtered;
+    private LoggingEvent comment;
+    private Throwable[] throwables;
+
+    @Setup
+    public void setUp() {
+        appender = new JIRALog4jAppender("http://localhost", "user", "pass", "BENCH");
+        appender.setThreshold(Level.ERROR);
+        appender.setAsync(async);
+        appender.setTransportFactory(new StubJira().getTransportFactory());
+        appender.activateOptions();
+
+        final Throwable existing = Throwables.newThrowable(50, 2, -1);
+        filtered = new LoggingEvent(null, LOGGER, Priority.WARN, "Filtered.", existing);
+        comment = new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request.", existing);
+        appender.doAppend(comment);
+
+        throwables = new Throwable[DISTINCT_THROWABLES];
+        for (int i = 0; i < throwables.length; i++) {
+            throwables[i] = Throwables.newThrowable(50, 2, i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void filtered() {
+        appender.doAppend(filtered);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void filteredContended() {
+        appender.doAppend(filtered);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void comment() {
+        appender.doAppend(comment);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void commentContended() {
+        appender.doAppend(comment);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void issue() {
+        appendNewIssue();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void issueContended() {
+        appendNewIssue();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void freshComment() {
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request.",
+                newThrowable()));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Throwable freshThrowable() {
+        return newThrowable();
+    }
+
+    /**
+     * Creates a Throwable with a cause, some 30 frames deeper than the benchmark method.
+     */
+    private static Throwable newThrowable() {
+        return newThrowable(30);
+    }
+
+    private static Throwable newThrowable(int depth) {
+        if (depth > 0) {
+            return newThrowable(depth - 1);
+        }
+        return new IllegalStateException("Unable to process the request.", new IllegalArgumentException("Cause."));
+    }
+
+    private void appendNewIssue() {
+        final Throwable throwable = throwables[(sequence.getAndIncrement() & Integer.MAX_VALUE) % throwables.length];
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request.", throwable));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of looking up an issue in a cache that holds {@link #ENTRIES} issues, and the heap that the cache
+ * takes, for the default cache of the appender ('long') and for a map of boxed fingerprints to strings ('map'), which
+ * is how the cache used to store its entries (without the bookkeeping of eviction and expiry).
+ *
+ * The footprint is printed when the cache has been filled, as the growth of the used heap after garbage collection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CacheBenchmark {
+
+    /** The number of issues in the cache. */
+    private static final int ENTRIES = 100000;
+
+    @Param({"long", "map"})
+    public String cache;
+
+    private JIRALog4jAppender appender;
+    private IssueKeyCache issueKeyCache;
+    private ConcurrentMap<Long, String> map;
+    private long[] fingerprints;
+    private long[] unknownFingerprints;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        fingerprints = new long[ENTRIES];
+        unknownFingerprints = new long[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            fingerprints[i] = random.nextLong();
+            unknownFingerprints[i] = random.nextLong();
+        }
+
+        appender = new JIRALog4jAppender("http://localhost", "user", "pass", "BENCH");
+        appender.setJmx(false);
+        appender.setCacheMaxSize(ENTRIES);
+        appender.setCacheExpiry(0);
+
+        final long before = usedHeap();
+        if ("long".equals(cache)) {
+            appender.activateOptions();
+            issueKeyCache = appender.getEngine().getCache();
+            for (int i = 0; i < ENTRIES; i++) {
+                issueKeyCache.put(fingerprints[i], "PROJ-" + (i + 1));
+            }
+        } else {
+            map = new ConcurrentHashMap<Long, String>();
+            for (int i = 0; i < ENTRIES; i++) {
+                map.put(fingerprints[i], "PROJ-" + (i + 1));
+            }
+        }
+        System.out.println();
+        System.out.println(cache + ": " + (usedHeap() - before) / ENTRIES + " bytes per entry");
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.close();
+    }
+
+    @Benchmark
+    public String hit() {
+        final long fingerprint = fingerprints[next++ % ENTRIES];
+        return issueKeyCache != null ? issueKeyCache.get(fingerprint) : map.get(fingerprint);
+    }
+
+    @Benchmark
+    public String miss() {
+        final long fingerprint = unknownFingerprints[next++ % ENTRIES];
+        return issueKeyCache != null ? issueKeyCache.get(fingerprint) : map.get(fingerprint);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how the throughput of asynchronous dispatching scales with the number of workers, against a
+ * {@link StubJira} of which every call takes {@link #LATENCY_MILLIS}, as a round trip to a real JIRA instance would.
+ *
+ * Every operation logs a batch of events with distinct fingerprints (of which the issues exist already), and waits
+ * until all of them have been sent as comments. With a single worker, a batch takes about
+ * <tt>BATCH_SIZE * LATENCY_MILLIS</tt>; with more workers, the calls overlap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(DispatchBenchmark.class);
+
+    /** The time (in milliseconds) that every call to the stub takes. */
+    private static final long LATENCY_MILLIS = 2;
+
+    /** The number of events (each with a distinct fingerprint) that an operation logs. */
+    private static final int BATCH_SIZE = 64;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int workers;
+
+    private StubJira jira;
+    private JIRALog4jAppender appender;
+    private LoggingEvent[] events;
+    private int expectedComments;
+
+    @Setup
+    public void setUp() {
+        jira = new StubJira(LATENCY_MILLIS);
+        appender = new JIRALog4jAppender("http://localhost", "user", "pass", "BENCH");
+        appender.setJmx(false);
+        appender.setAsync(true);
+        appender.setWorkers(workers);
+        appender.setBufferSize(BATCH_SIZE);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+
+        events = new LoggingEvent[BATCH_SIZE];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request.",
+                    Throwables.newThrowable(50, 2, i));
+            appender.doAppend(events[i]);
+        }
+        while (jira.getIssueCount() < BATCH_SIZE) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.close();
+    }
+
+    @Benchmark
+    public void dispatchBatch() {
+        for (final LoggingEvent event : events) {
+            appender.doAppend(event);
+        }
+        expectedComments += BATCH_SIZE;
+        while (jira.getCommentCount() < expectedComments) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+}
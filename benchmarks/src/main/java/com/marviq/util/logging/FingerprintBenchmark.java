@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of fingerprinting the Throwable of an event, for a shallow stack trace, a deep one, and one with a
+ * chain of causes. The <tt>legacy</tt> benchmarks measure the 32-bit hash that the fingerprint replaced, for
+ * comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FingerprintBenchmark {
+
+    private Throwable shallow;
+    private Throwable deep;
+    private Throwable causal;
+
+    @Setup
+    public void setUp() {
+        shallow = Throwables.newThrowable(10, 0);
+        deep = Throwables.newThrowable(300, 0);
+        causal = Throwables.newThrowable(50, 4);
+    }
+
+    @Benchmark
+    public long shallow() {
+        return JiraEngine.getHash(shallow);
+    }
+
+    @Benchmark
+    public long deep() {
+        return JiraEngine.getHash(deep);
+    }
+
+    @Benchmark
+    public long causal() {
+        return JiraEngine.getHash(causal);
+    }
+
+    @Benchmark
+    public int legacyShallow() {
+        return legacyHash(shallow);
+    }
+
+    @Benchmark
+    public int legacyDeep() {
+        return legacyHash(deep);
+    }
+
+    @Benchmark
+    public int legacyCausal() {
+        return legacyHash(causal);
+    }
+
+    /**
+     * The hash that was used before fingerprint strategies were introduced.
+     */
+    private static int legacyHash(Throwable throwable) {
+        final StackTraceElement[] stackTrace = throwable.getStackTrace();
+        int hash = 0;
+        for (int i = 0; i < stackTrace.length; i++) {
+            hash = 31 * hash + (stackTrace[i] != null ? stackTrace[i].hashCode() : 0);
+        }
+        if (throwable.getCause() != null) {
+            hash = 37 * hash + legacyHash(throwable.getCause());
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of rendering the summary and the text of an issue or comment.
+ *
+ * A LoggingEvent remembers the rendering of its stack trace, so the benchmarks that render one create a new event on
+ * every invocation. {@link #newEvent()} measures that cost on its own.
+ *
+ * The deep stack trace (2000 frames, with three causes) shows the effect of the bounds on the text:
+ * {@link #textWithDeepStack()} renders it within the default limits, whereas {@link #unboundedTextWithDeepStack()}
+ * renders it in full, from the lines that log4j renders, as texts used to be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RenderingBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(RenderingBenchmark.class);
+
+    private JIRALog4jAppender appender;
+    private Throwable throwable;
+    private Throwable deepThrowable;
+    private LoggingEvent event;
+
+    @Setup
+    public void setUp() {
+        appender = new JIRALog4jAppender("http://localhost", "user", "pass", "BENCH");
+        throwable = Throwables.newThrowable(50, 2);
+        deepThrowable = Throwables.newThrowable(2000, 3);
+        event = newEvent();
+    }
+
+    @Benchmark
+    public LoggingEvent newEvent() {
+        return new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request.", throwable);
+    }
+
+    @Benchmark
+    public String summary() {
+        return JIRALog4jAppender.getSummary(event, "benchmark");
+    }
+
+    @Benchmark
+    public String textWithoutStack() {
+        return appender.getEngine().getText(appender.toErrorEvent(event), true);
+    }
+
+    @Benchmark
+    public String textWithStack() {
+        return appender.getEngine().getText(appender.toErrorEvent(newEvent()), false);
+    }
+
+    @Benchmark
+    public String textWithDeepStack() {
+        return appender.getEngine().getText(appender.toErrorEvent(newEvent(deepThrowable)), false);
+    }
+
+    @Benchmark
+    public String unboundedTextWithDeepStack() {
+        final LoggingEvent deepEvent = newEvent(deepThrowable);
+        final StringBuilder text = new StringBuilder();
+        text.append("The following was logged by the application:\n");
+        text.append("{code}\n");
+        text.append(appender.getEngine().formatEvent(appender.toErrorEvent(deepEvent)));
+        for (final String line : deepEvent.getThrowableStrRep()) {
+            text.append('\n').append(line);
+        }
+        text.append("{code}\n");
+        return text.toString();
+    }
+
+    private static LoggingEvent newEvent(Throwable throwable) {
+        return new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request.", throwable);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for the <tt>jira1</tt> XML-RPC interface of JIRA that answers every call immediately (or after a fixed
+ * latency) and keeps no state other than counters, so that benchmarks measure the appender rather than the stand-in.
+ *
+ * The stand-in is plugged into the XML-RPC client by means of {@link #getTransportFactory()}. The request is built
+ * and handed to the transport as it would be in production; only the HTTP round trip is skipped.
+ */
+class StubJira {
+
+    private final AtomicInteger issueSequence = new AtomicInteger();
+    private final AtomicInteger commentCount = new AtomicInteger();
+
+    /** The time (in milliseconds) that every call takes, which stands for the network round trip. */
+    private final long latencyMillis;
+
+    private final XmlRpcTransportFactory transportFactory = new XmlRpcTransportFactory() {
+        public XmlRpcTransport getTransport() {
+            return new XmlRpcTransport() {
+                public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+                    return handle(request);
+                }
+            };
+        }
+    };
+
+    StubJira() {
+        this(0);
+    }
+
+    /**
+     * @param latencyMillis the time (in milliseconds) that every call takes.
+     */
+    StubJira(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    XmlRpcTransportFactory getTransportFactory() {
+        return transportFactory;
+    }
+
+    /**
+     * @return the number of issues that were created.
+     */
+    int getIssueCount() {
+        return issueSequence.get();
+    }
+
+    /**
+     * @return the number of comments that were added.
+     */
+    int getCommentCount() {
+        return commentCount.get();
+    }
+
+    private Object handle(XmlRpcRequest request) throws XmlRpcException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XmlRpcException("Interrupted");
+            }
+        }
+        final String method = request.getMethodName();
+        if ("jira1.login".equals(method)) {
+            return "token";
+        }
+        if ("jira1.createIssue".equals(method)) {
+            final Map<?, ?> fields = (Map<?, ?>) request.getParameter(1);
+            final Map<String, Object> issue = new Hashtable<String, Object>();
+            issue.put("key", fields.get("project") + "-" + issueSequence.incrementAndGet());
+            return issue;
+        }
+        if ("jira1.addComment".equals(method)) {
+            commentCount.incrementAndGet();
+            return Boolean.TRUE;
+        }
+        if ("jira1.logout".equals(method)) {
+            return Boolean.TRUE;
+        }
+        throw new XmlRpcException(0, "No such method: " + method);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for JIRA that serves both the <tt>jira1</tt> XML-RPC interface and the REST interface over HTTP on a
+ * local socket, answering every call with a fixed response. Unlike {@link StubJira}, it makes benchmarks include the
+ * encoding of requests, the HTTP round trip and connection handling, which is where the protocols differ.
+ *
+ * The stand-in counts the requests and the bytes of their bodies, as they were sent over the wire.
+ */
+class StubJiraServer {
+
+    static {
+        // Without TCP_NODELAY, the delayed acknowledgement of the request adds some 40ms to every call.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private static final Pattern METHOD_NAME = Pattern.compile("<methodName>\\s*([^<\\s]+)\\s*</methodName>");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicInteger issueSequence = new AtomicInteger();
+
+    StubJiraServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL of the server, as it is configured on the appender.
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the total size (in bytes) of the bodies of the requests that were received, as sent.
+     */
+    long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final String path = exchange.getRequestURI().getPath();
+        final byte[] request = readFully(exchange.getRequestBody());
+        requestBytes.addAndGet(request.length);
+
+        final String response;
+        final String contentType;
+        if (path.startsWith("/rpc/xmlrpc")) {
+            final Matcher matcher = METHOD_NAME.matcher(new String(request, "UTF-8"));
+            final String method = matcher.find() ? matcher.group(1) : "";
+            final String value;
+            if ("jira1.login".equals(method)) {
+                value = "<string>token</string>";
+            } else if ("jira1.createIssue".equals(method)) {
+                value = "<struct><member><name>key</name><value>BENCH-" + issueSequence.incrementAndGet() +
+                        "</value></member></struct>";
+            } else {
+                value = "<boolean>1</boolean>";
+            }
+            response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodResponse><params><param><value>" + value +
+                    "</value></param></params></methodResponse>";
+            contentType = "text/xml";
+        } else if (path.startsWith("/rest/auth/")) {
+            response = "{\"session\":{\"name\":\"JSESSIONID\",\"value\":\"token\"}}";
+            contentType = "application/json";
+        } else if (path.endsWith("/comment")) {
+            response = "{\"id\":\"1\"}";
+            contentType = "application/json";
+        } else {
+            response = "{\"key\":\"BENCH-" + issueSequence.incrementAndGet() + "\"}";
+            contentType = "application/json";
+        }
+
+        final byte[] bytes = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+}
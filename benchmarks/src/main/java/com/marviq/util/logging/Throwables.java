@@ -0,0 +1,57 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Creates Throwables with synthetic stack traces, so that benchmarks do not depend on the depth of the stack that
+ * happens to create them.
+ */
+final class Throwables {
+
+    private Throwables() {
+    }
+
+    /**
+     * @param frames the number of frames of the Throwable and each of its causes.
+     * @param causes the number of causes.
+     * @param id     distinguishes the fingerprint of the Throwable from those created with other ids.
+     */
+    static Throwable newThrowable(int frames, int causes, int id) {
+        final Throwable result = createThrowable(frames, id);
+        Throwable current = result;
+        for (int i = 0; i < causes; i++) {
+            final Throwable cause = createThrowable(frames, id);
+            current.initCause(cause);
+            current = cause;
+        }
+        return result;
+    }
+
+    static Throwable newThrowable(int frames, int causes) {
+        return newThrowable(frames, causes, 0);
+    }
+
+    private static Throwable createThrowable(int frames, int id) {
+        final StackTraceElement[] stackTrace = new StackTraceElement[frames];
+        stackTrace[0] = new StackTraceElement("com.example.Repository", "load", "Repository.java", id);
+        for (int i = 1; i < frames; i++) {
+            stackTrace[i] = new StackTraceElement("com.example.Service" + (i % 20), "process" + i, "Service.java", i);
+        }
+        final Throwable throwable = new IllegalStateException("Benchmark");
+        throwable.setStackTrace(stackTrace);
+        return throwable;
+    }
+}
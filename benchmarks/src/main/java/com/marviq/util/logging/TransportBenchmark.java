@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the cost of sending an event to JIRA through each protocol, from
+ * {@link JIRALog4jAppender#doAppend(LoggingEvent)} over HTTP to a local {@link StubJiraServer}. 'rest-gzip' is the
+ * REST protocol with compressed requests. The average size of the requests, as sent, is printed when a trial ends.
+ *
+ * <ul>
+ * <li><em>comment</em>: an event of which the issue exists already, which results in a short comment;</li>
+ * <li><em>issue</em>: an event with a new fingerprint, which results in an issue of which the description holds a
+ * deep stack trace.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TransportBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(TransportBenchmark.class);
+
+    /** The number of distinct fingerprints that the 'issue' benchmark cycles through; more than the appender caches. */
+    private static final int DISTINCT_THROWABLES = 8192;
+
+    @Param({"xmlrpc", "rest", "rest-gzip"})
+    public String protocol;
+
+    private StubJiraServer server;
+    private JIRALog4jAppender appender;
+    private LoggingEvent comment;
+    private Throwable[] throwables;
+    private final AtomicInteger sequence = new AtomicInteger();
+    private int requestsAtStart;
+    private long bytesAtStart;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubJiraServer();
+        appender = new JIRALog4jAppender(server.getUrl(), "user", "pass", "BENCH");
+        appender.setProtocol(protocol.startsWith("rest") ? "rest" : protocol);
+        appender.setCompressRequests(protocol.endsWith("gzip"));
+        appender.setJmx(false);
+        appender.activateOptions();
+
+        comment = new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request <id=\"42\">.",
+                Throwables.newThrowable(100, 2, -1));
+        appender.doAppend(comment);
+
+        throwables = new Throwable[DISTINCT_THROWABLES];
+        for (int i = 0; i < throwables.length; i++) {
+            throwables[i] = Throwables.newThrowable(100, 2, i);
+        }
+        requestsAtStart = server.getRequestCount();
+        bytesAtStart = server.getRequestBytes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        final int requests = server.getRequestCount() - requestsAtStart;
+        if (requests > 0) {
+            System.out.println(protocol + ": " + (server.getRequestBytes() - bytesAtStart) / requests +
+                    " bytes per request");
+        }
+        appender.close();
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void comment() {
+        appender.doAppend(comment);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void commentContended() {
+        appender.doAppend(comment);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void issue() {
+        final Throwable throwable = throwables[(sequence.getAndIncrement() & Integer.MAX_VALUE) % throwables.length];
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "Unable to process the request <id=\"42\">.",
+                throwable));
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Log4j 2 appender that registers events in a JIRA instance, by means of the {@link JiraEngine}.
+ *
+ * Events that are logged below level ERROR, or without a Throwable, are rejected before anything is allocated, so the
+ * appender does not disturb garbage-free logging. The engine fingerprints, samples and filters the other events on
+ * their Throwable; their message, context data and layout are only read for the events that it sends. Log4j 2 may
+ * reuse its event instances once this appender returns, so an event that the engine hands over to another thread is
+ * first replaced by an immutable copy (see {@link LogEvent#toImmutable()}).
+ *
+ * The connection details are attributes of the <tt>JIRA</tt> element; all other options of the engine (see
+ * <tt>JIRALog4jAppender</tt>) are set by nested <tt>Property</tt> elements, named after the option. The layout should
+ * not render the Throwable (<tt>alwaysWriteExceptions="false"</tt>), as the engine renders it itself, within bounds.
+ */
+@Plugin(name = "JIRA", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class JIRALog4j2Appender extends AbstractAppender {
+
+    /** The layout that is used when none is configured: the TTCC layout of log4j 1.x, without the Throwable. */
+    private static final String DEFAULT_PATTERN = "%r [%t] %p %c %x - %m";
+
+    private final JiraEngine engine;
+
+    private JIRALog4j2Appender(String name, Filter filter, Layout<? extends Serializable> layout,
+                               boolean ignoreExceptions, JiraEngine engine) {
+        super(name, filter, layout, ignoreExceptions, Property.EMPTY_ARRAY);
+        this.engine = engine;
+    }
+
+    @PluginFactory
+    public static JIRALog4j2Appender createAppender(
+            @PluginAttribute("name") @Required(message = "No name provided for the JIRA appender") String name,
+            @PluginAttribute("url") @Required(message = "No url provided for the JIRA appender") String url,
+            @PluginAttribute("username") String username,
+            @PluginAttribute(value = "password", sensitive = true) String password,
+            @PluginAttribute("projectkey") String projectkey,
+            @PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+            @PluginElement("Layout") Layout<? extends Serializable> layout,
+            @PluginElement("Filter") Filter filter,
+            @PluginElement("Properties") Property[] properties) {
+        InternalLog.setSink(StatusLoggerSink.INSTANCE);
+
+        final JiraEngine engine = new JiraEngine(url, username, password, projectkey);
+        engine.setName(name);
+        if (properties != null) {
+            for (final Property property : properties) {
+                setOption(engine, property.getName(), property.getValue());
+            }
+        }
+        if (layout == null) {
+            layout = PatternLayout.newBuilder().withPattern(DEFAULT_PATTERN).withAlwaysWriteExceptions(false).build();
+        }
+        return new JIRALog4j2Appender(name, filter, layout, ignoreExceptions, engine);
+    }
+
+    /**
+     * @return the engine, which holds the options and the statistics of this appender.
+     */
+    public JiraEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void start() {
+        engine.activateOptions();
+        super.start();
+    }
+
+    /**
+     * Stops this appender. The engine is given until the timeout passes (or its close timeout, if that passes sooner)
+     * to send the events that are pending. A timeout of 0, which Log4j 2 passes when none was given, leaves just the
+     * close timeout.
+     *
+     * @return <tt>true</tt> if the pending events were all sent to JIRA in time.
+     */
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        super.stop(timeout, timeUnit, false);
+        final boolean finished = engine.close(timeout > 0 ? Math.max(1, timeUnit.toMillis(timeout)) : 0);
+        setStopped();
+        return finished;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        if (!event.getLevel().isMoreSpecificThan(Level.ERROR)) {
+            // Ignore events that have been logged at a level lower than ERROR.
+            engine.getMetrics().eventFiltered();
+            return;
+        }
+        final Throwable thrown = event.getThrown();
+        if (thrown == null) {
+            // Ignore events that have been logged without a Throwable.
+            engine.getMetrics().eventFiltered();
+            return;
+        }
+
+        engine.append(new Log4j2ErrorEvent(event, thrown));
+    }
+
+    /**
+     * Sets an option of the engine by means of its setter, as log4j 1.x does for the parameters of an appender.
+     */
+    private static void setOption(JiraEngine engine, String name, String value) {
+        if (name == null || name.length() == 0 || value == null) {
+            return;
+        }
+        final String setterName = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (final Method method : JiraEngine.class.getMethods()) {
+            if (!method.getName().equals(setterName) || method.getParameterTypes().length != 1) {
+                continue;
+            }
+            final Class<?> type = method.getParameterTypes()[0];
+            try {
+                final String trimmed = value.trim();
+                if (type == String.class) {
+                    method.invoke(engine, value);
+                } else if (type == int.class) {
+                    method.invoke(engine, Integer.parseInt(trimmed));
+                } else if (type == long.class) {
+                    method.invoke(engine, Long.parseLong(trimmed));
+                } else if (type == boolean.class) {
+                    method.invoke(engine, Boolean.parseBoolean(trimmed));
+                } else {
+                    continue;
+                }
+                return;
+            } catch (NumberFormatException e) {
+                StatusLogger.getLogger().error("Invalid value '{}' for option {} of the JIRA appender.", value, name);
+                return;
+            } catch (IllegalAccessException e) {
+                StatusLogger.getLogger().error("Unable to set option {} of the JIRA appender.", name, e);
+                return;
+            } catch (InvocationTargetException e) {
+                StatusLogger.getLogger().error("Unable to set option {} of the JIRA appender.", name, e.getCause());
+                return;
+            }
+        }
+        StatusLogger.getLogger().warn("The JIRA appender has no option {}.", name);
+    }
+
+    /**
+     * A Log4j 2 event, as the engine sees it. Its parts are read from the Log4j 2 event when the engine needs them.
+     */
+    private final class Log4j2ErrorEvent extends ErrorEvent {
+        private LogEvent event;
+
+        Log4j2ErrorEvent(LogEvent event, Throwable thrown) {
+            super(event.getLoggerName(), event.getTimeMillis(), thrown);
+            this.event = event;
+        }
+
+        @Override
+        public String getThreadName() {
+            return event.getThreadName();
+        }
+
+        @Override
+        public String getMessage() {
+            return event.getMessage().getFormattedMessage();
+        }
+
+        @Override
+        public Object getMdc(String key) {
+            final ReadOnlyStringMap contextData = event.getContextData();
+            return contextData == null ? null : contextData.getValue(key);
+        }
+
+        @Override
+        public String format() {
+            return getLayout().toSerializable(event).toString();
+        }
+
+        @Override
+        public void prepareForHandOver() {
+            final LogEvent copy = event.toImmutable();
+            // The thread name and the location of an event may be determined lazily, from the current thread.
+            copy.getThreadName();
+            copy.getSource();
+            event = copy;
+        }
+    }
+
+    /**
+     * Passes the messages of the engine to the status logger of Log4j 2.
+     */
+    private enum StatusLoggerSink implements InternalLog.Sink {
+        INSTANCE;
+
+        @Override
+        public void debug(String message, Throwable throwable) {
+            StatusLogger.getLogger().debug(message, throwable);
+        }
+
+        @Override
+        public void warn(String message, Throwable throwable) {
+            StatusLogger.getLogger().warn(message, throwable);
+        }
+
+        @Override
+        public void error(String message, Throwable throwable) {
+            StatusLogger.getLogger().error(message, throwable);
+        }
+    }
+}
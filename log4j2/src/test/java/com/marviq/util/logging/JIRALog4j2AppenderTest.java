@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies that the Log4j 2 appender hands events to the engine, and copies what it needs of reusable events.
+ */
+public class JIRALog4j2AppenderTest {
+
+    /** The summaries of the issues that were created, in order. */
+    private final List<String> summaries = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Holds back the creation of issues until it is counted down. */
+    private volatile CountDownLatch released = new CountDownLatch(0);
+
+    /**
+     * Asserts that events below level ERROR, or without a Throwable, are not sent.
+     */
+    @Test
+    public void testFiltersEvents() throws Exception {
+
+        // setup
+        final JIRALog4j2Appender appender = newAppender();
+        final MutableLogEvent event = newEvent("warning", new Throwable());
+        event.setLevel(Level.WARN);
+
+        // do magic
+        appender.append(event);
+        appender.append(newEvent("no throwable", null));
+        appender.stop();
+
+        // verify
+        Assert.assertTrue(summaries.isEmpty());
+        Assert.assertEquals(2, appender.getEngine().getMetrics().getFilteredEventCount());
+    }
+
+    /**
+     * Asserts that an event is sent with the parts that it had when it was appended, even if Log4j 2 reuses the event
+     * instance before the event is dispatched.
+     */
+    @Test
+    public void testCopiesReusableEvents() throws Exception {
+
+        // setup
+        final JIRALog4j2Appender appender = newAppender(Property.createProperty("async", "true"));
+        final MutableLogEvent event = newEvent("first", new Throwable());
+
+        // do magic
+        appender.append(event);
+        event.setMessage(new SimpleMessage("reused"));
+        event.setLoggerName("other");
+        appender.stop();
+
+        // verify
+        Assert.assertEquals(1, summaries.size());
+        Assert.assertTrue(summaries.get(0), summaries.get(0).endsWith("com.example.Service:first"));
+    }
+
+    /**
+     * Asserts that the message of an event is not formatted when the engine does not send the event.
+     */
+    @Test
+    public void testFilteredEventsAreNotFormatted() throws Exception {
+
+        // setup
+        final JIRALog4j2Appender appender = newAppender();
+        final Throwable withoutStackTrace = new Throwable();
+        withoutStackTrace.setStackTrace(new StackTraceElement[0]);
+        final CountingMessage message = new CountingMessage("no stack trace");
+        final LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("com.example.Service").setLevel(Level.ERROR)
+                .setMessage(message).setThrown(withoutStackTrace).build();
+
+        // do magic
+        appender.append(event);
+        appender.stop();
+
+        // verify
+        Assert.assertTrue(summaries.isEmpty());
+        Assert.assertEquals(0, message.formatted.get());
+    }
+
+    /**
+     * Asserts that stopping the appender waits no longer than the timeout, and reports whether the pending events were
+     * sent in time.
+     */
+    @Test
+    public void testStopReportsWhetherEventsWereSent() throws Exception {
+
+        // setup
+        released = new CountDownLatch(1);
+        final JIRALog4j2Appender slow = newAppender(Property.createProperty("async", "true"),
+                Property.createProperty("closeTimeout", "10000"));
+        slow.append(newEvent("slow", new Throwable()));
+        final JIRALog4j2Appender fast = newAppender(Property.createProperty("async", "true"));
+        fast.append(newEvent("fast", new Throwable()));
+
+        // do magic
+        final long start = System.currentTimeMillis();
+        final boolean slowFinished = slow.stop(200, TimeUnit.MILLISECONDS);
+        final long elapsed = System.currentTimeMillis() - start;
+        released.countDown();
+        final boolean fastFinished = fast.stop(5, TimeUnit.SECONDS);
+
+        // verify
+        Assert.assertFalse(slowFinished);
+        Assert.assertTrue("Stopping took " + elapsed + " ms", elapsed < 5000);
+        Assert.assertTrue(fastFinished);
+        Assert.assertTrue(slow.isStopped());
+    }
+
+    /**
+     * Asserts that nested properties set the options of the engine.
+     */
+    @Test
+    public void testPropertiesSetOptions() throws Exception {
+
+        // do magic
+        final JIRALog4j2Appender appender = newAppender(Property.createProperty("label", "log4j2"),
+                Property.createProperty("bufferSize", "64"), Property.createProperty("noSuchOption", "1"));
+
+        // verify
+        Assert.assertEquals("log4j2", appender.getEngine().getLabel());
+        Assert.assertEquals(64, appender.getEngine().getBufferSize());
+        appender.stop();
+    }
+
+    private JIRALog4j2Appender newAppender(Property... properties) {
+        final List<Property> all = new ArrayList<Property>();
+        all.add(Property.createProperty("jmx", "false"));
+        Collections.addAll(all, properties);
+        final JIRALog4j2Appender appender = JIRALog4j2Appender.createAppender("jira", "http://localhost", "user",
+                "pass", "TEST", true, null, null, all.toArray(new Property[all.size()]));
+        appender.getEngine().setTransportFactory(new XmlRpcTransportFactory() {
+            public XmlRpcTransport getTransport() {
+                return new XmlRpcTransport() {
+                    public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+                        return handle(request);
+                    }
+                };
+            }
+        });
+        appender.start();
+        return appender;
+    }
+
+    /**
+     * Answers the calls to JIRA that the appender makes.
+     */
+    private Object handle(XmlRpcRequest request) {
+        if ("jira1.login".equals(request.getMethodName())) {
+            return "token";
+        }
+        if ("jira1.createIssue".equals(request.getMethodName())) {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final Map<?, ?> issue = (Map<?, ?>) request.getParameter(1);
+            summaries.add(String.valueOf(issue.get("summary")));
+            final Map<String, Object> result = new HashMap<String, Object>();
+            result.put("key", "TEST-" + summaries.size());
+            return result;
+        }
+        return Boolean.TRUE;
+    }
+
+    private static MutableLogEvent newEvent(String message, Throwable throwable) {
+        final MutableLogEvent event = new MutableLogEvent();
+        event.setLoggerName("com.example.Service");
+        event.setLevel(Level.ERROR);
+        event.setMessage(new SimpleMessage(message));
+        event.setThrown(throwable);
+        event.setTimeMillis(System.currentTimeMillis());
+        return event;
+    }
+
+    /**
+     * A message that counts the number of times that it is formatted.
+     */
+    private static final class CountingMessage extends SimpleMessage {
+        final AtomicInteger formatted = new AtomicInteger();
+
+        CountingMessage(String message) {
+            super(message);
+        }
+
+        @Override
+        public String getFormattedMessage() {
+            formatted.incrementAndGet();
+            return super.getFormattedMessage();
+        }
+    }
+}
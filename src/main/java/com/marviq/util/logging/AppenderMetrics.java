@@ -0,0 +1,339 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The statistics of a single {@link JiraEngine}: what happened to the events that it was given, and how the
+ * calls that it made to JIRA fared.
+ *
+ * Counters are {@link StripedCounter}s, and durations are recorded in {@link LatencyHistogram}s, so that updating the
+ * statistics never blocks, and threads that log concurrently do not contend for the same counter. Reading the
+ * statistics is comparatively expensive, and does not take a consistent snapshot of all of them.
+ *
+ * The statistics are available through {@link JiraEngine#getMetrics()}, and are registered as an MBean when the
+ * appender is activated (unless the 'jmx' option is disabled).
+ */
+public final class AppenderMetrics implements AppenderMetricsMBean {
+
+    /** The name of the XML-RPC method that logs in. */
+    static final String LOGIN = "jira1.login";
+
+    /** The name of the XML-RPC method that creates an issue. */
+    static final String CREATE_ISSUE = "jira1.createIssue";
+
+    /** The name of the XML-RPC method that adds a comment to an issue. */
+    static final String ADD_COMMENT = "jira1.addComment";
+
+    /** The name of the XML-RPC method that searches for issues. */
+    static final String SEARCH = "jira1.getIssuesFromJqlSearch";
+
+    private final JiraEngine appender;
+
+    private final StripedCounter filteredEvents = new StripedCounter();
+    private final StripedCounter acceptedEvents = new StripedCounter();
+    private final StripedCounter sampledOutEvents = new StripedCounter();
+    private final StripedCounter cacheHits = new StripedCounter();
+    private final StripedCounter cacheMisses = new StripedCounter();
+    private final StripedCounter issuesCreated = new StripedCounter();
+    private final StripedCounter commentsAdded = new StripedCounter();
+    private final StripedCounter failedCalls = new StripedCounter();
+    private final StripedCounter rejectedCalls = new StripedCounter();
+    private final StripedCounter stuckCalls = new StripedCounter();
+    private final StripedCounter abandonedEvents = new StripedCounter();
+    private final StripedCounter spooledEvents = new StripedCounter();
+    private final StripedCounter replayedEvents = new StripedCounter();
+    private final StripedCounter issuesFound = new StripedCounter();
+
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram createIssueLatency = new LatencyHistogram();
+    private final LatencyHistogram addCommentLatency = new LatencyHistogram();
+
+    AppenderMetrics(JiraEngine appender) {
+        this.appender = appender;
+    }
+
+    void eventFiltered() {
+        filteredEvents.increment();
+    }
+
+    void eventAccepted() {
+        acceptedEvents.increment();
+    }
+
+    void eventSampledOut() {
+        sampledOutEvents.increment();
+    }
+
+    void cacheHit() {
+        cacheHits.increment();
+    }
+
+    void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    void issueCreated() {
+        issuesCreated.increment();
+    }
+
+    void commentAdded() {
+        commentsAdded.increment();
+    }
+
+    void callRejected() {
+        rejectedCalls.increment();
+    }
+
+    void callStuck() {
+        stuckCalls.increment();
+    }
+
+    void eventAbandoned() {
+        abandonedEvents.increment();
+    }
+
+    void eventSpooled() {
+        spooledEvents.increment();
+    }
+
+    void eventsReplayed(int count) {
+        replayedEvents.add(count);
+    }
+
+    void issuesFound(int count) {
+        issuesFound.add(count);
+    }
+
+    /**
+     * Records a call to JIRA that was made (whether it succeeded or not).
+     *
+     * @param method    the name of the XML-RPC method.
+     * @param nanos     the duration of the call.
+     * @param succeeded <tt>false</tt> if the call failed.
+     */
+    void callCompleted(String method, long nanos, boolean succeeded) {
+        final LatencyHistogram histogram = getLatency(method);
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+        if (!succeeded) {
+            failedCalls.increment();
+        }
+    }
+
+    /**
+     * @param method the name of an XML-RPC method: 'jira1.login', 'jira1.createIssue' or 'jira1.addComment'.
+     * @return the durations of the calls to the method, or <tt>null</tt> if those are not recorded.
+     */
+    public LatencyHistogram getLatency(String method) {
+        if (LOGIN.equals(method)) {
+            return loginLatency;
+        }
+        if (CREATE_ISSUE.equals(method)) {
+            return createIssueLatency;
+        }
+        if (ADD_COMMENT.equals(method)) {
+            return addCommentLatency;
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of events that were ignored, because of their level, because they had no Throwable or stack
+     *         trace, or because the appender was not configured properly.
+     */
+    public long getFilteredEventCount() {
+        return filteredEvents.get();
+    }
+
+    /**
+     * @return the number of events that were accepted to be sent to JIRA.
+     */
+    public long getAcceptedEventCount() {
+        return acceptedEvents.get();
+    }
+
+    public long getDroppedEventCount() {
+        return appender.getDroppedEventCount();
+    }
+
+    public long getCoalescedEventCount() {
+        return appender.getCoalescedEventCount();
+    }
+
+    /**
+     * @return the number of events that were held back by comment sampling.
+     */
+    public long getSampledOutEventCount() {
+        return sampledOutEvents.get();
+    }
+
+    /**
+     * @return the number of events of which the issue was found in the cache.
+     */
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of events of which the issue was not found in the cache.
+     */
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    public long getIssuesCreatedCount() {
+        return issuesCreated.get();
+    }
+
+    public long getCommentsAddedCount() {
+        return commentsAdded.get();
+    }
+
+    public long getLoginCount() {
+        return loginLatency.getCount();
+    }
+
+    /**
+     * @return the number of calls to JIRA that failed.
+     */
+    public long getFailedCallCount() {
+        return failedCalls.get();
+    }
+
+    /**
+     * @return the number of calls to JIRA that were not made, because of a rate limit or the circuit breaker.
+     */
+    public long getRejectedCallCount() {
+        return rejectedCalls.get();
+    }
+
+    /**
+     * @return the number of calls to JIRA that were still running when they exceeded the stuck call threshold.
+     */
+    public long getStuckCallCount() {
+        return stuckCalls.get();
+    }
+
+    /**
+     * @return the number of events that were given up on, because they could not be sent to JIRA within the time
+     *         allowed for each event.
+     */
+    public long getAbandonedEventCount() {
+        return abandonedEvents.get();
+    }
+
+    /**
+     * @return the number of events that were written to the spool, because they could not be sent to JIRA.
+     */
+    public long getSpooledEventCount() {
+        return spooledEvents.get();
+    }
+
+    /**
+     * @return the number of spooled events that were sent to JIRA later on.
+     */
+    public long getReplayedEventCount() {
+        return replayedEvents.get();
+    }
+
+    /**
+     * @return the number of existing issues that were found in JIRA, rather than created by this appender.
+     */
+    public long getIssuesFoundCount() {
+        return issuesFound.get();
+    }
+
+    /**
+     * @return the number of events in the spool that are waiting to be sent to JIRA.
+     */
+    public int getSpoolSize() {
+        return appender.getSpoolSize();
+    }
+
+    /**
+     * @return the number of spooled events that were discarded, because the spool was full.
+     */
+    public long getSpoolEvictedCount() {
+        return appender.getSpoolEvictedCount();
+    }
+
+    public long getCacheSize() {
+        return appender.getCache().size();
+    }
+
+    /**
+     * @return the fraction of cache lookups that found an issue, or 1 if there were no lookups yet.
+     */
+    public double getCacheHitRate() {
+        final long hits = getCacheHitCount();
+        final long lookups = hits + getCacheMissCount();
+        return lookups == 0 ? 1.0 : (double) hits / lookups;
+    }
+
+    public long getCacheEvictionCount() {
+        return appender.getCache().getEvictionCount();
+    }
+
+    public double getLoginMedianMillis() {
+        return loginLatency.getValueAtPercentile(50, TimeUnit.MILLISECONDS);
+    }
+
+    public double getLogin99thPercentileMillis() {
+        return loginLatency.getValueAtPercentile(99, TimeUnit.MILLISECONDS);
+    }
+
+    public double getLoginMaxMillis() {
+        return loginLatency.getMax(TimeUnit.MILLISECONDS);
+    }
+
+    public double getCreateIssueMedianMillis() {
+        return createIssueLatency.getValueAtPercentile(50, TimeUnit.MILLISECONDS);
+    }
+
+    public double getCreateIssue99thPercentileMillis() {
+        return createIssueLatency.getValueAtPercentile(99, TimeUnit.MILLISECONDS);
+    }
+
+    public double getCreateIssueMaxMillis() {
+        return createIssueLatency.getMax(TimeUnit.MILLISECONDS);
+    }
+
+    public double getAddCommentMedianMillis() {
+        return addCommentLatency.getValueAtPercentile(50, TimeUnit.MILLISECONDS);
+    }
+
+    public double getAddComment99thPercentileMillis() {
+        return addCommentLatency.getValueAtPercentile(99, TimeUnit.MILLISECONDS);
+    }
+
+    public double getAddCommentMaxMillis() {
+        return addCommentLatency.getMax(TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "AppenderMetrics[filtered=" + getFilteredEventCount() + ", accepted=" + getAcceptedEventCount() +
+                ", cacheHits=" + getCacheHitCount() + ", cacheMisses=" + getCacheMissCount() + ", issuesCreated=" +
+                getIssuesCreatedCount() + ", commentsAdded=" + getCommentsAddedCount() + ", logins=" +
+                getLoginCount() + ", failedCalls=" + getFailedCallCount() + ", rejectedCalls=" +
+                getRejectedCallCount() + ", stuckCalls=" + getStuckCallCount() + ", abandonedEvents=" +
+                getAbandonedEventCount() + ", spooledEvents=" + getSpooledEventCount() + ", replayedEvents=" +
+                getReplayedEventCount() + ", issuesFound=" + getIssuesFoundCount() + "]";
+    }
+}
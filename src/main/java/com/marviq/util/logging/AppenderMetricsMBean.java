@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * The management interface of {@link AppenderMetrics}, through which the statistics of an appender are exposed over
+ * JMX. Durations are in milliseconds.
+ */
+public interface AppenderMetricsMBean {
+
+    long getFilteredEventCount();
+
+    long getAcceptedEventCount();
+
+    long getDroppedEventCount();
+
+    long getCoalescedEventCount();
+
+    long getSampledOutEventCount();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    long getIssuesCreatedCount();
+
+    long getCommentsAddedCount();
+
+    long getLoginCount();
+
+    long getFailedCallCount();
+
+    long getRejectedCallCount();
+
+    long getStuckCallCount();
+
+    long getAbandonedEventCount();
+
+    long getSpooledEventCount();
+
+    long getReplayedEventCount();
+
+    long getIssuesFoundCount();
+
+    int getSpoolSize();
+
+    long getSpoolEvictedCount();
+
+    long getCacheSize();
+
+    double getCacheHitRate();
+
+    long getCacheEvictionCount();
+
+    double getLoginMedianMillis();
+
+    double getLogin99thPercentileMillis();
+
+    double getLoginMaxMillis();
+
+    double getCreateIssueMedianMillis();
+
+    double getCreateIssue99thPercentileMillis();
+
+    double getCreateIssueMaxMillis();
+
+    double getAddCommentMedianMillis();
+
+    double getAddComment99thPercentileMillis();
+
+    double getAddCommentMaxMillis();
+}
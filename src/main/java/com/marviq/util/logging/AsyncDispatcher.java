@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events over from logging threads to worker threads that send them to JIRA.
+ *
+ * Logging threads only ever touch a lock-free {@link RingBuffer}. When that buffer is full, the configured
+ * {@link OverflowPolicy} decides which event is lost. The number of events that were lost (or folded into another
+ * event) is counted.
+ *
+ * Work is partitioned by fingerprint: every worker has a buffer of its own, and events with the same fingerprint always
+ * go to the same worker. Events with distinct fingerprints are sent concurrently, while events with the same
+ * fingerprint are sent in the order in which they were logged (so the issue is created before it is commented on). On
+ * JVMs that support them, workers are virtual threads; otherwise, they are daemon platform threads.
+ */
+final class AsyncDispatcher {
+
+    /** The maximum time that a worker sleeps before checking its buffer again, should a wake-up signal get lost. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** The number of times an event is offered when room needs to be made by discarding the oldest event. */
+    private static final int DROP_OLDEST_ATTEMPTS = 8;
+
+    private final JiraEngine appender;
+    private final OverflowPolicy overflowPolicy;
+    private final Partition[] partitions;
+
+    /** Events that are still in a buffer, by fingerprint. Only maintained for {@link OverflowPolicy#COALESCE}. */
+    private final ConcurrentMap<Long, PendingEvent> pendingByHash;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private volatile boolean stopped;
+
+    /**
+     * @param appender       the appender that sends the events.
+     * @param capacity       the number of events that can be buffered per worker.
+     * @param overflowPolicy decides which event is lost when a buffer is full.
+     * @param workers        the number of workers.
+     * @param name           the name of the worker thread (suffixed with its index if there is more than one).
+     */
+    AsyncDispatcher(JiraEngine appender, int capacity, OverflowPolicy overflowPolicy, int workers,
+                    String name) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of workers must be positive, but was " + workers);
+        }
+        this.appender = appender;
+        this.overflowPolicy = overflowPolicy;
+        this.pendingByHash = overflowPolicy == OverflowPolicy.COALESCE
+                ? new ConcurrentHashMap<Long, PendingEvent>()
+                : null;
+        this.partitions = new Partition[workers];
+        for (int i = 0; i < workers; i++) {
+            partitions[i] = new Partition(capacity, workers == 1 ? name : name + "-" + i);
+        }
+    }
+
+    void start() {
+        for (final Partition partition : partitions) {
+            partition.worker.start();
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if events must be fingerprinted before they are queued: to pick the worker that dispatches
+     *         them, or to coalesce them.
+     */
+    boolean needsFingerprint() {
+        return partitions.length > 1 || pendingByHash != null;
+    }
+
+    /**
+     * Queues an event that has not been fingerprinted yet, which the worker then processes from scratch. Never blocks.
+     * Only allowed if fingerprints are not needed (see {@link #needsFingerprint()}).
+     *
+     * @param event the event to process.
+     * @return <tt>true</tt> if the event was queued, <tt>false</tt> if it was discarded.
+     */
+    boolean enqueue(ErrorEvent event) {
+        return offer(new PendingEvent(event));
+    }
+
+    /**
+     * Queues an event for dispatching. Never blocks.
+     *
+     * The caller must have copied all thread-specific state (thread name, NDC, MDC) into the event before calling
+     * this method, as the event is processed on another thread.
+     *
+     * @param event       the event to dispatch.
+     * @param hash        the fingerprint of the Throwable of the event.
+     * @param occurrences the number of occurrences that the event represents.
+     * @return <tt>true</tt> if the event was queued or coalesced, <tt>false</tt> if it was discarded.
+     */
+    boolean enqueue(ErrorEvent event, long hash, int occurrences) {
+        return offer(new PendingEvent(event, hash, occurrences));
+    }
+
+    private boolean offer(PendingEvent pending) {
+        if (stopped) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        final long hash = pending.hash;
+        final Partition partition = partitionOf(hash);
+        final RingBuffer<PendingEvent> buffer = partition.buffer;
+
+        // The event is registered before it can reach a worker, so that the worker always finds it to unregister.
+        // An event that is still waiting keeps its registration; one that a worker has picked up gives it up.
+        boolean registered = false;
+        if (pendingByHash != null) {
+            final PendingEvent registration = pendingByHash.putIfAbsent(hash, pending);
+            registered = registration == null
+                    || registration.isSealed() && pendingByHash.replace(hash, registration, pending);
+        }
+
+        boolean accepted = buffer.offer(pending);
+        if (!accepted) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    for (int i = 0; i < DROP_OLDEST_ATTEMPTS && !accepted; i++) {
+                        if (buffer.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                        accepted = buffer.offer(pending);
+                    }
+                    break;
+
+                case COALESCE:
+                    final PendingEvent similar = registered ? null : pendingByHash.get(hash);
+                    if (similar != null && similar.tryCoalesce()) {
+                        coalesced.incrementAndGet();
+                        return true;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        if (!accepted) {
+            if (registered) {
+                pendingByHash.remove(hash, pending);
+            }
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        if (partition.parked) {
+            LockSupport.unpark(partition.worker);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting events, and waits for the workers to dispatch the events that are still buffered.
+     *
+     * May be called again, to wait some more.
+     *
+     * @param deadline the time by which all workers must have finished.
+     * @return <tt>true</tt> if the workers finished in time.
+     */
+    boolean stop(Deadline deadline) {
+        stopped = true;
+        for (final Partition partition : partitions) {
+            LockSupport.unpark(partition.worker);
+        }
+        boolean finished = true;
+        for (final Partition partition : partitions) {
+            try {
+                partition.worker.join(deadline.limit(0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished &= !partition.worker.isAlive();
+        }
+        return finished;
+    }
+
+    /**
+     * @return the number of workers.
+     */
+    int getWorkerCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @return the number of events that were discarded because a buffer was full (or the dispatcher was stopped).
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events that were folded into a similar event that was waiting to be dispatched.
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the (approximate) number of events waiting to be dispatched.
+     */
+    int getPendingCount() {
+        int result = 0;
+        for (final Partition partition : partitions) {
+            result += partition.buffer.size();
+        }
+        return result;
+    }
+
+    private Partition partitionOf(long hash) {
+        if (partitions.length == 1) {
+            return partitions[0];
+        }
+        // Fingerprints of custom strategies need not be evenly distributed: fold the high bits into the low ones.
+        final int folded = (int) (hash ^ (hash >>> 32));
+        return partitions[((folded ^ (folded >>> 16)) & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    /**
+     * Creates a worker thread: a virtual thread if the JVM supports those, or a daemon platform thread otherwise.
+     * Virtual threads are created by reflection, as this code is compiled for JVMs that predate them.
+     */
+    static Thread newWorker(Runnable task, String name) {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object named = builderClass.getMethod("name", String.class).invoke(builder, name);
+            final Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            return (Thread) unstarted.invoke(named, task);
+        } catch (Exception e) {
+            // Not supported (or, on some JVMs, only as a preview feature).
+            final Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A buffer and the worker that drains it.
+     */
+    private final class Partition implements Runnable {
+        final RingBuffer<PendingEvent> buffer;
+        final Thread worker;
+
+        volatile boolean parked;
+
+        Partition(int capacity, String name) {
+            this.buffer = new RingBuffer<PendingEvent>(capacity);
+            this.worker = newWorker(this, name);
+        }
+
+        public void run() {
+            for (;;) {
+                final PendingEvent pending = buffer.poll();
+                if (pending == null) {
+                    if (stopped) {
+                        return;
+                    }
+                    parked = true;
+                    if (buffer.isEmpty() && !stopped) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    parked = false;
+                    continue;
+                }
+
+                if (pendingByHash != null) {
+                    pendingByHash.remove(pending.hash, pending);
+                }
+                final int occurrences = pending.seal();
+                try {
+                    if (!pending.fingerprinted) {
+                        appender.process(pending.event, null);
+                    } else {
+                        appender.dispatch(pending.event, pending.hash, occurrences);
+                    }
+                } catch (RuntimeException e) {
+                    InternalLog.error(worker.getName() + ": Unexpected failure while dispatching an event.", e);
+                }
+            }
+        }
+    }
+}
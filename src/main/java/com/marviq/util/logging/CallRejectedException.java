@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Signals that a call to JIRA was not made, because a rate limit was exceeded or because the circuit breaker is open.
+ */
+final class CallRejectedException extends XmlRpcException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean circuitOpen;
+
+    CallRejectedException(String message, boolean circuitOpen) {
+        super(message);
+        this.circuitOpen = circuitOpen;
+    }
+
+    /**
+     * @return <tt>true</tt> if the call was rejected because calls are suspended after repeated failures, rather than
+     *         because of a rate limit.
+     */
+    boolean isCircuitOpen() {
+        return circuitOpen;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the calls to JIRA that are in progress, and reports those that take longer than a threshold.
+ *
+ * Timeouts bound the time that a call spends connecting and waiting for data, but not every part of a call is covered
+ * by them (resolving the host name, for instance). A call that is reported by the watchdog most likely blocks the
+ * thread that makes it; the report includes the stack trace of that thread. Every call is reported at most once.
+ *
+ * Instances are thread-safe.
+ */
+final class CallWatchdog {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = CallWatchdog.class.getSimpleName();
+
+    private final ConcurrentMap<Long, Call> calls = new ConcurrentHashMap<Long, Call>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final long thresholdNanos;
+    private final AppenderMetrics metrics;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Creates a watchdog, and starts checking the calls in progress.
+     *
+     * @param thresholdMillis the duration after which a call is reported.
+     * @param metrics         counts the calls that are reported.
+     * @param name            the name of the thread that checks the calls.
+     */
+    CallWatchdog(long thresholdMillis, AppenderMetrics metrics, String name) {
+        if (thresholdMillis <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive, but was " + thresholdMillis);
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.metrics = metrics;
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name).build());
+        final long interval = Math.max(10, thresholdMillis / 4);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a call that the current thread is about to make.
+     *
+     * @param method the name of the XML-RPC method.
+     * @return the id of the call, to be passed to {@link #finished(long)}.
+     */
+    long started(String method) {
+        final long id = sequence.incrementAndGet();
+        calls.put(id, new Call(Thread.currentThread(), method, System.nanoTime()));
+        return id;
+    }
+
+    /**
+     * Unregisters a call, whether it succeeded or not.
+     *
+     * @param id the id returned by {@link #started(String)}.
+     */
+    void finished(long id) {
+        final Call call = calls.remove(id);
+        if (call != null && call.reported) {
+            InternalLog.warn(SIMPLE_NAME + ": Call to " + call.method + " on thread '" + call.thread.getName() +
+                    "' completed after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - call.startNanos) +
+                    "ms.");
+        }
+    }
+
+    /**
+     * @return the number of calls in progress.
+     */
+    int size() {
+        return calls.size();
+    }
+
+    /**
+     * Reports the calls that have been in progress for longer than the threshold, and were not reported before.
+     */
+    void check() {
+        final long now = System.nanoTime();
+        for (final Call call : calls.values()) {
+            if (!call.reported && now - call.startNanos > thresholdNanos) {
+                call.reported = true;
+                metrics.callStuck();
+                final StuckCall stack = new StuckCall(call.thread.getName());
+                stack.setStackTrace(call.thread.getStackTrace());
+                InternalLog.warn(SIMPLE_NAME + ": Call to " + call.method + " on thread '" + call.thread.getName() +
+                        "' has been in progress for " + TimeUnit.NANOSECONDS.toMillis(now - call.startNanos) +
+                        "ms.", stack);
+            }
+        }
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private static final class Call {
+        final Thread thread;
+        final String method;
+        final long startNanos;
+
+        /** Only written by the thread of the watchdog. */
+        volatile boolean reported;
+
+        Call(Thread thread, String method, long startNanos) {
+            this.thread = thread;
+            this.method = method;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Carries the stack trace of a thread that is stuck in a call, so that it can be reported.
+     */
+    private static final class StuckCall extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        StuckCall(String threadName) {
+            super("Stack trace of thread '" + threadName + "'");
+        }
+    }
+}
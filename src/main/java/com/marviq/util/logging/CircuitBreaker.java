@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Stops calls to a remote service after a number of consecutive failures, so that callers fail fast instead of waiting
+ * for the service to time out.
+ *
+ * The breaker starts out <em>closed</em>: all calls are permitted. Once the configured number of consecutive calls has
+ * failed, it <em>opens</em>, and refuses all calls for a while. After that, it is <em>half-open</em>: a single trial
+ * call is permitted. If that call succeeds, the breaker closes again; if it fails, or is abandoned before its outcome
+ * is known, the breaker opens again.
+ *
+ * Instances are thread-safe.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Ticker ticker;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold the number of consecutive failures after which the breaker opens.
+     * @param openNanos        the time (in nanoseconds) that the breaker stays open before it permits a trial call.
+     * @param ticker           the source of time.
+     */
+    CircuitBreaker(int failureThreshold, long openNanos, Ticker ticker) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold must be positive.");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Checks if a call is permitted. When this method returns <tt>true</tt>, the outcome of the call must be reported
+     * by means of {@link #recordSuccess()}, {@link #recordFailure()} or {@link #recordAbandoned()}.
+     *
+     * @return <tt>true</tt> if the call can be made.
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (ticker.read() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // A trial call is in progress.
+                return false;
+        }
+    }
+
+    /**
+     * Reports a call that succeeded.
+     *
+     * @return <tt>true</tt> if this closed the breaker.
+     */
+    synchronized boolean recordSuccess() {
+        consecutiveFailures = 0;
+        if (state == State.CLOSED) {
+            return false;
+        }
+        state = State.CLOSED;
+        return true;
+    }
+
+    /**
+     * Reports a call that failed.
+     *
+     * @return <tt>true</tt> if this opened the breaker.
+     */
+    synchronized boolean recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = ticker.read();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports a call of which the outcome is not known, because the caller stopped waiting for it. Such a call does not
+     * count as a failure while the breaker is closed; a trial call that is abandoned opens the breaker again, so that
+     * another trial call is permitted once the delay has passed.
+     *
+     * @return <tt>true</tt> if this opened the breaker.
+     */
+    synchronized boolean recordAbandoned() {
+        if (state != State.HALF_OPEN) {
+            return false;
+        }
+        state = State.OPEN;
+        openedAt = ticker.read();
+        return true;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
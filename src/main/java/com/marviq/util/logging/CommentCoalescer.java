@@ -0,0 +1,266 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates repeated occurrences of events for which a JIRA issue already exists, and posts them as a single digest
+ * comment per issue.
+ *
+ * A digest is opened by the first occurrence of a fingerprint, and is posted when its time window has passed, or as
+ * soon as it holds the maximum number of occurrences (whichever comes first). The digest states the number of
+ * occurrences, the timestamps of the first and last of those, the threads that logged them, and a bounded sample of
+ * the distinct messages. A digest that holds a single occurrence is posted as a regular comment.
+ *
+ * This turns the number of comments posted from one per event into (at most) one per issue per window.
+ */
+final class CommentCoalescer {
+
+    /** The maximum number of distinct thread names that a digest names. */
+    static final int MAXIMUM_THREAD_NAMES = 10;
+
+    private final JiraEngine appender;
+    private final long windowMillis;
+    private final int maximumOccurrences;
+    private final int sampleSize;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /** Digests that are open for more occurrences, by fingerprint. */
+    private final ConcurrentMap<Long, Digest> digests = new ConcurrentHashMap<Long, Digest>();
+
+    /**
+     * @param appender           the appender that formats events and posts the digests.
+     * @param windowMillis       the time that a digest stays open, or 0 to close digests by count only.
+     * @param maximumOccurrences the number of occurrences after which a digest is posted, or 0 for no maximum.
+     * @param sampleSize         the maximum number of distinct messages included in a digest.
+     * @param name               the name of the thread that posts digests when their window has passed.
+     */
+    CommentCoalescer(JiraEngine appender, long windowMillis, int maximumOccurrences, int sampleSize,
+                     String name) {
+        if (windowMillis <= 0 && maximumOccurrences <= 0) {
+            throw new IllegalArgumentException("Either a window or a maximum number of occurrences is required.");
+        }
+        this.appender = appender;
+        this.windowMillis = windowMillis;
+        this.maximumOccurrences = maximumOccurrences;
+        this.sampleSize = Math.max(1, sampleSize);
+        if (windowMillis > 0) {
+            scheduler = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name).build());
+            // Closing posts all open digests itself: the flushes that are still scheduled have nothing left to do.
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Adds an occurrence to the digest for the issue.
+     *
+     * @param key         the key of the JIRA issue that the occurrence belongs to.
+     * @param hash        the fingerprint of the Throwable of the event.
+     * @param event       the event.
+     * @param occurrences the number of occurrences that the event represents.
+     */
+    void add(String key, long hash, ErrorEvent event, int occurrences) {
+        for (;;) {
+            boolean closing = false;
+            Digest digest = digests.get(hash);
+            if (digest == null) {
+                final Digest newDigest = new Digest(key);
+                digest = digests.putIfAbsent(hash, newDigest);
+                if (digest == null) {
+                    digest = newDigest;
+                    if (scheduler != null) {
+                        try {
+                            scheduler.schedule(new Flush(hash, newDigest), windowMillis, TimeUnit.MILLISECONDS);
+                        } catch (RejectedExecutionException e) {
+                            // Closed: post the occurrence right away.
+                            closing = true;
+                        }
+                    }
+                }
+            }
+
+            final boolean full;
+            synchronized (digest) {
+                if (digest.closed) {
+                    // The digest was posted concurrently. Start a new one.
+                    continue;
+                }
+                digest.add(event, occurrences);
+                full = closing || maximumOccurrences > 0 && digest.occurrences >= maximumOccurrences;
+            }
+            if (full) {
+                flush(hash, digest);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Posts all open digests, and stops the thread that posts digests when their window has passed. A digest that
+     * that thread is posting is given until the deadline to complete.
+     *
+     * @param deadline the time until which to wait for a digest that is being posted.
+     * @return <tt>true</tt> if the thread that posts digests stopped in time.
+     */
+    boolean close(Deadline deadline) {
+        for (final Map.Entry<Long, Digest> entry : digests.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+        if (scheduler == null) {
+            return true;
+        }
+        scheduler.shutdown();
+        try {
+            return scheduler.awaitTermination(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of digests that are open for more occurrences.
+     */
+    int getOpenDigestCount() {
+        return digests.size();
+    }
+
+    private void flush(long hash, Digest digest) {
+        digests.remove(hash, digest);
+        final String comment;
+        synchronized (digest) {
+            if (digest.closed) {
+                return;
+            }
+            digest.closed = true;
+            comment = digest.occurrences == 1
+                    ? appender.getText(digest.firstEvent, true)
+                    : render(digest);
+        }
+        appender.postComment(digest.key, hash, comment);
+    }
+
+    private String render(Digest digest) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        final StringBuilder text = new StringBuilder();
+        text.append("The following was logged by the application ").append(digest.occurrences).append(" times");
+        text.append(" between ").append(format.format(new Date(digest.firstTimestamp)));
+        text.append(" and ").append(format.format(new Date(digest.lastTimestamp)));
+        text.append(", on thread(s): ");
+        boolean first = true;
+        for (final String threadName : digest.threadNames) {
+            if (!first) {
+                text.append(", ");
+            }
+            text.append(threadName);
+            first = false;
+        }
+        if (digest.moreThreads) {
+            text.append(" and others");
+        }
+        text.append(".\n");
+        text.append("Distinct messages (at most ").append(sampleSize).append(" are shown):\n");
+        text.append("{code}\n");
+        for (final String sample : digest.samples.values()) {
+            text.append(sample).append('\n');
+        }
+        text.append("...\n(Stacktrace omitted as it is identical to the one in the description of this issue).\n");
+        text.append("{code}\n");
+        return text.toString();
+    }
+
+    /**
+     * Posts a digest when its window has passed (unless it was posted earlier because it was full).
+     */
+    private final class Flush implements Runnable {
+        private final long hash;
+        private final Digest digest;
+
+        Flush(long hash, Digest digest) {
+            this.hash = hash;
+            this.digest = digest;
+        }
+
+        public void run() {
+            try {
+                flush(hash, digest);
+            } catch (RuntimeException e) {
+                InternalLog.error("Unexpected failure while posting a comment digest for " + digest.key, e);
+            }
+        }
+    }
+
+    /**
+     * The occurrences of a fingerprint within one window. Guarded by its own monitor.
+     */
+    private final class Digest {
+        final String key;
+        final Set<String> threadNames = new LinkedHashSet<String>();
+        final Map<String, String> samples = new LinkedHashMap<String, String>();
+
+        ErrorEvent firstEvent;
+        long firstTimestamp;
+        long lastTimestamp;
+        int occurrences;
+        boolean moreThreads;
+        boolean closed;
+
+        Digest(String key) {
+            this.key = key;
+        }
+
+        void add(ErrorEvent event, int count) {
+            if (firstEvent == null) {
+                // This event might be formatted on another thread later: copy the state that belongs to this thread.
+                event.prepareForHandOver();
+                firstEvent = event;
+                firstTimestamp = event.getTimeStamp();
+            }
+            lastTimestamp = Math.max(lastTimestamp, event.getTimeStamp());
+            occurrences += count;
+
+            final String threadName = event.getThreadName();
+            if (!threadNames.contains(threadName)) {
+                if (threadNames.size() < MAXIMUM_THREAD_NAMES) {
+                    threadNames.add(threadName);
+                } else {
+                    moreThreads = true;
+                }
+            }
+
+            final String message = event.getMessage();
+            if (samples.size() < sampleSize && !samples.containsKey(message)) {
+                samples.put(message, appender.formatEvent(event));
+            }
+        }
+    }
+}
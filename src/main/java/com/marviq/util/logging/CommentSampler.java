@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Thins out the comments on issues of problems that keep recurring, so that a long-lived failure does not pile up tens
+ * of thousands of comments on a single issue (which makes JIRA slow to load and index it).
+ *
+ * Occurrences are counted per fingerprint. The first <em>threshold</em> occurrences of a run are all sent. After that,
+ * sampling is spaced out exponentially: one in 10 occurrences is sent up to ten times the threshold, one in 100 up to
+ * a hundred times the threshold, and so on, up to one in {@link #MAXIMUM_INTERVAL}. The occurrences that are held back
+ * are carried into the next occurrence that is sent, so that its comment tells how often the problem occurred. A run
+ * ends when a fingerprint does not occur for the quiet period; the next occurrence starts a new run.
+ *
+ * The history of a fingerprint is three numbers, which are updated without locking. Histories are forgotten after a
+ * day without occurrences (or after the quiet period, if that is longer), and when there are too many of them.
+ *
+ * Instances are thread-safe.
+ */
+final class CommentSampler {
+
+    /** The largest sampling interval: once reached, one in this many occurrences is sent. */
+    static final long MAXIMUM_INTERVAL = 1000000;
+
+    /** The maximum number of fingerprints of which the history is kept. */
+    private static final int MAXIMUM_FINGERPRINTS = 5000;
+
+    private static final AtomicLongFieldUpdater<History> COUNT =
+            AtomicLongFieldUpdater.newUpdater(History.class, "count");
+    private static final AtomicLongFieldUpdater<History> HELD_BACK =
+            AtomicLongFieldUpdater.newUpdater(History.class, "heldBack");
+
+    private final int threshold;
+    private final long quietNanos;
+    private final Ticker ticker;
+    private final Cache<Long, History> histories;
+
+    /**
+     * @param threshold         the number of occurrences at the start of a run that are all sent.
+     * @param quietPeriodMillis the time (in milliseconds) without occurrences after which a run ends.
+     * @param ticker            the source of time.
+     */
+    CommentSampler(int threshold, long quietPeriodMillis, Ticker ticker) {
+        if (threshold < 1 || quietPeriodMillis < 1) {
+            throw new IllegalArgumentException("Threshold and quiet period must be positive.");
+        }
+        this.threshold = threshold;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietPeriodMillis);
+        this.ticker = ticker;
+        this.histories = CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_FINGERPRINTS)
+                .expireAfterAccess(Math.max(quietNanos, TimeUnit.DAYS.toNanos(1)), TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    /**
+     * Records the occurrences that an event represents, and decides whether the event is to be sent.
+     *
+     * @param fingerprint the fingerprint of the event.
+     * @param occurrences the number of occurrences that the event represents.
+     * @return the number of occurrences that the event represents when it is sent (its own, plus those that were held
+     *         back since the previous event that was sent), or 0 if the event is held back.
+     */
+    int sample(long fingerprint, int occurrences) {
+        final long now = ticker.read();
+        History history = histories.getIfPresent(fingerprint);
+        if (history == null) {
+            final History created = new History(now);
+            history = histories.asMap().putIfAbsent(fingerprint, created);
+            if (history == null) {
+                history = created;
+            }
+        }
+
+        if (now - history.lastSeen > quietNanos) {
+            // A new run. Occurrences that were held back at the end of the previous run are still carried over.
+            COUNT.set(history, 0);
+        }
+        history.lastSeen = now;
+
+        if (!isSent(COUNT.incrementAndGet(history))) {
+            HELD_BACK.addAndGet(history, occurrences);
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, occurrences + HELD_BACK.getAndSet(history, 0));
+    }
+
+    /**
+     * @param index the position of an occurrence in its run, starting at 1.
+     * @return <tt>true</tt> if the occurrence is sent.
+     */
+    boolean isSent(long index) {
+        if (index <= threshold) {
+            return true;
+        }
+        long interval = 10;
+        long bound = threshold * 10L;
+        while (index > bound && interval < MAXIMUM_INTERVAL) {
+            interval *= 10;
+            bound *= 10;
+        }
+        return index % interval == 0;
+    }
+
+    /**
+     * The occurrences of a fingerprint.
+     */
+    private static final class History {
+
+        /** The number of occurrences in the current run. */
+        volatile long count;
+
+        /** The number of occurrences that were held back since the last one that was sent. */
+        volatile long heldBack;
+
+        /** The time (of the ticker) of the latest occurrence. Concurrent updates may overwrite each other. */
+        volatile long lastSeen;
+
+        History(long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+    }
+}
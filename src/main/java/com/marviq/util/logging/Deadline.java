@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which work must be done. Deadlines are measured with {@link System#nanoTime()}, like the socket
+ * timeouts that they are translated into.
+ *
+ * Instances are immutable.
+ */
+final class Deadline {
+
+    /** A deadline that never passes. */
+    static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long nanos;
+
+    private Deadline(long nanos) {
+        this.nanos = nanos;
+    }
+
+    /**
+     * @param millis the time from now until the deadline, or 0 (or less) for a deadline that never passes.
+     * @return the deadline.
+     */
+    static Deadline after(long millis) {
+        return millis > 0 ? new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis)) : NONE;
+    }
+
+    /**
+     * @return <tt>true</tt> if this deadline will never pass.
+     */
+    boolean isUnbounded() {
+        return nanos == Long.MAX_VALUE;
+    }
+
+    boolean isExpired() {
+        return !isUnbounded() && System.nanoTime() - nanos >= 0;
+    }
+
+    /**
+     * @return the time left until the deadline in nanoseconds (0 if it passed), or {@link Long#MAX_VALUE} if the
+     *         deadline never passes.
+     */
+    long remainingNanos() {
+        return isUnbounded() ? Long.MAX_VALUE : Math.max(0, nanos - System.nanoTime());
+    }
+
+    /**
+     * @param other another deadline.
+     * @return whichever of this deadline and the other one passes first.
+     */
+    Deadline earliest(Deadline other) {
+        if (other.isUnbounded()) {
+            return this;
+        }
+        return isUnbounded() || other.nanos - nanos < 0 ? other : this;
+    }
+
+    /**
+     * Limits a timeout to the time that is left until this deadline.
+     *
+     * @param timeoutMillis a timeout in milliseconds, or 0 for none.
+     * @return the lower of the timeout and the time left (but at least 1, as 0 means 'no timeout' to sockets), or 0 if
+     *         there is neither a timeout nor a deadline. The time left is rounded up, so that a timeout that is limited
+     *         by this deadline does not end before it.
+     */
+    int limit(int timeoutMillis) {
+        if (isUnbounded()) {
+            return timeoutMillis;
+        }
+        final long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos() + 999999));
+        return (int) (timeoutMillis > 0 ? Math.min(timeoutMillis, remaining) : Math.min(Integer.MAX_VALUE, remaining));
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Signals that work for an event was abandoned, because the time budget of the event ran out before a call to JIRA
+ * could be made or completed.
+ */
+final class DeadlineExceededException extends XmlRpcException {
+
+    private static final long serialVersionUID = 1L;
+
+    DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    DeadlineExceededException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
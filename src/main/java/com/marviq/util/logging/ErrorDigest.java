@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically posts a digest of the errors that occurred most often to a JIRA issue.
+ *
+ * The occurrences are counted by {@link HeavyHitters}, which the appender feeds with every event that it accepts
+ * (including events that do not result in a call to JIRA, because they were dropped, coalesced or rate limited).
+ * Every interval, the top of the ranking is posted as a comment (a table of counts, rates, issue keys and
+ * descriptions), after which counting starts again. Intervals in which no errors occurred are skipped.
+ */
+final class ErrorDigest {
+
+    /** The fingerprint that the per-issue rate limit applies to for digests, which are about no fingerprint at all. */
+    static final long DIGEST_FINGERPRINT = 0L;
+
+    private final JiraEngine appender;
+    private final HeavyHitters heavyHitters;
+    private final String issueKey;
+    private final int size;
+    private final ScheduledExecutorService scheduler;
+
+    /** The start of the current interval. Guarded by this. */
+    private long intervalStart = System.currentTimeMillis();
+
+    /**
+     * Creates a digest, and starts posting it every interval.
+     *
+     * @param appender       the appender that posts the digest.
+     * @param heavyHitters   the counts of the fingerprints.
+     * @param issueKey       the key of the issue on which the digest is posted.
+     * @param intervalMillis the time between digests.
+     * @param size           the maximum number of fingerprints in a digest.
+     * @param name           the name of the thread that posts the digests.
+     */
+    ErrorDigest(JiraEngine appender, HeavyHitters heavyHitters, String issueKey, long intervalMillis, int size,
+                String name) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive, but was " + intervalMillis);
+        }
+        this.appender = appender;
+        this.heavyHitters = heavyHitters;
+        this.issueKey = issueKey;
+        this.size = Math.max(1, size);
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name).build());
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    post();
+                } catch (RuntimeException e) {
+                    InternalLog.error("Unexpected failure while posting an error digest to " +
+                            ErrorDigest.this.issueKey, e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Posts the digest of the current interval (unless no errors occurred), and starts a new interval.
+     */
+    void post() {
+        final String text;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            final HeavyHitters.Snapshot snapshot = heavyHitters.snapshot(size, true);
+            text = snapshot.getTotal() == 0 ? null : render(snapshot, intervalStart, now, appender.getCache());
+            intervalStart = now;
+        }
+        if (text != null) {
+            appender.postComment(issueKey, DIGEST_FINGERPRINT, text);
+        }
+    }
+
+    /**
+     * Stops posting digests, after posting the digest of the current interval.
+     */
+    void close() {
+        scheduler.shutdownNow();
+        post();
+    }
+
+    static String render(HeavyHitters.Snapshot snapshot, long start, long end, IssueKeyCache cache) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        final double minutes = Math.max(1, end - start) / 60000.0;
+        final StringBuilder text = new StringBuilder();
+        text.append("The errors that were logged most often between ").append(format.format(new Date(start)));
+        text.append(" and ").append(format.format(new Date(end))).append(" (").append(snapshot.getTotal());
+        text.append(" errors in total):\n");
+        text.append("||#||Occurrences||Per minute||Issue||Error||\n");
+        int rank = 1;
+        for (final HeavyHitters.Entry entry : snapshot.getEntries()) {
+            final String key = cache.get(entry.fingerprint);
+            text.append('|').append(rank++);
+            text.append('|').append(entry.count);
+            if (entry.error > 0) {
+                text.append(" (+/- ").append(entry.error).append(')');
+            }
+            text.append('|').append(String.format(Locale.ENGLISH, "%.1f", entry.count / minutes));
+            text.append('|').append(key == null ? "-" : key);
+            text.append('|').append(entry.throwableClass).append(", logged by ").append(entry.loggerName);
+            text.append("|\n");
+        }
+        text.append("Counts are estimates: the actual count lies within the given margin (if any).\n");
+        return text.toString();
+    }
+}
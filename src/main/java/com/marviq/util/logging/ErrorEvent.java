@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An event that was logged at level ERROR (or higher) with a Throwable, as the {@link JiraEngine} sees it.
+ *
+ * Each logging framework has its own event type, which the adapter of that framework wraps in (or copies into) an
+ * instance of this class. The engine reads the logger name, the time stamp and the Throwable for every event, and
+ * the other parts only for the events that it actually sends to JIRA.
+ *
+ * Events may be handed over to another thread (when events are dispatched asynchronously, or coalesced into comments).
+ * Before that, {@link #prepareForHandOver()} is called on the thread that logged the event.
+ */
+public abstract class ErrorEvent {
+
+    private final String loggerName;
+    private final long timeStamp;
+    private final Throwable throwable;
+
+    /**
+     * @param loggerName the name of the logger that logged the event.
+     * @param timeStamp  the time (in milliseconds since the epoch) at which the event was logged.
+     * @param throwable  the Throwable that was logged with the event.
+     */
+    protected ErrorEvent(String loggerName, long timeStamp, Throwable throwable) {
+        if (throwable == null) {
+            throw new IllegalArgumentException("An error event must have a Throwable.");
+        }
+        this.loggerName = loggerName == null ? "" : loggerName;
+        this.timeStamp = timeStamp;
+        this.throwable = throwable;
+    }
+
+    /**
+     * Creates an event that does not refer to the event of the logging framework. This suits frameworks that reuse
+     * their event instances.
+     *
+     * @param loggerName the name of the logger that logged the event.
+     * @param timeStamp  the time (in milliseconds since the epoch) at which the event was logged.
+     * @param throwable  the Throwable that was logged with the event.
+     * @param threadName the name of the thread that logged the event.
+     * @param message    the message of the event, with its parameters filled in.
+     * @param mdc        the mapped diagnostic context of the event, or <tt>null</tt> if it was empty.
+     * @param formatted  the event as formatted by the layout, without the stack trace.
+     * @return the event.
+     */
+    public static ErrorEvent of(String loggerName, long timeStamp, Throwable throwable, String threadName,
+                                String message, Map<String, ?> mdc, String formatted) {
+        return new Snapshot(loggerName, timeStamp, throwable, threadName, message, mdc, formatted);
+    }
+
+    public final String getLoggerName() {
+        return loggerName;
+    }
+
+    public final long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public final Throwable getThrowable() {
+        return throwable;
+    }
+
+    /**
+     * @return the name of the thread that logged the event.
+     */
+    public abstract String getThreadName();
+
+    /**
+     * @return the message of the event, with its parameters filled in.
+     */
+    public abstract String getMessage();
+
+    /**
+     * @param key a key of the mapped diagnostic context.
+     * @return the value of the key in the mapped diagnostic context of the event, or <tt>null</tt> if it has none.
+     */
+    public abstract Object getMdc(String key);
+
+    /**
+     * Formats the event by means of the layout that is configured, leaving out the stack trace (which the engine
+     * renders itself). This may be called from any thread, and concurrently.
+     *
+     * @return the formatted event.
+     */
+    public abstract String format();
+
+    /**
+     * Copies the state of the event that belongs to the thread that logged it, before the event is handed over to
+     * another thread. The default implementation does nothing.
+     */
+    public void prepareForHandOver() {
+    }
+
+    /**
+     * An event of which all parts were copied.
+     */
+    private static final class Snapshot extends ErrorEvent {
+        private final String threadName;
+        private final String message;
+        private final Map<String, ?> mdc;
+        private final String formatted;
+
+        Snapshot(String loggerName, long timeStamp, Throwable throwable, String threadName, String message,
+                 Map<String, ?> mdc, String formatted) {
+            super(loggerName, timeStamp, throwable);
+            this.threadName = threadName;
+            this.message = message;
+            this.mdc = mdc == null || mdc.isEmpty()
+                    ? Collections.<String, Object>emptyMap() : new HashMap<String, Object>(mdc);
+            this.formatted = formatted == null ? "" : formatted;
+        }
+
+        @Override
+        public String getThreadName() {
+            return threadName;
+        }
+
+        @Override
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public Object getMdc(String key) {
+            return mdc.get(key);
+        }
+
+        @Override
+        public String format() {
+            return formatted;
+        }
+    }
+}
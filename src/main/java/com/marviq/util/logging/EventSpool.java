@@ -0,0 +1,646 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded, persistent queue of events that could not be sent to JIRA, so that they can be sent once JIRA can be
+ * reached again, even if the JVM was restarted in the meantime.
+ *
+ * The spool is a series of segment files of a fixed size, which are named after the spool and numbered in the order in
+ * which they were created. Events are appended to the newest segment through a memory mapping of the file, so that
+ * appending does not involve a system call; each segment is written sequentially from start to end. Segments are read
+ * sequentially as well, oldest first. The position up to which events have been sent is kept in a separate file, and
+ * segments that have been read completely are deleted.
+ *
+ * Every record carries its length and a CRC32 checksum. A record that was only partially written (because the process
+ * died while writing it) is detected when the spool is opened, and the segment is considered to end before it. Data
+ * that was written to the memory mapping survives the death of the JVM, but not necessarily that of the operating
+ * system: the mapping is only forced to disk when a segment is full and when the spool is closed.
+ *
+ * The total size of the spool is bounded. When a new segment would exceed the bound, the oldest segment is deleted,
+ * along with the events in it that were not sent yet.
+ *
+ * Instances are thread-safe.
+ */
+final class EventSpool {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = EventSpool.class.getSimpleName();
+
+    /** Identifies a segment file ("SPOL"). */
+    static final int MAGIC = 0x53504F4C;
+
+    /** The version of the file format. */
+    static final int FORMAT_VERSION = 1;
+
+    /** The size of the header of a segment: magic, format version. */
+    static final int HEADER_SIZE = 8;
+
+    /** The size of the header of a record: payload length, checksum. */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /** The size of the fixed part of the payload of a record: fingerprint, timestamps, occurrences, string lengths. */
+    static final int PAYLOAD_OVERHEAD = 8 + 8 + 8 + 4 + 3 * 4;
+
+    /** The largest size of a segment that {@link #open(File, String, long)} chooses. */
+    static final int MAXIMUM_SEGMENT_SIZE = 1024 * 1024;
+
+    /** The smallest size of a segment. */
+    static final int MINIMUM_SEGMENT_SIZE = 4096;
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String POSITION_SUFFIX = ".spool-position";
+
+    /** The size of the position file: segment, offset, checksum. */
+    private static final int POSITION_SIZE = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final String name;
+    private final int segmentSize;
+    private final int maximumSegments;
+
+    /** The segments, oldest first. Guarded by this. */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    /** Guarded by this. */
+    private MappedByteBuffer tail;
+    private RandomAccessFile positionFile;
+    private long readSegment;
+    private int readOffset = HEADER_SIZE;
+    private long evictedCount;
+
+    private EventSpool(File directory, String name, int segmentSize, int maximumSegments) {
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = maximumSegments;
+    }
+
+    /**
+     * Opens (or creates) a spool, with a segment size that suits its maximum size.
+     *
+     * @param directory the directory that holds the files of the spool (created if it does not exist).
+     * @param name      the name of the spool, which prefixes the names of its files.
+     * @param maxBytes  the maximum total size of the segments of the spool.
+     * @return the opened spool.
+     * @throws IOException if the spool cannot be read or written.
+     */
+    static EventSpool open(File directory, String name, long maxBytes) throws IOException {
+        return open(directory, name, maxBytes,
+                (int) Math.max(MINIMUM_SEGMENT_SIZE, Math.min(MAXIMUM_SEGMENT_SIZE, maxBytes / 8)));
+    }
+
+    /**
+     * Opens (or creates) a spool.
+     *
+     * @param directory   the directory that holds the files of the spool (created if it does not exist).
+     * @param name        the name of the spool, which prefixes the names of its files.
+     * @param maxBytes    the maximum total size of the segments of the spool (but room for at least two segments).
+     * @param segmentSize the size of a segment, which is also the maximum size of a record.
+     * @return the opened spool.
+     * @throws IOException if the spool cannot be read or written.
+     */
+    static EventSpool open(File directory, String name, long maxBytes, int segmentSize) throws IOException {
+        if (segmentSize < MINIMUM_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segments must be at least " + MINIMUM_SEGMENT_SIZE + " bytes, but " +
+                    "were " + segmentSize);
+        }
+        final int maximumSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+        final EventSpool spool = new EventSpool(directory, name, segmentSize, maximumSegments);
+        synchronized (spool) {
+            spool.load();
+        }
+        return spool;
+    }
+
+    /**
+     * Appends an event. If the event does not fit in the newest segment, a new segment is started, and the oldest
+     * segment is deleted if the spool would otherwise grow beyond its maximum size. A text that does not fit in a
+     * segment is cut short.
+     *
+     * @param event the event to append.
+     * @return <tt>true</tt> if the event was appended, <tt>false</tt> if it could not be written.
+     */
+    synchronized boolean append(SpooledEvent event) {
+        if (positionFile == null) {
+            return false;
+        }
+        try {
+            final ByteBuffer record = encode(event, segmentSize - HEADER_SIZE);
+            if (tail == null || tail.remaining() < record.remaining()) {
+                startSegment();
+            }
+            tail.put(record);
+            final Segment last = segments.getLast();
+            last.records++;
+            last.end = tail.position();
+            return true;
+        } catch (IOException e) {
+            InternalLog.error(SIMPLE_NAME + ": Failed to write to the spool " + name + " in " + directory, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the oldest events that have not been acknowledged. Reading does not remove the events: they are read
+     * again, unless they are acknowledged.
+     *
+     * @param maximumEvents the maximum number of events to read.
+     * @return the events that were read.
+     */
+    synchronized Batch read(int maximumEvents) {
+        final List<SpooledEvent> events = new ArrayList<SpooledEvent>();
+        long segmentId = readSegment;
+        int offset = readOffset;
+        int eventsInSegment = 0;
+        for (final Segment segment : segments) {
+            if (segment.id < readSegment) {
+                continue;
+            }
+            if (segment.id != segmentId) {
+                segmentId = segment.id;
+                offset = HEADER_SIZE;
+                eventsInSegment = 0;
+            }
+            if (offset < segment.end) {
+                try {
+                    final int start = offset;
+                    final ByteBuffer data = readFully(segment.file, start, segment.end - start);
+                    while (events.size() < maximumEvents) {
+                        final ByteBuffer payload = nextRecord(data);
+                        if (payload == null) {
+                            break;
+                        }
+                        events.add(decode(payload));
+                        offset = start + data.position();
+                        eventsInSegment++;
+                    }
+                } catch (IOException e) {
+                    InternalLog.error(SIMPLE_NAME + ": Failed to read " + segment.file, e);
+                    break;
+                }
+            }
+            if (events.size() >= maximumEvents) {
+                break;
+            }
+        }
+        return new Batch(events, segmentId, offset, eventsInSegment);
+    }
+
+    /**
+     * Removes events that were read from the spool, as they have been dealt with.
+     *
+     * @param batch the events that were read last.
+     */
+    synchronized void acknowledge(Batch batch) {
+        if (positionFile == null || batch.events.isEmpty()) {
+            return;
+        }
+        // The segments before the one that the batch ends in have been read completely.
+        while (segments.size() > 1 && segments.getFirst().id < batch.segment) {
+            deleteSegment(segments.removeFirst());
+        }
+        if (segments.isEmpty() || segments.getFirst().id != batch.segment) {
+            // The events were evicted while they were being dealt with.
+            return;
+        }
+        final Segment head = segments.getFirst();
+        if (readSegment != head.id || readOffset < batch.offset) {
+            head.consumed = readSegment == head.id ? head.consumed + batch.eventsInSegment : batch.eventsInSegment;
+            readSegment = head.id;
+            readOffset = batch.offset;
+        }
+        if (segments.size() > 1 && readOffset >= head.end) {
+            deleteSegment(segments.removeFirst());
+            readSegment = segments.getFirst().id;
+            readOffset = HEADER_SIZE;
+        }
+        writePosition();
+    }
+
+    /**
+     * @return the number of events that have not been acknowledged.
+     */
+    synchronized int size() {
+        int result = 0;
+        for (final Segment segment : segments) {
+            result += segment.records - segment.consumed;
+        }
+        return result;
+    }
+
+    synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of events that were deleted (along with the oldest segment) to bound the size of the spool.
+     */
+    synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Flushes the spool to disk, and closes it.
+     */
+    synchronized void close() {
+        if (positionFile == null) {
+            return;
+        }
+        if (tail != null) {
+            tail.force();
+            tail = null;
+        }
+        writePosition();
+        try {
+            positionFile.close();
+        } catch (IOException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Failed to close " + getPositionFile(), e);
+        }
+        positionFile = null;
+    }
+
+    /**
+     * Finds the segments, determines how far each was written, and restores the read position.
+     */
+    private void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        final List<Long> ids = new ArrayList<Long>();
+        final String[] fileNames = directory.list();
+        if (fileNames != null) {
+            for (final String fileName : fileNames) {
+                if (fileName.startsWith(name + ".") && fileName.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(fileName.substring(name.length() + 1,
+                                fileName.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment of this spool
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (final Long id : ids) {
+            final Segment segment = new Segment(id, getSegmentFile(id));
+            if (scan(segment, Integer.MAX_VALUE)) {
+                segments.add(segment);
+            } else {
+                InternalLog.warn(SIMPLE_NAME + ": Discarding " + segment.file +
+                        ", as it was written in an incompatible format.");
+                deleteSegment(segment);
+            }
+        }
+
+        positionFile = new RandomAccessFile(getPositionFile(), "rw");
+        readPosition();
+        while (!segments.isEmpty() && segments.getFirst().id < readSegment) {
+            deleteSegment(segments.removeFirst());
+        }
+        if (segments.isEmpty() || segments.getFirst().id != readSegment
+                || readOffset > segments.getFirst().end) {
+            readSegment = segments.isEmpty() ? readSegment : segments.getFirst().id;
+            readOffset = HEADER_SIZE;
+        } else {
+            // Count the events that were read before, so that they do not count as pending.
+            final Segment head = segments.getFirst();
+            final Segment before = new Segment(head.id, head.file);
+            scan(before, readOffset);
+            head.consumed = before.records;
+        }
+
+        if (!segments.isEmpty() && segments.getLast().file.length() == segmentSize) {
+            final Segment last = segments.getLast();
+            tail = map(last.file);
+            tail.position(last.end);
+            // Wipe whatever follows the last intact record, such as a record that was only partially written.
+            while (tail.hasRemaining()) {
+                tail.put((byte) 0);
+            }
+            tail.position(last.end);
+        }
+        InternalLog.debug(SIMPLE_NAME + ": Opened the spool " + name + " in " + directory + ", which holds " + size() +
+                " events.");
+    }
+
+    /**
+     * Determines the number of intact records in a segment, and the offset just after the last of those.
+     *
+     * @param segment the segment, of which the record count and end are set.
+     * @param limit   the offset at which to stop counting.
+     * @return <tt>false</tt> if the segment does not have a valid header.
+     */
+    private boolean scan(Segment segment, int limit) throws IOException {
+        final long length = segment.file.length();
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+            return false;
+        }
+        final ByteBuffer data = readFully(segment.file, 0, (int) length);
+        if (data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION) {
+            return false;
+        }
+        segment.records = 0;
+        segment.end = HEADER_SIZE;
+        while (data.position() < limit && nextRecord(data) != null) {
+            segment.records++;
+            segment.end = data.position();
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new segment, deleting the oldest segment if the spool is full.
+     */
+    private void startSegment() throws IOException {
+        if (tail != null) {
+            tail.force();
+            tail = null;
+        }
+        final long id = segments.isEmpty() ? readSegment + 1 : segments.getLast().id + 1;
+        while (segments.size() >= maximumSegments) {
+            final Segment oldest = segments.removeFirst();
+            final int lost = oldest.records - oldest.consumed;
+            evictedCount += lost;
+            deleteSegment(oldest);
+            InternalLog.warn(SIMPLE_NAME + ": The spool " + name + " in " + directory + " is full. Discarded the " +
+                    lost + " oldest events.");
+        }
+
+        final Segment segment = new Segment(id, getSegmentFile(id));
+        tail = map(segment.file);
+        tail.putInt(MAGIC).putInt(FORMAT_VERSION);
+        segment.end = HEADER_SIZE;
+        segments.add(segment);
+
+        if (segments.getFirst() == segment || segments.getFirst().id > readSegment) {
+            readSegment = segments.getFirst().id;
+            readOffset = HEADER_SIZE;
+            writePosition();
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(segmentSize);
+            // The mapping remains valid after the file is closed.
+            return output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (segment.file.exists() && !segment.file.delete()) {
+            InternalLog.warn(SIMPLE_NAME + ": Unable to delete " + segment.file);
+        }
+    }
+
+    private void readPosition() throws IOException {
+        if (positionFile.length() < POSITION_SIZE) {
+            return;
+        }
+        final byte[] position = new byte[POSITION_SIZE];
+        positionFile.seek(0);
+        positionFile.readFully(position);
+        final CRC32 crc = new CRC32();
+        crc.update(position, 0, POSITION_SIZE - 4);
+        final ByteBuffer buffer = ByteBuffer.wrap(position);
+        if (buffer.getInt(POSITION_SIZE - 4) != (int) crc.getValue()) {
+            InternalLog.warn(SIMPLE_NAME + ": Ignoring " + getPositionFile() + ", as it is corrupt.");
+            return;
+        }
+        readSegment = buffer.getLong();
+        readOffset = Math.max(HEADER_SIZE, buffer.getInt());
+    }
+
+    private void writePosition() {
+        final ByteBuffer position = ByteBuffer.allocate(POSITION_SIZE);
+        position.putLong(readSegment).putInt(readOffset);
+        final CRC32 crc = new CRC32();
+        crc.update(position.array(), 0, POSITION_SIZE - 4);
+        position.putInt((int) crc.getValue());
+        try {
+            positionFile.seek(0);
+            positionFile.write(position.array());
+        } catch (IOException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Failed to write " + getPositionFile(), e);
+        }
+    }
+
+    private File getSegmentFile(long id) {
+        return new File(directory, name + "." + String.format("%016d", id) + SEGMENT_SUFFIX);
+    }
+
+    private File getPositionFile() {
+        return new File(directory, name + POSITION_SUFFIX);
+    }
+
+    private static ByteBuffer readFully(File file, long offset, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = input.getChannel();
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                // keep reading
+            }
+        } finally {
+            input.close();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the next record from a buffer, and verifies it.
+     *
+     * @return the payload of the record, or <tt>null</tt> (leaving the position of the buffer as it was) if the
+     *         buffer does not start with an intact record.
+     */
+    private static ByteBuffer nextRecord(ByteBuffer data) {
+        if (data.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final int start = data.position();
+        final int length = data.getInt(start);
+        final int checksum = data.getInt(start + 4);
+        if (length <= 0 || length > data.remaining() - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data.array(), data.arrayOffset() + start + RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        final ByteBuffer payload = ByteBuffer.wrap(data.array(), data.arrayOffset() + start + RECORD_HEADER_SIZE,
+                length).slice();
+        data.position(start + RECORD_HEADER_SIZE + length);
+        return payload;
+    }
+
+    /**
+     * Encodes an event as a record.
+     *
+     * @param event         the event.
+     * @param maximumLength the maximum length of the record. The text of the event is cut short to fit.
+     * @return the record.
+     */
+    static ByteBuffer encode(SpooledEvent event, int maximumLength) {
+        final byte[] issueKey = event.getIssueKey() == null ? null : event.getIssueKey().getBytes(UTF8);
+        final byte[] summary = event.getSummary() == null ? null : event.getSummary().getBytes(UTF8);
+        byte[] text = event.getText().getBytes(UTF8);
+        final byte[] route = event.getRoute() == null ? null : event.getRoute().getBytes(UTF8);
+
+        final int fixedLength = RECORD_HEADER_SIZE + PAYLOAD_OVERHEAD + length(issueKey) + length(summary) +
+                (route == null ? 0 : 4 + route.length);
+        if (fixedLength > maximumLength) {
+            throw new IllegalArgumentException("The issue key and summary of " + event + " are too long.");
+        }
+        if (fixedLength + text.length > maximumLength) {
+            int cut = maximumLength - fixedLength;
+            while (cut > 0 && (text[cut] & 0xC0) == 0x80) {
+                cut--; // do not split a multi-byte character
+            }
+            final byte[] shortened = new byte[cut];
+            System.arraycopy(text, 0, shortened, 0, cut);
+            text = shortened;
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(fixedLength + text.length);
+        record.putInt(record.capacity() - RECORD_HEADER_SIZE);
+        record.putInt(0);
+        record.putLong(event.getFingerprint());
+        record.putLong(event.getFirstTimestamp());
+        record.putLong(event.getLastTimestamp());
+        record.putInt(event.getOccurrences());
+        putBytes(record, issueKey);
+        putBytes(record, summary);
+        putBytes(record, text);
+        if (route != null) {
+            // Optional, so that records without a route have the same layout as before routes existed.
+            putBytes(record, route);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, record.capacity() - RECORD_HEADER_SIZE);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    static SpooledEvent decode(ByteBuffer payload) {
+        final long fingerprint = payload.getLong();
+        final long firstTimestamp = payload.getLong();
+        final long lastTimestamp = payload.getLong();
+        final int occurrences = payload.getInt();
+        final String issueKey = getString(payload);
+        final String summary = getString(payload);
+        final String text = getString(payload);
+        final String route = payload.hasRemaining() ? getString(payload) : null;
+        return new SpooledEvent(fingerprint, firstTimestamp, lastTimestamp, occurrences, issueKey, summary, text,
+                route);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final String result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    /**
+     * Events that were read from the spool, and the position just after the last of them.
+     */
+    static final class Batch {
+        private final List<SpooledEvent> events;
+        private final long segment;
+        private final int offset;
+        private final int eventsInSegment;
+
+        Batch(List<SpooledEvent> events, long segment, int offset, int eventsInSegment) {
+            this.events = Collections.unmodifiableList(events);
+            this.segment = segment;
+            this.offset = offset;
+            this.eventsInSegment = eventsInSegment;
+        }
+
+        List<SpooledEvent> getEvents() {
+            return events;
+        }
+    }
+
+    /**
+     * A segment file. Guarded by the spool.
+     */
+    private static final class Segment {
+        final long id;
+        final File file;
+
+        /** The number of intact records. */
+        int records;
+
+        /** The offset just after the last intact record. */
+        int end;
+
+        /** The number of records that were acknowledged (only for the oldest segment). */
+        int consumed;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+}
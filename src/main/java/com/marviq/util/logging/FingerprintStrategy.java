@@ -0,0 +1,45 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Computes the fingerprint of a Throwable. Events of which the Throwables have equal fingerprints are deemed 'similar':
+ * they are reported as a single JIRA issue.
+ *
+ * Implementations must be thread-safe, and must have a public no-argument constructor to be configurable by class name
+ * (see {@link JiraEngine#setFingerprintStrategy(String)}). The appender memoizes fingerprints per Throwable
+ * instance, and shares those between appenders that use equal strategies: implementations that are configurable should
+ * implement {@link Object#equals(Object)} and {@link Object#hashCode()} accordingly.
+ */
+public interface FingerprintStrategy {
+
+    /**
+     * Computes the fingerprint of a Throwable.
+     *
+     * @param throwable a Throwable (must not be <tt>null</tt>).
+     * @return the fingerprint.
+     */
+    long fingerprint(Throwable throwable);
+
+    /**
+     * Identifies the way in which fingerprints are computed. The identifier must change whenever the fingerprint of a
+     * Throwable could change (including changes in configuration), as persisted fingerprints that were computed under
+     * another scheme are discarded.
+     *
+     * @return the identifier of the scheme.
+     */
+    int getScheme();
+}
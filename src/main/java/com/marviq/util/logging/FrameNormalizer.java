@@ -0,0 +1,283 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Canonicalizes the frames of a stack trace before they are fingerprinted, so that frames of classes that are generated
+ * at runtime do not make fingerprints of the same problem differ.
+ *
+ * Two kinds of rules apply to the class name of a frame:
+ * <ul>
+ * <li>a <em>skip prefix</em> removes frames of which the class name starts with it. This is meant for reflection and
+ * proxy frames, which depend on JIT inflation (<tt>sun.reflect.GeneratedMethodAccessor123</tt> versus
+ * <tt>sun.reflect.NativeMethodAccessorImpl</tt>) or on the order in which proxies were created
+ * (<tt>com.sun.proxy.$Proxy45</tt>);</li>
+ * <li>a <em>truncate marker</em>, which must start with a '$', cuts off the class name right after the first occurrence
+ * of the marker. This is meant for generated subclasses, such as
+ * <tt>Service$$EnhancerBySpringCGLIB$$1a2b3c</tt>, which becomes <tt>Service$$EnhancerBySpringCGLIB$$</tt>.</li>
+ * </ul>
+ * In addition, the number of a lambda method (<tt>lambda$process$3</tt>) is ignored, as it changes whenever lambdas are
+ * added to or removed from the class.
+ *
+ * Rules are compiled into two prefix trees, so that the cost of normalizing a frame does not depend on the number of
+ * rules. Class names that do not contain a '$' are only matched against the skip prefixes. The outcome is remembered
+ * per class name.
+ */
+public final class FrameNormalizer {
+
+    /** Class name prefixes of frames that are skipped by default. */
+    public static final List<String> DEFAULT_SKIP_PREFIXES = Collections.unmodifiableList(Arrays.asList(
+            "sun.reflect.", "jdk.internal.reflect.", "com.sun.proxy.$Proxy", "jdk.proxy"));
+
+    /** Markers after which class names are cut off by default. */
+    public static final List<String> DEFAULT_TRUNCATE_MARKERS = Collections.unmodifiableList(Arrays.asList(
+            "$$EnhancerBySpringCGLIB$$", "$$EnhancerByCGLIB$$", "$$FastClassBySpringCGLIB$$", "$$FastClassByCGLIB$$",
+            "$$EnhancerByMockitoWithCGLIB$$", "$$Lambda$", "$HibernateProxy$", "$$_javassist", "$$_jvst"));
+
+    /** A normalizer with the default rules. */
+    public static final FrameNormalizer DEFAULT = new FrameNormalizer(DEFAULT_SKIP_PREFIXES, DEFAULT_TRUNCATE_MARKERS);
+
+    /** A normalizer that leaves all frames as they are. */
+    public static final FrameNormalizer NONE =
+            new FrameNormalizer(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    /** Returned by {@link #canonicalLength(String)} for frames that are skipped. */
+    static final int SKIP = -1;
+
+    private static final String LAMBDA_PREFIX = "lambda$";
+
+    /** The maximum number of class names of which the canonical form is remembered. */
+    private static final int MAXIMUM_REMEMBERED_CLASS_NAMES = 8192;
+
+    private final List<String> skipPrefixes;
+    private final List<String> truncateMarkers;
+    private final Trie skipTrie;
+    private final Trie truncateTrie;
+
+    /**
+     * The outcomes of {@link #canonicalLength(String)}, by class name. Applications have a limited number of classes
+     * that show up in stack traces, so looking up the outcome is cheaper than matching the name against the rules.
+     */
+    private final ConcurrentMap<String, Integer> canonicalLengths = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @param skipPrefixes    class name prefixes of frames that are skipped.
+     * @param truncateMarkers markers (each starting with a '$') after which class names are cut off.
+     */
+    public FrameNormalizer(List<String> skipPrefixes, List<String> truncateMarkers) {
+        for (final String marker : truncateMarkers) {
+            if (!marker.startsWith("$")) {
+                throw new IllegalArgumentException("Truncate markers must start with a '$': " + marker);
+            }
+        }
+        this.skipPrefixes = Collections.unmodifiableList(new ArrayList<String>(skipPrefixes));
+        this.truncateMarkers = Collections.unmodifiableList(new ArrayList<String>(truncateMarkers));
+        this.skipTrie = new Trie(this.skipPrefixes);
+        this.truncateTrie = new Trie(this.truncateMarkers);
+    }
+
+    public List<String> getSkipPrefixes() {
+        return skipPrefixes;
+    }
+
+    public List<String> getTruncateMarkers() {
+        return truncateMarkers;
+    }
+
+    /**
+     * Determines the canonical form of a class name.
+     *
+     * @param className the class name of a frame.
+     * @return {@link #SKIP} if the frame is to be skipped, or else the length of the prefix of the class name that is
+     *         its canonical form.
+     */
+    int canonicalLength(String className) {
+        final Integer known = canonicalLengths.get(className);
+        if (known != null) {
+            return known;
+        }
+        final int result = computeCanonicalLength(className);
+        if (canonicalLengths.size() < MAXIMUM_REMEMBERED_CLASS_NAMES) {
+            canonicalLengths.put(className, result);
+        }
+        return result;
+    }
+
+    private int computeCanonicalLength(String className) {
+        if (skipTrie.matchAt(className, 0) >= 0) {
+            return SKIP;
+        }
+        if (!truncateTrie.isEmpty()) {
+            for (int i = className.indexOf('$'); i >= 0; i = className.indexOf('$', i + 1)) {
+                final int end = truncateTrie.matchAt(className, i);
+                if (end >= 0) {
+                    return end;
+                }
+            }
+        }
+        return className.length();
+    }
+
+    /**
+     * Determines the canonical form of a method name.
+     *
+     * @param methodName the method name of a frame.
+     * @return the length of the prefix of the method name that is its canonical form.
+     */
+    static int canonicalMethodLength(String methodName) {
+        if (methodName.startsWith(LAMBDA_PREFIX)) {
+            return methodName.lastIndexOf('$') + 1;
+        }
+        return methodName.length();
+    }
+
+    /**
+     * Computes the hash code of a prefix of a string, equal to the {@link String#hashCode()} of that prefix.
+     *
+     * @param value  a string.
+     * @param length the length of the prefix.
+     * @return the hash code.
+     */
+    static int hashCode(String value, int length) {
+        if (length == value.length()) {
+            return value.hashCode(); // cached by the String
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FrameNormalizer)) {
+            return false;
+        }
+        final FrameNormalizer other = (FrameNormalizer) o;
+        return skipPrefixes.equals(other.skipPrefixes) && truncateMarkers.equals(other.truncateMarkers);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * skipPrefixes.hashCode() + truncateMarkers.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameNormalizer[skip=" + skipPrefixes + ", truncate=" + truncateMarkers + "]";
+    }
+
+    /**
+     * An immutable prefix tree of strings. Every node stores its outgoing edges in an array that is indexed by
+     * character (offset by the lowest character that has an edge), so that matching costs one array lookup per
+     * character.
+     */
+    private static final class Trie {
+        private final Node root;
+
+        Trie(List<String> patterns) {
+            final Builder builder = new Builder();
+            for (final String pattern : patterns) {
+                if (pattern.length() > 0) {
+                    builder.add(pattern, 0);
+                }
+            }
+            this.root = builder.build();
+        }
+
+        boolean isEmpty() {
+            return root.next.length == 0;
+        }
+
+        /**
+         * Matches the patterns against a string, starting at an offset.
+         *
+         * @return the index just after the shortest pattern that occurs in the string at the offset, or -1 if none do.
+         */
+        int matchAt(String value, int offset) {
+            Node node = root;
+            for (int i = offset; i < value.length(); i++) {
+                final int index = value.charAt(i) - node.offset;
+                if (index < 0 || index >= node.next.length) {
+                    return -1;
+                }
+                node = node.next[index];
+                if (node == null) {
+                    return -1;
+                }
+                if (node.terminal) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static final class Node {
+            final char offset;
+            final Node[] next;
+            final boolean terminal;
+
+            Node(char offset, Node[] next, boolean terminal) {
+                this.offset = offset;
+                this.next = next;
+                this.terminal = terminal;
+            }
+        }
+
+        private static final class Builder {
+            final TreeMap<Character, Builder> children = new TreeMap<Character, Builder>();
+            boolean terminal;
+
+            void add(String pattern, int index) {
+                if (index == pattern.length()) {
+                    terminal = true;
+                    return;
+                }
+                Builder child = children.get(pattern.charAt(index));
+                if (child == null) {
+                    child = new Builder();
+                    children.put(pattern.charAt(index), child);
+                }
+                child.add(pattern, index + 1);
+            }
+
+            Node build() {
+                if (children.isEmpty()) {
+                    return new Node((char) 0, new Node[0], terminal);
+                }
+                final char first = children.firstKey();
+                final Node[] next = new Node[children.lastKey() - first + 1];
+                for (final Map.Entry<Character, Builder> entry : children.entrySet()) {
+                    next[entry.getKey() - first] = entry.getValue().build();
+                }
+                return new Node(first, next, terminal);
+            }
+        }
+    }
+}
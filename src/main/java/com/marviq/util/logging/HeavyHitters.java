@@ -0,0 +1,357 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A summary of the fingerprints that occur most often, which uses a fixed amount of memory however many distinct
+ * fingerprints occur.
+ *
+ * The summary implements the Space-Saving algorithm (Metwally, Agrawal and El Abbadi: "Efficient Computation of
+ * Frequent and Top-k Elements in Data Streams", 2005). It monitors at most <em>capacity</em> fingerprints. An
+ * occurrence of a fingerprint that is not monitored replaces the monitored fingerprint with the lowest count, and
+ * inherits that count, which is remembered as the error of the new count. A count is never lower than the actual
+ * number of occurrences, and at most its error higher. Every fingerprint that makes up more than a
+ * <tt>1 / capacity</tt> share of the occurrences is monitored.
+ *
+ * So that logging threads do not contend, the summary is split into stripes (one per {@link StripedCounter} cell), each
+ * a Space-Saving summary of its own. A thread updates the stripe that its id maps to. The stripes are merged when the
+ * summary is read. Updating a stripe takes time logarithmic in the capacity, and does not allocate unless a
+ * fingerprint is replaced.
+ *
+ * Instances are thread-safe.
+ */
+final class HeavyHitters {
+
+    private final int capacity;
+    private final Stripe[] stripes;
+
+    /**
+     * @param capacity the maximum number of fingerprints monitored per stripe.
+     */
+    HeavyHitters(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, but was " + capacity);
+        }
+        this.capacity = capacity;
+        this.stripes = new Stripe[StripedCounter.CELLS];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Counts an occurrence of a fingerprint.
+     *
+     * @param fingerprint    the fingerprint.
+     * @param throwableClass the class name of the Throwable, which describes the fingerprint in a digest.
+     * @param loggerName     the name of the logger, which describes the fingerprint in a digest.
+     */
+    void offer(long fingerprint, String throwableClass, String loggerName) {
+        stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)].offer(fingerprint, throwableClass,
+                loggerName);
+    }
+
+    /**
+     * Merges the stripes into a single ranking.
+     *
+     * @param size  the maximum number of fingerprints to return.
+     * @param reset <tt>true</tt> to start counting from zero afterwards.
+     * @return the fingerprints with the highest counts, highest first.
+     */
+    Snapshot snapshot(int size, boolean reset) {
+        final Map<Long, Entry> merged = new HashMap<Long, Entry>();
+        final long[] minimums = new long[stripes.length];
+        final List<Map<Long, Entry>> perStripe = new ArrayList<Map<Long, Entry>>(stripes.length);
+        long total = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+            synchronized (stripes[i]) {
+                total += stripes[i].copyTo(entries);
+                minimums[i] = stripes[i].isFull() ? stripes[i].minimum() : 0;
+                if (reset) {
+                    stripes[i].clear();
+                }
+            }
+            perStripe.add(entries);
+            for (final Entry entry : entries.values()) {
+                final Entry earlier = merged.get(entry.fingerprint);
+                merged.put(entry.fingerprint, earlier == null ? entry : earlier.add(entry.count, entry.error));
+            }
+        }
+
+        // A stripe that is full may have counted a fingerprint that it does not monitor (anymore), but not more often
+        // than its lowest count.
+        final List<Entry> ranking = new ArrayList<Entry>(merged.size());
+        for (final Entry entry : merged.values()) {
+            long error = entry.error;
+            for (int i = 0; i < stripes.length; i++) {
+                if (!perStripe.get(i).containsKey(entry.fingerprint)) {
+                    error += minimums[i];
+                }
+            }
+            ranking.add(new Entry(entry.fingerprint, entry.count, error, entry.throwableClass, entry.loggerName));
+        }
+        Collections.sort(ranking, new Comparator<Entry>() {
+            public int compare(Entry one, Entry other) {
+                return one.count < other.count ? 1 : one.count > other.count ? -1 : 0;
+            }
+        });
+        return new Snapshot(total, ranking.subList(0, Math.min(size, ranking.size())));
+    }
+
+    /**
+     * The outcome of {@link #snapshot(int, boolean)}.
+     */
+    static final class Snapshot {
+        private final long total;
+        private final List<Entry> entries;
+
+        Snapshot(long total, List<Entry> entries) {
+            this.total = total;
+            this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        }
+
+        /**
+         * @return the number of occurrences of all fingerprints.
+         */
+        long getTotal() {
+            return total;
+        }
+
+        List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * The estimated count of a fingerprint. Instances are immutable.
+     */
+    static final class Entry {
+        final long fingerprint;
+        final long count;
+        final long error;
+        final String throwableClass;
+        final String loggerName;
+
+        Entry(long fingerprint, long count, long error, String throwableClass, String loggerName) {
+            this.fingerprint = fingerprint;
+            this.count = count;
+            this.error = error;
+            this.throwableClass = throwableClass;
+            this.loggerName = loggerName;
+        }
+
+        Entry add(long moreCount, long moreError) {
+            return new Entry(fingerprint, count + moreCount, error + moreError, throwableClass, loggerName);
+        }
+
+        @Override
+        public String toString() {
+            return fingerprint + "=" + count + "(+-" + error + ")";
+        }
+    }
+
+    /**
+     * A Space-Saving summary. The monitored fingerprints are kept in slots; a min-heap of slots (ordered by count)
+     * finds the fingerprint to replace, and an open-addressing hash table finds the slot of a fingerprint. Guarded by
+     * its own monitor.
+     */
+    private static final class Stripe {
+        private final long[] fingerprints;
+        private final long[] counts;
+        private final long[] errors;
+        private final String[] throwableClasses;
+        private final String[] loggerNames;
+
+        /** The heap of slots, and the position of each slot in the heap. */
+        private final int[] heap;
+        private final int[] heapPositions;
+
+        /** The hash table: fingerprints, and their slot plus one (0 marks an empty bucket). */
+        private final long[] tableKeys;
+        private final int[] tableSlots;
+        private final int mask;
+
+        private int size;
+        private long total;
+
+        Stripe(int capacity) {
+            fingerprints = new long[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+            throwableClasses = new String[capacity];
+            loggerNames = new String[capacity];
+            heap = new int[capacity];
+            heapPositions = new int[capacity];
+            int buckets = 2;
+            while (buckets < 2 * capacity) {
+                buckets <<= 1;
+            }
+            tableKeys = new long[buckets];
+            tableSlots = new int[buckets];
+            mask = buckets - 1;
+        }
+
+        synchronized void offer(long fingerprint, String throwableClass, String loggerName) {
+            total++;
+            int slot = find(fingerprint);
+            if (slot >= 0) {
+                counts[slot]++;
+                siftDown(heapPositions[slot]);
+                return;
+            }
+
+            if (size < heap.length) {
+                slot = size++;
+                heap[slot] = slot;
+                heapPositions[slot] = slot;
+                counts[slot] = 0;
+                errors[slot] = 0;
+            } else {
+                // Replace the fingerprint with the lowest count, which is at the root of the heap.
+                slot = heap[0];
+                remove(fingerprints[slot]);
+                errors[slot] = counts[slot];
+            }
+            fingerprints[slot] = fingerprint;
+            counts[slot]++;
+            throwableClasses[slot] = throwableClass;
+            loggerNames[slot] = loggerName;
+            insert(fingerprint, slot);
+            siftUp(heapPositions[slot]);
+            siftDown(heapPositions[slot]);
+        }
+
+        boolean isFull() {
+            return size == heap.length;
+        }
+
+        long minimum() {
+            return size == 0 ? 0 : counts[heap[0]];
+        }
+
+        /**
+         * @return the number of occurrences counted by this stripe.
+         */
+        long copyTo(Map<Long, Entry> target) {
+            for (int slot = 0; slot < size; slot++) {
+                target.put(fingerprints[slot], new Entry(fingerprints[slot], counts[slot], errors[slot],
+                        throwableClasses[slot], loggerNames[slot]));
+            }
+            return total;
+        }
+
+        void clear() {
+            Arrays.fill(tableSlots, 0);
+            Arrays.fill(throwableClasses, null);
+            Arrays.fill(loggerNames, null);
+            size = 0;
+            total = 0;
+        }
+
+        private void siftUp(int position) {
+            while (position > 0) {
+                final int parent = (position - 1) >>> 1;
+                if (counts[heap[parent]] <= counts[heap[position]]) {
+                    return;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position) {
+            for (;;) {
+                final int left = 2 * position + 1;
+                if (left >= size) {
+                    return;
+                }
+                final int right = left + 1;
+                final int smallest = right < size && counts[heap[right]] < counts[heap[left]] ? right : left;
+                if (counts[heap[position]] <= counts[heap[smallest]]) {
+                    return;
+                }
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+
+        private void swap(int one, int other) {
+            final int slot = heap[one];
+            heap[one] = heap[other];
+            heap[other] = slot;
+            heapPositions[heap[one]] = one;
+            heapPositions[heap[other]] = other;
+        }
+
+        private int bucket(long fingerprint) {
+            return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        }
+
+        private int find(long fingerprint) {
+            for (int i = bucket(fingerprint); tableSlots[i] != 0; i = (i + 1) & mask) {
+                if (tableKeys[i] == fingerprint) {
+                    return tableSlots[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long fingerprint, int slot) {
+            int i = bucket(fingerprint);
+            while (tableSlots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            tableKeys[i] = fingerprint;
+            tableSlots[i] = slot + 1;
+        }
+
+        /**
+         * Removes a fingerprint from the hash table, moving later entries of the same probe sequence back into the gap
+         * (so that no tombstones are needed).
+         */
+        private void remove(long fingerprint) {
+            int gap = bucket(fingerprint);
+            while (tableKeys[gap] != fingerprint || tableSlots[gap] == 0) {
+                gap = (gap + 1) & mask;
+            }
+            tableSlots[gap] = 0;
+            for (int i = (gap + 1) & mask; tableSlots[i] != 0; i = (i + 1) & mask) {
+                final int home = bucket(tableKeys[i]);
+                // The entry may move into the gap, unless its home bucket lies (cyclically) after the gap.
+                final boolean homeAfterGap = gap <= i ? gap < home && home <= i : gap < home || home <= i;
+                if (!homeAfterGap) {
+                    tableKeys[gap] = tableKeys[i];
+                    tableSlots[gap] = tableSlots[i];
+                    tableSlots[i] = 0;
+                    gap = i;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Reports problems of the appender itself, such as JIRA being unreachable or options being invalid.
+ *
+ * The engine does not depend on a particular logging framework, and cannot log through the framework that it is part
+ * of (the events would be fed back into the appender). When log4j 1.x is present, messages go to its {@link
+ * org.apache.log4j.helpers.LogLog}, which honours the <tt>log4j.debug</tt> and quiet mode settings. Otherwise, they go
+ * to the sink that the adapter of the framework installs (such as the status logger of Log4j 2), or to standard error.
+ *
+ * Instances are not needed: all methods are static and thread-safe.
+ */
+public final class InternalLog {
+
+    /**
+     * Receives the messages of the appender.
+     */
+    public interface Sink {
+
+        /**
+         * @param message   the message.
+         * @param throwable the cause of the message, or <tt>null</tt> if there is none.
+         */
+        void debug(String message, Throwable throwable);
+
+        /**
+         * @param message   the message.
+         * @param throwable the cause of the message, or <tt>null</tt> if there is none.
+         */
+        void warn(String message, Throwable throwable);
+
+        /**
+         * @param message   the message.
+         * @param throwable the cause of the message, or <tt>null</tt> if there is none.
+         */
+        void error(String message, Throwable throwable);
+    }
+
+    /** Writes warnings and errors to standard error, and ignores debug messages. */
+    static final Sink STANDARD_ERROR = new Sink() {
+        public void debug(String message, Throwable throwable) {
+        }
+
+        public void warn(String message, Throwable throwable) {
+            print("WARN ", message, throwable);
+        }
+
+        public void error(String message, Throwable throwable) {
+            print("ERROR ", message, throwable);
+        }
+
+        private void print(String level, String message, Throwable throwable) {
+            System.err.println("log4j-appender-jira: " + level + message);
+            if (throwable != null) {
+                throwable.printStackTrace();
+            }
+        }
+    };
+
+    private static volatile Sink sink = defaultSink();
+
+    private InternalLog() {
+    }
+
+    /**
+     * Sends the messages of the appender elsewhere.
+     *
+     * @param newSink the sink to use from now on, or <tt>null</tt> to restore the default.
+     */
+    public static void setSink(Sink newSink) {
+        sink = newSink == null ? defaultSink() : newSink;
+    }
+
+    static void debug(String message) {
+        sink.debug(message, null);
+    }
+
+    static void debug(String message, Throwable throwable) {
+        sink.debug(message, throwable);
+    }
+
+    static void warn(String message) {
+        sink.warn(message, null);
+    }
+
+    static void warn(String message, Throwable throwable) {
+        sink.warn(message, throwable);
+    }
+
+    static void error(String message) {
+        sink.error(message, null);
+    }
+
+    static void error(String message, Throwable throwable) {
+        sink.error(message, throwable);
+    }
+
+    /**
+     * @return the sink of log4j 1.x if it is present, or else {@link #STANDARD_ERROR}.
+     */
+    private static Sink defaultSink() {
+        try {
+            Class.forName("org.apache.log4j.helpers.LogLog", false, InternalLog.class.getClassLoader());
+            return new LogLogSink();
+        } catch (ClassNotFoundException e) {
+            return STANDARD_ERROR;
+        } catch (LinkageError e) {
+            return STANDARD_ERROR;
+        }
+    }
+
+    /**
+     * Passes messages to log4j 1.x. This class is only loaded when log4j 1.x is present.
+     */
+    private static final class LogLogSink implements Sink {
+        public void debug(String message, Throwable throwable) {
+            org.apache.log4j.helpers.LogLog.debug(message, throwable);
+        }
+
+        public void warn(String message, Throwable throwable) {
+            org.apache.log4j.helpers.LogLog.warn(message, throwable);
+        }
+
+        public void error(String message, Throwable throwable) {
+            org.apache.log4j.helpers.LogLog.error(message, throwable);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Remembers which JIRA issue was created for which fingerprint. Every appender has a cache of its own.
+ *
+ * Implementations must be thread-safe, and must have a public no-argument constructor to be configurable by class name
+ * (see {@link JiraEngine#setCacheClass(String)}). Such implementations decide on their own bounds: the size and
+ * expiry options of the appender apply to the default implementation only. A cache may forget entries at any time;
+ * the worst that happens then is that a duplicate issue is created.
+ */
+public interface IssueKeyCache {
+
+    /**
+     * @param fingerprint a fingerprint.
+     * @return the key of the issue of the fingerprint, or <tt>null</tt> if none is known.
+     */
+    String get(long fingerprint);
+
+    /**
+     * Remembers the issue of a fingerprint, replacing the issue that was known for it, if any.
+     *
+     * @param fingerprint a fingerprint.
+     * @param issueKey    the key of the issue (must not be <tt>null</tt>).
+     */
+    void put(long fingerprint, String issueKey);
+
+    /**
+     * Remembers the issue of a fingerprint, unless an issue is known for it already.
+     *
+     * @param fingerprint a fingerprint.
+     * @param issueKey    the key of the issue (must not be <tt>null</tt>).
+     * @return <tt>true</tt> if the issue was remembered.
+     */
+    boolean putIfAbsent(long fingerprint, String issueKey);
+
+    /**
+     * Forgets all issues.
+     */
+    void clear();
+
+    /**
+     * @return the (approximate) number of issues that are known.
+     */
+    long size();
+
+    /**
+     * @return the number of issues that were forgotten to make room for others, or because they expired.
+     */
+    long getEvictionCount();
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A file that persists which JIRA issue was created for which fingerprint, so that this knowledge survives a restart of
+ * the JVM.
+ *
+ * The file is an append-only journal of small binary records, each holding a fingerprint, an issue key and the time at
+ * which the fingerprint was last seen. Later records supersede earlier records for the same fingerprint. Every record
+ * carries a CRC32 checksum: a record that was only partially written (because the process died while writing it) is
+ * detected when the journal is opened, and the journal is truncated to the last intact record.
+ *
+ * As the journal grows, it is compacted: the live entries are written to a temporary file, which then replaces the
+ * journal. Entries that have not been seen for longer than the expiry time are dropped during compaction (and ignored
+ * when the journal is opened). Compaction runs on a thread of its own, so that the thread that records an entry only
+ * ever writes that record; records written meanwhile are copied to the compacted file before it replaces the journal.
+ *
+ * Instances are thread-safe.
+ */
+final class IssueKeyJournal {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = IssueKeyJournal.class.getSimpleName();
+
+    /** Identifies a journal file ("JIRA"). */
+    static final int MAGIC = 0x4A495241;
+
+    /** The version of the file format. */
+    static final int FORMAT_VERSION = 1;
+
+    /** The size of the file header: magic, format version, fingerprint scheme. */
+    static final int HEADER_SIZE = 12;
+
+    /** The size of a record, excluding the issue key: checksum, key length, fingerprint, last-seen timestamp. */
+    static final int RECORD_OVERHEAD = 4 + 2 + 8 + 8;
+
+    /** The journal is not compacted before it holds at least this many records. */
+    static final int MINIMUM_RECORDS_BEFORE_COMPACTION = 10000;
+
+    /** Updates of the last-seen time of an entry are not written more often than this (in milliseconds). */
+    static final long TOUCH_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the entries of a journal when it is opened.
+     */
+    interface Visitor {
+        void visit(long fingerprint, String issueKey, long lastSeen);
+    }
+
+    private final File file;
+    private final int fingerprintScheme;
+    private final long expiryMillis;
+
+    /** The live entries, by fingerprint. Guarded by this. */
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    /** Guarded by this. */
+    private FileChannel channel;
+    private int recordCount;
+
+    /**
+     * Whether records are appended to the file of an unfinished compaction, because the journal could not be replaced
+     * by it. That file becomes the journal when it is opened again; until then, the journal is not compacted. Guarded
+     * by this.
+     */
+    private boolean appendingToCompaction;
+
+    /** The journal is not compacted before it holds this many records. Guarded by this. */
+    private int compactionThreshold = MINIMUM_RECORDS_BEFORE_COMPACTION;
+
+    /** Set while a compaction is queued or in progress. Guarded by this. */
+    private boolean compactionRequested;
+
+    /** The records written while a compaction is in progress, or <tt>null</tt>. Guarded by this. */
+    private List<ByteBuffer> writtenDuringCompaction;
+
+    private final ExecutorService compactor;
+
+    private final Runnable compaction = new Runnable() {
+        public void run() {
+            try {
+                compact(System.currentTimeMillis());
+            } catch (IOException e) {
+                InternalLog.error(SIMPLE_NAME + ": Failed to compact " + file, e);
+            }
+        }
+    };
+
+    private IssueKeyJournal(File file, int fingerprintScheme, long expiryMillis) {
+        this.file = file;
+        this.fingerprintScheme = fingerprintScheme;
+        this.expiryMillis = expiryMillis;
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(SIMPLE_NAME + "-compactor-" + file.getName()).build());
+    }
+
+    /**
+     * Opens (or creates) a journal, and passes its live entries to the visitor.
+     *
+     * @param file              the journal file.
+     * @param fingerprintScheme identifies the way in which fingerprints are computed. A journal that was written with
+     *                          another scheme is discarded, as its fingerprints are meaningless.
+     * @param expiryMillis      the time after which entries that have not been seen are dropped.
+     * @param visitor           receives every live entry (may be <tt>null</tt>).
+     * @return the opened journal.
+     * @throws IOException if the journal cannot be read or written.
+     */
+    static IssueKeyJournal open(File file, int fingerprintScheme, long expiryMillis, Visitor visitor)
+            throws IOException {
+        final IssueKeyJournal journal = new IssueKeyJournal(file, fingerprintScheme, expiryMillis);
+        synchronized (journal) {
+            journal.recover();
+            journal.load();
+            if (journal.needsCompaction()) {
+                journal.compact(System.currentTimeMillis());
+            }
+            if (visitor != null) {
+                for (final Map.Entry<Long, Entry> entry : journal.entries.entrySet()) {
+                    visitor.visit(entry.getKey(), entry.getValue().issueKey, entry.getValue().lastSeen);
+                }
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Records that an issue was created for a fingerprint.
+     *
+     * @param fingerprint the fingerprint.
+     * @param issueKey    the key of the issue.
+     * @param now         the current time.
+     */
+    synchronized void record(long fingerprint, String issueKey, long now) {
+        append(fingerprint, issueKey, now);
+    }
+
+    /**
+     * Records that a fingerprint was seen again. To limit the number of writes, the journal is only updated if the
+     * entry was last written some time ago.
+     *
+     * @param fingerprint the fingerprint.
+     * @param issueKey    the key of the issue that belongs to the fingerprint.
+     * @param now         the current time.
+     */
+    synchronized void touch(long fingerprint, String issueKey, long now) {
+        final Entry entry = entries.get(fingerprint);
+        if (entry != null && issueKey.equals(entry.issueKey) && now - entry.lastSeen < TOUCH_INTERVAL_MILLIS) {
+            return;
+        }
+        append(fingerprint, issueKey, now);
+    }
+
+    /**
+     * @return the number of live entries.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of records in the journal file.
+     */
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flushes the journal to disk, and closes it. A compaction that is in progress is given until the deadline to
+     * complete; after that, it is abandoned and the journal stays as it was.
+     *
+     * @param deadline the time until which to wait for a compaction.
+     * @return <tt>true</tt> if no compaction was abandoned.
+     */
+    boolean close(Deadline deadline) {
+        compactor.shutdown();
+        boolean compacted;
+        try {
+            compacted = compactor.awaitTermination(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            compacted = false;
+        }
+        synchronized (this) {
+            if (channel == null) {
+                return compacted;
+            }
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                InternalLog.warn(SIMPLE_NAME + ": Failed to close " + file, e);
+            }
+            channel = null;
+        }
+        return compacted;
+    }
+
+    /**
+     * Writes the live entries to a new file, which then replaces the journal. The lock of the journal is only held
+     * while the entries are copied and while the file is replaced, so records can be written in the meantime. Should
+     * the journal not be replaced, records are still written: to the journal if it is intact, or else to the new file.
+     *
+     * @param now the current time.
+     */
+    void compact(long now) throws IOException {
+        final Map<Long, Entry> snapshot;
+        synchronized (this) {
+            if (channel == null || appendingToCompaction) {
+                compactionRequested = appendingToCompaction;
+                return;
+            }
+            snapshot = new HashMap<Long, Entry>(entries);
+            writtenDuringCompaction = new ArrayList<ByteBuffer>();
+        }
+
+        final File temporary = getTemporaryFile();
+        final RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        boolean replaced = false;
+        try {
+            output.setLength(0);
+            final FileChannel temporaryChannel = output.getChannel();
+            writeHeader(temporaryChannel);
+            final List<Long> expired = new ArrayList<Long>();
+            int written = 0;
+            for (final Map.Entry<Long, Entry> entry : snapshot.entrySet()) {
+                if (isExpired(entry.getValue().lastSeen, now)) {
+                    expired.add(entry.getKey());
+                    continue;
+                }
+                writeFully(temporaryChannel, encode(entry.getKey(), entry.getValue().issueKey,
+                        entry.getValue().lastSeen));
+                written++;
+            }
+            temporaryChannel.force(true);
+
+            synchronized (this) {
+                if (channel == null) {
+                    // Closed in the meantime.
+                    return;
+                }
+                // These supersede the records of the snapshot. Like all appended records, they are not forced.
+                for (final ByteBuffer record : writtenDuringCompaction) {
+                    writeFully(temporaryChannel, record);
+                    written++;
+                }
+                output.close();
+                channel.close();
+                channel = null;
+                if (file.exists() && !file.delete()) {
+                    // The journal is intact: keep appending to it, and do not try again until it has doubled.
+                    channel = openForAppending(file);
+                    compactionThreshold = Math.max(compactionThreshold, 2 * recordCount);
+                    throw new IOException("Unable to replace " + file);
+                }
+                replaced = true;
+                for (final Long fingerprint : expired) {
+                    if (entries.get(fingerprint) == snapshot.get(fingerprint)) {
+                        entries.remove(fingerprint);
+                    }
+                }
+                recordCount = written;
+                if (!temporary.renameTo(file)) {
+                    // The journal is gone, but the compacted file holds all records: keep appending to that.
+                    appendingToCompaction = true;
+                    channel = openForAppending(temporary);
+                    throw new IOException("Unable to rename " + temporary + " to " + file + "; records are written " +
+                            "to " + temporary + " until the journal is opened again");
+                }
+                channel = openForAppending(file);
+            }
+            InternalLog.debug(SIMPLE_NAME + ": Compacted " + file + " to " + written + " records.");
+        } finally {
+            output.close();
+            synchronized (this) {
+                writtenDuringCompaction = null;
+                compactionRequested = appendingToCompaction;
+            }
+            if (!replaced && file.exists() && temporary.exists() && !temporary.delete()) {
+                InternalLog.warn(SIMPLE_NAME + ": Unable to delete " + temporary);
+            }
+        }
+    }
+
+    private void append(long fingerprint, String issueKey, long now) {
+        if (channel == null) {
+            return;
+        }
+        final Entry previous = entries.put(fingerprint, new Entry(issueKey, now));
+        final ByteBuffer record = encode(fingerprint, issueKey, now);
+        try {
+            writeFully(channel, record);
+            recordCount++;
+        } catch (IOException e) {
+            if (previous != null) {
+                entries.put(fingerprint, previous);
+            }
+            InternalLog.error(SIMPLE_NAME + ": Failed to write to " + file, e);
+            return;
+        }
+        if (writtenDuringCompaction != null) {
+            record.rewind();
+            writtenDuringCompaction.add(record);
+        }
+        if (!compactionRequested && needsCompaction()) {
+            compactionRequested = true;
+            try {
+                compactor.execute(compaction);
+            } catch (RejectedExecutionException e) {
+                // Closing.
+            }
+        }
+    }
+
+    private boolean needsCompaction() {
+        return recordCount >= compactionThreshold && recordCount > 2 * entries.size();
+    }
+
+    /**
+     * Completes or discards an interrupted compaction.
+     */
+    private void recover() throws IOException {
+        final File temporary = getTemporaryFile();
+        if (!temporary.exists()) {
+            return;
+        }
+        if (file.exists()) {
+            // The compaction did not complete: the journal itself is still intact.
+            if (!temporary.delete()) {
+                throw new IOException("Unable to delete " + temporary);
+            }
+        } else if (!temporary.renameTo(file)) {
+            // The compaction completed, but the journal was not replaced yet.
+            throw new IOException("Unable to rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Reads all intact records, truncates the file after the last of those, and leaves the file open for appending.
+     */
+    private void load() throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        final RandomAccessFile input = new RandomAccessFile(file, "rw");
+        boolean success = false;
+        try {
+            channel = input.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large.");
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+
+            final long now = System.currentTimeMillis();
+            int validLength = 0;
+            if (buffer.remaining() >= HEADER_SIZE
+                    && buffer.getInt() == MAGIC
+                    && buffer.getInt() == FORMAT_VERSION
+                    && buffer.getInt() == fingerprintScheme) {
+                validLength = parseRecords(buffer, now);
+            } else if (size > 0) {
+                InternalLog.warn(SIMPLE_NAME + ": Discarding " + file +
+                        ", as it was written in an incompatible format.");
+            }
+
+            if (validLength == 0) {
+                channel.truncate(0);
+                writeHeader(channel);
+                entries.clear();
+                recordCount = 0;
+            } else if (validLength < size) {
+                InternalLog.warn(SIMPLE_NAME + ": Ignoring " + (size - validLength) +
+                        " bytes of incomplete or corrupt data at the end of " + file);
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+            success = true;
+        } finally {
+            if (!success) {
+                input.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Parses records until the end of the buffer, or until a record is incomplete or corrupt.
+     *
+     * @return the offset just after the last intact record.
+     */
+    private int parseRecords(ByteBuffer buffer, long now) {
+        final CRC32 crc = new CRC32();
+        final byte[] array = buffer.array();
+        int validLength = buffer.position();
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            final int start = buffer.position();
+            final int checksum = buffer.getInt();
+            final int keyLength = buffer.getShort() & 0xFFFF;
+            if (keyLength == 0 || buffer.remaining() < 16 + keyLength) {
+                break;
+            }
+            crc.reset();
+            crc.update(array, start + 4, 2 + 16 + keyLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            final long fingerprint = buffer.getLong();
+            final long lastSeen = buffer.getLong();
+            final String issueKey = new String(array, buffer.position(), keyLength, UTF8);
+            buffer.position(buffer.position() + keyLength);
+
+            recordCount++;
+            validLength = buffer.position();
+            if (isExpired(lastSeen, now)) {
+                entries.remove(fingerprint);
+            } else {
+                entries.put(fingerprint, new Entry(issueKey, lastSeen));
+            }
+        }
+        return validLength;
+    }
+
+    private boolean isExpired(long lastSeen, long now) {
+        return expiryMillis > 0 && now - lastSeen > expiryMillis;
+    }
+
+    private FileChannel openForAppending(File target) throws IOException {
+        final FileChannel result = new RandomAccessFile(target, "rw").getChannel();
+        result.position(result.size());
+        return result;
+    }
+
+    private void writeHeader(FileChannel target) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(fingerprintScheme);
+        header.flip();
+        target.position(0);
+        writeFully(target, header);
+    }
+
+    static ByteBuffer encode(long fingerprint, String issueKey, long lastSeen) {
+        final byte[] key = issueKey.getBytes(UTF8);
+        if (key.length == 0 || key.length > 0xFFFF) {
+            throw new IllegalArgumentException("Unsupported issue key: " + issueKey);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + key.length);
+        record.putInt(0);
+        record.putShort((short) key.length);
+        record.putLong(fingerprint);
+        record.putLong(lastSeen);
+        record.put(key);
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private File getTemporaryFile() {
+        return new File(file.getPath() + ".compact");
+    }
+
+    private static final class Entry {
+        final String issueKey;
+        final long lastSeen;
+
+        Entry(String issueKey, long lastSeen) {
+            this.issueKey = issueKey;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.xmlrpc.XmlRpcException;
+
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the open JIRA issues that were created for fingerprints earlier, so that an appender that starts without
+ * knowing about them (after a restart, or after they were evicted from its cache) comments on them, rather than
+ * creating duplicates.
+ *
+ * Every issue that the appender creates carries a <em>stamp</em> in its description: a single word that holds the
+ * fingerprint scheme and the fingerprint, which JIRA's text search can find. Issues are found by means of the
+ * <tt>jira1.getIssuesFromJqlSearch</tt> method (available since JIRA 4.0):
+ * <ul>
+ * <li>{@link #prefetch(int)} loads the unresolved issues of the projects that were reported by the user of the
+ * appender in a single call;</li>
+ * <li>{@link #find(Deadline, long)} looks up a single fingerprint. Lookups that are requested while another lookup is
+ * in progress are combined into one search, which is made as soon as that lookup has completed.</li>
+ * </ul>
+ * When JIRA does not support the search method, lookups are disabled.
+ *
+ * Instances are thread-safe.
+ */
+final class IssueLookup {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = IssueLookup.class.getSimpleName();
+
+    /** The prefix of a stamp, which keeps stamps from matching other words. */
+    static final String STAMP_PREFIX = "jafp";
+
+    /** The maximum number of fingerprints that are looked up in a single search. */
+    static final int MAXIMUM_BATCH_SIZE = 20;
+
+    private static final Pattern STAMP = Pattern.compile(STAMP_PREFIX + "([0-9a-f]{8})([0-9a-f]{16})");
+
+    private final JiraEngine appender;
+    private final List<String> projectKeys;
+    private final int scheme;
+
+    /** Lookups that wait to be part of a search. */
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<Request>();
+
+    /** Held by the thread that searches on behalf of all pending lookups. */
+    private final ReentrantLock searchLock = new ReentrantLock();
+
+    private volatile boolean unsupported;
+
+    /**
+     * @param appender   makes the calls to JIRA.
+     * @param projectKeys the projects of which the issues are searched: that of the appender, and those that events
+     *                    are routed to.
+     * @param scheme      the fingerprint scheme of the appender; stamps of other schemes are ignored.
+     */
+    IssueLookup(JiraEngine appender, Collection<String> projectKeys, int scheme) {
+        this.appender = appender;
+        this.projectKeys = new ArrayList<String>(projectKeys);
+        this.scheme = scheme;
+    }
+
+    /**
+     * Creates the stamp that identifies the issues of a fingerprint.
+     *
+     * @param scheme      the fingerprint scheme.
+     * @param fingerprint the fingerprint.
+     * @return a word of lowercase letters and digits.
+     */
+    static String stamp(int scheme, long fingerprint) {
+        final String schemeHex = Integer.toHexString(scheme);
+        final String fingerprintHex = Long.toHexString(fingerprint);
+        return STAMP_PREFIX + "00000000".substring(schemeHex.length()) + schemeHex +
+                "0000000000000000".substring(fingerprintHex.length()) + fingerprintHex;
+    }
+
+    /**
+     * Loads the unresolved issues of the projects that were reported by the user of the appender, most recently
+     * updated first.
+     *
+     * @param maxIssues the maximum number of issues to load.
+     * @return the keys of the issues, by fingerprint. Empty if JIRA does not support searching.
+     */
+    Map<Long, String> prefetch(int maxIssues) throws MalformedURLException, XmlRpcException {
+        return search(Deadline.NONE, 0L, "reporter = currentUser() ORDER BY updated DESC", maxIssues);
+    }
+
+    /**
+     * Looks up the unresolved issue of a fingerprint.
+     *
+     * @param deadline    the time by which the lookup must have completed.
+     * @param fingerprint the fingerprint.
+     * @return the key of the issue, or <tt>null</tt> if none was found (or JIRA does not support searching).
+     * @throws DeadlineExceededException if the deadline passed while waiting for another lookup.
+     */
+    String find(Deadline deadline, long fingerprint) throws MalformedURLException, XmlRpcException {
+        if (unsupported) {
+            return null;
+        }
+        final Request request = new Request(fingerprint);
+        pending.add(request);
+        try {
+            if (deadline.isUnbounded()) {
+                searchLock.lockInterruptibly();
+            } else if (!searchLock.tryLock(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+                pending.remove(request);
+                throw new DeadlineExceededException("the deadline passed while waiting for another lookup.");
+            }
+        } catch (InterruptedException e) {
+            pending.remove(request);
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("interrupted while waiting for another lookup.");
+        }
+        try {
+            // Another thread may have looked up this fingerprint along with its own, while this thread waited.
+            while (!request.result.isDone()) {
+                searchPending(deadline);
+            }
+        } finally {
+            searchLock.unlock();
+        }
+
+        try {
+            return request.result.get();
+        } catch (InterruptedException e) {
+            // Cannot happen: the result is available.
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof XmlRpcException) {
+                throw (XmlRpcException) cause;
+            }
+            if (cause instanceof MalformedURLException) {
+                throw (MalformedURLException) cause;
+            }
+            throw new XmlRpcException("Unable to look up an issue.", cause);
+        }
+    }
+
+    /**
+     * Searches for the issues of (some of) the pending lookups, and completes them.
+     */
+    private void searchPending(Deadline deadline) {
+        final List<Request> batch = new ArrayList<Request>(MAXIMUM_BATCH_SIZE);
+        final StringBuilder condition = new StringBuilder("(");
+        for (Request request = pending.poll(); request != null; request = pending.poll()) {
+            if (!batch.isEmpty()) {
+                condition.append(" OR ");
+            }
+            condition.append("description ~ \"").append(stamp(scheme, request.fingerprint)).append('"');
+            batch.add(request);
+            if (batch.size() == MAXIMUM_BATCH_SIZE) {
+                break;
+            }
+        }
+        condition.append(')');
+
+        try {
+            final Map<Long, String> found = search(deadline, batch.get(0).fingerprint, condition.toString(),
+                    batch.size());
+            for (final Request request : batch) {
+                request.result.set(found.get(request.fingerprint));
+            }
+        } catch (Exception e) {
+            for (final Request request : batch) {
+                request.result.setException(e);
+            }
+        }
+    }
+
+    private Map<Long, String> search(Deadline deadline, long fingerprint, String condition, int maxResults)
+            throws MalformedURLException, XmlRpcException {
+        if (unsupported) {
+            return new HashMap<Long, String>();
+        }
+        final StringBuilder jql = new StringBuilder("project in (");
+        for (int i = 0; i < projectKeys.size(); i++) {
+            jql.append(i == 0 ? "\"" : ", \"").append(projectKeys.get(i).replace("\"", "\\\"")).append('"');
+        }
+        jql.append(") AND resolution = Unresolved AND ").append(condition);
+        try {
+            return parse(appender.search(deadline, fingerprint, jql.toString(), maxResults), scheme);
+        } catch (XmlRpcException e) {
+            final String message = e.getMessage();
+            if (message != null && (message.contains("NoSuchMethod") || message.contains("No such method"))) {
+                InternalLog.warn(SIMPLE_NAME + ": JIRA does not support " + AppenderMetrics.SEARCH +
+                        ". Existing issues are not looked up.");
+                unsupported = true;
+                return new HashMap<Long, String>();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts the stamps from the descriptions of issues that were found.
+     *
+     * @param issues the result of a search: an array of issues.
+     * @param scheme the fingerprint scheme of which the stamps are used.
+     * @return the keys of the issues, by fingerprint. When several issues carry the same stamp, the first is used.
+     */
+    static Map<Long, String> parse(Object[] issues, int scheme) {
+        final Map<Long, String> result = new HashMap<Long, String>();
+        if (issues == null) {
+            return result;
+        }
+        for (final Object issue : issues) {
+            if (!(issue instanceof Map)) {
+                continue;
+            }
+            final Object key = ((Map<?, ?>) issue).get("key");
+            final Object description = ((Map<?, ?>) issue).get("description");
+            if (key == null || description == null) {
+                continue;
+            }
+            final Matcher matcher = STAMP.matcher(description.toString());
+            while (matcher.find()) {
+                if ((int) Long.parseLong(matcher.group(1), 16) == scheme) {
+                    final long fingerprint = new BigInteger(matcher.group(2), 16).longValue();
+                    if (!result.containsKey(fingerprint)) {
+                        result.put(fingerprint, key.toString());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A fingerprint to look up, and the outcome.
+     */
+    private static final class Request {
+        final long fingerprint;
+        final SettableFuture<String> result = SettableFuture.create();
+
+        Request(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
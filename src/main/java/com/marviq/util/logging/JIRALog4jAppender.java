@@ -15,68 +15,51 @@
  */
 package com.marviq.util.logging;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Ticker;
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Level;
 import org.apache.log4j.PatternLayout;
-import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
-import org.apache.xmlrpc.XmlRpcException;
-import org.apache.xmlrpc.client.XmlRpcClient;
-import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
-
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
 
 /**
- * An {@link org.apache.log4j.Appender} that registers events in a JIRA instance.
+ * A log4j 1.x {@link org.apache.log4j.Appender} that registers events in a JIRA instance.
  *
- * Only events logged at level ERROR or higher are being logged by this implementation. If events were logged without a
- * Throwable instance, they are ignored by this appender.
+ * This class adapts log4j 1.x to a {@link JiraEngine}, which does the actual work. Events pass the threshold and the
+ * filters of the appender first; those that were logged at level ERROR or higher with a Throwable are then handed to
+ * the engine. Their layout is applied by the thread that sends them to JIRA, and only when it is needed.
  *
- * This appender keeps an internal cache of JIRA issues that have been created by instances of this class. If a previous
- * event triggered this appender to create a JIRA issue, then comments on that issue will be created for similar events.
- *
- * Events are deemed 'similar' if their stacktraces are identical. The exception message is explicitly not part of the
- * identifying part of an event.
- *
- * The cache that is used to store events and corresponding JIRA keys is not persisted in any way. Cache entries will
- * not survive a restart of the JVM.
+ * log4j 1.x configures an appender through its setters, so the options of the engine are exposed as properties of
+ * this appender. They are documented with the setters of {@link JiraEngine}.
  *
  * @author Guus der Kinderen, guus.der.kinderen@marviq.com
  */
 public class JIRALog4jAppender extends AppenderSkeleton {
 
-    /** class#getSimpleName() for this appender. */
-    private static final String SIMPLE_NAME = JIRALog4jAppender.class.getSimpleName();
-    
-    /** Maximum Jira summary length as experienced in practice. */
-    public static final Integer MAXIMUM_SUMMARY_LENGTH = 254;
+    /** @see JiraEngine#MAXIMUM_SUMMARY_LENGTH */
+    public static final Integer MAXIMUM_SUMMARY_LENGTH = JiraEngine.MAXIMUM_SUMMARY_LENGTH;
 
-    /**
-     * The cache that holds earlier reported issues. This is used when evaluating if a new JIRA issue needs to be
-     * created, or if the exception should be added as a comment to an existing JIRA issue.
-     */
-    private static final Cache<Integer, String> CACHE = CacheBuilder.newBuilder()
-            .maximumSize(5000)
-            .expireAfterAccess(7, TimeUnit.DAYS)
-            .build();
-
-    private String url;
-    private String username;
-    private String password;
-    private String projectkey;
-    private String label;
-    private String assignee;
+    /** Sends the events to JIRA. */
+    private final JiraEngine engine;
+
+    /** Guards the layout, which is shared by all threads that dispatch events. */
+    private final Object layoutLock = new Object();
 
     public JIRALog4jAppender() {
+        this(new JiraEngine());
+    }
+
+    public JIRALog4jAppender(String url, String username, String password, String projectkey) {
+        this(new JiraEngine(url, username, password, projectkey));
+    }
+
+    /**
+     * @param engine the engine that sends the events to JIRA.
+     */
+    JIRALog4jAppender(JiraEngine engine) {
+        this.engine = engine;
         setDefaultLayout();
     }
 
@@ -86,234 +69,623 @@ public class JIRALog4jAppender extends AppenderSkeleton {
         layout = patternLayout;
     }
 
-    public JIRALog4jAppender(String url, String username, String password, String projectkey) {
-        setDefaultLayout();
-        this.url = url;
-        this.username = username;
-        this.password = password;
-        this.projectkey = projectkey;
+    JiraEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void setName(String name) {
+        super.setName(name);
+        engine.setName(name);
     }
 
     public String getUrl() {
-        return url;
+        return engine.getUrl();
     }
 
     public void setUrl(String url) {
-        this.url = url;
+        engine.setUrl(url);
     }
 
     public String getUsername() {
-        return username;
+        return engine.getUsername();
     }
 
     public void setUsername(String username) {
-        this.username = username;
+        engine.setUsername(username);
     }
 
     public String getPassword() {
-        return password;
+        return engine.getPassword();
     }
 
     public void setPassword(String password) {
-        this.password = password;
+        engine.setPassword(password);
     }
 
     public String getProjectkey() {
-        return projectkey;
+        return engine.getProjectkey();
     }
 
     public void setProjectkey(String projectkey) {
-        this.projectkey = projectkey;
+        engine.setProjectkey(projectkey);
     }
 
     public String getLabel() {
-        return label;
+        return engine.getLabel();
     }
 
     public void setLabel(String label) {
-        this.label = label;
+        engine.setLabel(label);
     }
 
     public String getAssignee() {
-        return assignee;
+        return engine.getAssignee();
     }
 
     public void setAssignee(String assignee) {
-        this.assignee = assignee;
+        engine.setAssignee(assignee);
+    }
+
+    public String getRoutes() {
+        return engine.getRoutes();
+    }
+
+    public void setRoutes(String routes) {
+        engine.setRoutes(routes);
+    }
+
+    public boolean isAsync() {
+        return engine.isAsync();
+    }
+
+    public void setAsync(boolean async) {
+        engine.setAsync(async);
+    }
+
+    public int getBufferSize() {
+        return engine.getBufferSize();
+    }
+
+    public void setBufferSize(int bufferSize) {
+        engine.setBufferSize(bufferSize);
+    }
+
+    public int getWorkers() {
+        return engine.getWorkers();
+    }
+
+    public void setWorkers(int workers) {
+        engine.setWorkers(workers);
+    }
+
+    public String getOverflowPolicy() {
+        return engine.getOverflowPolicy();
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        engine.setOverflowPolicy(overflowPolicy);
+    }
+
+    public boolean isLogoutOnClose() {
+        return engine.isLogoutOnClose();
+    }
+
+    public void setLogoutOnClose(boolean logoutOnClose) {
+        engine.setLogoutOnClose(logoutOnClose);
+    }
+
+    public long getCommentWindow() {
+        return engine.getCommentWindow();
+    }
+
+    public void setCommentWindow(long commentWindow) {
+        engine.setCommentWindow(commentWindow);
+    }
+
+    public int getCommentMaxOccurrences() {
+        return engine.getCommentMaxOccurrences();
+    }
+
+    public void setCommentMaxOccurrences(int commentMaxOccurrences) {
+        engine.setCommentMaxOccurrences(commentMaxOccurrences);
+    }
+
+    public int getCommentSampleSize() {
+        return engine.getCommentSampleSize();
+    }
+
+    public void setCommentSampleSize(int commentSampleSize) {
+        engine.setCommentSampleSize(commentSampleSize);
+    }
+
+    public int getCommentSamplingThreshold() {
+        return engine.getCommentSamplingThreshold();
+    }
+
+    public void setCommentSamplingThreshold(int commentSamplingThreshold) {
+        engine.setCommentSamplingThreshold(commentSamplingThreshold);
+    }
+
+    public long getCommentSamplingQuietPeriod() {
+        return engine.getCommentSamplingQuietPeriod();
+    }
+
+    public void setCommentSamplingQuietPeriod(long commentSamplingQuietPeriod) {
+        engine.setCommentSamplingQuietPeriod(commentSamplingQuietPeriod);
+    }
+
+    public int getTextMaxLength() {
+        return engine.getTextMaxLength();
+    }
+
+    public void setTextMaxLength(int textMaxLength) {
+        engine.setTextMaxLength(textMaxLength);
+    }
+
+    public int getTextMaxFrames() {
+        return engine.getTextMaxFrames();
+    }
+
+    public void setTextMaxFrames(int textMaxFrames) {
+        engine.setTextMaxFrames(textMaxFrames);
+    }
+
+    public String getStoreDirectory() {
+        return engine.getStoreDirectory();
+    }
+
+    public void setStoreDirectory(String storeDirectory) {
+        engine.setStoreDirectory(storeDirectory);
+    }
+
+    public String getFingerprintStrategy() {
+        return engine.getFingerprintStrategy();
+    }
+
+    public void setFingerprintStrategy(String fingerprintStrategy) {
+        engine.setFingerprintStrategy(fingerprintStrategy);
+    }
+
+    public int getFingerprintMaxFrames() {
+        return engine.getFingerprintMaxFrames();
+    }
+
+    public void setFingerprintMaxFrames(int fingerprintMaxFrames) {
+        engine.setFingerprintMaxFrames(fingerprintMaxFrames);
+    }
+
+    public int getFingerprintMaxCauses() {
+        return engine.getFingerprintMaxCauses();
+    }
+
+    public void setFingerprintMaxCauses(int fingerprintMaxCauses) {
+        engine.setFingerprintMaxCauses(fingerprintMaxCauses);
+    }
+
+    public String getFingerprintSkipPrefixes() {
+        return engine.getFingerprintSkipPrefixes();
+    }
+
+    public void setFingerprintSkipPrefixes(String fingerprintSkipPrefixes) {
+        engine.setFingerprintSkipPrefixes(fingerprintSkipPrefixes);
+    }
+
+    public String getFingerprintTruncateMarkers() {
+        return engine.getFingerprintTruncateMarkers();
+    }
+
+    public void setFingerprintTruncateMarkers(String fingerprintTruncateMarkers) {
+        engine.setFingerprintTruncateMarkers(fingerprintTruncateMarkers);
+    }
+
+    public int getRateLimit() {
+        return engine.getRateLimit();
+    }
+
+    public void setRateLimit(int rateLimit) {
+        engine.setRateLimit(rateLimit);
+    }
+
+    public int getRateLimitBurst() {
+        return engine.getRateLimitBurst();
+    }
+
+    public void setRateLimitBurst(int rateLimitBurst) {
+        engine.setRateLimitBurst(rateLimitBurst);
+    }
+
+    public int getIssueRateLimit() {
+        return engine.getIssueRateLimit();
+    }
+
+    public void setIssueRateLimit(int issueRateLimit) {
+        engine.setIssueRateLimit(issueRateLimit);
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return engine.getCircuitBreakerThreshold();
+    }
+
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        engine.setCircuitBreakerThreshold(circuitBreakerThreshold);
+    }
+
+    public long getCircuitBreakerDelay() {
+        return engine.getCircuitBreakerDelay();
+    }
+
+    public void setCircuitBreakerDelay(long circuitBreakerDelay) {
+        engine.setCircuitBreakerDelay(circuitBreakerDelay);
+    }
+
+    public boolean isJmx() {
+        return engine.isJmx();
+    }
+
+    public void setJmx(boolean jmx) {
+        engine.setJmx(jmx);
+    }
+
+    public int getConnectTimeout() {
+        return engine.getConnectTimeout();
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        engine.setConnectTimeout(connectTimeout);
+    }
+
+    public int getReadTimeout() {
+        return engine.getReadTimeout();
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        engine.setReadTimeout(readTimeout);
+    }
+
+    public String getProtocol() {
+        return engine.getProtocol();
+    }
+
+    public void setProtocol(String protocol) {
+        engine.setProtocol(protocol);
+    }
+
+    public boolean isCompressRequests() {
+        return engine.isCompressRequests();
+    }
+
+    public void setCompressRequests(boolean compressRequests) {
+        engine.setCompressRequests(compressRequests);
+    }
+
+    public long getEventTimeout() {
+        return engine.getEventTimeout();
+    }
+
+    public void setEventTimeout(long eventTimeout) {
+        engine.setEventTimeout(eventTimeout);
+    }
+
+    public long getCloseTimeout() {
+        return engine.getCloseTimeout();
+    }
+
+    public void setCloseTimeout(long closeTimeout) {
+        engine.setCloseTimeout(closeTimeout);
+    }
+
+    public long getStuckCallThreshold() {
+        return engine.getStuckCallThreshold();
+    }
+
+    public void setStuckCallThreshold(long stuckCallThreshold) {
+        engine.setStuckCallThreshold(stuckCallThreshold);
+    }
+
+    public String getSpoolDirectory() {
+        return engine.getSpoolDirectory();
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        engine.setSpoolDirectory(spoolDirectory);
+    }
+
+    public long getSpoolMaxSize() {
+        return engine.getSpoolMaxSize();
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        engine.setSpoolMaxSize(spoolMaxSize);
+    }
+
+    public String getDigestIssue() {
+        return engine.getDigestIssue();
+    }
+
+    public void setDigestIssue(String digestIssue) {
+        engine.setDigestIssue(digestIssue);
+    }
+
+    public long getDigestInterval() {
+        return engine.getDigestInterval();
+    }
+
+    public void setDigestInterval(long digestInterval) {
+        engine.setDigestInterval(digestInterval);
+    }
+
+    public int getDigestSize() {
+        return engine.getDigestSize();
+    }
+
+    public void setDigestSize(int digestSize) {
+        engine.setDigestSize(digestSize);
+    }
+
+    public int getDigestCapacity() {
+        return engine.getDigestCapacity();
+    }
+
+    public void setDigestCapacity(int digestCapacity) {
+        engine.setDigestCapacity(digestCapacity);
+    }
+
+    public boolean isFindExistingIssues() {
+        return engine.isFindExistingIssues();
+    }
+
+    public void setFindExistingIssues(boolean findExistingIssues) {
+        engine.setFindExistingIssues(findExistingIssues);
+    }
+
+    public int getPrefetchMaxIssues() {
+        return engine.getPrefetchMaxIssues();
+    }
+
+    public void setPrefetchMaxIssues(int prefetchMaxIssues) {
+        engine.setPrefetchMaxIssues(prefetchMaxIssues);
+    }
+
+    public int getCacheMaxSize() {
+        return engine.getCacheMaxSize();
+    }
+
+    public void setCacheMaxSize(int cacheMaxSize) {
+        engine.setCacheMaxSize(cacheMaxSize);
+    }
+
+    public long getCacheExpiry() {
+        return engine.getCacheExpiry();
+    }
+
+    public void setCacheExpiry(long cacheExpiry) {
+        engine.setCacheExpiry(cacheExpiry);
+    }
+
+    public String getCacheExpiryPolicy() {
+        return engine.getCacheExpiryPolicy();
+    }
+
+    public void setCacheExpiryPolicy(String cacheExpiryPolicy) {
+        engine.setCacheExpiryPolicy(cacheExpiryPolicy);
+    }
+
+    public String getCacheClass() {
+        return engine.getCacheClass();
+    }
+
+    public void setCacheClass(String cacheClass) {
+        engine.setCacheClass(cacheClass);
+    }
+
+    void setTicker(Ticker ticker) {
+        engine.setTicker(ticker);
+    }
+
+    void setTransportFactory(XmlRpcTransportFactory transportFactory) {
+        engine.setTransportFactory(transportFactory);
+    }
+
+    /**
+     * @return the number of events that were discarded because the asynchronous dispatch buffer was full.
+     */
+    public long getDroppedEventCount() {
+        return engine.getDroppedEventCount();
+    }
+
+    /**
+     * @return the number of events that were held back by comment sampling.
+     */
+    public long getSampledOutEventCount() {
+        return engine.getSampledOutEventCount();
+    }
+
+    /**
+     * @return the number of calls to JIRA that were not made, because a rate limit was exceeded or because calls were
+     *         suspended after repeated failures.
+     */
+    public long getRejectedCallCount() {
+        return engine.getRejectedCallCount();
+    }
+
+    /**
+     * @return the number of events that were folded into a similar event that was waiting to be dispatched.
+     */
+    public long getCoalescedEventCount() {
+        return engine.getCoalescedEventCount();
+    }
+
+    /**
+     * @return the number of events in the spool that are waiting to be sent to JIRA.
+     */
+    public int getSpoolSize() {
+        return engine.getSpoolSize();
+    }
+
+    /**
+     * @return the number of spooled events that were discarded, because the spool was full.
+     */
+    public long getSpoolEvictedCount() {
+        return engine.getSpoolEvictedCount();
+    }
+
+    /**
+     * @return the statistics of this appender.
+     */
+    public AppenderMetrics getMetrics() {
+        return engine.getMetrics();
     }
 
     @Override
+    public void activateOptions() {
+        engine.activateOptions();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        engine.close();
+    }
+
     public boolean requiresLayout() {
         return true;
     }
 
+    /**
+     * Unlike {@link AppenderSkeleton#doAppend(LoggingEvent)}, this implementation does not synchronize on the appender.
+     * Logging threads that use this appender concurrently do not block each other, which matters most when events
+     * are dispatched asynchronously: then, the only work done on the logging thread is checking the event and handing
+     * it over to the dispatch buffer.
+     *
+     * Apart from the lack of synchronization, this implementation is equal to that of its superclass.
+     */
     @Override
-    public void close() {
-        synchronized (CACHE) {
-            CACHE.invalidateAll();
+    public void doAppend(LoggingEvent event) {
+        if (closed) {
+            InternalLog.error("Attempted to append to closed appender named [" + name + "].");
+            return;
+        }
+
+        if (!isAsSevereAsThreshold(event.getLevel())) {
+            engine.getMetrics().eventFiltered();
+            return;
+        }
+
+        Filter filter = headFilter;
+        filterLoop:
+        while (filter != null) {
+            switch (filter.decide(event)) {
+                case Filter.DENY:
+                    engine.getMetrics().eventFiltered();
+                    return;
+                case Filter.ACCEPT:
+                    break filterLoop;
+                default:
+                    filter = filter.getNext();
+            }
         }
+
+        append(event);
     }
 
+    /**
+     * Hands an event to the engine if it was logged at level ERROR or higher with a Throwable.
+     */
     @Override
     protected void append(LoggingEvent event) {
         if (!event.getLevel().isGreaterOrEqual(Level.ERROR)) {
             // Ignore events that have been logged at a level lower than ERROR.
+            engine.getMetrics().eventFiltered();
             return;
         }
 
-        ThrowableInformation ti = event.getThrowableInformation();
-        if (ti == null || ti.getThrowableStrRep().length <= 1) {
+        final ThrowableInformation ti = event.getThrowableInformation();
+        if (ti == null || ti.getThrowable() == null) {
             // Ignore events that have been logged without a Throwable.
+            engine.getMetrics().eventFiltered();
             return;
         }
 
-        if (username == null || password == null) {
-            LogLog.warn(SIMPLE_NAME + ": Missing authentication details. " +
-                    "Please configure log4j-jira-appender properly.");
-            return;
-        }
-
-        final int hash = getHash(ti.getThrowable());
-
-        final String title = getSummary(event, label);
-
-        try {
-            LogLog.debug(SIMPLE_NAME + ": Creating ticket in project " + projectkey);
-
-            final JiraClientContainer clientContainer = getClientContainer();
-
-            synchronized (CACHE) {
-                final String existingKey = CACHE.getIfPresent(hash);
-                if (existingKey == null) {
-                    // Create a new JIRA issue.
-                    final Hashtable<String, String> issue = new Hashtable<String, String>();
-                    issue.put("project", projectkey);
-                    issue.put("summary", title);
-                    issue.put("description", getText(event, false));
-                    issue.put("assignee", assignee);
-                    issue.put("type", "1");
-
-                    final List params = new ArrayList();
-                    params.add(clientContainer.token);
-                    params.add(issue);
-
-                    final Map<String, String> newIssue =
-                            (Map<String, String>) clientContainer.client.execute("jira1.createIssue", params);
-                    final String newIssueKey = newIssue.get("key");
-
-                    LogLog.debug(SIMPLE_NAME + ": Created ticket " + newIssueKey);
-                    CACHE.put(hash, newIssueKey);
-                } else {
-                    // Add comment to existing issue.
-                    final List params = new ArrayList();
-                    params.add(clientContainer.token);
-                    params.add(existingKey);
-                    params.add(getText(event, true));
-                    clientContainer.client.execute("jira1.addComment", params);
-
-                    LogLog.debug(SIMPLE_NAME + ": Updated ticket " + existingKey);
-                }
-            }
-        } catch (MalformedURLException e) {
-            LogLog.error(SIMPLE_NAME + ": Failed to create or update ticket in project " + projectkey, e);
-        } catch (XmlRpcException e) {
-            LogLog.error(SIMPLE_NAME + ": Failed to create or update ticket in project " + projectkey, e);
-        }
+        engine.append(toErrorEvent(event));
     }
-    
-    
 
     /**
-     * Calculates a semi-unique hash for the Throwable that is being logged. Note that this method ignores the
-     * exception message by design (allowing a message to contain instance-specific information). For the same reason,
-     * the exception message of each exception that is linked as a 'cause' is ignored as well.
+     * Wraps a log4j event, of which the parts are read only when the engine needs them.
      *
-     * The hash code generated by this method is used by this class to determine if a JIRA issue has already been
-     * generated for this particular problem.
-     *
-     * @param throwable a Throwable (must not be <tt>null</tt>).
-     * @return a hash code value for the stack trace that is part of the argument.
+     * @param event an event that has a Throwable.
+     * @return the wrapped event.
      */
-    static int getHash(Throwable throwable) {
-
-        final StackTraceElement[] stackTrace = throwable.getStackTrace();
-        int hash = 0;
-        for (int i = 0; i < stackTrace.length; i++) {
-            hash = 31 * hash + (stackTrace[i] != null ? stackTrace[i].hashCode() : 0);
-        }
+    ErrorEvent toErrorEvent(LoggingEvent event) {
+        return new Log4jErrorEvent(event);
+    }
 
-        if (throwable.getCause() != null) {
-            hash = 37 * hash + getHash(throwable.getCause());
-        }
-        return hash;
+    /**
+     * @see JiraEngine#getHash(Throwable)
+     */
+    static long getHash(Throwable throwable) {
+        return JiraEngine.getHash(throwable);
     }
-    
+
     /**
-     * Generates an appropriate Jira summary text for the event.
-     * 
-     * Respects the Jira maximum summary length of 254 characters. If the total summary
-     * length is headed towards exceeding this value, the summary is trimmed down in
-     * quite a relentless way: only the first 250 characters will be included.
-     * 
+     * Generates an appropriate Jira summary text for a log4j event.
+     *
      * @param event the original event which needs to be appended
      * @param label the label as configured in the log4j config
      * @return String to be used as summary for new Jira issue
-     * @see <a href="http://java.net/jira/browse/LOG4J_APPENDER_JIRA-1">Problem occurring previously with summary length</a>
+     * @see JiraEngine#getSummary(ErrorEvent, String)
      */
     protected static String getSummary(final LoggingEvent event, final String label) {
-        final StringBuilder summaryBuilder = new StringBuilder();
-        if (label != null && label.trim().length() > 0) {
-            summaryBuilder.append("(Auto-generated, labelled '").append(label).append("') ");
-        } else {
-            summaryBuilder.append("(Auto-generated) ");
-        }
-        summaryBuilder.append(event.getLoggerName()).append(":").append(event.getMessage());
-        
-        // Issue: http://java.net/jira/browse/LOG4J_APPENDER_JIRA-1
-        // Jira can't handle summaries larger than 254 characters so we have to be relentless: cut it off
-        return (summaryBuilder.length() <= MAXIMUM_SUMMARY_LENGTH ? summaryBuilder.toString() : summaryBuilder.substring(0, MAXIMUM_SUMMARY_LENGTH - 4) + " ...");
-    }
-
-    protected String getText(LoggingEvent event, boolean skipStack) {
-        final StringBuilder text = new StringBuilder();
-        text.append("The following was logged by the application:\n");
-        text.append("{code}\n");
-        text.append(layout.format(event).trim());
-
-        if (skipStack) {
-            text.append("\n...\n(Stacktrace omitted as it is identical to the one in the description of this issue).\n");
-        } else {
-            for (final String line : event.getThrowableInformation().getThrowableStrRep()) {
-                text.append('\n').append(line);
-            }
-        }
+        return JiraEngine.getSummary(event.getLoggerName(), event.getMessage(), label);
+    }
 
-        text.append("{code}\n");
-        return text.toString();
+    /**
+     * Formats an event by means of the layout of this appender.
+     */
+    private String format(LoggingEvent event) {
+        // Layouts (PatternLayout in particular) are not thread-safe, while events can be dispatched concurrently.
+        synchronized (layoutLock) {
+            return layout.format(event);
+        }
     }
 
-    private JiraClientContainer getClientContainer() throws MalformedURLException, XmlRpcException {
-        final JiraClientContainer clientContainer = new JiraClientContainer();
+    /**
+     * A log4j event, as the engine sees it.
+     */
+    private final class Log4jErrorEvent extends ErrorEvent {
+        private final LoggingEvent event;
 
-        LogLog.debug(SIMPLE_NAME + ": Connecting to xml-rpc host on " + url);
+        Log4jErrorEvent(LoggingEvent event) {
+            super(event.getLoggerName(), event.getTimeStamp(), event.getThrowableInformation().getThrowable());
+            this.event = event;
+        }
 
-        final XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
-        config.setServerURL(new URL(url + "/rpc/xmlrpc"));
-        clientContainer.client = new XmlRpcClient();
-        clientContainer.client.setConfig(config);
+        @Override
+        public String getThreadName() {
+            return event.getThreadName();
+        }
 
-        final List params = new ArrayList();
-        params.add(username);
-        params.add(password);
+        @Override
+        public String getMessage() {
+            return event.getRenderedMessage();
+        }
 
-        LogLog.debug(SIMPLE_NAME + ": Attempting to login to JIRA installation at " + url + " as " + username);
+        @Override
+        public Object getMdc(String key) {
+            return event.getMDC(key);
+        }
 
-        clientContainer.token = (String) clientContainer.client.execute("jira1.login", params);
-        return clientContainer;
-    }
+        @Override
+        public String format() {
+            return JIRALog4jAppender.this.format(event);
+        }
 
-    static class JiraClientContainer {
-        public XmlRpcClient client;
-        public String token;
+        @Override
+        public void prepareForHandOver() {
+            event.getThreadName();
+            event.getNDC();
+            event.getMDCCopy();
+            event.getRenderedMessage();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,2197 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers events in a JIRA instance, regardless of the logging framework that they were logged with. The adapter
+ * of a framework passes the events that are logged at level ERROR or higher to {@link #append(ErrorEvent)}: {@link
+ * JIRALog4jAppender} does so for log4j 1.x, and <tt>JIRALog4j2Appender</tt> (in a module of its own) for Log4j 2.
+ * The engine holds all options, which the adapters expose as their own.
+ *
+ * Only events logged at level ERROR or higher are being logged by this implementation. If events were logged without a
+ * Throwable instance, they are ignored by this appender.
+ *
+ * This appender keeps an internal cache of JIRA issues that have been created by instances of this class. If a previous
+ * event triggered this appender to create a JIRA issue, then comments on that issue will be created for similar events.
+ *
+ * Events are deemed 'similar' if the fingerprints of their stacktraces are identical. The exception message is
+ * explicitly not part of the identifying part of an event. Fingerprints are computed by a {@link FingerprintStrategy},
+ * which is a {@link StackTraceFingerprintStrategy} unless another implementation is configured.
+ *
+ * By default, the cache that is used to store events and corresponding JIRA keys is not persisted in any way, and
+ * cache entries do not survive a restart of the JVM. When the 'storeDirectory' option is set, the cache entries are
+ * also written to a journal file in that directory, from which the cache is populated when the appender is activated.
+ *
+ * Events that cannot be sent to JIRA (because it cannot be reached, or because calls are suspended after repeated
+ * failures) are lost, unless the 'spoolDirectory' option is set. Then, such events are written to an {@link EventSpool}
+ * in that directory, from which they are sent once calls to JIRA succeed again, even after a restart of the JVM.
+ *
+ * By default, events are sent to JIRA on the thread that logs them. When the 'async' option is enabled, events that
+ * pass the level and Throwable checks are put in a bounded, lock-free buffer instead, from which they are sent by a
+ * dedicated worker thread. What happens when that buffer is full is determined by the 'overflowPolicy' option. The
+ * 'workers' option sets the number of worker threads; events are partitioned among them by fingerprint.
+ *
+ * Calls to JIRA are made through its XML-RPC interface, unless the 'protocol' option selects its REST interface (see
+ * {@link Protocol}).
+ *
+ * @author Guus der Kinderen, guus.der.kinderen@marviq.com
+ */
+public class JiraEngine {
+
+    /** The name of the appender in messages and MBean names, which is the same whatever the logging framework. */
+    private static final String SIMPLE_NAME = "JIRALog4jAppender";
+    
+    /** Maximum Jira summary length as experienced in practice. */
+    public static final Integer MAXIMUM_SUMMARY_LENGTH = 254;
+
+    /** The id of the issue type of new issues, unless a route specifies another: a bug in a default JIRA setup. */
+    private static final String DEFAULT_ISSUE_TYPE = "1";
+
+    /** Default number of events that can be buffered when dispatching asynchronously. */
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /** Default number of worker threads that dispatch events asynchronously. */
+    public static final int DEFAULT_WORKERS = 1;
+
+    /** Default maximum number of distinct messages that are included in a comment digest. */
+    public static final int DEFAULT_COMMENT_SAMPLE_SIZE = 5;
+
+    /** Default time (in milliseconds) without occurrences after which comment sampling starts over for an issue. */
+    public static final long DEFAULT_COMMENT_SAMPLING_QUIET_PERIOD = 60 * 60 * 1000L;
+
+    /** Default maximum length (in characters) of the text of an issue or comment. */
+    public static final int DEFAULT_TEXT_MAX_LENGTH = 30000;
+
+    /** Default maximum number of frames per Throwable in the stack trace of an issue. */
+    public static final int DEFAULT_TEXT_MAX_FRAMES = 100;
+
+    /** Default maximum number of issues in the cache. */
+    public static final int DEFAULT_CACHE_MAX_SIZE = 5000;
+
+    /** Default time (in milliseconds) after which cache entries that have not been used are evicted. */
+    public static final long DEFAULT_CACHE_EXPIRY = 7 * 24 * 60 * 60 * 1000L;
+
+    /** The strategy that {@link #getHash(Throwable)} uses. */
+    private static final FingerprintStrategy DEFAULT_FINGERPRINT_STRATEGY = new StackTraceFingerprintStrategy();
+
+    /** Default number of consecutive failed calls after which calls to JIRA are suspended: never. */
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 0;
+
+    /** Default time (in milliseconds) for which calls to JIRA are suspended. */
+    public static final long DEFAULT_CIRCUIT_BREAKER_DELAY = 30000;
+
+    /** Default time (in milliseconds) allowed to establish a connection to JIRA. */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    /** Default time (in milliseconds) allowed to wait for JIRA to respond. */
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    /** Default time (in milliseconds) after which a call to JIRA that has not completed is reported as stuck. */
+    public static final long DEFAULT_STUCK_CALL_THRESHOLD = 60000;
+
+    /** Default time (in milliseconds) between error digests. */
+    public static final long DEFAULT_DIGEST_INTERVAL = 60 * 60 * 1000L;
+
+    /** Default maximum number of fingerprints in an error digest. */
+    public static final int DEFAULT_DIGEST_SIZE = 10;
+
+    /** Default maximum number of fingerprints that are counted for the error digest (per stripe). */
+    public static final int DEFAULT_DIGEST_CAPACITY = 100;
+
+    /** Default maximum number of existing issues that are loaded when the appender is activated. */
+    public static final int DEFAULT_PREFETCH_MAX_ISSUES = 1000;
+
+    /** Default maximum size (in bytes) of the spool. */
+    public static final long DEFAULT_SPOOL_MAX_SIZE = 16 * 1024 * 1024;
+
+    /** Time (in milliseconds) between attempts to send spooled events to JIRA. */
+    private static final long SPOOL_REPLAY_INTERVAL_MILLIS = 30000;
+
+    /** Default time (in milliseconds) that {@link #close()} may spend on sending the events that are pending. */
+    public static final long DEFAULT_CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Time (in milliseconds) that {@link #close()} waits, after the close timeout passed, for the events that are still
+     * buffered to be spooled (or reported) instead of sent.
+     */
+    private static final long CLOSE_DRAIN_MILLIS = 1000;
+
+    /** The maximum number of events that could not be sent that {@link #close()} reports one by one. */
+    private static final int MAX_REPORTED_UNSENT_EVENTS = 20;
+
+    /**
+     * Fingerprints that were computed recently, by Throwable instance (the keys are weak, and compared by identity). A
+     * Throwable that is logged through several appenders (or logged more than once) is fingerprinted only once.
+     */
+    private static final Cache<Throwable, MemoizedFingerprint> FINGERPRINTS = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(1024)
+            .build();
+
+    private String url;
+    private String username;
+    private String password;
+    private String projectkey;
+    private String label;
+    private String assignee;
+    private String routes;
+    private boolean async;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int workers = DEFAULT_WORKERS;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private boolean logoutOnClose;
+    private long commentWindow;
+    private int commentMaxOccurrences;
+    private int commentSampleSize = DEFAULT_COMMENT_SAMPLE_SIZE;
+    private int commentSamplingThreshold;
+    private long commentSamplingQuietPeriod = DEFAULT_COMMENT_SAMPLING_QUIET_PERIOD;
+    private int textMaxLength = DEFAULT_TEXT_MAX_LENGTH;
+    private int textMaxFrames = DEFAULT_TEXT_MAX_FRAMES;
+    private String storeDirectory;
+    private String fingerprintStrategyClass;
+    private int fingerprintMaxFrames = StackTraceFingerprintStrategy.DEFAULT_MAX_FRAMES;
+    private int fingerprintMaxCauses = StackTraceFingerprintStrategy.DEFAULT_MAX_CAUSES;
+    private String fingerprintSkipPrefixes;
+    private String fingerprintTruncateMarkers;
+    private int rateLimit;
+    private int rateLimitBurst;
+    private int issueRateLimit;
+    private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+    private long circuitBreakerDelay = DEFAULT_CIRCUIT_BREAKER_DELAY;
+    private boolean jmx;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private Protocol protocol = Protocol.XMLRPC;
+    private boolean compressRequests;
+    private long eventTimeout;
+    private long stuckCallThreshold = DEFAULT_STUCK_CALL_THRESHOLD;
+    private String spoolDirectory;
+    private long spoolMaxSize = DEFAULT_SPOOL_MAX_SIZE;
+    private String digestIssue;
+    private long digestInterval = DEFAULT_DIGEST_INTERVAL;
+    private int digestSize = DEFAULT_DIGEST_SIZE;
+    private int digestCapacity = DEFAULT_DIGEST_CAPACITY;
+    private boolean findExistingIssues;
+    private int prefetchMaxIssues = DEFAULT_PREFETCH_MAX_ISSUES;
+    private int cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+    private long cacheExpiry = DEFAULT_CACHE_EXPIRY;
+    private boolean cacheExpireAfterWrite;
+    private String cacheClass;
+    private long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+    /**
+     * The issues that were reported earlier, by fingerprint. This is used when evaluating if a new JIRA issue needs to
+     * be created, or if the exception should be added as a comment to an existing JIRA issue. Replaced by the
+     * configured cache when options are first activated.
+     */
+    private volatile IssueKeyCache cache =
+            new LongIssueKeyCache(DEFAULT_CACHE_MAX_SIZE, DEFAULT_CACHE_EXPIRY, false, Ticker.systemTicker());
+
+    /** Whether the configured cache has been created. */
+    private boolean cacheCreated;
+
+    /**
+     * Issue creations that are in progress, by fingerprint. Threads that need an issue for a fingerprint that is being
+     * created wait for the outcome (which is the key of the new issue, or <tt>null</tt> if the creation failed).
+     */
+    private final ConcurrentMap<Long, SettableFuture<String>> creations =
+            new ConcurrentHashMap<Long, SettableFuture<String>>();
+
+    /** Renders the texts of issues and comments. Replaced when options are activated. */
+    private volatile TextRenderer renderer = new TextRenderer(DEFAULT_TEXT_MAX_LENGTH, DEFAULT_TEXT_MAX_FRAMES);
+
+    /** Decides where the issues of events are created. Replaced when options are activated. */
+    private volatile RoutingTable routing = RoutingTable.EMPTY;
+
+    /** Computes the fingerprints of Throwables. Replaced when options are activated. */
+    private volatile FingerprintStrategy fingerprintStrategy = new StackTraceFingerprintStrategy();
+
+    /** The XML-RPC transport to use, or <tt>null</tt> for the default. Allows tests to replace the network. */
+    private XmlRpcTransportFactory transportFactory;
+
+    /** Combines repeated occurrences into digest comments. <tt>null</tt> unless comment coalescing is configured. */
+    private volatile CommentCoalescer coalescer;
+
+    /** Holds back occurrences of recurring events. <tt>null</tt> unless comment sampling is configured. */
+    private volatile CommentSampler sampler;
+
+    /** Persists the cache. <tt>null</tt> unless a store directory is configured. */
+    private volatile IssueKeyJournal journal;
+
+    /** The connection to JIRA, created when it is first needed. Discarded when connection details change. */
+    private volatile JiraSession session;
+
+    /** Sends events on worker threads. <tt>null</tt> unless 'async' is enabled and options have been activated. */
+    private volatile AsyncDispatcher dispatcher;
+
+    /** The source of time for rate limits and the circuit breaker. Allows tests to control time. */
+    private Ticker ticker = Ticker.systemTicker();
+
+    /** Limits the rate of all calls to JIRA. <tt>null</tt> unless a rate limit is configured. */
+    private volatile TokenBucket callLimiter;
+
+    /** Limit the rate of calls to JIRA per fingerprint. <tt>null</tt> unless a rate limit per issue is configured. */
+    private volatile Cache<Long, TokenBucket> issueLimiters;
+
+    /** Suspends calls to JIRA after repeated failures. <tt>null</tt> if disabled. */
+    private volatile CircuitBreaker circuitBreaker;
+
+    /** The statistics of this appender. */
+    private final AppenderMetrics metrics = new AppenderMetrics(this);
+
+    /** The name under which the statistics are registered as an MBean, or <tt>null</tt> if they are not. */
+    private ObjectName mbeanName;
+
+    /** Reports calls to JIRA that take too long, or <tt>null</tt> if these are not reported. */
+    private volatile CallWatchdog watchdog;
+
+    /** Keeps the events that could not be sent, or <tt>null</tt> if those are discarded. */
+    private volatile EventSpool spool;
+
+    /** Sends the events in the spool, or <tt>null</tt> if there is no spool. */
+    private volatile SpoolReplayer replayer;
+
+    /** Counts the occurrences per fingerprint, or <tt>null</tt> if no error digest is posted. */
+    private volatile HeavyHitters heavyHitters;
+
+    /** Posts the error digest, or <tt>null</tt> if no error digest is posted. */
+    private volatile ErrorDigest digest;
+
+    /** Finds issues that were created earlier, or <tt>null</tt> if those are not looked up. */
+    private volatile IssueLookup lookup;
+
+    /** The time by which all calls to JIRA must be done, or <tt>null</tt> if the appender is not being closed. */
+    private volatile Deadline closeDeadline;
+
+    /** The number of events that were spooled, or could not be sent at all, while the appender was being closed. */
+    private final AtomicInteger spooledOnClose = new AtomicInteger();
+    private final AtomicInteger lostOnClose = new AtomicInteger();
+
+    /** The name of the appender, or <tt>null</tt> if it has none. */
+    private volatile String name;
+
+    /** Set when the appender is closed, after which events are refused. */
+    private volatile boolean closed;
+
+    public JiraEngine() {
+    }
+
+    public JiraEngine(String url, String username, String password, String projectkey) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.projectkey = projectkey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return <tt>true</tt> if this appender was closed, and no longer accepts events.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+        this.session = null;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+        this.session = null;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+        this.session = null;
+    }
+
+    public String getProjectkey() {
+        return projectkey;
+    }
+
+    public void setProjectkey(String projectkey) {
+        this.projectkey = projectkey;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public String getAssignee() {
+        return assignee;
+    }
+
+    public void setAssignee(String assignee) {
+        this.assignee = assignee;
+    }
+
+    public String getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Sets the rules that send events to other projects or assignees than the ones configured for this appender, such
+     * as <tt>logger=com.example.billing -&gt; project=BILL; exception=java.sql.SQLException -&gt; assignee=dba</tt>.
+     * The first rule that matches an event applies. See {@link RoutingTable} for the syntax. All routes share the
+     * connection to JIRA. Takes effect when options are activated.
+     *
+     * @param routes the rules, separated by semicolons, or <tt>null</tt> (the default) to route all events alike.
+     */
+    public void setRoutes(String routes) {
+        this.routes = routes;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets the number of worker threads that dispatch events asynchronously. Events with distinct fingerprints are
+     * sent concurrently by different workers; events with the same fingerprint are always sent by the same worker, in
+     * the order in which they were logged.
+     *
+     * @param workers the number of workers (default: 1).
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy.getConfigValue();
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        final OverflowPolicy policy = OverflowPolicy.fromConfigValue(overflowPolicy);
+        if (policy == null) {
+            InternalLog.warn(SIMPLE_NAME + ": Unknown overflow policy '" + overflowPolicy + "'. Using '" +
+                    this.overflowPolicy.getConfigValue() + "' instead.");
+            return;
+        }
+        this.overflowPolicy = policy;
+    }
+
+    public boolean isLogoutOnClose() {
+        return logoutOnClose;
+    }
+
+    public void setLogoutOnClose(boolean logoutOnClose) {
+        this.logoutOnClose = logoutOnClose;
+    }
+
+    public long getCommentWindow() {
+        return commentWindow;
+    }
+
+    /**
+     * Sets the time window (in milliseconds) in which repeated occurrences of an event that already has a JIRA issue
+     * are combined into a single comment. A value of 0 (the default) disables time-based coalescing.
+     *
+     * @param commentWindow the length of the window, in milliseconds.
+     */
+    public void setCommentWindow(long commentWindow) {
+        this.commentWindow = commentWindow;
+    }
+
+    public int getCommentMaxOccurrences() {
+        return commentMaxOccurrences;
+    }
+
+    /**
+     * Sets the number of occurrences after which a comment digest is posted, even if its time window has not passed.
+     * A value of 0 (the default) means that digests are posted based on time only.
+     *
+     * @param commentMaxOccurrences the maximum number of occurrences in a digest.
+     */
+    public void setCommentMaxOccurrences(int commentMaxOccurrences) {
+        this.commentMaxOccurrences = commentMaxOccurrences;
+    }
+
+    public int getCommentSampleSize() {
+        return commentSampleSize;
+    }
+
+    public void setCommentSampleSize(int commentSampleSize) {
+        this.commentSampleSize = commentSampleSize;
+    }
+
+    public int getCommentSamplingThreshold() {
+        return commentSamplingThreshold;
+    }
+
+    /**
+     * Sets the number of occurrences of an event with a JIRA issue that are all sent, before comment sampling starts:
+     * after that, one in 10 occurrences is sent, then one in 100, and so on. Every comment that is sent tells how
+     * many occurrences were held back before it. A value of 0 (the default) disables comment sampling.
+     *
+     * @param commentSamplingThreshold the number of occurrences that are all sent.
+     */
+    public void setCommentSamplingThreshold(int commentSamplingThreshold) {
+        this.commentSamplingThreshold = commentSamplingThreshold;
+    }
+
+    public long getCommentSamplingQuietPeriod() {
+        return commentSamplingQuietPeriod;
+    }
+
+    /**
+     * Sets the time (in milliseconds) that an event must not occur for, after which comment sampling starts over and
+     * its next occurrences are all sent again. Defaults to one hour.
+     *
+     * @param commentSamplingQuietPeriod the quiet period, in milliseconds.
+     */
+    public void setCommentSamplingQuietPeriod(long commentSamplingQuietPeriod) {
+        this.commentSamplingQuietPeriod = commentSamplingQuietPeriod;
+    }
+
+    public int getTextMaxLength() {
+        return textMaxLength;
+    }
+
+    /**
+     * Sets the maximum length of the text of an issue or comment. Longer texts are cut short, and rendering their stack
+     * traces stops as soon as the maximum is reached. Takes effect when options are activated.
+     *
+     * @param textMaxLength the maximum length in characters (default: 30000), or 0 for no maximum.
+     */
+    public void setTextMaxLength(int textMaxLength) {
+        this.textMaxLength = textMaxLength;
+    }
+
+    public int getTextMaxFrames() {
+        return textMaxFrames;
+    }
+
+    /**
+     * Sets the maximum number of frames that the stack trace in an issue shows of the Throwable and of each of its
+     * causes. The frames in the middle of longer stack traces are left out. Takes effect when options are activated.
+     *
+     * @param textMaxFrames the maximum number of frames (default: 100), or 0 to show all frames.
+     */
+    public void setTextMaxFrames(int textMaxFrames) {
+        this.textMaxFrames = textMaxFrames;
+    }
+
+    public String getStoreDirectory() {
+        return storeDirectory;
+    }
+
+    /**
+     * Sets the directory in which the fingerprints of events and the keys of the corresponding JIRA issues are
+     * persisted, so that they survive a restart of the JVM. When not set (the default), nothing is persisted.
+     *
+     * @param storeDirectory the directory (created if it does not exist).
+     */
+    public void setStoreDirectory(String storeDirectory) {
+        this.storeDirectory = storeDirectory;
+    }
+
+    public String getFingerprintStrategy() {
+        return fingerprintStrategyClass;
+    }
+
+    /**
+     * Sets the class name of the {@link FingerprintStrategy} implementation to use. When not set (the default), a
+     * {@link StackTraceFingerprintStrategy} is used, configured by 'fingerprintMaxFrames', 'fingerprintMaxCauses',
+     * 'fingerprintSkipPrefixes' and 'fingerprintTruncateMarkers'.
+     *
+     * @param fingerprintStrategy the fully qualified name of a class that has a public no-argument constructor.
+     */
+    public void setFingerprintStrategy(String fingerprintStrategy) {
+        this.fingerprintStrategyClass = fingerprintStrategy;
+    }
+
+    public int getFingerprintMaxFrames() {
+        return fingerprintMaxFrames;
+    }
+
+    /**
+     * Sets the maximum number of frames per Throwable that are part of its fingerprint (default: 128). A value of 0
+     * means that all frames are part of the fingerprint.
+     *
+     * @param fingerprintMaxFrames the maximum number of frames.
+     */
+    public void setFingerprintMaxFrames(int fingerprintMaxFrames) {
+        this.fingerprintMaxFrames = fingerprintMaxFrames;
+    }
+
+    public int getFingerprintMaxCauses() {
+        return fingerprintMaxCauses;
+    }
+
+    /**
+     * Sets the maximum number of causes of a Throwable that are part of its fingerprint (default: 16). A value of 0
+     * means that all causes are part of the fingerprint.
+     *
+     * @param fingerprintMaxCauses the maximum number of causes.
+     */
+    public void setFingerprintMaxCauses(int fingerprintMaxCauses) {
+        this.fingerprintMaxCauses = fingerprintMaxCauses;
+    }
+
+    public String getFingerprintSkipPrefixes() {
+        return fingerprintSkipPrefixes;
+    }
+
+    /**
+     * Sets the class name prefixes of frames that are left out of fingerprints, such as those of reflection accessors
+     * and proxies. When not set, {@link FrameNormalizer#DEFAULT_SKIP_PREFIXES} are used.
+     *
+     * @param fingerprintSkipPrefixes a comma-separated list of prefixes (an empty value for none).
+     */
+    public void setFingerprintSkipPrefixes(String fingerprintSkipPrefixes) {
+        this.fingerprintSkipPrefixes = fingerprintSkipPrefixes;
+    }
+
+    public String getFingerprintTruncateMarkers() {
+        return fingerprintTruncateMarkers;
+    }
+
+    /**
+     * Sets the markers after which the class names of frames are cut off before they become part of fingerprints,
+     * such as those of CGLIB subclasses. When not set, {@link FrameNormalizer#DEFAULT_TRUNCATE_MARKERS} are used.
+     *
+     * @param fingerprintTruncateMarkers a comma-separated list of markers, each starting with a '$' (an empty value for
+     *                                   none).
+     */
+    public void setFingerprintTruncateMarkers(String fingerprintTruncateMarkers) {
+        this.fingerprintTruncateMarkers = fingerprintTruncateMarkers;
+    }
+
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Sets the maximum number of calls per minute that this appender makes to JIRA. Events that would exceed the limit
+     * are not sent. A value of 0 (the default) means that there is no limit.
+     *
+     * @param rateLimit the maximum number of calls per minute.
+     */
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    /**
+     * Sets the number of calls that can be made in quick succession before the rate limit applies. Defaults to one
+     * tenth of the rate limit (but at least 1).
+     *
+     * @param rateLimitBurst the maximum number of calls in a burst.
+     */
+    public void setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = rateLimitBurst;
+    }
+
+    public int getIssueRateLimit() {
+        return issueRateLimit;
+    }
+
+    /**
+     * Sets the maximum number of calls per minute that this appender makes to JIRA for events with the same fingerprint
+     * (which is: for the same issue). A value of 0 (the default) means that there is no limit.
+     *
+     * @param issueRateLimit the maximum number of calls per minute per issue.
+     */
+    public void setIssueRateLimit(int issueRateLimit) {
+        this.issueRateLimit = issueRateLimit;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failed calls after which calls to JIRA are suspended (default: 0). A value of 0
+     * means that calls are never suspended; events that arrive while calls are suspended are not sent to JIRA.
+     *
+     * @param circuitBreakerThreshold the number of consecutive failures.
+     */
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    public long getCircuitBreakerDelay() {
+        return circuitBreakerDelay;
+    }
+
+    /**
+     * Sets the time (in milliseconds) for which calls to JIRA are suspended, after which a single trial call is made
+     * (default: 30000). If the trial call succeeds, calls are resumed; if not, calls are suspended again.
+     *
+     * @param circuitBreakerDelay the time for which calls are suspended, in milliseconds.
+     */
+    public void setCircuitBreakerDelay(long circuitBreakerDelay) {
+        this.circuitBreakerDelay = circuitBreakerDelay;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    /**
+     * Sets whether the statistics of this appender are registered as an MBean when options are activated (default:
+     * false). The MBean is named <tt>com.marviq.util.logging:type=JIRALog4jAppender,name="&lt;appender name&gt;"</tt>.
+     *
+     * @param jmx <tt>true</tt> to register an MBean.
+     */
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the time (in milliseconds) allowed to establish a connection to JIRA (default: 10000). A value of 0 means
+     * that there is no limit.
+     *
+     * @param connectTimeout the connect timeout, in milliseconds.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.session = null;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the time (in milliseconds) allowed to wait for JIRA to respond to a call (default: 30000). A value of 0
+     * means that there is no limit.
+     *
+     * @param readTimeout the read timeout, in milliseconds.
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+        this.session = null;
+    }
+
+    public String getProtocol() {
+        return protocol.getConfigValue();
+    }
+
+    /**
+     * Sets the remote interface of JIRA through which calls are made: 'xmlrpc' (the default) or 'rest' (which takes
+     * JIRA 5.0 or later, and sends less data per event).
+     *
+     * @param protocol the configuration value of a {@link Protocol}.
+     */
+    public void setProtocol(String protocol) {
+        final Protocol value = Protocol.fromConfigValue(protocol);
+        if (value == null) {
+            InternalLog.warn(SIMPLE_NAME + ": Unknown protocol '" + protocol + "'. Using '" +
+                    this.protocol.getConfigValue() + "' instead.");
+            return;
+        }
+        this.protocol = value;
+        this.session = null;
+    }
+
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    /**
+     * Sets whether the bodies of requests to JIRA are compressed (default: false). This applies to the 'rest' protocol
+     * only. JIRA does not accept compressed requests by itself: enable this only if a proxy in front of JIRA
+     * decompresses them.
+     *
+     * @param compressRequests <tt>true</tt> to compress requests.
+     */
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+        this.session = null;
+    }
+
+    public long getEventTimeout() {
+        return eventTimeout;
+    }
+
+    /**
+     * Sets the time (in milliseconds) that this appender may spend on sending a single event to JIRA, including
+     * logging in and waiting for another thread that is creating the same issue (default: 0, no limit). Events that
+     * cannot be sent in time are abandoned. When events are dispatched on the logging thread, this bounds the time that
+     * logging an event can take.
+     *
+     * @param eventTimeout the time allowed per event, in milliseconds.
+     */
+    public void setEventTimeout(long eventTimeout) {
+        this.eventTimeout = eventTimeout;
+    }
+
+    public long getCloseTimeout() {
+        return closeTimeout;
+    }
+
+    /**
+     * Sets the time (in milliseconds) that closing this appender may take (default: 5000). Within that time, the events
+     * that are buffered, the comments that are being coalesced and the error digest are sent to JIRA. What cannot be
+     * sent in time is spooled, if a spool is configured, or else reported. A value of 0 means that there is no limit.
+     *
+     * @param closeTimeout the time allowed for closing, in milliseconds.
+     */
+    public void setCloseTimeout(long closeTimeout) {
+        this.closeTimeout = closeTimeout;
+    }
+
+    public long getStuckCallThreshold() {
+        return stuckCallThreshold;
+    }
+
+    /**
+     * Sets the time (in milliseconds) after which a call to JIRA that has not completed is reported as stuck, along
+     * with the stack trace of the thread that made it (default: 60000). A value of 0 means that calls are not watched.
+     * Takes effect when options are activated.
+     *
+     * @param stuckCallThreshold the threshold, in milliseconds.
+     */
+    public void setStuckCallThreshold(long stuckCallThreshold) {
+        this.stuckCallThreshold = stuckCallThreshold;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Sets the directory in which events that could not be sent to JIRA are kept until they can be sent, so that they
+     * survive a restart of the JVM. When not set (the default), such events are discarded.
+     *
+     * @param spoolDirectory the directory (created if it does not exist).
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public long getSpoolMaxSize() {
+        return spoolMaxSize;
+    }
+
+    /**
+     * Sets the maximum size (in bytes) of the files in the spool directory (default: 16 MiB). When the spool is full,
+     * the oldest events are discarded.
+     *
+     * @param spoolMaxSize the maximum size, in bytes.
+     */
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public String getDigestIssue() {
+        return digestIssue;
+    }
+
+    /**
+     * Sets the key of an existing JIRA issue on which a digest of the errors that were logged most often is posted
+     * periodically (default: none). The digest lists the number of occurrences of each error, including occurrences
+     * that did not result in a call to JIRA, and the issue that was created for it.
+     *
+     * @param digestIssue the key of the issue, or <tt>null</tt> to not post digests.
+     */
+    public void setDigestIssue(String digestIssue) {
+        this.digestIssue = digestIssue;
+    }
+
+    public long getDigestInterval() {
+        return digestInterval;
+    }
+
+    /**
+     * Sets the time (in milliseconds) between error digests (default: one hour).
+     *
+     * @param digestInterval the time between digests, in milliseconds.
+     */
+    public void setDigestInterval(long digestInterval) {
+        this.digestInterval = digestInterval;
+    }
+
+    public int getDigestSize() {
+        return digestSize;
+    }
+
+    /**
+     * Sets the maximum number of errors listed in an error digest (default: 10).
+     *
+     * @param digestSize the number of errors.
+     */
+    public void setDigestSize(int digestSize) {
+        this.digestSize = digestSize;
+    }
+
+    public int getDigestCapacity() {
+        return digestCapacity;
+    }
+
+    /**
+     * Sets the number of distinct errors of which occurrences are counted for the error digest, per CPU (default:
+     * 100). This bounds the memory used for counting, however many distinct errors occur. Errors that make up more
+     * than a <tt>1 / digestCapacity</tt> share of all occurrences are always counted.
+     *
+     * @param digestCapacity the number of distinct errors counted.
+     */
+    public void setDigestCapacity(int digestCapacity) {
+        this.digestCapacity = digestCapacity;
+    }
+
+    public boolean isFindExistingIssues() {
+        return findExistingIssues;
+    }
+
+    /**
+     * Enables looking up issues that were created for a fingerprint before this appender knew about them (for
+     * instance, before a restart). When the appender is activated, the unresolved issues that it reported earlier are
+     * loaded in the background; when an event has a fingerprint without a known issue, JIRA is searched for it before
+     * a new issue is created. Requires JIRA 4.0 or later.
+     *
+     * @param findExistingIssues <tt>true</tt> to look up existing issues (default: <tt>false</tt>).
+     */
+    public void setFindExistingIssues(boolean findExistingIssues) {
+        this.findExistingIssues = findExistingIssues;
+    }
+
+    public int getPrefetchMaxIssues() {
+        return prefetchMaxIssues;
+    }
+
+    /**
+     * Sets the maximum number of existing issues that are loaded when the appender is activated, if existing issues
+     * are looked up at all.
+     *
+     * @param prefetchMaxIssues the maximum number of issues (default: 1000), or 0 to only look up issues on demand.
+     */
+    public void setPrefetchMaxIssues(int prefetchMaxIssues) {
+        this.prefetchMaxIssues = prefetchMaxIssues;
+    }
+
+    public int getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    /**
+     * Sets the maximum number of issues that this appender remembers. Takes effect when options are first activated.
+     *
+     * @param cacheMaxSize the maximum number of issues (default: 5000).
+     */
+    public void setCacheMaxSize(int cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+    public long getCacheExpiry() {
+        return cacheExpiry;
+    }
+
+    /**
+     * Sets the time after which issues are forgotten, if they have not been used (or, depending on the expiry policy,
+     * written) in the meantime. Also applies to the journal in the store directory. Takes effect when options are
+     * first activated.
+     *
+     * @param cacheExpiry the time in milliseconds (default: 7 days), or 0 if issues are only forgotten to make room.
+     */
+    public void setCacheExpiry(long cacheExpiry) {
+        this.cacheExpiry = cacheExpiry;
+    }
+
+    public String getCacheExpiryPolicy() {
+        return cacheExpireAfterWrite ? "write" : "access";
+    }
+
+    /**
+     * Sets whether the expiry time of an issue starts when it was last used ('access', the default), or when it was
+     * remembered ('write'). Takes effect when options are first activated.
+     *
+     * @param cacheExpiryPolicy 'access' or 'write'.
+     */
+    public void setCacheExpiryPolicy(String cacheExpiryPolicy) {
+        if ("write".equalsIgnoreCase(cacheExpiryPolicy)) {
+            cacheExpireAfterWrite = true;
+        } else if ("access".equalsIgnoreCase(cacheExpiryPolicy)) {
+            cacheExpireAfterWrite = false;
+        } else {
+            InternalLog.warn(SIMPLE_NAME + ": Unknown cache expiry policy '" + cacheExpiryPolicy + "'. Using '" +
+                    getCacheExpiryPolicy() + "' instead.");
+        }
+    }
+
+    public String getCacheClass() {
+        return cacheClass;
+    }
+
+    /**
+     * Sets the class name of a custom {@link IssueKeyCache}, which replaces the default one. The size and expiry
+     * options do not apply to it. Takes effect when options are first activated.
+     *
+     * @param cacheClass the class name, or <tt>null</tt> to use the default cache.
+     */
+    public void setCacheClass(String cacheClass) {
+        this.cacheClass = cacheClass;
+    }
+
+    /**
+     * Replaces the source of time of the rate limits and the circuit breaker. Takes effect when options are activated.
+     */
+    void setTicker(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * Replaces the XML-RPC transport that is used to communicate with JIRA (when the 'xmlrpc' protocol is used).
+     *
+     * @param transportFactory the transport to use, or <tt>null</tt> to use the default (HTTP) transport.
+     */
+    void setTransportFactory(XmlRpcTransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+        this.session = null;
+    }
+
+    /**
+     * @return the number of events that were discarded because the asynchronous dispatch buffer was full.
+     */
+    public long getDroppedEventCount() {
+        final AsyncDispatcher current = dispatcher;
+        return current == null ? 0 : current.getDroppedCount();
+    }
+
+    /**
+     * @return the number of events that were held back by comment sampling.
+     */
+    public long getSampledOutEventCount() {
+        return metrics.getSampledOutEventCount();
+    }
+
+    /**
+     * @return the number of calls to JIRA that were not made, because a rate limit was exceeded or because calls were
+     *         suspended after repeated failures.
+     */
+    public long getRejectedCallCount() {
+        return metrics.getRejectedCallCount();
+    }
+
+    /**
+     * @return the number of events that were folded into a similar event that was waiting to be dispatched.
+     */
+    public long getCoalescedEventCount() {
+        final AsyncDispatcher current = dispatcher;
+        return current == null ? 0 : current.getCoalescedCount();
+    }
+
+    /**
+     * @return the number of events in the spool that are waiting to be sent to JIRA.
+     */
+    public int getSpoolSize() {
+        final EventSpool current = spool;
+        return current == null ? 0 : current.size();
+    }
+
+    /**
+     * @return the number of spooled events that were discarded, because the spool was full.
+     */
+    public long getSpoolEvictedCount() {
+        final EventSpool current = spool;
+        return current == null ? 0 : current.getEvictedCount();
+    }
+
+    /**
+     * @return the statistics of this appender.
+     */
+    public AppenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Puts the options into effect. This is to be called after the options are set, and before events are appended.
+     */
+    public void activateOptions() {
+        fingerprintStrategy = createFingerprintStrategy();
+        routing = createRoutingTable();
+        renderer = createTextRenderer();
+        createCallGuards();
+
+        if (!cacheCreated) {
+            cache = createCache();
+            cacheCreated = true;
+        }
+
+        if (storeDirectory != null && journal == null) {
+            openJournal();
+        }
+
+        if (spoolDirectory != null && spool == null) {
+            openSpool();
+        }
+
+        if ((commentWindow > 0 || commentMaxOccurrences > 0) && coalescer == null) {
+            coalescer = new CommentCoalescer(this, commentWindow, commentMaxOccurrences, commentSampleSize,
+                    SIMPLE_NAME + "-digest-" + getName());
+        }
+
+        if (commentSamplingThreshold > 0 && sampler == null) {
+            try {
+                sampler = new CommentSampler(commentSamplingThreshold, commentSamplingQuietPeriod, ticker);
+            } catch (IllegalArgumentException e) {
+                InternalLog.warn(SIMPLE_NAME + ": Invalid comment sampling quiet period " + commentSamplingQuietPeriod +
+                        ". Using " + DEFAULT_COMMENT_SAMPLING_QUIET_PERIOD + " instead.");
+                commentSamplingQuietPeriod = DEFAULT_COMMENT_SAMPLING_QUIET_PERIOD;
+                sampler = new CommentSampler(commentSamplingThreshold, commentSamplingQuietPeriod, ticker);
+            }
+        }
+
+        if (async && dispatcher == null) {
+            if (bufferSize < 1) {
+                InternalLog.warn(SIMPLE_NAME + ": Invalid buffer size " + bufferSize + ". Using " +
+                        DEFAULT_BUFFER_SIZE + " instead.");
+                bufferSize = DEFAULT_BUFFER_SIZE;
+            }
+            if (workers < 1) {
+                InternalLog.warn(SIMPLE_NAME + ": Invalid number of workers " + workers + ". Using " + DEFAULT_WORKERS +
+                        " instead.");
+                workers = DEFAULT_WORKERS;
+            }
+            final AsyncDispatcher newDispatcher = new AsyncDispatcher(this, bufferSize, overflowPolicy, workers,
+                    SIMPLE_NAME + "-dispatcher-" + getName());
+            newDispatcher.start();
+            dispatcher = newDispatcher;
+        }
+
+        if (digestIssue != null && digest == null) {
+            if (digestCapacity < 1 || digestInterval <= 0) {
+                InternalLog.warn(SIMPLE_NAME + ": Invalid digest capacity " + digestCapacity + " or interval " +
+                        digestInterval + ". Using " + DEFAULT_DIGEST_CAPACITY + " and " + DEFAULT_DIGEST_INTERVAL +
+                        " instead.");
+                digestCapacity = DEFAULT_DIGEST_CAPACITY;
+                digestInterval = DEFAULT_DIGEST_INTERVAL;
+            }
+            final HeavyHitters newHeavyHitters = new HeavyHitters(digestCapacity);
+            digest = new ErrorDigest(this, newHeavyHitters, digestIssue, digestInterval, digestSize,
+                    SIMPLE_NAME + "-digest-" + getName());
+            heavyHitters = newHeavyHitters;
+        }
+
+        if (findExistingIssues && lookup == null) {
+            final Set<String> projectKeys = new LinkedHashSet<String>();
+            projectKeys.add(projectkey);
+            projectKeys.addAll(routing.getProjectKeys());
+            final IssueLookup newLookup = new IssueLookup(this, projectKeys, fingerprintStrategy.getScheme());
+            lookup = newLookup;
+            if (prefetchMaxIssues > 0) {
+                startPrefetch(newLookup);
+            }
+        }
+
+        if (stuckCallThreshold > 0 && watchdog == null) {
+            watchdog = new CallWatchdog(stuckCallThreshold, metrics, SIMPLE_NAME + "-watchdog-" + getName());
+        }
+
+        if (jmx && mbeanName == null) {
+            registerMBean();
+        }
+    }
+
+    /**
+     * Closes this appender. New events are refused right away. The events that are pending (buffered for dispatch,
+     * coalesced into comments, or counted for the error digest) are sent to JIRA until the close timeout passes; after
+     * that, calls to JIRA are no longer made, and the remaining events are spooled or reported instead. The state of
+     * other appenders, including a cache that is shared with them, is left alone.
+     */
+    public void close() {
+        close(0);
+    }
+
+    /**
+     * Closes this appender, as {@link #close()} does, within the close timeout or the given time, whichever passes
+     * first. This suits frameworks that tell their appenders how long stopping may take.
+     *
+     * @param timeoutMillis the time allowed for closing, in milliseconds, or 0 to allow just the close timeout.
+     * @return <tt>true</tt> if the pending events were all sent to JIRA in time, <tt>false</tt> if some of them were
+     *         spooled or lost instead.
+     */
+    public boolean close(long timeoutMillis) {
+        closed = true;
+        final Deadline deadline = Deadline.after(closeTimeout).earliest(Deadline.after(timeoutMillis));
+        closeDeadline = deadline;
+        boolean finished = true;
+
+        // Spooled events are kept for the next start; replaying them now would only compete for the time left.
+        final SpoolReplayer currentReplayer = replayer;
+        if (currentReplayer != null) {
+            replayer = null;
+            currentReplayer.stop(deadline);
+        }
+
+        // The stopped dispatcher is kept: events that are logged while closing are counted as dropped by it, rather
+        // than being dispatched on the logging thread.
+        final AsyncDispatcher current = dispatcher;
+        if (current != null) {
+            finished = current.stop(deadline);
+            if (!finished && !current.stop(Deadline.after(CLOSE_DRAIN_MILLIS))) {
+                lostOnClose.addAndGet(current.getPendingCount());
+                InternalLog.warn(SIMPLE_NAME + ": " + current.getPendingCount() + " buffered events could not be " +
+                        "dispatched before closing.");
+            }
+        }
+
+        final CommentCoalescer currentCoalescer = coalescer;
+        if (currentCoalescer != null) {
+            coalescer = null;
+            finished &= currentCoalescer.close(deadline);
+        }
+
+        lookup = null;
+
+        heavyHitters = null;
+        final ErrorDigest currentDigest = digest;
+        if (currentDigest != null) {
+            digest = null;
+            currentDigest.close();
+        }
+
+        final EventSpool currentSpool = spool;
+        if (currentSpool != null) {
+            spool = null;
+            currentSpool.close();
+        }
+
+        final IssueKeyJournal currentJournal = journal;
+        if (currentJournal != null) {
+            journal = null;
+            finished &= currentJournal.close(deadline);
+        }
+
+        final JiraSession currentSession = session;
+        if (currentSession != null) {
+            session = null;
+            if (logoutOnClose) {
+                currentSession.logout();
+            }
+        }
+
+        final CallWatchdog currentWatchdog = watchdog;
+        if (currentWatchdog != null) {
+            watchdog = null;
+            currentWatchdog.stop();
+        }
+
+        if (mbeanName != null) {
+            unregisterMBean();
+        }
+
+        final int spooled = spooledOnClose.getAndSet(0);
+        final int lost = lostOnClose.getAndSet(0);
+        if (spooled > 0 || lost > 0) {
+            InternalLog.warn(SIMPLE_NAME + ": Could not send " + (spooled + lost) + " events to JIRA at " + url +
+                    " before closing: " + spooled + " were spooled, to be sent after a restart, and " + lost +
+                    " were lost.");
+        }
+        return finished && spooled == 0 && lost == 0;
+    }
+
+    /**
+     * Sends an event to JIRA, either right away or (when dispatching asynchronously) on another thread. The adapter of
+     * the logging framework calls this for every event that it accepts at level ERROR or higher, and counts the
+     * events that it does not pass on as filtered itself (see {@link AppenderMetrics#eventFiltered()}).
+     *
+     * When dispatching asynchronously, the logging thread only fingerprints the event if the dispatcher needs the
+     * fingerprint to partition or coalesce events. Otherwise, it just hands the event over, and the worker does the
+     * rest.
+     *
+     * @param event the event.
+     */
+    public void append(ErrorEvent event) {
+        final AsyncDispatcher current = dispatcher;
+        if (current != null && !current.needsFingerprint()) {
+            // The worker can do all the rest: only copy the state that belongs to this thread.
+            event.prepareForHandOver();
+            current.enqueue(event);
+            return;
+        }
+        process(event, current);
+    }
+
+    /**
+     * Fingerprints, routes and samples an event, and then dispatches it, or hands it over to the dispatcher.
+     *
+     * @param event    the event.
+     * @param handOver the dispatcher to hand the event over to, or <tt>null</tt> to dispatch it on this thread.
+     */
+    void process(ErrorEvent event, AsyncDispatcher handOver) {
+        // Everything up to the point where the event is dispatched is done for every ERROR event, so it works on the
+        // Throwable itself. Rendering the stack trace to text is left to the code that actually sends it to JIRA.
+        final Throwable throwable = event.getThrowable();
+
+        final FingerprintStrategy strategy = fingerprintStrategy;
+        final MemoizedFingerprint memoized = FINGERPRINTS.getIfPresent(throwable);
+        final long hash;
+        if (memoized != null && memoized.strategy.equals(strategy)) {
+            // Only Throwables that passed the check below are memoized.
+            hash = memoized.fingerprint;
+        } else {
+            final StackTraceElement[] stackTrace = throwable.getStackTrace();
+            if (stackTrace.length == 0 && throwable.getCause() == null) {
+                // Ignore events that have no stack trace to report (nor to fingerprint).
+                metrics.eventFiltered();
+                return;
+            }
+
+            try {
+                hash = strategy instanceof StackTraceFingerprintStrategy
+                        ? ((StackTraceFingerprintStrategy) strategy).fingerprint(throwable, stackTrace)
+                        : strategy.fingerprint(throwable);
+            } catch (RuntimeException e) {
+                InternalLog.error(SIMPLE_NAME + ": Unable to compute the fingerprint of an event.", e);
+                metrics.eventFiltered();
+                return;
+            }
+            FINGERPRINTS.put(throwable, new MemoizedFingerprint(strategy, hash));
+        }
+
+        if (username == null || password == null) {
+            InternalLog.warn(SIMPLE_NAME + ": Missing authentication details. " +
+                    "Please configure log4j-jira-appender properly.");
+            metrics.eventFiltered();
+            return;
+        }
+
+        metrics.eventAccepted();
+
+        // Events that are routed to another project than that of the appender get issues of their own.
+        final Route route = routing.route(event);
+        final long fingerprint = route == null ? hash : route.fingerprint(hash);
+
+        final HeavyHitters currentHeavyHitters = heavyHitters;
+        if (currentHeavyHitters != null) {
+            currentHeavyHitters.offer(fingerprint, throwable.getClass().getName(), event.getLoggerName());
+        }
+
+        // Occurrences of a recurring event are sampled before anything else is done with them.
+        int occurrences = 1;
+        final CommentSampler currentSampler = sampler;
+        if (currentSampler != null) {
+            occurrences = currentSampler.sample(fingerprint, 1);
+            if (occurrences == 0) {
+                metrics.eventSampledOut();
+                return;
+            }
+        }
+
+        if (handOver != null) {
+            // The event will be processed on another thread: copy the state that belongs to this thread.
+            event.prepareForHandOver();
+            handOver.enqueue(event, fingerprint, occurrences);
+            return;
+        }
+
+        dispatch(event, fingerprint, occurrences);
+    }
+
+    /**
+     * @return the deadline for sending an event: the event timeout, or the close timeout if the appender is closed
+     *         sooner.
+     */
+    private Deadline newEventDeadline() {
+        final Deadline deadline = Deadline.after(eventTimeout);
+        final Deadline shutdown = closeDeadline;
+        return shutdown == null ? deadline : deadline.earliest(shutdown);
+    }
+
+    /**
+     * Sends an event to JIRA, either as a new issue, or as a comment on an existing issue. The event is abandoned if
+     * this takes longer than the event timeout. Events that cannot be sent are spooled, if a spool is configured.
+     *
+     * @param event       the event to send.
+     * @param hash        the fingerprint of the event.
+     * @param occurrences the number of occurrences represented by the event (larger than one if similar events were
+     *                    coalesced while waiting to be dispatched).
+     */
+    void dispatch(ErrorEvent event, long hash, int occurrences) {
+        final Deadline deadline = newEventDeadline();
+        String existingKey = null;
+        Route route = null;
+        String summary = null;
+        String text = null;
+        try {
+            final JiraSession currentSession = getSession();
+
+            existingKey = cache.get(hash);
+            if (existingKey != null) {
+                metrics.cacheHit();
+            } else {
+                metrics.cacheMiss();
+                route = routing.route(event);
+                summary = summarize(event, route);
+                text = getText(event, false);
+                existingKey = createIssueOrAwaitCreation(currentSession, deadline, hash, route, summary, text);
+                if (existingKey == null) {
+                    // This event is the one that the new issue was created for.
+                    return;
+                }
+            }
+
+            final IssueKeyJournal currentJournal = journal;
+            if (currentJournal != null) {
+                currentJournal.touch(hash, existingKey, System.currentTimeMillis());
+            }
+
+            final CommentCoalescer currentCoalescer = coalescer;
+            if (currentCoalescer != null) {
+                currentCoalescer.add(existingKey, hash, event, occurrences);
+                return;
+            }
+
+            // Add comment to existing issue.
+            text = getText(event, true);
+            String comment = text;
+            if (occurrences > 1) {
+                // Coalesced while waiting to be dispatched, or held back by comment sampling.
+                comment = "This event occurred " + occurrences + " times since the previous comment. Only one " +
+                        "occurrence is shown.\n" + comment;
+            }
+            addComment(currentSession, deadline, hash, existingKey, comment);
+        } catch (MalformedURLException e) {
+            InternalLog.error(SIMPLE_NAME + ": Failed to create or update ticket in project " + projectkey, e);
+            spool(event, hash, occurrences, existingKey, route, summary, text);
+        } catch (CallRejectedException e) {
+            InternalLog.debug(SIMPLE_NAME + ": Not sending an event to JIRA: " + e.getMessage());
+            if (e.isCircuitOpen()) {
+                spool(event, hash, occurrences, existingKey, route, summary, text);
+            }
+        } catch (DeadlineExceededException e) {
+            metrics.eventAbandoned();
+            InternalLog.debug(SIMPLE_NAME + ": Abandoned an event for project " + projectkey + ": " + e.getMessage());
+            spool(event, hash, occurrences, existingKey, route, summary, text);
+        } catch (XmlRpcException e) {
+            InternalLog.error(SIMPLE_NAME + ": Failed to create or update ticket in project " + projectkey, e);
+            spool(event, hash, occurrences, existingKey, route, summary, text);
+        } catch (InterruptedException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Interrupted while waiting for a ticket to be created in project " +
+                    projectkey);
+            Thread.currentThread().interrupt();
+            spool(event, hash, occurrences, existingKey, route, summary, text);
+        }
+    }
+
+    /**
+     * @return the summary of a new issue for an event, with the label of its route.
+     */
+    private String summarize(ErrorEvent event, Route route) {
+        return getSummary(event, route == null || route.getLabel() == null ? label : route.getLabel());
+    }
+
+    /**
+     * Adds a comment to an existing JIRA issue, within the event timeout. Failures are reported, but not propagated.
+     *
+     * @param key     the key of the issue.
+     * @param hash    the fingerprint of the events that the comment is about.
+     * @param comment the text of the comment.
+     */
+    void postComment(String key, long hash, String comment) {
+        try {
+            addComment(getSession(), newEventDeadline(), hash, key, comment);
+        } catch (MalformedURLException e) {
+            InternalLog.error(SIMPLE_NAME + ": Failed to update ticket " + key, e);
+            spool(hash, System.currentTimeMillis(), 1, key, null, null, comment);
+        } catch (CallRejectedException e) {
+            InternalLog.debug(SIMPLE_NAME + ": Not updating ticket " + key + ": " + e.getMessage());
+            if (e.isCircuitOpen()) {
+                spool(hash, System.currentTimeMillis(), 1, key, null, null, comment);
+            }
+        } catch (DeadlineExceededException e) {
+            metrics.eventAbandoned();
+            InternalLog.debug(SIMPLE_NAME + ": Abandoned a comment on ticket " + key + ": " + e.getMessage());
+            spool(hash, System.currentTimeMillis(), 1, key, null, null, comment);
+        } catch (XmlRpcException e) {
+            InternalLog.error(SIMPLE_NAME + ": Failed to update ticket " + key, e);
+            spool(hash, System.currentTimeMillis(), 1, key, null, null, comment);
+        }
+    }
+
+    /**
+     * Writes an event that could not be dispatched to the spool, if there is one. Whatever was not rendered when
+     * dispatching failed (the route, summary and description of a new issue, or the text of a comment) is rendered
+     * here, so that events are spooled however early the failure occurred.
+     *
+     * @param event       the event.
+     * @param hash        the fingerprint of the event.
+     * @param occurrences the number of occurrences represented by the event.
+     * @param key         the key of the issue to comment on, or <tt>null</tt> if an issue is to be created.
+     * @param route       the route of the issue to create, or <tt>null</tt> if it was not determined yet.
+     * @param summary     the summary of the issue to create, or <tt>null</tt> if it was not rendered yet.
+     * @param text        the description of the issue or the text of the comment, or <tt>null</tt> if it was not
+     *                    rendered yet.
+     */
+    private void spool(ErrorEvent event, long hash, int occurrences, String key, Route route, String summary,
+                       String text) {
+        if (spool != null) {
+            if (key != null) {
+                if (text == null) {
+                    text = getText(event, true);
+                }
+            } else if (summary == null || text == null) {
+                route = routing.route(event);
+                summary = summarize(event, route);
+                text = getText(event, false);
+            }
+        }
+        spool(hash, event.getTimeStamp(), occurrences, key, route, summary, text);
+    }
+
+    /**
+     * Writes an event that could not be sent to the spool, if there is one.
+     *
+     * @param hash        the fingerprint of the Throwable of the event.
+     * @param timestamp   the time at which the event was logged.
+     * @param occurrences the number of occurrences represented by the event.
+     * @param key         the key of the issue to comment on, or <tt>null</tt> if an issue is to be created.
+     * @param route       the route of the issue to create, or <tt>null</tt> for the default route.
+     * @param summary     the summary of the issue to create (ignored for comments).
+     * @param text        the description of the issue or the text of the comment, or <tt>null</tt> if the event was
+     *                    not rendered yet (in which case it is not spooled).
+     */
+    private void spool(long hash, long timestamp, int occurrences, String key, Route route, String summary,
+                       String text) {
+        final EventSpool currentSpool = spool;
+        final boolean closing = closeDeadline != null;
+        if (currentSpool != null && text != null && (key != null || summary != null)
+                && currentSpool.append(new SpooledEvent(hash, timestamp, timestamp, occurrences, key,
+                key == null ? summary : null, text, key == null && route != null ? route.toString() : null))) {
+            metrics.eventSpooled();
+            InternalLog.debug(SIMPLE_NAME + ": Spooled an event, to be sent when JIRA can be reached again.");
+            if (closing) {
+                spooledOnClose.incrementAndGet();
+            }
+        } else if (closing && lostOnClose.incrementAndGet() <= MAX_REPORTED_UNSENT_EVENTS) {
+            InternalLog.warn(SIMPLE_NAME + ": Could not send an event to JIRA before closing: " + (key != null
+                    ? "a comment on " + key : summary != null ? "a new issue '" + summary + "'" : "an event") +
+                    " (fingerprint " + Long.toHexString(hash) + ", " + occurrences + " occurrences).");
+        }
+    }
+
+    /**
+     * Sends an event from the spool to JIRA. An event that was spooled as a new issue becomes a comment if an issue
+     * was created for its fingerprint in the meantime. Failures are not spooled again: the event remains in the spool.
+     *
+     * @param event the spooled event (possibly merged from several).
+     * @return <tt>true</tt> if the event was sent.
+     */
+    boolean replay(SpooledEvent event) {
+        final Deadline deadline = newEventDeadline();
+        final long hash = event.getFingerprint();
+        final String text = describeDelay(event) + event.getText();
+        try {
+            final JiraSession currentSession = getSession();
+            String key = event.getIssueKey();
+            if (key == null) {
+                key = cache.get(hash);
+            }
+            if (key == null) {
+                final Route route = event.getRoute() == null ? null : Route.parse(event.getRoute());
+                key = createIssueOrAwaitCreation(currentSession, deadline, hash, route, event.getSummary(), text);
+                if (key == null) {
+                    return true;
+                }
+            }
+            addComment(currentSession, deadline, hash, key, text);
+            return true;
+        } catch (MalformedURLException e) {
+            InternalLog.debug(SIMPLE_NAME + ": Unable to send a spooled event: " + e.getMessage());
+        } catch (XmlRpcException e) {
+            InternalLog.debug(SIMPLE_NAME + ": Unable to send a spooled event: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @return a line that explains that a spooled event is sent late, and how often it occurred.
+     */
+    private static String describeDelay(SpooledEvent event) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+        if (event.getOccurrences() > 1) {
+            return "This event occurred " + event.getOccurrences() + " times between " +
+                    format.format(new Date(event.getFirstTimestamp())) + " and " +
+                    format.format(new Date(event.getLastTimestamp())) + ", while JIRA could not be reached. Only " +
+                    "the first occurrence is shown.\n";
+        }
+        return "This event occurred at " + format.format(new Date(event.getFirstTimestamp())) + ", while JIRA could " +
+                "not be reached.\n";
+    }
+
+    private void addComment(JiraSession currentSession, Deadline deadline, long hash, String key, String comment)
+            throws MalformedURLException, XmlRpcException {
+        call(currentSession, deadline, hash, AppenderMetrics.ADD_COMMENT, key, comment);
+        metrics.commentAdded();
+        InternalLog.debug(SIMPLE_NAME + ": Updated ticket " + key);
+    }
+
+    /**
+     * Creates a JIRA issue for an event of which the fingerprint is not in the cache, unless another thread is already
+     * creating an issue for the same fingerprint. In that case, this method waits for that thread to finish, so that
+     * the event can be added as a comment to the issue that it created. Should that thread fail, this thread attempts
+     * to create the issue instead.
+     *
+     * Threads that process events with different fingerprints do not wait for each other, and no thread waits beyond
+     * its deadline.
+     *
+     * @param currentSession the connection to JIRA.
+     * @param deadline       the time by which the issue must have been created.
+     * @param hash           the fingerprint of the event.
+     * @param route          the route of the issue, or <tt>null</tt> for the default route.
+     * @param summary        the summary of the issue.
+     * @param description    the description of the issue.
+     * @return the key of an issue that was created for the same fingerprint by another event, or <tt>null</tt> if an
+     *         issue was created for this event.
+     */
+    private String createIssueOrAwaitCreation(JiraSession currentSession, Deadline deadline, long hash, Route route,
+                                              String summary, String description)
+            throws MalformedURLException, XmlRpcException, InterruptedException {
+        for (;;) {
+            final SettableFuture<String> creation = SettableFuture.create();
+            final SettableFuture<String> inFlight = creations.putIfAbsent(hash, creation);
+            if (inFlight != null) {
+                String key;
+                try {
+                    key = deadline.isUnbounded()
+                            ? inFlight.get() : inFlight.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    key = null;
+                } catch (TimeoutException e) {
+                    throw new DeadlineExceededException("the deadline passed while another thread was creating the " +
+                            "issue.");
+                }
+                if (key != null) {
+                    return key;
+                }
+                // The other thread failed to create the issue. Try again.
+                continue;
+            }
+
+            String key = null;
+            try {
+                // An issue might have been created between the cache lookup of the caller and claiming the creation.
+                key = cache.get(hash);
+                if (key != null) {
+                    return key;
+                }
+                key = findExistingIssue(deadline, hash);
+                if (key != null) {
+                    remember(hash, key);
+                    return key;
+                }
+                key = createIssue(currentSession, deadline, hash, route, summary, description);
+                remember(hash, key);
+                return null;
+            } finally {
+                creations.remove(hash, creation);
+                creation.set(key);
+            }
+        }
+    }
+
+    /**
+     * Looks up the issue that was created for a fingerprint before this appender knew about it, if existing issues are
+     * looked up. Failures of the lookup itself are reported, after which an issue is to be created.
+     *
+     * @return the key of the issue, or <tt>null</tt> if none was found.
+     * @throws CallRejectedException     if calls to JIRA are not made.
+     * @throws DeadlineExceededException if the deadline passed.
+     */
+    private String findExistingIssue(Deadline deadline, long hash) throws MalformedURLException, XmlRpcException {
+        final IssueLookup currentLookup = lookup;
+        if (currentLookup == null) {
+            return null;
+        }
+        try {
+            final String key = currentLookup.find(deadline, hash);
+            if (key != null) {
+                metrics.issuesFound(1);
+                InternalLog.debug(SIMPLE_NAME + ": Found existing ticket " + key);
+            }
+            return key;
+        } catch (CallRejectedException e) {
+            throw e;
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (XmlRpcException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Unable to look up existing tickets in project " + projectkey + ": " +
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Adds the issue of a fingerprint to the cache, and to the journal if there is one.
+     */
+    private void remember(long hash, String key) {
+        cache.put(hash, key);
+        final IssueKeyJournal currentJournal = journal;
+        if (currentJournal != null) {
+            currentJournal.record(hash, key, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Loads the issues that were created earlier into the cache, on a thread of its own. Issues that are in the cache
+     * already are left alone.
+     */
+    private void startPrefetch(final IssueLookup currentLookup) {
+        final Thread thread = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(SIMPLE_NAME + "-prefetch-" + getName()).build().newThread(new Runnable() {
+                    public void run() {
+                        final long start = System.currentTimeMillis();
+                        try {
+                            final Map<Long, String> issues = currentLookup.prefetch(prefetchMaxIssues);
+                            int added = 0;
+                            for (final Map.Entry<Long, String> issue : issues.entrySet()) {
+                                if (lookup == currentLookup &&
+                                        cache.putIfAbsent(issue.getKey(), issue.getValue())) {
+                                    added++;
+                                }
+                            }
+                            metrics.issuesFound(added);
+                            InternalLog.debug(SIMPLE_NAME + ": Loaded " + added + " existing tickets of project " +
+                                    projectkey + " in " + (System.currentTimeMillis() - start) + "ms.");
+                        } catch (MalformedURLException e) {
+                            InternalLog.warn(SIMPLE_NAME + ": Unable to load existing tickets: " + e.getMessage());
+                        } catch (XmlRpcException e) {
+                            InternalLog.warn(SIMPLE_NAME + ": Unable to load existing tickets: " + e.getMessage());
+                        }
+                    }
+                });
+        thread.start();
+    }
+
+    /**
+     * Searches for issues, unless that would exceed a rate limit, or calls are suspended after repeated failures.
+     *
+     * @param deadline   the time by which the search must have completed.
+     * @param hash       the fingerprint of the event(s) that the search is made for.
+     * @param jql        the query.
+     * @param maxResults the maximum number of issues to return.
+     * @return the issues that were found.
+     */
+    Object[] search(Deadline deadline, long hash, String jql, int maxResults)
+            throws MalformedURLException, XmlRpcException {
+        return (Object[]) call(getSession(), deadline, hash, AppenderMetrics.SEARCH, jql, maxResults);
+    }
+
+    private String createIssue(JiraSession currentSession, Deadline deadline, long hash, Route route, String summary,
+                               String description)
+            throws MalformedURLException, XmlRpcException {
+        final String project = route == null || route.getProjectKey() == null ? projectkey : route.getProjectKey();
+        final String issueAssignee = route == null || route.getAssignee() == null ? assignee : route.getAssignee();
+        final String issueType = route == null || route.getIssueType() == null
+                ? DEFAULT_ISSUE_TYPE : route.getIssueType();
+        InternalLog.debug(SIMPLE_NAME + ": Creating ticket in project " + project);
+
+        final Hashtable<String, String> issue = new Hashtable<String, String>();
+        issue.put("project", project);
+        issue.put("summary", summary);
+        // The stamp allows the issue to be found by fingerprint later on.
+        issue.put("description", description + "\n" + "Fingerprint: " +
+                IssueLookup.stamp(fingerprintStrategy.getScheme(), hash));
+        if (issueAssignee != null) {
+            issue.put("assignee", issueAssignee);
+        }
+        issue.put("type", issueType);
+
+        final Map<String, String> newIssue =
+                (Map<String, String>) call(currentSession, deadline, hash, AppenderMetrics.CREATE_ISSUE, issue);
+        final String newIssueKey = newIssue.get("key");
+        metrics.issueCreated();
+
+        InternalLog.debug(SIMPLE_NAME + ": Created ticket " + newIssueKey);
+        return newIssueKey;
+    }
+
+    /**
+     * Makes a call to JIRA, unless that would exceed a rate limit, or calls are suspended after repeated failures.
+     * Calls that are not made because their deadline passed do not count as failures.
+     *
+     * @param currentSession the connection to JIRA.
+     * @param deadline       the time by which the call must have completed.
+     * @param hash           the fingerprint of the event(s) that the call is made for.
+     * @param method         the name of the method to invoke.
+     * @param arguments      the arguments to the method, excluding the authentication token.
+     * @return the result of the call.
+     * @throws CallRejectedException     if the call was not made.
+     * @throws DeadlineExceededException if the deadline passed before the call could be made.
+     */
+    private Object call(JiraSession currentSession, Deadline deadline, long hash, String method, Object... arguments)
+            throws MalformedURLException, XmlRpcException {
+        final Deadline shutdown = closeDeadline;
+        if (shutdown != null) {
+            // Calls that are made for events that were being sent when the appender was closed are bounded as well.
+            deadline = deadline.earliest(shutdown);
+        }
+        if (deadline.isExpired()) {
+            throw new DeadlineExceededException("the deadline passed before " + method + " could be called.");
+        }
+        final TokenBucket limiter = callLimiter;
+        if (limiter != null && !limiter.tryAcquire()) {
+            throw reject("the limit of " + rateLimit + " calls per minute has been reached.", false);
+        }
+        final Cache<Long, TokenBucket> limiters = issueLimiters;
+        if (limiters != null && !getIssueLimiter(limiters, hash).tryAcquire()) {
+            throw reject("the limit of " + issueRateLimit + " calls per minute per issue has been reached.", false);
+        }
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowRequest()) {
+            throw reject("calls are suspended after repeated failures.", true);
+        }
+
+        final CallWatchdog currentWatchdog = watchdog;
+        final long watchId = currentWatchdog == null ? 0 : currentWatchdog.started(method);
+        boolean succeeded = false;
+        boolean abandoned = false;
+        try {
+            final Object result = currentSession.call(deadline, method, arguments);
+            succeeded = true;
+            final SpoolReplayer currentReplayer = replayer;
+            if (currentReplayer != null) {
+                // JIRA can be reached (again): send the events that could not be sent before.
+                currentReplayer.wake();
+            }
+            return result;
+        } catch (DeadlineExceededException e) {
+            abandoned = true;
+            throw e;
+        } finally {
+            if (currentWatchdog != null) {
+                currentWatchdog.finished(watchId);
+            }
+            if (breaker != null) {
+                if (abandoned) {
+                    breaker.recordAbandoned();
+                } else if (succeeded) {
+                    if (breaker.recordSuccess()) {
+                        InternalLog.warn(SIMPLE_NAME + ": JIRA at " + url + " is responding again. Calls are resumed.");
+                    }
+                } else if (breaker.recordFailure()) {
+                    InternalLog.warn(SIMPLE_NAME + ": Calls to JIRA at " + url + " keep failing. Calls are suspended " +
+                            "for " + circuitBreakerDelay + "ms.");
+                }
+            }
+        }
+    }
+
+    private CallRejectedException reject(String reason, boolean circuitOpen) {
+        metrics.callRejected();
+        return new CallRejectedException(reason, circuitOpen);
+    }
+
+    private TokenBucket getIssueLimiter(Cache<Long, TokenBucket> limiters, long hash) {
+        TokenBucket result = limiters.getIfPresent(hash);
+        if (result == null) {
+            final TokenBucket created = new TokenBucket(issueRateLimit, TimeUnit.MINUTES.toNanos(1),
+                    Math.max(1, issueRateLimit / 10), ticker);
+            result = limiters.asMap().putIfAbsent(hash, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the rate limiters and the circuit breaker that are configured.
+     */
+    private void createCallGuards() {
+        final long minute = TimeUnit.MINUTES.toNanos(1);
+        final int burst = rateLimitBurst > 0 ? rateLimitBurst : Math.max(1, rateLimit / 10);
+        callLimiter = rateLimit > 0 ? new TokenBucket(rateLimit, minute, burst, ticker) : null;
+        issueLimiters = issueRateLimit > 0
+                ? CacheBuilder.newBuilder()
+                        .maximumSize(5000)
+                        .expireAfterAccess(10, TimeUnit.MINUTES)
+                        .<Long, TokenBucket>build()
+                : null;
+        circuitBreaker = circuitBreakerThreshold > 0
+                ? new CircuitBreaker(circuitBreakerThreshold, TimeUnit.MILLISECONDS.toNanos(circuitBreakerDelay),
+                        ticker)
+                : null;
+    }
+
+    /**
+     * Calculates a semi-unique hash for the Throwable that is being logged, by means of the default
+     * {@link StackTraceFingerprintStrategy}. Note that this method ignores the exception message by design (allowing a
+     * message to contain instance-specific information). For the same reason, the exception message of each exception
+     * that is linked as a 'cause' is ignored as well.
+     *
+     * @param throwable a Throwable (must not be <tt>null</tt>).
+     * @return a hash code value for the stack trace that is part of the argument.
+     */
+    static long getHash(Throwable throwable) {
+        return DEFAULT_FINGERPRINT_STRATEGY.fingerprint(throwable);
+    }
+
+    /**
+     * Generates an appropriate Jira summary text for the event.
+     * 
+     * Respects the Jira maximum summary length of 254 characters. If the total summary
+     * length is headed towards exceeding this value, the summary is trimmed down in
+     * quite a relentless way: only the first 250 characters will be included.
+     * 
+     * @param event the original event which needs to be appended
+     * @param label the label as configured in the log4j config
+     * @return String to be used as summary for new Jira issue
+     * @see <a href="http://java.net/jira/browse/LOG4J_APPENDER_JIRA-1">Problem occurring previously with summary length</a>
+     */
+    protected static String getSummary(final ErrorEvent event, final String label) {
+        return getSummary(event.getLoggerName(), event.getMessage(), label);
+    }
+
+    /**
+     * Generates an appropriate Jira summary text for an event, from its parts.
+     *
+     * @see #getSummary(ErrorEvent, String)
+     */
+    static String getSummary(final String loggerName, final Object message, final String label) {
+        final StringBuilder summaryBuilder = new StringBuilder();
+        if (label != null && label.trim().length() > 0) {
+            summaryBuilder.append("(Auto-generated, labelled '").append(label).append("') ");
+        } else {
+            summaryBuilder.append("(Auto-generated) ");
+        }
+        summaryBuilder.append(loggerName).append(":").append(message);
+        
+        // Issue: http://java.net/jira/browse/LOG4J_APPENDER_JIRA-1
+        // Jira can't handle summaries larger than 254 characters so we have to be relentless: cut it off
+        return (summaryBuilder.length() <= MAXIMUM_SUMMARY_LENGTH ? summaryBuilder.toString() : summaryBuilder.substring(0, MAXIMUM_SUMMARY_LENGTH - 4) + " ...");
+    }
+
+    protected String getText(ErrorEvent event, boolean skipStack) {
+        return renderer.render(formatEvent(event), event.getThrowable(), skipStack);
+    }
+
+    /**
+     * Creates the renderer of texts that is configured, falling back to the defaults when the limits are invalid.
+     */
+    private TextRenderer createTextRenderer() {
+        try {
+            return new TextRenderer(textMaxLength, textMaxFrames);
+        } catch (IllegalArgumentException e) {
+            InternalLog.warn(SIMPLE_NAME + ": " + e.getMessage() + ". Using a maximum length of " +
+                    DEFAULT_TEXT_MAX_LENGTH + " instead.");
+            textMaxLength = DEFAULT_TEXT_MAX_LENGTH;
+            return new TextRenderer(textMaxLength, textMaxFrames);
+        }
+    }
+
+    /**
+     * Compiles the routing rules that are configured, falling back to routing all events alike when they are invalid.
+     */
+    private RoutingTable createRoutingTable() {
+        if (routes == null || routes.trim().length() == 0) {
+            return RoutingTable.EMPTY;
+        }
+        try {
+            return RoutingTable.compile(routes);
+        } catch (IllegalArgumentException e) {
+            InternalLog.error(SIMPLE_NAME + ": Invalid routing rules. Sending all events to project " + projectkey +
+                    ".", e);
+            return RoutingTable.EMPTY;
+        }
+    }
+
+    /**
+     * Creates the cache that is configured, falling back to the default when it cannot be instantiated.
+     */
+    private IssueKeyCache createCache() {
+        if (cacheClass != null) {
+            final IssueKeyCache custom = instantiate(cacheClass.trim(), IssueKeyCache.class);
+            if (custom != null) {
+                return custom;
+            }
+            InternalLog.warn(SIMPLE_NAME + ": Unable to use cache '" + cacheClass + "'. Using the default instead.");
+        }
+        if (cacheMaxSize < 1) {
+            InternalLog.warn(SIMPLE_NAME + ": Invalid cache size " + cacheMaxSize + ". Using " +
+                    DEFAULT_CACHE_MAX_SIZE + " instead.");
+            cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+        }
+        return new LongIssueKeyCache(cacheMaxSize, cacheExpiry, cacheExpireAfterWrite, ticker);
+    }
+
+    /**
+     * Creates the fingerprint strategy that is configured, falling back to the default when it cannot be instantiated.
+     */
+    private FingerprintStrategy createFingerprintStrategy() {
+        if (fingerprintStrategyClass != null) {
+            final FingerprintStrategy strategy =
+                    instantiate(fingerprintStrategyClass.trim(), FingerprintStrategy.class);
+            if (strategy != null) {
+                return strategy;
+            }
+            InternalLog.warn(SIMPLE_NAME + ": Unable to use fingerprint strategy '" + fingerprintStrategyClass +
+                    "'. Using the default instead.");
+        }
+        FrameNormalizer normalizer = FrameNormalizer.DEFAULT;
+        if (fingerprintSkipPrefixes != null || fingerprintTruncateMarkers != null) {
+            try {
+                normalizer = new FrameNormalizer(
+                        fingerprintSkipPrefixes == null
+                                ? FrameNormalizer.DEFAULT_SKIP_PREFIXES : split(fingerprintSkipPrefixes),
+                        fingerprintTruncateMarkers == null
+                                ? FrameNormalizer.DEFAULT_TRUNCATE_MARKERS : split(fingerprintTruncateMarkers));
+            } catch (IllegalArgumentException e) {
+                InternalLog.warn(SIMPLE_NAME + ": " + e.getMessage() +
+                        ". Using the default frame normalization instead.");
+            }
+        }
+        return new StackTraceFingerprintStrategy(fingerprintMaxFrames, fingerprintMaxCauses, normalizer);
+    }
+
+    /**
+     * Creates an instance of a class that is named in an option, by means of its public no-argument constructor. The
+     * class is looked up through the context class loader of the current thread first, and then through the class
+     * loader of the engine.
+     *
+     * @param className the name of the class.
+     * @param type      the type that the class must have.
+     * @return the instance, or <tt>null</tt> if the class could not be instantiated.
+     */
+    private static <T> T instantiate(String className, Class<T> type) {
+        try {
+            Class<?> found = null;
+            final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            if (contextClassLoader != null) {
+                try {
+                    found = Class.forName(className, true, contextClassLoader);
+                } catch (ClassNotFoundException e) {
+                    // Try the class loader of the engine below.
+                }
+            }
+            if (found == null) {
+                found = Class.forName(className, true, JiraEngine.class.getClassLoader());
+            }
+            if (!type.isAssignableFrom(found)) {
+                InternalLog.error(SIMPLE_NAME + ": Class " + className + " is not a " + type.getName() + ".");
+                return null;
+            }
+            return type.cast(found.newInstance());
+        } catch (ClassNotFoundException e) {
+            InternalLog.error(SIMPLE_NAME + ": Could not find class " + className + ".", e);
+        } catch (InstantiationException e) {
+            InternalLog.error(SIMPLE_NAME + ": Could not instantiate class " + className + ".", e);
+        } catch (IllegalAccessException e) {
+            InternalLog.error(SIMPLE_NAME + ": Could not instantiate class " + className + ".", e);
+        } catch (RuntimeException e) {
+            InternalLog.error(SIMPLE_NAME + ": Could not instantiate class " + className + ".", e);
+        } catch (LinkageError e) {
+            InternalLog.error(SIMPLE_NAME + ": Could not load class " + className + ".", e);
+        }
+        return null;
+    }
+
+    private static List<String> split(String value) {
+        return Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(value));
+    }
+
+    /**
+     * @return the name of this appender, made safe for use in file names.
+     */
+    private String getFileName() {
+        return (getName() == null ? SIMPLE_NAME : getName()).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Opens the journal in the store directory, and populates the cache with the entries that it holds.
+     */
+    private void openJournal() {
+        final File file = new File(storeDirectory, getFileName() + ".journal");
+        final long start = System.currentTimeMillis();
+        try {
+            journal = IssueKeyJournal.open(file, fingerprintStrategy.getScheme(), cacheExpiry,
+                    new IssueKeyJournal.Visitor() {
+                        public void visit(long fingerprint, String issueKey, long lastSeen) {
+                            cache.put(fingerprint, issueKey);
+                        }
+                    });
+            InternalLog.debug(SIMPLE_NAME + ": Loaded " + journal.size() + " issue keys from " + file + " in " +
+                    (System.currentTimeMillis() - start) + "ms.");
+        } catch (IOException e) {
+            InternalLog.error(SIMPLE_NAME + ": Unable to use " + file + " to persist issue keys.", e);
+        }
+    }
+
+    private void openSpool() {
+        final File directory = new File(spoolDirectory);
+        try {
+            final EventSpool newSpool = EventSpool.open(directory, getFileName(), spoolMaxSize);
+            spool = newSpool;
+            replayer = new SpoolReplayer(this, newSpool, SPOOL_REPLAY_INTERVAL_MILLIS,
+                    SIMPLE_NAME + "-spool-" + getName());
+        } catch (IOException e) {
+            InternalLog.error(SIMPLE_NAME + ": Unable to use " + directory + " to spool events.", e);
+        }
+    }
+
+    /**
+     * Registers the statistics of this appender as an MBean, named after the appender.
+     */
+    private void registerMBean() {
+        final String appenderName =
+                getName() == null ? "@" + Integer.toHexString(System.identityHashCode(this)) : getName();
+        try {
+            final ObjectName objectName = new ObjectName(JiraEngine.class.getPackage().getName() + ":type=" +
+                    SIMPLE_NAME + ",name=" + ObjectName.quote(appenderName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            mbeanName = objectName;
+        } catch (JMException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Unable to register the statistics of appender '" + appenderName +
+                    "' as an MBean.", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Unable to unregister MBean " + mbeanName, e);
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * @return the issues that this appender knows about.
+     */
+    IssueKeyCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Formats an event by means of the layout of the appender.
+     *
+     * @param event the event to format.
+     * @return the formatted event, without leading or trailing whitespace.
+     */
+    String formatEvent(ErrorEvent event) {
+        return event.format().trim();
+    }
+
+    /**
+     * Returns the connection to JIRA, creating it if needed. The connection (and the authentication token that it
+     * holds) is reused for all events.
+     *
+     * @return the connection to JIRA.
+     */
+    JiraSession getSession() {
+        JiraSession result = session;
+        if (result == null) {
+            synchronized (this) {
+                result = session;
+                if (result == null) {
+                    final JiraTransport transport = protocol == Protocol.REST
+                            ? new RestJiraTransport(url, compressRequests)
+                            : new XmlRpcJiraTransport(url, transportFactory);
+                    result = new JiraSession(url, username, password, transport, metrics, connectTimeout, readTimeout);
+                    session = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A fingerprint, and the strategy that computed it.
+     */
+    private static final class MemoizedFingerprint {
+        final FingerprintStrategy strategy;
+        final long fingerprint;
+
+        MemoizedFingerprint(FingerprintStrategy strategy, long fingerprint) {
+            this.strategy = strategy;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived connection to a JIRA instance, through one of its remote interfaces (see {@link JiraTransport}).
+ *
+ * The authentication token obtained by <tt>jira1.login</tt> is reused for all subsequent calls. When JIRA reports that
+ * the token is no longer valid (typically because the session timed out), a new token is obtained and the call is
+ * retried once.
+ *
+ * Every call is subject to a connect and a read timeout, which are shortened further to meet the {@link Deadline} of
+ * the call.
+ *
+ * Instances are thread-safe. Concurrent calls share the transport and the token; only logging in is serialized.
+ */
+final class JiraSession {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = JiraSession.class.getSimpleName();
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final JiraTransport transport;
+    private final AppenderMetrics metrics;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /** Serializes logging in and out. */
+    private final ReentrantLock loginLock = new ReentrantLock();
+
+    private final AtomicLong logins = new AtomicLong();
+
+    /** The token that authenticates calls, or <tt>null</tt> if no one has logged in (yet). */
+    private volatile String token;
+
+    /**
+     * Creates a new session. No connection is made until the first call.
+     *
+     * @param url              the base URL of the JIRA instance.
+     * @param username         the JIRA username.
+     * @param password         the password that authenticates the user.
+     * @param transportFactory the XML-RPC transport to use, or <tt>null</tt> to use the default (HTTP) transport.
+     */
+    JiraSession(String url, String username, String password, XmlRpcTransportFactory transportFactory) {
+        this(url, username, password, new XmlRpcJiraTransport(url, transportFactory), null, 0, 0);
+    }
+
+    /**
+     * Creates a new session. No connection is made until the first call.
+     *
+     * @param url              the base URL of the JIRA instance.
+     * @param username         the JIRA username.
+     * @param password         the password that authenticates the user.
+     * @param transport      carries the calls to JIRA.
+     * @param metrics        records the duration and outcome of every call, or <tt>null</tt> to record nothing.
+     * @param connectTimeout the time (in milliseconds) allowed to establish a connection, or 0 for no limit.
+     * @param readTimeout    the time (in milliseconds) allowed to wait for data, or 0 for no limit.
+     */
+    JiraSession(String url, String username, String password, JiraTransport transport, AppenderMetrics metrics,
+                int connectTimeout, int readTimeout) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.transport = transport;
+        this.metrics = metrics;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Invokes a <tt>jira1</tt> method. The authentication token is passed as the first argument of the call,
+     * followed by the provided arguments.
+     *
+     * @param method    the name of the method to invoke (eg: 'jira1.createIssue').
+     * @param arguments the arguments to the method, excluding the authentication token.
+     * @return the result of the call.
+     * @throws MalformedURLException if the configured URL is malformed.
+     * @throws XmlRpcException       if the call failed.
+     */
+    Object call(String method, Object... arguments) throws MalformedURLException, XmlRpcException {
+        return call(Deadline.NONE, method, arguments);
+    }
+
+    /**
+     * Invokes a <tt>jira1</tt> method, which must complete before a deadline.
+     *
+     * @param deadline  the time by which the call (including logging in, if needed) must have completed.
+     * @param method    the name of the method to invoke (eg: 'jira1.createIssue').
+     * @param arguments the arguments to the method, excluding the authentication token.
+     * @return the result of the call.
+     * @throws MalformedURLException      if the configured URL is malformed.
+     * @throws DeadlineExceededException if the deadline passed before or during the call.
+     * @throws XmlRpcException            if the call failed (which includes timing out).
+     */
+    Object call(Deadline deadline, String method, Object... arguments) throws MalformedURLException, XmlRpcException {
+        String currentToken = token;
+        if (currentToken == null) {
+            currentToken = login(null, deadline);
+        }
+
+        try {
+            return execute(deadline, method, withToken(currentToken, arguments));
+        } catch (XmlRpcException e) {
+            if (!isAuthenticationFailure(e)) {
+                throw e;
+            }
+            InternalLog.debug(SIMPLE_NAME + ": Authentication token was rejected by " + url + ". Logging in again.");
+            currentToken = login(currentToken, deadline);
+            return execute(deadline, method, withToken(currentToken, arguments));
+        }
+    }
+
+    /**
+     * Invalidates the authentication token at the JIRA instance, if one was obtained.
+     */
+    void logout() {
+        final String currentToken;
+        loginLock.lock();
+        try {
+            currentToken = token;
+            token = null;
+        } finally {
+            loginLock.unlock();
+        }
+        if (currentToken == null) {
+            return;
+        }
+
+        try {
+            final List<Object> params = new ArrayList<Object>();
+            params.add(currentToken);
+            execute(Deadline.NONE, "jira1.logout", params);
+            InternalLog.debug(SIMPLE_NAME + ": Logged out of JIRA installation at " + url);
+        } catch (MalformedURLException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Failed to log out of JIRA installation at " + url, e);
+        } catch (XmlRpcException e) {
+            InternalLog.warn(SIMPLE_NAME + ": Failed to log out of JIRA installation at " + url, e);
+        }
+    }
+
+    /**
+     * @return the number of times that this session logged in.
+     */
+    long getLoginCount() {
+        return logins.get();
+    }
+
+    /**
+     * Obtains a new authentication token, unless another thread already replaced the token that was found to be
+     * invalid.
+     *
+     * Threads wait for each other to log in no longer than their deadlines allow.
+     *
+     * @param invalidToken the token that was rejected, or <tt>null</tt> if no token was available.
+     * @param deadline     the time by which logging in must have completed.
+     * @return a valid token.
+     */
+    private String login(String invalidToken, Deadline deadline) throws MalformedURLException, XmlRpcException {
+        try {
+            if (!loginLock.tryLock(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+                throw new DeadlineExceededException("the deadline passed while waiting for another thread to log in.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("interrupted while waiting for another thread to log in.");
+        }
+        try {
+            if (token != null && !token.equals(invalidToken)) {
+                return token;
+            }
+
+            InternalLog.debug(SIMPLE_NAME + ": Attempting to login to JIRA installation at " + url + " as " + username);
+
+            final List<Object> params = new ArrayList<Object>();
+            params.add(username);
+            params.add(password);
+            token = (String) execute(deadline, AppenderMetrics.LOGIN, params);
+            logins.incrementAndGet();
+            return token;
+        } finally {
+            loginLock.unlock();
+        }
+    }
+
+    /**
+     * Executes a call with the timeouts that apply to it, and records its duration and outcome.
+     */
+    private Object execute(Deadline deadline, String method, List<Object> params)
+            throws MalformedURLException, XmlRpcException {
+        if (deadline.isExpired()) {
+            throw new DeadlineExceededException("the deadline passed before " + method + " could be called.");
+        }
+        final int currentConnectTimeout = deadline.limit(connectTimeout);
+        final int currentReadTimeout = deadline.limit(readTimeout);
+
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            final Object result = transport.execute(method, params, currentConnectTimeout, currentReadTimeout);
+            succeeded = true;
+            return result;
+        } catch (XmlRpcException e) {
+            if ((currentConnectTimeout > 0 || currentReadTimeout > 0) && deadline.isExpired()) {
+                // The timeout that ended the call was shortened to meet the deadline.
+                throw new DeadlineExceededException("the deadline passed during the call to " + method + ".", e);
+            }
+            throw e;
+        } finally {
+            if (metrics != null) {
+                metrics.callCompleted(method, System.nanoTime() - start, succeeded);
+            }
+        }
+    }
+
+    private static List<Object> withToken(String token, Object[] arguments) {
+        final List<Object> params = new ArrayList<Object>(arguments.length + 1);
+        params.add(token);
+        for (final Object argument : arguments) {
+            params.add(argument);
+        }
+        return params;
+    }
+
+    /**
+     * Checks if an exception signals that the authentication token was not accepted. JIRA reports this by means of a
+     * fault that carries the name of its RemoteAuthenticationException, or a message about a session timeout.
+     *
+     * @param e the exception to check.
+     * @return <tt>true</tt> if logging in again is likely to resolve the problem.
+     */
+    static boolean isAuthenticationFailure(XmlRpcException e) {
+        final String message = e.getMessage();
+        if (message == null) {
+            return false;
+        }
+        return message.contains("RemoteAuthenticationException")
+                || message.contains("session timed out")
+                || message.contains("not authenticated");
+    }
+}
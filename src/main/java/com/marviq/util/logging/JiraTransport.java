@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import java.net.MalformedURLException;
+import java.util.List;
+
+/**
+ * Carries calls to JIRA over the wire, by means of one of the remote interfaces that JIRA offers.
+ *
+ * Calls are identified by the name of the <tt>jira1</tt> XML-RPC method that they correspond to, and take and return
+ * the same values as that method: the authentication token is the first argument of every call but
+ * <tt>jira1.login</tt>, and issues are maps that hold (at least) their "key". Transports for other interfaces translate
+ * calls to and from that form, so that the rest of the appender does not depend on the interface in use.
+ *
+ * For the same reason, failures are reported as {@link XmlRpcException}s whatever the interface: an HTTP status
+ * becomes the code of the exception, and a rejected token is reported with a message that
+ * {@link JiraSession#isAuthenticationFailure(XmlRpcException)} recognizes.
+ *
+ * Implementations are thread-safe.
+ */
+interface JiraTransport {
+
+    /**
+     * Makes a call.
+     *
+     * @param method         the name of the <tt>jira1</tt> method that corresponds to the call.
+     * @param params         the arguments of the call, including the authentication token.
+     * @param connectTimeout the time (in milliseconds) allowed to establish a connection, or 0 for no limit.
+     * @param readTimeout    the time (in milliseconds) allowed to wait for data, or 0 for no limit.
+     * @return the result of the call.
+     * @throws MalformedURLException if the configured URL is malformed.
+     * @throws XmlRpcException       if the call failed (which includes timing out).
+     */
+    Object execute(String method, List<Object> params, int connectTimeout, int readTimeout)
+            throws MalformedURLException, XmlRpcException;
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses JSON documents into maps (of which the entries keep their order), lists, strings, numbers ({@link Long} if
+ * integral and within range, or else {@link Double}), booleans and <tt>null</tt>.
+ *
+ * The documents that JIRA returns are small, so they are parsed from a string.
+ */
+final class JsonParser {
+
+    private final String text;
+    private int position;
+
+    private JsonParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param text a JSON document.
+     * @return the value that the document represents.
+     * @throws IllegalArgumentException if the document is not valid JSON.
+     */
+    static Object parse(String text) {
+        final JsonParser parser = new JsonParser(text);
+        final Object result = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("unexpected data after the document");
+        }
+        return result;
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw error("unexpected end of the document");
+        }
+        final char c = text.charAt(position);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                return readLiteral("true", Boolean.TRUE);
+            case 'f':
+                return readLiteral("false", Boolean.FALSE);
+            case 'n':
+                return readLiteral("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return readNumber();
+                }
+                throw error("unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return result;
+        }
+        for (;;) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("expected a name");
+            }
+            final String name = readString();
+            skipWhitespace();
+            expect(':');
+            result.put(name, readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect('}');
+                return result;
+            }
+        }
+    }
+
+    private List<Object> readArray() {
+        final List<Object> result = new ArrayList<Object>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return result;
+        }
+        for (;;) {
+            result.add(readValue());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect(']');
+                return result;
+            }
+        }
+    }
+
+    private String readString() {
+        position++;
+        StringBuilder result = null;
+        int start = position;
+        for (;;) {
+            if (position >= text.length()) {
+                throw error("unterminated string");
+            }
+            final char c = text.charAt(position);
+            if (c == '"') {
+                final String rest = text.substring(start, position++);
+                return result == null ? rest : result.append(rest).toString();
+            }
+            if (c != '\\') {
+                position++;
+                continue;
+            }
+            if (result == null) {
+                result = new StringBuilder();
+            }
+            result.append(text, start, position);
+            if (position + 1 >= text.length()) {
+                throw error("unterminated string");
+            }
+            final char escaped = text.charAt(position + 1);
+            position += 2;
+            switch (escaped) {
+                case 'b':
+                    result.append('\b');
+                    break;
+                case 'f':
+                    result.append('\f');
+                    break;
+                case 'n':
+                    result.append('\n');
+                    break;
+                case 'r':
+                    result.append('\r');
+                    break;
+                case 't':
+                    result.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > text.length()) {
+                        throw error("truncated escape");
+                    }
+                    try {
+                        result.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    result.append(escaped);
+            }
+            start = position;
+        }
+    }
+
+    private Object readNumber() {
+        final int start = position;
+        boolean integral = true;
+        while (position < text.length()) {
+            final char c = text.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            } else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+                break;
+            }
+            position++;
+        }
+        final String number = text.substring(start, position);
+        try {
+            if (integral) {
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    // out of range
+                }
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw error("invalid number " + number);
+        }
+    }
+
+    private Object readLiteral(String literal, Object value) {
+        if (!text.startsWith(literal, position)) {
+            throw error("unexpected character '" + text.charAt(position) + "'");
+        }
+        position += literal.length();
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length()) {
+            final char c = text.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private char peek() {
+        return position < text.length() ? text.charAt(position) : 0;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        position++;
+    }
+
+    private IllegalArgumentException error(String reason) {
+        return new IllegalArgumentException("Invalid JSON at offset " + position + ": " + reason);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes JSON to a stream as it is produced, without building the document in memory first. The writer does not check
+ * that the document is well-formed: names and values must be written in a sensible order.
+ *
+ * Instances are not thread-safe.
+ */
+final class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+
+    /** For every open object or array, whether anything was written in it yet (bit 0 for the innermost). */
+    private long written;
+
+    /** Whether the next value is the value of a name that was just written. */
+    private boolean afterName;
+
+    JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        beforeValue();
+        out.write('{');
+        written <<= 1;
+        return this;
+    }
+
+    JsonWriter endObject() throws IOException {
+        out.write('}');
+        written >>>= 1;
+        return this;
+    }
+
+    JsonWriter beginArray() throws IOException {
+        beforeValue();
+        out.write('[');
+        written <<= 1;
+        return this;
+    }
+
+    JsonWriter endArray() throws IOException {
+        out.write(']');
+        written >>>= 1;
+        return this;
+    }
+
+    JsonWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * @param value a string, or <tt>null</tt>.
+     */
+    JsonWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            out.write("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if ((written & 1) != 0) {
+            out.write(',');
+        }
+        written |= 1;
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX[c >> 12 & 0xf]);
+                    out.write(HEX[c >> 8 & 0xf]);
+                    out.write(HEX[c >> 4 & 0xf]);
+                    out.write(HEX[c & 0xf]);
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+}
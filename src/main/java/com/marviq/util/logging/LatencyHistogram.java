@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations, in the spirit of HdrHistogram: values are counted in buckets of which the width grows with
+ * their magnitude, so that every recorded value is represented with a bounded relative error (about 6%) while the
+ * histogram covers the full range of a <tt>long</tt> in under a thousand buckets.
+ *
+ * Values below 32 have a bucket of their own. Every power of two above that is split into 16 buckets of equal width.
+ *
+ * Instances are thread-safe. Recording a value costs a few atomic additions, and never blocks or allocates. Reading
+ * the histogram scans all buckets; a reading that is taken while values are being recorded may include some of those
+ * values only in part (for instance, in the count but not yet in the buckets).
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration, in nanoseconds. Negative values are recorded as zero.
+     */
+    void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        total.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @param unit the unit of the result.
+     * @return the mean of the recorded durations, or 0 if none were recorded.
+     */
+    public double getMean(TimeUnit unit) {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n / unit.toNanos(1);
+    }
+
+    /**
+     * @param unit the unit of the result.
+     * @return the longest recorded duration, or 0 if none were recorded.
+     */
+    public double getMax(TimeUnit unit) {
+        return (double) max.get() / unit.toNanos(1);
+    }
+
+    /**
+     * Determines the duration below which (or at which) the given percentage of the recorded durations lie. Like
+     * HdrHistogram, this reports the highest value that shares a bucket with the actual value.
+     *
+     * @param percentile the percentage, between 0 and 100.
+     * @param unit       the unit of the result.
+     * @return the duration, or 0 if none were recorded.
+     */
+    public double getValueAtPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, but was " + percentile);
+        }
+        final long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return (double) Math.min(highestEquivalentValue(i), max.get()) / unit.toNanos(1);
+            }
+        }
+        return getMax(unit);
+    }
+
+    /**
+     * Maps a value to the index of its bucket. Values below 32 map onto themselves. Larger values are shifted right by
+     * their magnitude, which leaves 5 significant bits (of which the highest is always set) to select the bucket.
+     */
+    static int bucketIndex(long value) {
+        final int magnitude = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (magnitude << SUB_BUCKET_BITS) + (int) (value >>> magnitude);
+    }
+
+    /**
+     * @return the highest value that maps to the bucket with the given index.
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int magnitude = (index >> SUB_BUCKET_BITS) - 1;
+        final long significand = index - ((long) magnitude << SUB_BUCKET_BITS);
+        return ((significand + 1) << magnitude) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram[count=" + getCount() + ", mean=" + getMean(TimeUnit.MILLISECONDS) + "ms, p50=" +
+                getValueAtPercentile(50, TimeUnit.MILLISECONDS) + "ms, p99=" +
+                getValueAtPercentile(99, TimeUnit.MILLISECONDS) + "ms, max=" + getMax(TimeUnit.MILLISECONDS) + "ms]";
+    }
+}
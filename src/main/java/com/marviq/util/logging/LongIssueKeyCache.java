@@ -0,0 +1,372 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.base.Ticker;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default {@link IssueKeyCache}: a bounded map from fingerprints to issue keys that is made of primitive arrays, so
+ * that neither looking up nor remembering an issue allocates a key object, and that an entry takes a few dozen bytes.
+ *
+ * Issue keys are held in a compact form. A key such as <tt>PROJ-1234</tt> is split into its prefix (<tt>PROJ-</tt>),
+ * which is interned in a pool that is shared by all entries, and its number. Both are packed into a single
+ * <tt>long</tt>. Keys that do not end in a number are interned as a whole. Looking up an issue builds its key from the
+ * two parts again.
+ *
+ * The cache is split into segments, each guarded by a lock of its own, which hold an open-addressing hash table each.
+ * Every segment holds an equal share of the maximum size, so entries may be evicted a little before the cache as a
+ * whole is full. When a segment is full, the least recently used of a sample of its entries is evicted (or, if entries
+ * expire after they were written, the oldest). Entries that have not been used (or written) for longer than the expiry
+ * time are treated as absent. Times are kept in whole seconds.
+ */
+final class LongIssueKeyCache implements IssueKeyCache {
+
+    /** The maximum number of segments. A power of two. */
+    static final int SEGMENTS = 16;
+
+    /** The maximum number of distinct prefixes of issue keys. Issues with other prefixes are not remembered. */
+    static final int MAXIMUM_PREFIXES = 65536;
+
+    /** The number of entries that are compared when one is to be evicted. */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /** The number part of a key that is interned as a whole. */
+    private static final int NO_NUMBER = -1;
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final Segment[] segments;
+    private final int expirySeconds;
+    private final boolean expireAfterWrite;
+    private final Ticker ticker;
+    private final long origin;
+
+    /** The last value of {@link #now()}, which holds until the ticker reaches {@link #nextSecond}. */
+    private volatile int seconds;
+
+    /** The reading of the ticker at which {@link #seconds} is due to be recomputed. */
+    private volatile long nextSecond;
+
+    /** The ids of the prefixes in the pool. Ids are assigned while holding the lock of this map. */
+    private final ConcurrentMap<String, Integer> prefixIds = new ConcurrentHashMap<String, Integer>();
+
+    /** The prefixes in the pool, by id. Replaced (not modified) when it needs to grow. */
+    private volatile String[] prefixes = new String[16];
+
+    /**
+     * @param maxSize          the maximum number of entries.
+     * @param expiryMillis     the time (in milliseconds) after which an entry expires, or 0 if entries do not expire.
+     * @param expireAfterWrite <tt>true</tt> if entries expire after they were written, <tt>false</tt> if they expire
+     *                         after they were last used.
+     * @param ticker           the source of time.
+     */
+    LongIssueKeyCache(int maxSize, long expiryMillis, boolean expireAfterWrite, Ticker ticker) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("The maximum size must be positive, but was " + maxSize);
+        }
+        this.expirySeconds = expiryMillis <= 0
+                ? 0 : (int) Math.min(Integer.MAX_VALUE, (expiryMillis + 999) / 1000);
+        this.expireAfterWrite = expireAfterWrite;
+        this.ticker = ticker;
+        this.origin = ticker.read();
+        this.nextSecond = origin + TimeUnit.SECONDS.toNanos(1);
+        // Every segment holds at least one entry, and the capacities add up to the maximum size.
+        this.segments = new Segment[Integer.highestOneBit(Math.min(SEGMENTS, maxSize))];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxSize / segments.length + (i < maxSize % segments.length ? 1 : 0));
+        }
+    }
+
+    public String get(long fingerprint) {
+        final long hash = fingerprint * MULTIPLIER;
+        final long value = segmentFor(hash).get(fingerprint, hash);
+        return value == 0 ? null : decode(value);
+    }
+
+    public void put(long fingerprint, String issueKey) {
+        final long value = encode(issueKey);
+        if (value != 0) {
+            final long hash = fingerprint * MULTIPLIER;
+            segmentFor(hash).put(fingerprint, hash, value, now(), false);
+        }
+    }
+
+    public boolean putIfAbsent(long fingerprint, String issueKey) {
+        final long value = encode(issueKey);
+        if (value == 0) {
+            return false;
+        }
+        final long hash = fingerprint * MULTIPLIER;
+        return segmentFor(hash).put(fingerprint, hash, value, now(), true);
+    }
+
+    public void clear() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long result = 0;
+        for (final Segment segment : segments) {
+            result += segment.size;
+        }
+        return result;
+    }
+
+    public long getEvictionCount() {
+        long result = 0;
+        for (final Segment segment : segments) {
+            result += segment.evictions;
+        }
+        return result;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 60) & (segments.length - 1)];
+    }
+
+    /**
+     * @return the time since this cache was created, in seconds. Only recomputed once every second.
+     */
+    private int now() {
+        final long next = nextSecond;
+        final long nanos = ticker.read();
+        if (nanos - next < 0) {
+            return seconds;
+        }
+        final int result = (int) TimeUnit.NANOSECONDS.toSeconds(nanos - origin);
+        // Publish the value before the time until which it holds.
+        seconds = result;
+        nextSecond = origin + TimeUnit.SECONDS.toNanos(result + 1L);
+        return result;
+    }
+
+    /**
+     * Packs an issue key into a <tt>long</tt>: the id of its prefix (plus one, so that the result is never 0) in the
+     * high half, and its number in the low half.
+     *
+     * @return the packed key, or 0 if the pool of prefixes is full.
+     */
+    long encode(String issueKey) {
+        if (issueKey == null) {
+            throw new NullPointerException("issueKey");
+        }
+        int number = NO_NUMBER;
+        String prefix = issueKey;
+        final int start = issueKey.lastIndexOf('-') + 1;
+        final int digits = issueKey.length() - start;
+        if (start > 0 && digits > 0 && digits <= 9 && (digits == 1 || issueKey.charAt(start) != '0')) {
+            int parsed = 0;
+            for (int i = start; i < issueKey.length() && parsed >= 0; i++) {
+                final char c = issueKey.charAt(i);
+                parsed = c >= '0' && c <= '9' ? parsed * 10 + (c - '0') : -1;
+            }
+            if (parsed >= 0) {
+                number = parsed;
+                prefix = issueKey.substring(0, start);
+            }
+        }
+        final int id = intern(prefix);
+        return id < 0 ? 0 : ((long) (id + 1) << 32) | (number & 0xFFFFFFFFL);
+    }
+
+    String decode(long value) {
+        final String prefix = prefixes[(int) (value >>> 32) - 1];
+        final int number = (int) value;
+        return number == NO_NUMBER ? prefix : prefix + number;
+    }
+
+    /**
+     * @return the id of a prefix in the pool, or -1 if the pool is full.
+     */
+    private int intern(String prefix) {
+        final Integer known = prefixIds.get(prefix);
+        if (known != null) {
+            return known;
+        }
+        synchronized (prefixIds) {
+            final Integer raced = prefixIds.get(prefix);
+            if (raced != null) {
+                return raced;
+            }
+            final int id = prefixIds.size();
+            if (id >= MAXIMUM_PREFIXES) {
+                return -1;
+            }
+            String[] current = prefixes;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            // Publish the prefix before its id can be used.
+            current[id] = prefix;
+            prefixes = current;
+            prefixIds.put(prefix, id);
+            return id;
+        }
+    }
+
+    /**
+     * An open-addressing hash table with linear probing. A value of 0 marks an empty slot.
+     */
+    private final class Segment {
+        private final int capacity;
+        private final int mask;
+        private final long[] keys;
+        private final long[] values;
+
+        /** The time (in seconds since the cache was created) at which every entry was last used (or written). */
+        private final int[] times;
+
+        /** Where the next sample of entries to evict from starts. */
+        private int cursor;
+
+        volatile int size;
+        volatile long evictions;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            int length = 2;
+            while (length < capacity * 2) {
+                length <<= 1;
+            }
+            this.mask = length - 1;
+            this.keys = new long[length];
+            this.values = new long[length];
+            this.times = new int[length];
+        }
+
+        synchronized long get(long fingerprint, long hash) {
+            final int index = find(fingerprint, hash);
+            if (index < 0) {
+                return 0;
+            }
+            // Only read the clock when it matters, as doing so costs about as much as the lookup itself.
+            if (expirySeconds == 0 && expireAfterWrite) {
+                return values[index];
+            }
+            final int now = now();
+            if (isExpired(index, now)) {
+                remove(index);
+                evictions++;
+                return 0;
+            }
+            // Entries that are used often are mostly used within the same second: leave their time alone.
+            if (!expireAfterWrite && times[index] != now) {
+                times[index] = now;
+            }
+            return values[index];
+        }
+
+        synchronized boolean put(long fingerprint, long hash, long value, int now, boolean onlyIfAbsent) {
+            int index = find(fingerprint, hash);
+            if (index >= 0) {
+                if (onlyIfAbsent && !isExpired(index, now)) {
+                    return false;
+                }
+                values[index] = value;
+                times[index] = now;
+                return true;
+            }
+            if (size == capacity) {
+                evict(now);
+            }
+            index = home(hash);
+            while (values[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = fingerprint;
+            values[index] = value;
+            times[index] = now;
+            size++;
+            return true;
+        }
+
+        synchronized void clear() {
+            Arrays.fill(values, 0);
+            size = 0;
+        }
+
+        private int home(long hash) {
+            return (int) (hash >>> 32) & mask;
+        }
+
+        private int find(long fingerprint, long hash) {
+            for (int index = home(hash); values[index] != 0; index = (index + 1) & mask) {
+                if (keys[index] == fingerprint) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isExpired(int index, int now) {
+            return expirySeconds > 0 && now - times[index] >= expirySeconds;
+        }
+
+        /**
+         * Removes the least recently used (or written) of a sample of entries, or the first expired entry in it.
+         */
+        private void evict(int now) {
+            int victim = -1;
+            int sampled = 0;
+            for (int i = 0; i <= mask && sampled < EVICTION_SAMPLE_SIZE; i++) {
+                final int index = (cursor + i) & mask;
+                if (values[index] == 0) {
+                    continue;
+                }
+                sampled++;
+                if (victim < 0 || times[index] - times[victim] < 0) {
+                    victim = index;
+                }
+                if (isExpired(index, now)) {
+                    victim = index;
+                    break;
+                }
+            }
+            cursor = (victim + 1) & mask;
+            remove(victim);
+            evictions++;
+        }
+
+        /**
+         * Empties a slot, and moves later entries of the same probe sequence into it, so that lookups never stop at a
+         * slot that was emptied.
+         */
+        private void remove(int index) {
+            values[index] = 0;
+            size--;
+            int hole = index;
+            for (int next = (hole + 1) & mask; values[next] != 0; next = (next + 1) & mask) {
+                final int home = home(keys[next] * MULTIPLIER);
+                // Leave the entry where it is if its home lies cyclically within (hole, next].
+                final boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!stays) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    times[hole] = times[next];
+                    values[next] = 0;
+                    hole = next;
+                }
+            }
+        }
+    }
+}
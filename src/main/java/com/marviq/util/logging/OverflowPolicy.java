@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Defines what happens to an event that is to be dispatched asynchronously while the dispatch buffer is full.
+ */
+public enum OverflowPolicy {
+
+    /** The event that could not be buffered is discarded. */
+    DROP_NEWEST("drop-newest"),
+
+    /** The oldest buffered event is discarded to make room for the new event. */
+    DROP_OLDEST("drop-oldest"),
+
+    /**
+     * If an event with the same fingerprint is still waiting to be dispatched, the new event is counted as an
+     * additional occurrence of that event. Otherwise, the new event is discarded.
+     */
+    COALESCE("coalesce");
+
+    private final String configValue;
+
+    private OverflowPolicy(String configValue) {
+        this.configValue = configValue;
+    }
+
+    /**
+     * @return the value by which this policy is identified in a log4j configuration.
+     */
+    public String getConfigValue() {
+        return configValue;
+    }
+
+    /**
+     * Parses a configuration value (case-insensitive; underscores and dashes are interchangeable).
+     *
+     * @param value the value to parse.
+     * @return the corresponding policy, or <tt>null</tt> if the value does not identify a policy.
+     */
+    public static OverflowPolicy fromConfigValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        final String normalized = value.trim().replace('_', '-');
+        for (final OverflowPolicy policy : values()) {
+            if (policy.configValue.equalsIgnoreCase(normalized)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * An event that is waiting to be sent to JIRA. Usually, it has passed all filters of the appender; unless the
+ * dispatcher needs fingerprints, the event may also be waiting to be fingerprinted and filtered by a worker.
+ *
+ * Besides the event itself, an instance keeps track of the number of occurrences that it represents. While the event
+ * is waiting, later events with the same fingerprint can be folded into it by {@link #tryCoalesce()}. Once a worker
+ * picks the event up, it calls {@link #seal()}, after which no more occurrences can be added.
+ */
+final class PendingEvent {
+
+    private static final int SEALED = -1;
+
+    private static final AtomicIntegerFieldUpdater<PendingEvent> OCCURRENCES =
+            AtomicIntegerFieldUpdater.newUpdater(PendingEvent.class, "occurrences");
+
+    final ErrorEvent event;
+    final long hash;
+
+    /** Whether {@link #hash} holds the fingerprint of the event; if not, the event has yet to be processed. */
+    final boolean fingerprinted;
+
+    private volatile int occurrences;
+
+    PendingEvent(ErrorEvent event, long hash, int occurrences) {
+        this.event = event;
+        this.hash = hash;
+        this.fingerprinted = true;
+        this.occurrences = occurrences;
+    }
+
+    /**
+     * @param event an event that has not been fingerprinted yet.
+     */
+    PendingEvent(ErrorEvent event) {
+        this.event = event;
+        this.hash = 0;
+        this.fingerprinted = false;
+        this.occurrences = 1;
+    }
+
+    /**
+     * Adds an occurrence to this event, unless it has been sealed.
+     *
+     * @return <tt>true</tt> if the occurrence was added, <tt>false</tt> if this event has already been sealed.
+     */
+    boolean tryCoalesce() {
+        for (;;) {
+            final int current = occurrences;
+            if (current == SEALED || current == Integer.MAX_VALUE) {
+                return false;
+            }
+            if (OCCURRENCES.compareAndSet(this, current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if a worker has picked this event up, after which no more occurrences can be added.
+     */
+    boolean isSealed() {
+        return occurrences == SEALED;
+    }
+
+    /**
+     * Prevents further occurrences from being added to this event.
+     *
+     * @return the number of occurrences represented by this event.
+     */
+    int seal() {
+        final int current = OCCURRENCES.getAndSet(this, SEALED);
+        return current == SEALED ? 1 : current;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Identifies the remote interface of JIRA through which the appender makes its calls.
+ */
+public enum Protocol {
+
+    /** The <tt>jira1</tt> XML-RPC interface, at <tt>/rpc/xmlrpc</tt> (deprecated by JIRA 6.0, removed in JIRA 7.0). */
+    XMLRPC("xmlrpc"),
+
+    /**
+     * The REST interface, at <tt>/rest/api/2</tt> (available since JIRA 5.0). Its JSON encoding is more compact than
+     * that of XML-RPC, especially for descriptions that hold many special characters, such as stack traces.
+     */
+    REST("rest");
+
+    private final String configValue;
+
+    private Protocol(String configValue) {
+        this.configValue = configValue;
+    }
+
+    /**
+     * @return the value by which this protocol is identified in a log4j configuration.
+     */
+    public String getConfigValue() {
+        return configValue;
+    }
+
+    /**
+     * Parses a configuration value (case-insensitive; dashes are ignored).
+     *
+     * @param value the value to parse.
+     * @return the corresponding protocol, or <tt>null</tt> if the value does not identify a protocol.
+     */
+    public static Protocol fromConfigValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        final String normalized = value.trim().replace("-", "");
+        for (final Protocol protocol : values()) {
+            if (protocol.configValue.equalsIgnoreCase(normalized)) {
+                return protocol;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Makes calls through the REST interface of JIRA (available since JIRA 5.0), translating them to and from the form of
+ * the <tt>jira1</tt> XML-RPC methods (see {@link JiraTransport}):
+ * <ul>
+ * <li><tt>jira1.login</tt> and <tt>jira1.logout</tt> create and delete a session at <tt>/rest/auth/1/session</tt>; the
+ * session cookie serves as the authentication token;</li>
+ * <li><tt>jira1.createIssue</tt> posts to <tt>/rest/api/2/issue</tt>;</li>
+ * <li><tt>jira1.addComment</tt> posts to <tt>/rest/api/2/issue/{key}/comment</tt>;</li>
+ * <li><tt>jira1.getIssuesFromJqlSearch</tt> posts to <tt>/rest/api/2/search</tt>, asking for descriptions only.</li>
+ * </ul>
+ *
+ * Requests are encoded straight into a buffer that every thread reuses, and handed to the connection in one piece.
+ * The connection then sends the body along with the headers; in streaming mode, it would send the headers on their
+ * own first, which makes every request wait for an acknowledgement of the network. Connections are kept alive and
+ * reused by later calls (see the <tt>http.keepAlive</tt> and <tt>http.maxConnections</tt> system properties, which
+ * size the connection pool of {@link java.net.HttpURLConnection}). To that end, every response is read to its end.
+ *
+ * Responses are requested in compressed form. Request bodies can be compressed as well, but JIRA does not accept
+ * compressed requests by itself: that takes a proxy in front of it that decompresses them.
+ */
+final class RestJiraTransport implements JiraTransport {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = RestJiraTransport.class.getSimpleName();
+
+    private static final String SESSION_PATH = "/rest/auth/1/session";
+    private static final String ISSUE_PATH = "/rest/api/2/issue";
+    private static final String SEARCH_PATH = "/rest/api/2/search";
+
+    /** Request bodies that are smaller than this (in bytes) are not compressed, as that would hardly save anything. */
+    private static final int MIN_COMPRESSED_SIZE = 1024;
+
+    /** Buffers that grew larger than this (in bytes) are not kept for the next request. */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private final String url;
+    private final boolean compressRequests;
+
+    /**
+     * @param url              the base URL of the JIRA instance.
+     * @param compressRequests whether request bodies are compressed.
+     */
+    RestJiraTransport(String url, boolean compressRequests) {
+        this.url = url;
+        this.compressRequests = compressRequests;
+    }
+
+    public Object execute(String method, List<Object> params, int connectTimeout, int readTimeout)
+            throws MalformedURLException, XmlRpcException {
+        final Buffers buffers = BUFFERS.get();
+        try {
+            if (AppenderMetrics.LOGIN.equals(method)) {
+                final JsonWriter json = buffers.startBody();
+                json.beginObject().name("username").value((String) params.get(0));
+                json.name("password").value((String) params.get(1)).endObject();
+                final Map<?, ?> session = (Map<?, ?>) ((Map<?, ?>) send(method, "POST", SESSION_PATH, null,
+                        buffers, connectTimeout, readTimeout)).get("session");
+                return session.get("name") + "=" + session.get("value");
+            }
+            final String token = (String) params.get(0);
+            if ("jira1.logout".equals(method)) {
+                send(method, "DELETE", SESSION_PATH, token, null, connectTimeout, readTimeout);
+                return Boolean.TRUE;
+            }
+            if (AppenderMetrics.CREATE_ISSUE.equals(method)) {
+                writeIssue(buffers.startBody(), (Map<?, ?>) params.get(1));
+                final Map<?, ?> created = (Map<?, ?>) send(method, "POST", ISSUE_PATH, token, buffers,
+                        connectTimeout, readTimeout);
+                final Map<String, Object> result = new HashMap<String, Object>();
+                result.put("key", created.get("key"));
+                return result;
+            }
+            if (AppenderMetrics.ADD_COMMENT.equals(method)) {
+                buffers.startBody().beginObject().name("body").value((String) params.get(2)).endObject();
+                send(method, "POST", ISSUE_PATH + "/" + encode((String) params.get(1)) + "/comment", token, buffers,
+                        connectTimeout, readTimeout);
+                return Boolean.TRUE;
+            }
+            if (AppenderMetrics.SEARCH.equals(method)) {
+                final JsonWriter json = buffers.startBody();
+                json.beginObject().name("jql").value((String) params.get(1));
+                json.name("maxResults").value(((Number) params.get(2)).longValue());
+                json.name("fields").beginArray().value("description").endArray().endObject();
+                return toIssues((Map<?, ?>) send(method, "POST", SEARCH_PATH, token, buffers, connectTimeout,
+                        readTimeout));
+            }
+        } catch (MalformedURLException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new XmlRpcException("Failed to call " + url + " for " + method + ": " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // a response of an unexpected form
+            throw new XmlRpcException("Unable to process the response of " + url + " for " + method + ": " + e, e);
+        }
+        throw new XmlRpcException(0, "No such method: " + method);
+    }
+
+    /**
+     * Writes the fields of an issue, given in the form of <tt>jira1.createIssue</tt>.
+     */
+    private static void writeIssue(JsonWriter json, Map<?, ?> issue) throws IOException {
+        json.beginObject().name("fields").beginObject();
+        json.name("project").beginObject().name("key").value((String) issue.get("project")).endObject();
+        json.name("issuetype").beginObject().name("id").value((String) issue.get("type")).endObject();
+        json.name("summary").value((String) issue.get("summary"));
+        json.name("description").value((String) issue.get("description"));
+        final String assignee = (String) issue.get("assignee");
+        if (assignee != null) {
+            json.name("assignee").beginObject().name("name").value(assignee).endObject();
+        }
+        json.endObject().endObject();
+    }
+
+    /**
+     * Converts the result of a search to the form of <tt>jira1.getIssuesFromJqlSearch</tt>.
+     */
+    private static Object[] toIssues(Map<?, ?> result) {
+        final List<?> issues = (List<?>) result.get("issues");
+        final Object[] converted = new Object[issues.size()];
+        for (int i = 0; i < converted.length; i++) {
+            final Map<?, ?> issue = (Map<?, ?>) issues.get(i);
+            final Map<?, ?> fields = (Map<?, ?>) issue.get("fields");
+            final Map<String, Object> flat = new HashMap<String, Object>();
+            flat.put("key", issue.get("key"));
+            if (fields != null && fields.get("description") != null) {
+                flat.put("description", fields.get("description"));
+            }
+            converted[i] = flat;
+        }
+        return converted;
+    }
+
+    /**
+     * Sends a request, and reads the response.
+     *
+     * @param method        the <tt>jira1</tt> method that the request corresponds to.
+     * @param requestMethod the HTTP method.
+     * @param path          the path of the resource, relative to the base URL.
+     * @param token         the session cookie, or <tt>null</tt> if not logged in.
+     * @param buffers       holds the body of the request, or <tt>null</tt> if the request has no body.
+     * @return the parsed response, or <tt>null</tt> if the response has no body.
+     */
+    private Object send(String method, String requestMethod, String path, String token, Buffers buffers,
+                        int connectTimeout, int readTimeout) throws IOException, XmlRpcException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod(requestMethod);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        // Requests without this header are refused by the XSRF protection of JIRA.
+        connection.setRequestProperty("X-Atlassian-Token", "no-check");
+        if (token != null) {
+            connection.setRequestProperty("Cookie", token);
+        }
+        if (buffers != null) {
+            final ByteArrayOutputStream body = buffers.finishBody(compressRequests);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            if (buffers.isCompressed(body)) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            final OutputStream out = connection.getOutputStream();
+            try {
+                body.writeTo(out);
+            } finally {
+                out.close();
+                buffers.release();
+            }
+        }
+
+        final int status = connection.getResponseCode();
+        final String response = readFully(connection, status);
+        if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            throw new XmlRpcException(status, "RemoteAuthenticationException: not authenticated (HTTP " + status +
+                    " from " + path + ")");
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND && SEARCH_PATH.equals(path)) {
+            throw new XmlRpcException(status, "No such method: " + method + " (HTTP " + status + " from " + path +
+                    ")");
+        }
+        if (status >= 300) {
+            throw new XmlRpcException(status, "HTTP " + status + " from " + path + describeErrors(response));
+        }
+        return response.length() == 0 ? null : JsonParser.parse(response);
+    }
+
+    /**
+     * Reads the body of a response to its end (which allows the connection to be reused), and closes it.
+     */
+    private static String readFully(HttpURLConnection connection, int status) throws IOException {
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            final Reader reader = new InputStreamReader(in, "UTF-8");
+            final StringBuilder result = new StringBuilder();
+            final char[] chunk = new char[2048];
+            for (int read = reader.read(chunk); read != -1; read = reader.read(chunk)) {
+                result.append(chunk, 0, read);
+            }
+            return result.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the error messages in a response of JIRA, preceded by a colon, or an empty string if there are none.
+     */
+    private static String describeErrors(String response) {
+        try {
+            final Object parsed = JsonParser.parse(response);
+            if (parsed instanceof Map) {
+                final Map<?, ?> errors = (Map<?, ?>) parsed;
+                return ": " + errors.get("errorMessages") + " " + errors.get("errors");
+            }
+        } catch (IllegalArgumentException e) {
+            InternalLog.debug(SIMPLE_NAME + ": The response of JIRA holds no error messages: " + e.getMessage());
+        }
+        return "";
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    /**
+     * The buffers into which the body of a request is encoded, and compressed, by a thread.
+     */
+    private static final class Buffers {
+        private ByteArrayOutputStream plain;
+        private ByteArrayOutputStream compressed;
+
+        /** Encodes into {@link #plain}. */
+        private OutputStreamWriter writer;
+
+        Buffers() {
+            allocate();
+        }
+
+        JsonWriter startBody() {
+            plain.reset();
+            compressed.reset();
+            return new JsonWriter(writer);
+        }
+
+        /**
+         * @return the buffer that holds the finished body: compressed, if that is asked for and worthwhile.
+         */
+        ByteArrayOutputStream finishBody(boolean compress) throws IOException {
+            writer.flush();
+            if (!compress || plain.size() < MIN_COMPRESSED_SIZE) {
+                return plain;
+            }
+            final GZIPOutputStream gzip = new GZIPOutputStream(compressed, 4096);
+            plain.writeTo(gzip);
+            gzip.finish();
+            return compressed;
+        }
+
+        boolean isCompressed(ByteArrayOutputStream body) {
+            return body == compressed;
+        }
+
+        void release() {
+            if (plain.size() > MAX_RETAINED_BUFFER_SIZE || compressed.size() > MAX_RETAINED_BUFFER_SIZE) {
+                allocate();
+            }
+        }
+
+        private void allocate() {
+            plain = new ByteArrayOutputStream(4096);
+            compressed = new ByteArrayOutputStream(4096);
+            try {
+                writer = new OutputStreamWriter(plain, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not supported", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer/multi-consumer queue backed by a fixed-size array.
+ *
+ * Every slot carries a sequence number that tells producers and consumers whether the slot is free to be written or
+ * ready to be read. Claiming a slot costs a single compare-and-set; neither {@link #offer(Object)} nor {@link #poll()}
+ * ever blocks or allocates. When the buffer is full, {@link #offer(Object)} returns <tt>false</tt> immediately, which
+ * leaves the decision of what to do with the surplus element to the caller.
+ *
+ * @param <E> the type of the elements held in this buffer.
+ */
+final class RingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    /** The position at which the next element will be written. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The position from which the next element will be read. */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param capacity the minimum number of elements that can be held. Rounded up to the next power of two.
+     */
+    RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, but was " + capacity);
+        }
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must not exceed " + (1 << 30) + ", but was " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element to the tail of this buffer, if there is room for it.
+     *
+     * @param element the element to add (must not be <tt>null</tt>).
+     * @return <tt>true</tt> if the element was added, <tt>false</tt> if the buffer is full.
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        long position = tail.get();
+        for (;;) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The slot still holds an element from the previous lap: the buffer is full.
+                return false;
+            } else {
+                // Another producer claimed this slot already.
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head of this buffer.
+     *
+     * @return the removed element, or <tt>null</tt> if the buffer is empty.
+     */
+    E poll() {
+        long position = head.get();
+        for (;;) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                // The slot has not been written to yet: the buffer is empty.
+                return null;
+            } else {
+                // Another consumer took this element already.
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of elements in this buffer. As producers and consumers may be active concurrently, the value
+     * is an approximation.
+     *
+     * @return the (approximate) number of elements in this buffer.
+     */
+    int size() {
+        final long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the maximum number of elements that can be held by this buffer.
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * Where the issues of a {@link RoutingTable} rule are created: a project, an assignee, an issue type and a label. A
+ * part that is not set is taken from the options of the appender.
+ *
+ * A route is written as a comma-separated list of settings, such as
+ * <tt>project=BILL, assignee=jdoe, type=3, label=billing</tt>. That form is also how a route is kept in the spool, so
+ * that spooled events are still created in the right place after a restart. Instances are immutable.
+ */
+final class Route {
+
+    private final String projectKey;
+    private final String assignee;
+    private final String issueType;
+    private final String label;
+    private final long salt;
+
+    /**
+     * @param projectKey the key of the project, or <tt>null</tt> for the project of the appender.
+     * @param assignee   the user to assign issues to, or <tt>null</tt> for the assignee of the appender.
+     * @param issueType  the id of the issue type, or <tt>null</tt> for the default type.
+     * @param label      the label in the summary of issues, or <tt>null</tt> for the label of the appender.
+     */
+    Route(String projectKey, String assignee, String issueType, String label) {
+        this.projectKey = projectKey;
+        this.assignee = assignee;
+        this.issueType = issueType;
+        this.label = label;
+        this.salt = projectKey == null ? 0 : computeSalt(projectKey);
+    }
+
+    /**
+     * Parses the written form of a route.
+     *
+     * @param spec the settings of the route, such as <tt>project=BILL, assignee=jdoe</tt>.
+     * @return the route.
+     * @throws IllegalArgumentException if a setting is unknown or malformed.
+     */
+    static Route parse(String spec) {
+        String projectKey = null;
+        String assignee = null;
+        String issueType = null;
+        String label = null;
+        for (final String setting : spec.split(",")) {
+            final int equals = setting.indexOf('=');
+            final String name = equals < 0 ? setting.trim() : setting.substring(0, equals).trim();
+            final String value = equals < 0 ? "" : setting.substring(equals + 1).trim();
+            if (value.length() == 0) {
+                throw new IllegalArgumentException("Missing value of '" + name + "' in route '" + spec + "'");
+            }
+            if ("project".equals(name)) {
+                projectKey = value;
+            } else if ("assignee".equals(name)) {
+                assignee = value;
+            } else if ("type".equals(name)) {
+                issueType = value;
+            } else if ("label".equals(name)) {
+                label = value;
+            } else {
+                throw new IllegalArgumentException("Unknown setting '" + name + "' in route '" + spec + "'");
+            }
+        }
+        return new Route(projectKey, assignee, issueType, label);
+    }
+
+    String getProjectKey() {
+        return projectKey;
+    }
+
+    String getAssignee() {
+        return assignee;
+    }
+
+    String getIssueType() {
+        return issueType;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    /**
+     * Derives the fingerprint of an event that follows this route from the fingerprint of its Throwable, so that
+     * similar events that are sent to different projects end up in different issues. Only the project counts: the
+     * assignee, issue type or label of a route can be changed without affecting the issues that events belong to, and
+     * events that stay in the project of the appender keep the fingerprint of their Throwable.
+     *
+     * @param fingerprint the fingerprint of the Throwable.
+     * @return the fingerprint of the event.
+     */
+    long fingerprint(long fingerprint) {
+        return fingerprint ^ salt;
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a project key.
+     */
+    private static long computeSalt(String projectKey) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < projectKey.length(); i++) {
+            hash = (hash ^ projectKey.charAt(i)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof Route && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * @return the written form of this route.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        append(result, "project", projectKey);
+        append(result, "assignee", assignee);
+        append(result, "type", issueType);
+        append(result, "label", label);
+        return result.toString();
+    }
+
+    private static void append(StringBuilder result, String name, String value) {
+        if (value != null) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(name).append('=').append(value);
+        }
+    }
+}
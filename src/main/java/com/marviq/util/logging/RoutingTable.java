@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An ordered list of rules that decide where the issue of an event is created. The first rule that matches an event
+ * determines its {@link Route}; events that match no rule follow the options of the appender.
+ *
+ * Rules are separated by semicolons. Every rule consists of conditions, an arrow and a route, for instance
+ * <tt>logger=com.example.billing, exception=java.sql.SQLException -&gt; project=BILL, assignee=jdoe</tt>. A rule
+ * matches an event if all of its conditions do:
+ * <ul>
+ * <li><tt>logger=prefix</tt> matches the logger of that name and its descendants;</li>
+ * <li><tt>exception=class</tt> matches Throwables of that class, of its subclasses, or that implement that
+ * interface;</li>
+ * <li><tt>mdc=key</tt> matches events that have a value for that MDC key, and <tt>mdc=key:value</tt> events that have
+ * that value.</li>
+ * </ul>
+ * A rule that has several logger conditions (or several exception conditions) requires only one of them to match.
+ *
+ * Rules are compiled into bit masks, one bit per rule. The rules that a logger name matches are found by looking up
+ * each of its dot-separated prefixes, and the rules that a Throwable class matches by walking up its hierarchy. Both
+ * outcomes are remembered (per logger name and per class), so that routing an event costs two lookups and a few bit
+ * operations, plus the MDC lookups of the rules that remain.
+ */
+final class RoutingTable {
+
+    /** The maximum number of rules, as every rule takes a bit of a <tt>long</tt>. */
+    static final int MAXIMUM_RULES = 64;
+
+    /** A table without rules. */
+    static final RoutingTable EMPTY = new RoutingTable(new ArrayList<Rule>());
+
+    /** The maximum number of logger names of which the matching rules are remembered. */
+    private static final int MAXIMUM_REMEMBERED_LOGGER_NAMES = 8192;
+
+    private static final String ARROW = "->";
+
+    private final Route[] routes;
+
+    /** The rules that have no logger condition. */
+    private final long anyLoggerMask;
+
+    /** The rules that have a logger condition, by logger name prefix. */
+    private final Map<String, Long> loggerMasks = new HashMap<String, Long>();
+
+    /** The rules that have no exception condition. */
+    private final long anyExceptionMask;
+
+    /** The rules that have an exception condition, by class name. */
+    private final Map<String, Long> exceptionMasks = new HashMap<String, Long>();
+
+    /** The rules that have MDC conditions. */
+    private final long mdcMask;
+
+    /** The MDC conditions of every rule, by rule. A value of <tt>null</tt> only requires the key to be present. */
+    private final String[][] mdcKeys;
+    private final String[][] mdcValues;
+
+    /** The outcome of matching the logger conditions, by logger name. */
+    private final ConcurrentMap<String, Long> rememberedLoggerMasks = new ConcurrentHashMap<String, Long>();
+
+    /** The outcome of matching the exception conditions, by class. Does not keep classes from being unloaded. */
+    private final Cache<Class<?>, Long> rememberedExceptionMasks = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(1024)
+            .build();
+
+    private RoutingTable(List<Rule> rules) {
+        routes = new Route[rules.size()];
+        mdcKeys = new String[rules.size()][];
+        mdcValues = new String[rules.size()][];
+        long anyLogger = 0;
+        long anyException = 0;
+        long mdc = 0;
+        for (int i = 0; i < rules.size(); i++) {
+            final Rule rule = rules.get(i);
+            final long bit = 1L << i;
+            routes[i] = rule.route;
+            anyLogger |= addAll(loggerMasks, rule.loggerPrefixes, bit);
+            anyException |= addAll(exceptionMasks, rule.exceptionClasses, bit);
+            mdcKeys[i] = rule.mdcKeys.toArray(new String[rule.mdcKeys.size()]);
+            mdcValues[i] = rule.mdcValues.toArray(new String[rule.mdcValues.size()]);
+            if (mdcKeys[i].length > 0) {
+                mdc |= bit;
+            }
+        }
+        this.anyLoggerMask = anyLogger;
+        this.anyExceptionMask = anyException;
+        this.mdcMask = mdc;
+    }
+
+    /**
+     * Compiles rules into a table.
+     *
+     * @param rules the rules, separated by semicolons.
+     * @return the table.
+     * @throws IllegalArgumentException if a rule is malformed, or if there are too many.
+     */
+    static RoutingTable compile(String rules) {
+        final List<Rule> parsed = new ArrayList<Rule>();
+        for (final String rule : rules.split(";")) {
+            if (rule.trim().length() > 0) {
+                parsed.add(Rule.parse(rule.trim()));
+            }
+        }
+        if (parsed.size() > MAXIMUM_RULES) {
+            throw new IllegalArgumentException("At most " + MAXIMUM_RULES + " routing rules are supported, but " +
+                    parsed.size() + " were given");
+        }
+        return new RoutingTable(parsed);
+    }
+
+    /**
+     * @return <tt>true</tt> if this table has no rules.
+     */
+    boolean isEmpty() {
+        return routes.length == 0;
+    }
+
+    /**
+     * @return the projects that the rules route events to, in the order of the rules.
+     */
+    Set<String> getProjectKeys() {
+        final Set<String> result = new LinkedHashSet<String>();
+        for (final Route route : routes) {
+            if (route.getProjectKey() != null) {
+                result.add(route.getProjectKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines the route of an event.
+     *
+     * @param event the event.
+     * @return the route of the first rule that matches the event, or <tt>null</tt> if none does.
+     */
+    Route route(ErrorEvent event) {
+        if (routes.length == 0) {
+            return null;
+        }
+        long mask = loggerMask(event.getLoggerName());
+        if (mask != 0) {
+            mask &= exceptionMask(event.getThrowable().getClass());
+        }
+        for (; mask != 0; mask &= mask - 1) {
+            final int index = Long.numberOfTrailingZeros(mask);
+            if ((mdcMask & (1L << index)) == 0 || matchesMdc(index, event)) {
+                return routes[index];
+            }
+        }
+        return null;
+    }
+
+    private long loggerMask(String loggerName) {
+        final Long known = rememberedLoggerMasks.get(loggerName);
+        if (known != null) {
+            return known;
+        }
+        long result = anyLoggerMask;
+        if (!loggerMasks.isEmpty()) {
+            for (int i = loggerName.indexOf('.'); i >= 0; i = loggerName.indexOf('.', i + 1)) {
+                result |= get(loggerMasks, loggerName.substring(0, i));
+            }
+            result |= get(loggerMasks, loggerName);
+        }
+        if (rememberedLoggerMasks.size() < MAXIMUM_REMEMBERED_LOGGER_NAMES) {
+            rememberedLoggerMasks.put(loggerName, result);
+        }
+        return result;
+    }
+
+    private long exceptionMask(Class<?> throwableClass) {
+        final Long known = rememberedExceptionMasks.getIfPresent(throwableClass);
+        if (known != null) {
+            return known;
+        }
+        long result = anyExceptionMask;
+        if (!exceptionMasks.isEmpty()) {
+            for (Class<?> type = throwableClass; type != null; type = type.getSuperclass()) {
+                result |= get(exceptionMasks, type.getName());
+                result |= interfaceMask(type);
+            }
+        }
+        rememberedExceptionMasks.put(throwableClass, result);
+        return result;
+    }
+
+    private long interfaceMask(Class<?> type) {
+        long result = 0;
+        for (final Class<?> implemented : type.getInterfaces()) {
+            result |= get(exceptionMasks, implemented.getName()) | interfaceMask(implemented);
+        }
+        return result;
+    }
+
+    private boolean matchesMdc(int index, ErrorEvent event) {
+        for (int i = 0; i < mdcKeys[index].length; i++) {
+            final Object value = event.getMdc(mdcKeys[index][i]);
+            if (value == null || mdcValues[index][i] != null && !mdcValues[index][i].equals(value.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a rule to the masks of some names.
+     *
+     * @return the bit of the rule if it has no names (and so matches any name), or else 0.
+     */
+    private static long addAll(Map<String, Long> masks, List<String> names, long bit) {
+        for (final String name : names) {
+            masks.put(name, get(masks, name) | bit);
+        }
+        return names.isEmpty() ? bit : 0;
+    }
+
+    private static long get(Map<String, Long> masks, String name) {
+        final Long mask = masks.get(name);
+        return mask == null ? 0 : mask;
+    }
+
+    /**
+     * A rule as it was written.
+     */
+    private static final class Rule {
+        final List<String> loggerPrefixes = new ArrayList<String>();
+        final List<String> exceptionClasses = new ArrayList<String>();
+        final List<String> mdcKeys = new ArrayList<String>();
+        final List<String> mdcValues = new ArrayList<String>();
+        Route route;
+
+        static Rule parse(String spec) {
+            final int arrow = spec.indexOf(ARROW);
+            if (arrow < 0) {
+                throw new IllegalArgumentException("Missing '" + ARROW + "' in routing rule '" + spec + "'");
+            }
+            final Rule rule = new Rule();
+            for (final String condition : spec.substring(0, arrow).split(",")) {
+                final int equals = condition.indexOf('=');
+                final String name = equals < 0 ? condition.trim() : condition.substring(0, equals).trim();
+                final String value = equals < 0 ? "" : condition.substring(equals + 1).trim();
+                if (value.length() == 0) {
+                    throw new IllegalArgumentException("Missing value of '" + name + "' in routing rule '" + spec +
+                            "'");
+                }
+                if ("logger".equals(name)) {
+                    rule.loggerPrefixes.add(value.endsWith(".") ? value.substring(0, value.length() - 1) : value);
+                } else if ("exception".equals(name)) {
+                    rule.exceptionClasses.add(value);
+                } else if ("mdc".equals(name)) {
+                    final int colon = value.indexOf(':');
+                    rule.mdcKeys.add(colon < 0 ? value : value.substring(0, colon).trim());
+                    rule.mdcValues.add(colon < 0 ? null : value.substring(colon + 1).trim());
+                } else {
+                    throw new IllegalArgumentException("Unknown condition '" + name + "' in routing rule '" + spec +
+                            "'");
+                }
+            }
+            rule.route = Route.parse(spec.substring(arrow + ARROW.length()));
+            return rule;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends the events in an {@link EventSpool} to JIRA, on a thread of its own.
+ *
+ * The spool is replayed when the replayer starts (which sends the events that were spooled before a restart), at a
+ * fixed interval, and whenever the appender notices that calls to JIRA succeed again. Events are read in batches. Within
+ * a batch, events with the same fingerprint are merged, so that they result in a single issue or comment.
+ *
+ * Replaying stops at the first event that cannot be sent. If some events of the batch were sent, the batch is removed
+ * from the spool and the events that were not sent are appended to it again; otherwise, the batch is left as it is.
+ * Either way, no event is sent twice.
+ */
+final class SpoolReplayer {
+
+    /** The maximum number of events that are read from the spool at once. */
+    static final int BATCH_SIZE = 100;
+
+    private final JiraEngine appender;
+    private final EventSpool spool;
+    private final AppenderMetrics metrics;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /** Set while a replay that was requested by {@link #wake()} is waiting to run. */
+    private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+
+    private final Runnable task = new Runnable() {
+        public void run() {
+            wakeScheduled.set(false);
+            try {
+                replay();
+            } catch (RuntimeException e) {
+                InternalLog.error("Unexpected failure while replaying spooled events", e);
+            }
+        }
+    };
+
+    /**
+     * Creates a replayer, and starts replaying.
+     *
+     * @param appender       the appender that sends the events.
+     * @param spool          the spool to replay.
+     * @param intervalMillis the time between attempts to replay the spool.
+     * @param name           the name of the thread that replays the spool.
+     */
+    SpoolReplayer(JiraEngine appender, EventSpool spool, long intervalMillis, String name) {
+        this.appender = appender;
+        this.spool = spool;
+        this.metrics = appender.getMetrics();
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name).build());
+        scheduler.scheduleWithFixedDelay(task, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests the spool to be replayed soon, unless it is empty. Cheap enough to be called after every successful
+     * call to JIRA.
+     */
+    void wake() {
+        if (spool.isEmpty() || !wakeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Stops replaying, waiting a while for a replay that is in progress to finish.
+     *
+     * @param deadline the time until which to wait.
+     */
+    void stop(Deadline deadline) {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends spooled events to JIRA, batch by batch, until the spool is empty or an event cannot be sent.
+     *
+     * @return the number of spooled events that were sent.
+     */
+    int replay() {
+        int sent = 0;
+        for (;;) {
+            final EventSpool.Batch batch = spool.read(BATCH_SIZE);
+            if (batch.getEvents().isEmpty()) {
+                return sent;
+            }
+
+            final Map<Long, SpooledEvent> merged = new LinkedHashMap<Long, SpooledEvent>();
+            final Map<Long, Integer> counts = new LinkedHashMap<Long, Integer>();
+            for (final SpooledEvent event : batch.getEvents()) {
+                final SpooledEvent earlier = merged.get(event.getFingerprint());
+                merged.put(event.getFingerprint(), earlier == null ? event : earlier.merge(event));
+                final Integer count = counts.get(event.getFingerprint());
+                counts.put(event.getFingerprint(), count == null ? 1 : count + 1);
+            }
+
+            final List<SpooledEvent> unsent = new ArrayList<SpooledEvent>();
+            int sentInBatch = 0;
+            for (final SpooledEvent event : merged.values()) {
+                if (unsent.isEmpty() && appender.replay(event)) {
+                    sentInBatch += counts.get(event.getFingerprint());
+                } else {
+                    unsent.add(event);
+                }
+            }
+            if (sentInBatch == 0) {
+                // Nothing could be sent. Leave the batch for the next attempt.
+                return sent;
+            }
+
+            spool.acknowledge(batch);
+            for (final SpooledEvent event : unsent) {
+                spool.append(event);
+            }
+            metrics.eventsReplayed(sentInBatch);
+            sent += sentInBatch;
+            InternalLog.debug("Replayed " + sentInBatch + " spooled events as " + (merged.size() - unsent.size()) +
+                    " issues or comments.");
+            if (!unsent.isEmpty()) {
+                return sent;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * An event that could not be sent to JIRA, as it is kept in an {@link EventSpool} until it can be sent.
+ *
+ * The event is stored in its rendered form: either as a new issue (a summary and a description), or as a comment on
+ * an existing issue. Occurrences of events with the same fingerprint can be merged into a single instance, which then
+ * covers the time from the first until the last occurrence. An event for a new issue that is routed elsewhere than the
+ * appender sends events by default also keeps its {@link Route}.
+ *
+ * Instances are immutable.
+ */
+final class SpooledEvent {
+
+    private final long fingerprint;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final int occurrences;
+    private final String issueKey;
+    private final String summary;
+    private final String text;
+    private final String route;
+
+    /**
+     * @param fingerprint    the fingerprint of the Throwable of the event.
+     * @param firstTimestamp the time of the (first) occurrence.
+     * @param lastTimestamp  the time of the last occurrence.
+     * @param occurrences    the number of occurrences.
+     * @param issueKey       the key of the issue to comment on, or <tt>null</tt> if an issue is to be created.
+     * @param summary        the summary of the issue to create, or <tt>null</tt> for a comment.
+     * @param text           the description of the issue, or the text of the comment.
+     */
+    SpooledEvent(long fingerprint, long firstTimestamp, long lastTimestamp, int occurrences, String issueKey,
+                 String summary, String text) {
+        this(fingerprint, firstTimestamp, lastTimestamp, occurrences, issueKey, summary, text, null);
+    }
+
+    /**
+     * @param fingerprint    the fingerprint of the event.
+     * @param firstTimestamp the time of the (first) occurrence.
+     * @param lastTimestamp  the time of the last occurrence.
+     * @param occurrences    the number of occurrences.
+     * @param issueKey       the key of the issue to comment on, or <tt>null</tt> if an issue is to be created.
+     * @param summary        the summary of the issue to create, or <tt>null</tt> for a comment.
+     * @param text           the description of the issue, or the text of the comment.
+     * @param route          the written form of the route of the issue to create, or <tt>null</tt> for the default
+     *                       route.
+     */
+    SpooledEvent(long fingerprint, long firstTimestamp, long lastTimestamp, int occurrences, String issueKey,
+                 String summary, String text, String route) {
+        if (text == null) {
+            throw new IllegalArgumentException("A text is required.");
+        }
+        this.fingerprint = fingerprint;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.occurrences = occurrences;
+        this.issueKey = issueKey;
+        this.summary = summary;
+        this.text = text;
+        this.route = route;
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    int getOccurrences() {
+        return occurrences;
+    }
+
+    /**
+     * @return the key of the issue to comment on, or <tt>null</tt> if an issue is to be created.
+     */
+    String getIssueKey() {
+        return issueKey;
+    }
+
+    String getSummary() {
+        return summary;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    /**
+     * @return the written form of the route of the issue to create, or <tt>null</tt> for the default route.
+     */
+    String getRoute() {
+        return route;
+    }
+
+    /**
+     * Merges a later event with the same fingerprint into this one. The text of this event is kept; the issue key is
+     * taken from whichever event has one.
+     *
+     * @param later an event with the same fingerprint.
+     * @return the merged event.
+     */
+    SpooledEvent merge(SpooledEvent later) {
+        final long occurrenceSum = (long) occurrences + later.occurrences;
+        return new SpooledEvent(fingerprint, Math.min(firstTimestamp, later.firstTimestamp),
+                Math.max(lastTimestamp, later.lastTimestamp), (int) Math.min(Integer.MAX_VALUE, occurrenceSum),
+                later.issueKey != null ? later.issueKey : issueKey, summary != null ? summary : later.summary, text,
+                route != null ? route : later.route);
+    }
+
+    @Override
+    public String toString() {
+        return "SpooledEvent[fingerprint=" + fingerprint + ", occurrences=" + occurrences + ", issueKey=" + issueKey +
+                "]";
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+/**
+ * The default {@link FingerprintStrategy}: a 64-bit digest of the stack trace of a Throwable and those of its causes.
+ *
+ * Like the stack trace elements themselves, the digest covers the declaring class, method name, file name and line
+ * number of each frame. Exception messages are ignored by design (allowing a message to contain instance-specific
+ * information), for the Throwable itself as well as for its causes.
+ *
+ * Before frames are digested, they are canonicalized by a {@link FrameNormalizer}, which removes or shortens frames of
+ * classes that are generated at runtime (reflection accessors, proxies, CGLIB subclasses and the like).
+ *
+ * The cost of a digest is bounded: only the first (innermost) frames of each Throwable, and only the first causes in
+ * the chain are taken into account. A chain of causes that loops back onto itself is detected, and ends the digest.
+ */
+public class StackTraceFingerprintStrategy implements FingerprintStrategy {
+
+    /** Default maximum number of frames per Throwable that are part of the fingerprint. */
+    public static final int DEFAULT_MAX_FRAMES = 128;
+
+    /** Default maximum number of causes that are part of the fingerprint. */
+    public static final int DEFAULT_MAX_CAUSES = 16;
+
+    /** Identifies this implementation in {@link #getScheme()}. Change it whenever the digest itself changes. */
+    private static final int VERSION = 3;
+
+    private static final long SEED = 0xCBF29CE484222325L;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final int maxFrames;
+    private final int maxCauses;
+    private final FrameNormalizer normalizer;
+
+    public StackTraceFingerprintStrategy() {
+        this(DEFAULT_MAX_FRAMES, DEFAULT_MAX_CAUSES);
+    }
+
+    /**
+     * @param maxFrames the maximum number of frames per Throwable that are part of the fingerprint, or 0 for no limit.
+     * @param maxCauses the maximum number of causes that are part of the fingerprint, or 0 for no limit.
+     */
+    public StackTraceFingerprintStrategy(int maxFrames, int maxCauses) {
+        this(maxFrames, maxCauses, FrameNormalizer.DEFAULT);
+    }
+
+    /**
+     * @param maxFrames  the maximum number of frames per Throwable that are part of the fingerprint (not counting
+     *                   frames that are skipped by the normalizer), or 0 for no limit.
+     * @param maxCauses  the maximum number of causes that are part of the fingerprint, or 0 for no limit.
+     * @param normalizer canonicalizes frames before they are digested.
+     */
+    public StackTraceFingerprintStrategy(int maxFrames, int maxCauses, FrameNormalizer normalizer) {
+        if (normalizer == null) {
+            throw new IllegalArgumentException("A normalizer is required (use FrameNormalizer.NONE for none).");
+        }
+        this.maxFrames = maxFrames > 0 ? maxFrames : Integer.MAX_VALUE;
+        this.maxCauses = maxCauses > 0 ? maxCauses : Integer.MAX_VALUE;
+        this.normalizer = normalizer;
+    }
+
+    public long fingerprint(Throwable throwable) {
+        return fingerprint(throwable, throwable.getStackTrace());
+    }
+
+    /**
+     * Computes the fingerprint of a Throwable of which the stack trace was obtained already (every call to
+     * {@link Throwable#getStackTrace()} copies it).
+     *
+     * @param throwable  a Throwable (must not be <tt>null</tt>).
+     * @param stackTrace the stack trace of the Throwable.
+     * @return the fingerprint.
+     */
+    long fingerprint(Throwable throwable, StackTraceElement[] stackTrace) {
+        long hash = digest(SEED, stackTrace);
+
+        // Floyd's cycle detection: 'slow' follows the chain at half the speed of 'current', and meets it if it loops.
+        Throwable current = throwable;
+        Throwable slow = throwable;
+        for (int causes = 1; causes <= maxCauses; causes++) {
+            current = current.getCause();
+            if (current == null) {
+                break;
+            }
+            if ((causes & 1) == 0) {
+                slow = slow.getCause();
+            }
+            if (current == slow) {
+                break;
+            }
+            hash = digest(mix(hash, causes), current.getStackTrace());
+        }
+        return finish(hash);
+    }
+
+    public int getScheme() {
+        return 31 * (31 * (31 * VERSION + maxFrames) + maxCauses) + normalizer.hashCode();
+    }
+
+    public int getMaxFrames() {
+        return maxFrames == Integer.MAX_VALUE ? 0 : maxFrames;
+    }
+
+    public int getMaxCauses() {
+        return maxCauses == Integer.MAX_VALUE ? 0 : maxCauses;
+    }
+
+    public FrameNormalizer getNormalizer() {
+        return normalizer;
+    }
+
+    private long digest(long hash, StackTraceElement[] stackTrace) {
+        int frames = 0;
+        for (int i = 0; i < stackTrace.length && frames < maxFrames; i++) {
+            final StackTraceElement element = stackTrace[i];
+            if (element == null) {
+                hash = mix(hash, 0);
+                frames++;
+                continue;
+            }
+            final String className = element.getClassName();
+            final int classLength = normalizer.canonicalLength(className);
+            if (classLength == FrameNormalizer.SKIP) {
+                continue;
+            }
+            final String methodName = element.getMethodName();
+            final String fileName = element.getFileName();
+            hash = mix(hash, ((long) FrameNormalizer.hashCode(className, classLength) << 32)
+                    | (FrameNormalizer.hashCode(methodName, FrameNormalizer.canonicalMethodLength(methodName))
+                    & 0xFFFFFFFFL));
+            hash = mix(hash, ((long) (fileName == null ? 0 : fileName.hashCode()) << 32)
+                    | (element.getLineNumber() & 0xFFFFFFFFL));
+            frames++;
+        }
+        return mix(hash, frames);
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * MULTIPLIER;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which makes every bit of the result depend on every bit of the digest.
+     */
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final StackTraceFingerprintStrategy other = (StackTraceFingerprintStrategy) o;
+        return maxFrames == other.maxFrames && maxCauses == other.maxCauses && normalizer.equals(other.normalizer);
+    }
+
+    @Override
+    public int hashCode() {
+        return getScheme();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[maxFrames=" + getMaxFrames() + ", maxCauses=" + getMaxCauses() +
+                ", normalizer=" + normalizer + "]";
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment concurrently without contending for the same memory location.
+ *
+ * The count is spread over a number of cells, each on its own cache line, and a thread increments the cell that its id
+ * maps to. Reading the counter sums all cells, so reads are more expensive than increments (which is the right trade-off
+ * for statistics that are updated on every event, but read only occasionally).
+ *
+ * Instances are thread-safe. Neither incrementing nor reading ever blocks or allocates.
+ */
+final class StripedCounter {
+
+    /** The number of longs between two cells: 8 longs make 64 bytes, the size of a common cache line. */
+    private static final int PADDING = 8;
+
+    /** The maximum number of cells. */
+    private static final int MAXIMUM_CELLS = 16;
+
+    /** The number of cells, a power of two. Also used by other classes that stripe their state in the same way. */
+    static final int CELLS;
+
+    static {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors() && cells < MAXIMUM_CELLS) {
+            cells <<= 1;
+        }
+        CELLS = cells;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        cells.getAndAdd(((int) Thread.currentThread().getId() & (CELLS - 1)) * PADDING, delta);
+    }
+
+    /**
+     * @return the sum of all increments. Increments that happen concurrently may or may not be included.
+     */
+    long get() {
+        long result = 0;
+        for (int i = 0; i < CELLS; i++) {
+            result += cells.get(i * PADDING);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Renders the text of an issue or a comment: the formatted event, followed by the stack trace of its Throwable, in
+ * the same form as {@link Throwable#printStackTrace()}. The text is bounded in two ways:
+ * <ul>
+ * <li>of every Throwable in the chain of causes, at most a maximum number of frames is shown. The first frames (three
+ * quarters of the maximum) and the last frames (the rest) are kept, as they show where the problem surfaced and which
+ * entry point led to it;</li>
+ * <li>the text as a whole does not exceed a maximum length. Rendering stops as soon as it is reached.</li>
+ * </ul>
+ * As in {@link Throwable#printStackTrace()}, the frames that a cause has in common with the Throwable it caused are
+ * shown as "... N more", suppressed Throwables (Java 7 and later) are shown as indented "Suppressed:" blocks, and every
+ * frame is shown as {@link StackTraceElement#toString()} renders it on the running JVM.
+ *
+ * The stack trace is rendered straight from the frames, into a buffer that every thread reuses, so that a deep stack
+ * trace does not first become an array of lines (as {@link org.apache.log4j.spi.LoggingEvent#getThrowableStrRep()}
+ * does) only to be copied into the text afterwards. Instances are immutable.
+ */
+final class TextRenderer {
+
+    /** The buffers that threads render into. */
+    private static final ThreadLocal<StringBuilder> BUFFERS = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /** Buffers that grew beyond this capacity (in characters) are not kept for reuse. */
+    private static final int MAXIMUM_RETAINED_BUFFER_SIZE = 65536;
+
+    private static final String HEADER = "The following was logged by the application:\n{code}\n";
+    private static final String STACK_OMITTED =
+            "\n...\n(Stacktrace omitted as it is identical to the one in the description of this issue).\n";
+    private static final String FOOTER = "{code}\n";
+
+    /** <tt>Throwable.getSuppressed()</tt>, or <tt>null</tt> before Java 7. */
+    private static final Method GET_SUPPRESSED = getSuppressedMethod();
+    private static final Throwable[] NO_THROWABLES = new Throwable[0];
+
+    private final int maxLength;
+    private final int maxFrames;
+    private final String cutShort;
+
+    /**
+     * @param maxLength the maximum length of a text, in characters, or 0 if texts are not cut short.
+     * @param maxFrames the maximum number of frames of every Throwable in a stack trace, or 0 to show all frames.
+     */
+    TextRenderer(int maxLength, int maxFrames) {
+        this.cutShort = "\n...\n(Cut short to stay within " + maxLength + " characters.)\n";
+        if (maxLength < 0 || maxLength > 0 && maxLength < HEADER.length() + cutShort.length() + FOOTER.length()) {
+            throw new IllegalArgumentException("Invalid maximum length of a text: " + maxLength);
+        }
+        this.maxLength = maxLength;
+        this.maxFrames = maxFrames;
+    }
+
+    int getMaxLength() {
+        return maxLength;
+    }
+
+    int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Renders a text.
+     *
+     * @param formattedEvent the event, as formatted by the layout of the appender.
+     * @param throwable      the Throwable of the event.
+     * @param skipStack      <tt>true</tt> to leave out the stack trace (as for comments on an issue of which the
+     *                       description shows it already).
+     * @return the text.
+     */
+    String render(String formattedEvent, Throwable throwable, boolean skipStack) {
+        StringBuilder text = BUFFERS.get();
+        text.setLength(0);
+        try {
+            text.append(HEADER).append(formattedEvent);
+            if (skipStack) {
+                text.append(STACK_OMITTED);
+            } else if (throwable != null) {
+                renderThrowable(text, throwable);
+            }
+            if (isFull(text)) {
+                int cut = maxLength - cutShort.length() - FOOTER.length();
+                if (Character.isHighSurrogate(text.charAt(cut - 1))) {
+                    cut--; // do not split a character
+                }
+                text.setLength(cut);
+                text.append(cutShort);
+            }
+            text.append(FOOTER);
+            return text.toString();
+        } finally {
+            if (text.capacity() > MAXIMUM_RETAINED_BUFFER_SIZE) {
+                BUFFERS.remove();
+            }
+        }
+    }
+
+    private boolean isFull(StringBuilder text) {
+        return maxLength > 0 && text.length() > maxLength - FOOTER.length();
+    }
+
+    private void renderThrowable(StringBuilder text, Throwable throwable) {
+        final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        renderThrowable(text, throwable, null, "", "", seen);
+    }
+
+    /**
+     * Renders a Throwable, its suppressed Throwables and its cause, as {@link Throwable#printStackTrace()} does.
+     *
+     * @param enclosingTrace the stack trace of the Throwable that encloses this one, or <tt>null</tt>.
+     * @param caption        "Caused by: ", "Suppressed: " or nothing.
+     * @param prefix         the indentation of the lines.
+     */
+    private void renderThrowable(StringBuilder text, Throwable throwable, StackTraceElement[] enclosingTrace,
+                                 String caption, String prefix, Set<Throwable> seen) {
+        if (isFull(text)) {
+            return;
+        }
+        text.append('\n');
+        if (!seen.add(throwable)) {
+            text.append(prefix).append("\t[CIRCULAR REFERENCE:").append(throwable).append(']');
+            return;
+        }
+        text.append(prefix).append(caption).append(throwable);
+        final StackTraceElement[] trace = throwable.getStackTrace();
+        final int inCommon = enclosingTrace == null ? 0 : framesInCommon(trace, enclosingTrace);
+        renderFrames(text, trace, trace.length - inCommon, prefix);
+        if (inCommon > 0) {
+            text.append('\n').append(prefix).append("\t... ").append(inCommon).append(" more");
+        }
+        for (final Throwable suppressed : getSuppressed(throwable)) {
+            renderThrowable(text, suppressed, trace, "Suppressed: ", prefix + '\t', seen);
+        }
+        final Throwable cause = throwable.getCause();
+        if (cause != null) {
+            renderThrowable(text, cause, trace, "Caused by: ", prefix, seen);
+        }
+    }
+
+    /**
+     * Renders the first frames of a stack trace, leaving out those in the middle if there are too many.
+     */
+    private void renderFrames(StringBuilder text, StackTraceElement[] trace, int count, String prefix) {
+        final int tail = maxFrames > 0 && count > maxFrames ? maxFrames / 4 : 0;
+        final int head = maxFrames > 0 && count > maxFrames ? maxFrames - tail : count;
+        for (int i = 0; i < head && !isFull(text); i++) {
+            text.append('\n').append(prefix).append("\tat ").append(trace[i]);
+        }
+        if (head < count) {
+            text.append('\n').append(prefix).append("\t... ").append(count - head - tail).append(" frames omitted");
+            for (int i = count - tail; i < count && !isFull(text); i++) {
+                text.append('\n').append(prefix).append("\tat ").append(trace[i]);
+            }
+        }
+    }
+
+    private static Throwable[] getSuppressed(Throwable throwable) {
+        if (GET_SUPPRESSED != null) {
+            try {
+                return (Throwable[]) GET_SUPPRESSED.invoke(throwable);
+            } catch (IllegalAccessException e) {
+                // Cannot happen: the method is public.
+            } catch (InvocationTargetException e) {
+                // Cannot happen: the method does not throw.
+            }
+        }
+        return NO_THROWABLES;
+    }
+
+    private static Method getSuppressedMethod() {
+        try {
+            return Throwable.class.getMethod("getSuppressed");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of frames at the end of a stack trace that it has in common with an enclosing stack trace.
+     */
+    private static int framesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosingTrace) {
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        return trace.length - 1 - m;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A token bucket rate limiter. The bucket holds a limited number of tokens, and is refilled at a fixed rate. Every
+ * permitted action takes one token; actions for which no token is available are refused (rather than delayed).
+ *
+ * Instances are thread-safe.
+ */
+final class TokenBucket {
+
+    private final Ticker ticker;
+    private final double capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param permits the number of tokens that are added per period.
+     * @param period  the length of the period, in nanoseconds.
+     * @param burst   the maximum number of tokens in the bucket (which starts out full).
+     * @param ticker  the source of time.
+     */
+    TokenBucket(double permits, long period, int burst, Ticker ticker) {
+        if (permits <= 0 || period <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+        this.ticker = ticker;
+        this.capacity = burst;
+        this.tokensPerNano = permits / period;
+        this.tokens = burst;
+        this.lastRefill = ticker.read();
+    }
+
+    /**
+     * Takes a token, if one is available.
+     *
+     * @return <tt>true</tt> if a token was taken, <tt>false</tt> if the bucket is empty.
+     */
+    synchronized boolean tryAcquire() {
+        final long now = ticker.read();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.List;
+
+/**
+ * Makes calls through the <tt>jira1</tt> XML-RPC interface of JIRA, at <tt>/rpc/xmlrpc</tt>.
+ *
+ * The default transport uses {@link java.net.HttpURLConnection}, which keeps connections to the JIRA host alive
+ * between calls (see the <tt>http.keepAlive</tt> and <tt>http.maxConnections</tt> system properties).
+ */
+final class XmlRpcJiraTransport implements JiraTransport {
+
+    /** class#getSimpleName() for this class. */
+    private static final String SIMPLE_NAME = XmlRpcJiraTransport.class.getSimpleName();
+
+    private final String url;
+    private final XmlRpcTransportFactory transportFactory;
+
+    /** Lazily created, as creating the client fails if the configured URL is malformed. */
+    private volatile XmlRpcClient client;
+
+    /**
+     * @param url              the base URL of the JIRA instance.
+     * @param transportFactory the XML-RPC transport to use, or <tt>null</tt> to use the default (HTTP) transport.
+     */
+    XmlRpcJiraTransport(String url, XmlRpcTransportFactory transportFactory) {
+        this.url = url;
+        this.transportFactory = transportFactory;
+    }
+
+    public Object execute(String method, List<Object> params, int connectTimeout, int readTimeout)
+            throws MalformedURLException, XmlRpcException {
+        final XmlRpcClient currentClient = getClient();
+        if (connectTimeout <= 0 && readTimeout <= 0) {
+            return currentClient.execute(method, params);
+        }
+
+        // XML-RPC 3.0 has no timeouts of its own: the connection is opened through a handler that sets them.
+        final XmlRpcClientConfigImpl config = ((XmlRpcClientConfigImpl) currentClient.getClientConfig()).cloneMe();
+        try {
+            config.setServerURL(new URL(null, config.getServerURL().toExternalForm(),
+                    new TimeoutHandler(connectTimeout, readTimeout)));
+        } catch (MalformedURLException e) {
+            throw new XmlRpcException("Unable to apply timeouts to " + config.getServerURL(), e);
+        }
+        return currentClient.execute(config, method, params);
+    }
+
+    private XmlRpcClient getClient() throws MalformedURLException {
+        XmlRpcClient result = client;
+        if (result == null) {
+            synchronized (this) {
+                result = client;
+                if (result == null) {
+                    InternalLog.debug(SIMPLE_NAME + ": Connecting to xml-rpc host on " + url);
+
+                    final XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+                    config.setServerURL(new URL(url + "/rpc/xmlrpc"));
+                    result = new XmlRpcClient();
+                    result.setConfig(config);
+                    result.setTransportFactory(transportFactory != null
+                            ? transportFactory : new PerRequestHttpTransportFactory(result));
+                    client = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a new HTTP transport for every request. The default factory of the XML-RPC client hands out a single
+     * transport, which keeps the connection of the request in progress in a field; concurrent requests through the
+     * same client then read each other's responses (or find their connection closed).
+     */
+    private static final class PerRequestHttpTransportFactory implements XmlRpcTransportFactory {
+        private final XmlRpcClient client;
+
+        PerRequestHttpTransportFactory(XmlRpcClient client) {
+            this.client = client;
+        }
+
+        public XmlRpcTransport getTransport() {
+            return new XmlRpcSunHttpTransport(client);
+        }
+    }
+
+    /**
+     * Opens HTTP(S) connections by means of the default handler of their protocol, and applies timeouts to them.
+     */
+    private static final class TimeoutHandler extends URLStreamHandler {
+        private final int connectTimeout;
+        private final int readTimeout;
+
+        TimeoutHandler(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            return configure(new URL(u.toExternalForm()).openConnection());
+        }
+
+        @Override
+        protected URLConnection openConnection(URL u, Proxy p) throws IOException {
+            return configure(new URL(u.toExternalForm()).openConnection(p));
+        }
+
+        private URLConnection configure(URLConnection connection) {
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            return connection;
+        }
+    }
+}
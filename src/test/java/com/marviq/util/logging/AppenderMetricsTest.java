@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Verifies the statistics that an appender keeps, and their registration as an MBean.
+ */
+public class AppenderMetricsTest {
+
+    private static final Logger LOGGER = Logger.getLogger(AppenderMetricsTest.class);
+
+    /**
+     * Asserts that filtered and accepted events, cache hits and misses, issues, comments, logins and failures are
+     * counted, and that the durations of calls are recorded.
+     */
+    @Test
+    public void testCounters() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "METRICS");
+        appender.setJmx(false);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        final AppenderMetrics metrics = appender.getMetrics();
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.WARN, "warning", throwable));
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "no throwable", null));
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "first", throwable));
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "second", throwable));
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "third", throwable));
+        jira.setUnavailable(true);
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "fails", TokenBucketTest.newThrowable(2)));
+        appender.close();
+
+        // verify
+        Assert.assertEquals(2, metrics.getFilteredEventCount());
+        Assert.assertEquals(4, metrics.getAcceptedEventCount());
+        Assert.assertEquals(2, metrics.getCacheHitCount());
+        Assert.assertEquals(2, metrics.getCacheMissCount());
+        Assert.assertEquals(1, metrics.getIssuesCreatedCount());
+        Assert.assertEquals(2, metrics.getCommentsAddedCount());
+        Assert.assertEquals(1, metrics.getLoginCount());
+        Assert.assertEquals(1, metrics.getFailedCallCount());
+        Assert.assertEquals(2, metrics.getLatency(AppenderMetrics.CREATE_ISSUE).getCount());
+        Assert.assertEquals(2, metrics.getLatency(AppenderMetrics.ADD_COMMENT).getCount());
+        Assert.assertTrue(metrics.getLatency(AppenderMetrics.LOGIN).getMax(TimeUnit.NANOSECONDS) > 0);
+        Assert.assertNull(metrics.getLatency("jira1.logout"));
+    }
+
+    /**
+     * Asserts that the statistics are registered as an MBean when the appender is activated, are readable through the
+     * MBean server, and are unregistered when the appender is closed.
+     */
+    @Test
+    public void testMBeanRegistration() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        jira.setLatencyMillis(5);
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "METRICS");
+        appender.setName("metrics-test");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.setJmx(true);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name =
+                new ObjectName("com.marviq.util.logging:type=JIRALog4jAppender,name=\"metrics-test\"");
+
+        // do magic
+        appender.activateOptions();
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "message", TokenBucketTest.newThrowable(3)));
+
+        // verify
+        Assert.assertTrue(server.isRegistered(name));
+        Assert.assertEquals(1L, server.getAttribute(name, "IssuesCreatedCount"));
+        Assert.assertEquals(1L, server.getAttribute(name, "LoginCount"));
+        Assert.assertTrue((Double) server.getAttribute(name, "CreateIssueMaxMillis") >= 5);
+        Assert.assertTrue((Long) server.getAttribute(name, "CacheSize") >= 1);
+
+        // do magic
+        appender.close();
+
+        // verify
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * Asserts that no MBean is registered unless the appender is configured to do so.
+     */
+    @Test
+    public void testNoMBeanByDefault() throws Exception {
+
+        // setup
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "METRICS");
+        appender.setName("metrics-default");
+        appender.setTransportFactory(new FakeJira().getTransportFactory());
+        final ObjectName name =
+                new ObjectName("com.marviq.util.logging:type=JIRALog4jAppender,name=\"metrics-default\"");
+
+        // do magic
+        appender.activateOptions();
+
+        // verify
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        appender.close();
+    }
+}
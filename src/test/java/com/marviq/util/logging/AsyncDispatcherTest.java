@@ -0,0 +1,411 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the asynchronous dispatching of events by {@link JIRALog4jAppender}, using an engine that records the events
+ * that it would send to JIRA rather than sending them.
+ */
+public class AsyncDispatcherTest {
+
+    private RecordingEngine engine;
+    private JIRALog4jAppender appender;
+
+    @After
+    public void tearDown() {
+        if (appender != null) {
+            engine.release();
+            appender.close();
+        }
+    }
+
+    /**
+     * Asserts that events are dispatched on a thread other than the one that logged them.
+     */
+    @Test
+    public void testDispatchesOnWorkerThread() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 4);
+        engine.release();
+
+        // do magic
+        appender.doAppend(newEvent("message", new Throwable()));
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatched(1));
+        Assert.assertFalse(Thread.currentThread().getName().equals(engine.threadNames.get(0)));
+    }
+
+    /**
+     * Asserts that with a single worker and an overflow policy other than 'coalesce', events are fingerprinted by the
+     * worker rather than by the thread that logged them.
+     */
+    @Test
+    public void testFingerprintsOnWorkerThread() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 4);
+        engine.release();
+        final Set<Thread> walkers = Collections.synchronizedSet(new HashSet<Thread>());
+        final Throwable throwable = new Throwable() {
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                walkers.add(Thread.currentThread());
+                return super.getStackTrace();
+            }
+        };
+
+        // do magic
+        appender.doAppend(newEvent("message", throwable));
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatched(1));
+        Assert.assertFalse(walkers.isEmpty());
+        Assert.assertFalse(walkers.contains(Thread.currentThread()));
+    }
+
+    /**
+     * Asserts that events that are not eligible (below ERROR, or without a Throwable) never reach the buffer.
+     */
+    @Test
+    public void testIneligibleEventsAreNotBuffered() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 1);
+
+        // do magic
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger("test"), Priority.WARN, "warn", new Throwable()));
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger("test"), Priority.ERROR, "no throwable", null));
+
+        // verify
+        Assert.assertEquals(0, appender.getDroppedEventCount());
+        engine.release();
+        Thread.sleep(200);
+        Assert.assertTrue(engine.messages.isEmpty());
+    }
+
+    /**
+     * Asserts that with policy 'drop-newest', events that do not fit in the buffer are discarded and counted.
+     */
+    @Test
+    public void testDropNewest() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 2);
+        appender.doAppend(newEvent("blocking", new Throwable()));
+        Assert.assertTrue(engine.awaitBlocked());
+
+        // do magic
+        for (int i = 0; i < 5; i++) {
+            appender.doAppend(newEvent("event " + i, new Throwable()));
+        }
+        engine.release();
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatched(3));
+        Assert.assertEquals(3, appender.getDroppedEventCount());
+        Assert.assertEquals(Arrays.asList("blocking", "event 0", "event 1"), engine.messages);
+    }
+
+    /**
+     * Asserts that with policy 'drop-oldest', the oldest buffered events make room for new ones.
+     */
+    @Test
+    public void testDropOldest() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_OLDEST, 2);
+        appender.doAppend(newEvent("blocking", new Throwable()));
+        Assert.assertTrue(engine.awaitBlocked());
+
+        // do magic
+        for (int i = 0; i < 5; i++) {
+            appender.doAppend(newEvent("event " + i, new Throwable()));
+        }
+        engine.release();
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatched(3));
+        Assert.assertEquals(3, appender.getDroppedEventCount());
+        Assert.assertEquals(Arrays.asList("blocking", "event 3", "event 4"), engine.messages);
+    }
+
+    /**
+     * Asserts that with policy 'coalesce', events that do not fit in the buffer are counted as occurrences of a
+     * buffered event with the same fingerprint, and that events without such a counterpart are discarded.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.COALESCE, 2);
+        appender.doAppend(newEvent("blocking", new Throwable()));
+        Assert.assertTrue(engine.awaitBlocked());
+        final Throwable similar = new Throwable();
+        final Throwable other = new Throwable();
+
+        // do magic
+        appender.doAppend(newEvent("similar 0", similar));
+        appender.doAppend(newEvent("other 0", other));
+        for (int i = 1; i <= 4; i++) {
+            appender.doAppend(newEvent("similar " + i, similar));
+        }
+        appender.doAppend(newEvent("unrelated", new Throwable()));
+        engine.release();
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatched(3));
+        Assert.assertEquals(4, appender.getCoalescedEventCount());
+        Assert.assertEquals(1, appender.getDroppedEventCount());
+        Assert.assertEquals(Arrays.asList("blocking", "similar 0", "other 0"), engine.messages);
+        Assert.assertEquals(Arrays.asList(1, 5, 1), engine.occurrences);
+    }
+
+    /**
+     * Asserts that closing the appender dispatches the events that are still buffered.
+     */
+    @Test
+    public void testCloseDrainsBuffer() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 8);
+        appender.doAppend(newEvent("blocking", new Throwable()));
+        Assert.assertTrue(engine.awaitBlocked());
+        appender.doAppend(newEvent("buffered", new Throwable()));
+
+        // do magic
+        engine.release();
+        appender.close();
+
+        // verify
+        Assert.assertEquals(Arrays.asList("blocking", "buffered"), engine.messages);
+    }
+
+    /**
+     * Asserts that an event that reaches the appender while it is being closed is dropped, rather than dispatched on
+     * the logging thread.
+     */
+    @Test
+    public void testEventsAfterCloseAreDropped() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 4);
+        engine.release();
+        appender.close();
+
+        // do magic
+        engine.append(ErrorEvent.of("test", System.currentTimeMillis(), new Throwable(), "main", "late",
+                Collections.<String, Object>emptyMap(), "late"));
+
+        // verify
+        Assert.assertTrue(engine.messages.isEmpty());
+        Assert.assertEquals(1, appender.getDroppedEventCount());
+    }
+
+    /**
+     * Asserts that events with distinct fingerprints are dispatched concurrently when there is more than one worker.
+     */
+    @Test
+    public void testWorkersDispatchConcurrently() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 16, 4);
+
+        // do magic
+        for (int i = 0; i < 16; i++) {
+            appender.doAppend(newEvent("event " + i, TokenBucketTest.newThrowable(i)));
+        }
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatching(2));
+        engine.release();
+        Assert.assertTrue(engine.awaitDispatched(16));
+        Assert.assertTrue(new HashSet<String>(engine.threadNames).size() > 1);
+    }
+
+    /**
+     * Asserts that events with the same fingerprint are dispatched by the same worker, in the order in which they were
+     * logged.
+     */
+    @Test
+    public void testWorkersKeepOrderPerFingerprint() throws Exception {
+
+        // setup
+        appender = newAppender(OverflowPolicy.DROP_NEWEST, 64, 4);
+        engine.release();
+        final Throwable first = TokenBucketTest.newThrowable(1);
+        final Throwable second = TokenBucketTest.newThrowable(2);
+
+        // do magic
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(newEvent("a" + i, first));
+            appender.doAppend(newEvent("b" + i, second));
+        }
+
+        // verify
+        Assert.assertTrue(engine.awaitDispatched(40));
+        final List<String> firstMessages = new ArrayList<String>();
+        final Set<String> firstThreads = new HashSet<String>();
+        synchronized (engine.messages) {
+            for (int i = 0; i < engine.messages.size(); i++) {
+                if (engine.messages.get(i).startsWith("a")) {
+                    firstMessages.add(engine.messages.get(i));
+                    firstThreads.add(engine.threadNames.get(i));
+                }
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("a" + i, firstMessages.get(i));
+        }
+        Assert.assertEquals(1, firstThreads.size());
+    }
+
+    /**
+     * Asserts that with several workers, JIRA gets a single issue per fingerprint, and that every other occurrence
+     * results in a comment.
+     */
+    @Test
+    public void testWorkersCreateOneIssuePerFingerprint() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        jira.setLatencyMillis(5);
+        final JIRALog4jAppender jiraAppender = new JIRALog4jAppender("http://localhost", "user", "pass", "WORKERS");
+        jiraAppender.setJmx(false);
+        jiraAppender.setAsync(true);
+        jiraAppender.setWorkers(4);
+        jiraAppender.setTransportFactory(jira.getTransportFactory());
+        jiraAppender.activateOptions();
+
+        // do magic
+        for (int i = 0; i < 5; i++) {
+            for (int line = 0; line < 8; line++) {
+                jiraAppender.doAppend(newEvent("event", TokenBucketTest.newThrowable(line)));
+            }
+        }
+        jiraAppender.close();
+
+        // verify
+        Assert.assertEquals(8, jira.getIssueCount());
+        Assert.assertEquals(32, jira.getCommentCount());
+    }
+
+    /**
+     * Creates an appender of which the engine records what it is asked to dispatch.
+     */
+    private JIRALog4jAppender newAppender(OverflowPolicy policy, int bufferSize) {
+        return newAppender(policy, bufferSize, 1);
+    }
+
+    /**
+     * Creates an appender of which the engine records what it is asked to dispatch, using the given number of workers.
+     */
+    private JIRALog4jAppender newAppender(OverflowPolicy policy, int bufferSize, int workers) {
+        engine = new RecordingEngine();
+        final JIRALog4jAppender result = new JIRALog4jAppender(engine);
+        result.setName("recording");
+        result.setJmx(false);
+        result.setAsync(true);
+        result.setBufferSize(bufferSize);
+        result.setWorkers(workers);
+        result.setOverflowPolicy(policy.getConfigValue());
+        result.activateOptions();
+        return result;
+    }
+
+    private static LoggingEvent newEvent(String message, Throwable throwable) {
+        return new LoggingEvent(null, Logger.getLogger(AsyncDispatcherTest.class), Priority.ERROR, message, throwable);
+    }
+
+    /**
+     * An engine that records what it is asked to dispatch. Dispatching blocks until {@link #release()}
+     * has been called, which allows tests to fill up the buffer.
+     */
+    private static class RecordingEngine extends JiraEngine {
+
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> occurrences = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final AtomicInteger dispatching = new AtomicInteger();
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        RecordingEngine() {
+            super("http://localhost", "username", "password", "TEST");
+        }
+
+        @Override
+        void dispatch(ErrorEvent event, long hash, int occurrences) {
+            blocked.countDown();
+            dispatching.incrementAndGet();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record(event, occurrences);
+        }
+
+        private synchronized void record(ErrorEvent event, int occurrences) {
+            threadNames.add(Thread.currentThread().getName());
+            this.occurrences.add(occurrences);
+            messages.add(event.getMessage());
+        }
+
+        boolean awaitBlocked() throws InterruptedException {
+            return blocked.await(5, TimeUnit.SECONDS);
+        }
+
+        boolean awaitDispatching(int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (dispatching.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            return dispatching.get() >= count;
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        boolean awaitDispatched(int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (messages.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            return messages.size() >= count;
+        }
+    }
+}
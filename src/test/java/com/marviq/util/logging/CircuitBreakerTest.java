@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the circuit breaker, and that the appender stops calling JIRA while it is unavailable.
+ */
+public class CircuitBreakerTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    /**
+     * Asserts that the breaker opens after the configured number of consecutive failures, permits a single trial call
+     * after the delay, opens again if that fails and closes if it succeeds.
+     */
+    @Test
+    public void testStateTransitions() throws Exception {
+
+        // setup
+        final CircuitBreaker breaker = new CircuitBreaker(3, TimeUnit.SECONDS.toNanos(10), ticker);
+
+        // do magic & verify
+        Assert.assertFalse(breaker.recordFailure());
+        Assert.assertFalse(breaker.recordFailure());
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertTrue(breaker.recordFailure());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+
+        ticker.advance(10, TimeUnit.SECONDS);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertTrue(breaker.recordFailure());
+        Assert.assertFalse(breaker.allowRequest());
+
+        ticker.advance(10, TimeUnit.SECONDS);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertTrue(breaker.recordSuccess());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest());
+    }
+
+    /**
+     * Asserts that an abandoned trial call opens the breaker again, so that another trial call is permitted after the
+     * delay, and that abandoned calls do not count as failures while the breaker is closed.
+     */
+    @Test
+    public void testAbandonedTrialCall() throws Exception {
+
+        // setup
+        final CircuitBreaker breaker = new CircuitBreaker(1, TimeUnit.SECONDS.toNanos(10), ticker);
+        Assert.assertFalse(breaker.recordAbandoned());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        ticker.advance(10, TimeUnit.SECONDS);
+        Assert.assertTrue(breaker.allowRequest());
+
+        // do magic
+        final boolean opened = breaker.recordAbandoned();
+
+        // verify
+        Assert.assertTrue(opened);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        ticker.advance(10, TimeUnit.SECONDS);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertTrue(breaker.recordSuccess());
+    }
+
+    /**
+     * Asserts that only consecutive failures open the breaker.
+     */
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+
+        // setup
+        final CircuitBreaker breaker = new CircuitBreaker(2, TimeUnit.SECONDS.toNanos(10), ticker);
+
+        // do magic
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+
+        // verify
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Asserts that the appender stops calling JIRA once a number of calls in a row failed, and resumes once a trial
+     * call succeeds.
+     */
+    @Test
+    public void testAppenderFailsFastDuringOutage() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        jira.setUnavailable(true);
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "BREAKER");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.setTicker(ticker);
+        appender.setCircuitBreakerThreshold(3);
+        appender.setCircuitBreakerDelay(10000);
+        appender.activateOptions();
+
+        // do magic
+        for (int i = 0; i < 10; i++) {
+            log(appender, TokenBucketTest.newThrowable(i));
+        }
+
+        // verify
+        Assert.assertEquals(3, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(7, appender.getRejectedCallCount());
+
+        // do magic
+        jira.setUnavailable(false);
+        log(appender, TokenBucketTest.newThrowable(10));
+        ticker.advance(10, TimeUnit.SECONDS);
+        log(appender, TokenBucketTest.newThrowable(11));
+        log(appender, TokenBucketTest.newThrowable(12));
+        appender.close();
+
+        // verify
+        Assert.assertEquals(8, appender.getRejectedCallCount());
+        Assert.assertEquals(2, jira.getIssueCount());
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(CircuitBreakerTest.class), Priority.ERROR,
+                "message", throwable));
+    }
+}
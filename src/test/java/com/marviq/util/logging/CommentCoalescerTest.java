@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies that repeated occurrences of an event that already has a JIRA issue are posted as digest comments.
+ */
+public class CommentCoalescerTest {
+
+    private FakeJira jira;
+    private JIRALog4jAppender appender;
+
+    @Before
+    public void setUp() {
+        jira = new FakeJira();
+        appender = new JIRALog4jAppender("http://localhost", "user", "pass", "DIGEST");
+        appender.setTransportFactory(jira.getTransportFactory());
+    }
+
+    @After
+    public void tearDown() {
+        appender.close();
+    }
+
+    /**
+     * Asserts that all occurrences within a window end up in a single comment that states the number of occurrences
+     * and a bounded sample of the distinct messages.
+     */
+    @Test
+    public void testWindowProducesSingleDigest() throws Exception {
+
+        // setup
+        appender.setCommentWindow(300);
+        appender.setCommentSampleSize(3);
+        appender.activateOptions();
+        final Throwable throwable = new Throwable();
+        log("creates the issue", throwable);
+
+        // do magic
+        for (int i = 0; i < 50; i++) {
+            log("occurrence " + (i % 5), throwable);
+        }
+        awaitComments(1);
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+        final String comment = getOnlyComment();
+        Assert.assertTrue(comment, comment.contains(" 50 times "));
+        Assert.assertTrue(comment, comment.contains(Thread.currentThread().getName()));
+        Assert.assertTrue(comment, comment.contains("occurrence 0"));
+        Assert.assertTrue(comment, comment.contains("occurrence 2"));
+        Assert.assertFalse(comment, comment.contains("occurrence 3"));
+    }
+
+    /**
+     * Asserts that a digest is posted as soon as it holds the maximum number of occurrences, and that the remainder is
+     * posted when the appender is closed.
+     */
+    @Test
+    public void testMaximumOccurrences() throws Exception {
+
+        // setup
+        appender.setCommentMaxOccurrences(10);
+        appender.activateOptions();
+        final Throwable throwable = new Throwable();
+        log("creates the issue", throwable);
+
+        // do magic
+        for (int i = 0; i < 25; i++) {
+            log("occurrence", throwable);
+        }
+        final int commentsBeforeClose = jira.getCommentCount();
+        appender.close();
+
+        // verify
+        Assert.assertEquals(2, commentsBeforeClose);
+        Assert.assertEquals(3, jira.getCommentCount());
+        Assert.assertTrue(getComments().get(2).contains(" 5 times "));
+    }
+
+    /**
+     * Asserts that a window that holds a single occurrence results in a regular comment.
+     */
+    @Test
+    public void testSingleOccurrenceIsRegularComment() throws Exception {
+
+        // setup
+        appender.setCommentWindow(100);
+        appender.activateOptions();
+        final Throwable throwable = new Throwable();
+        log("creates the issue", throwable);
+
+        // do magic
+        log("single occurrence", throwable);
+        awaitComments(1);
+
+        // verify
+        final String comment = getOnlyComment();
+        Assert.assertTrue(comment, comment.startsWith("The following was logged by the application:"));
+        Assert.assertTrue(comment, comment.contains("single occurrence"));
+    }
+
+    /**
+     * Asserts that closing the appender lets a digest that is being posted complete, and posts the digests that are
+     * still open.
+     */
+    @Test
+    public void testCloseCompletesPosting() throws Exception {
+
+        // setup
+        appender.setCommentWindow(50);
+        appender.activateOptions();
+        final Throwable posting = new Throwable();
+        final Throwable open = new Throwable();
+        log("creates an issue", posting);
+        log("creates another issue", open);
+        jira.hold("jira1.addComment");
+        log("posted when the window has passed", posting);
+        Assert.assertTrue(jira.awaitHeldCalls(1));
+        log("posted when the appender is closed", open);
+
+        // do magic
+        final Thread closer = new Thread() {
+            @Override
+            public void run() {
+                appender.close();
+            }
+        };
+        closer.start();
+        Assert.assertTrue(jira.awaitHeldCalls(1));
+        jira.release();
+        closer.join();
+
+        // verify
+        Assert.assertEquals(2, jira.getCommentCount());
+    }
+
+    private void log(String message, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(CommentCoalescerTest.class), Priority.ERROR,
+                message, throwable));
+    }
+
+    private void awaitComments(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (jira.getCommentCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private List<String> getComments() {
+        final List<Map<String, Object>> issues = jira.getIssues();
+        Assert.assertEquals(1, issues.size());
+        return jira.getComments((String) issues.get(0).get("key"));
+    }
+
+    private String getOnlyComment() {
+        final List<String> comments = getComments();
+        Assert.assertEquals(1, comments.size());
+        return comments.get(0);
+    }
+}
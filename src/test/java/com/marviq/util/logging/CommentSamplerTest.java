@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies that the comments on recurring events are sampled ever more sparsely, without losing count of the
+ * occurrences.
+ */
+public class CommentSamplerTest {
+
+    /**
+     * Asserts that the first occurrences are all sent, after which one in 10, one in 100 and one in 1000 occurrences
+     * are sent, each carrying the occurrences that were held back before it.
+     */
+    @Test
+    public void testSamplingIsSpacedExponentially() throws Exception {
+
+        // setup
+        final CommentSampler sampler = new CommentSampler(3, 1000, new FakeTicker());
+        final List<Integer> sent = new ArrayList<Integer>();
+        long total = 0;
+
+        // do magic
+        for (int i = 1; i <= 1000; i++) {
+            final int occurrences = sampler.sample(42L, 1);
+            if (occurrences > 0) {
+                sent.add(i);
+                total += occurrences;
+            }
+        }
+
+        // verify
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 10, 20, 30, 100, 200, 300, 1000), sent);
+        Assert.assertEquals(1000, total);
+    }
+
+    /**
+     * Asserts that after a quiet period, all occurrences are sent again, and that the first of them carries the
+     * occurrences that were held back before the quiet period.
+     */
+    @Test
+    public void testQuietPeriodStartsOver() throws Exception {
+
+        // setup
+        final FakeTicker ticker = new FakeTicker();
+        final CommentSampler sampler = new CommentSampler(2, 1000, ticker);
+        for (int i = 0; i < 5; i++) {
+            sampler.sample(42L, 1);
+        }
+
+        // do magic
+        ticker.advance(1001, TimeUnit.MILLISECONDS);
+        final int first = sampler.sample(42L, 1);
+        final int second = sampler.sample(42L, 1);
+
+        // verify
+        Assert.assertEquals(4, first);
+        Assert.assertEquals(1, second);
+        Assert.assertEquals(1, sampler.sample(7L, 1));
+    }
+
+    /**
+     * Asserts that fingerprints are sampled independently, and that the occurrences that an event already represents
+     * are counted when it is held back.
+     */
+    @Test
+    public void testFingerprintsAreIndependent() throws Exception {
+
+        // setup
+        final CommentSampler sampler = new CommentSampler(1, 1000, new FakeTicker());
+        sampler.sample(1L, 1);
+
+        // do magic
+        final int heldBack = sampler.sample(1L, 5);
+        final int other = sampler.sample(2L, 1);
+        for (int i = 3; i < 10; i++) {
+            sampler.sample(1L, 1);
+        }
+        final int carried = sampler.sample(1L, 1);
+
+        // verify
+        Assert.assertEquals(0, heldBack);
+        Assert.assertEquals(1, other);
+        Assert.assertEquals(13, carried);
+    }
+
+    /**
+     * Asserts that the appender samples the comments on an issue, and that its comments tell how often the event
+     * occurred.
+     */
+    @Test
+    public void testAppenderSamplesComments() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "SAMPLE");
+        appender.setJmx(false);
+        appender.setCommentSamplingThreshold(2);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        for (int i = 0; i < 25; i++) {
+            appender.doAppend(new LoggingEvent(null, Logger.getLogger(CommentSamplerTest.class), Priority.ERROR,
+                    "message " + i, throwable));
+        }
+        appender.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        final List<String> comments = jira.getComments("SAMPLE-1");
+        Assert.assertEquals(3, comments.size());
+        Assert.assertFalse(comments.get(0).startsWith("This event occurred"));
+        Assert.assertTrue(comments.get(1).startsWith("This event occurred 8 times since the previous comment."));
+        Assert.assertTrue(comments.get(2).startsWith("This event occurred 10 times since the previous comment."));
+        Assert.assertEquals(21, appender.getSampledOutEventCount());
+    }
+
+    /**
+     * Asserts that a threshold below 1 is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() throws Exception {
+        new CommentSampler(0, 1000, new FakeTicker());
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies that the time spent on an event is bounded by timeouts and by the event timeout, whether JIRA is slow to
+ * respond or another thread is slow to create the issue, and that calls that take too long are reported.
+ *
+ * JIRA is made to hold calls until the test releases them, so that a call that is not bounded would not finish at all;
+ * the bounds on the time that is measured are generous.
+ */
+public class DeadlineTest {
+
+    private static final Logger LOGGER = Logger.getLogger(DeadlineTest.class);
+
+    /** An upper bound on the time that a bounded call takes, far above the timeouts used. */
+    private static final long BOUND_MILLIS = 5000;
+
+    private FakeJira jira;
+    private FakeJiraServer server;
+    private JIRALog4jAppender appender;
+
+    @Before
+    public void setUp() throws Exception {
+        jira = new FakeJira();
+        server = new FakeJiraServer(jira);
+        appender = new JIRALog4jAppender(server.getUrl(), "user", "pass", "DEADLINE");
+        appender.setJmx(false);
+    }
+
+    @After
+    public void tearDown() {
+        jira.release();
+        appender.close();
+        server.stop();
+    }
+
+    /**
+     * Asserts that timeouts are limited to the time that is left until a deadline, and that they are left alone
+     * without a deadline.
+     */
+    @Test
+    public void testDeadlineLimitsTimeouts() throws Exception {
+
+        // setup
+        final Deadline deadline = Deadline.after(1000);
+
+        // do magic & verify
+        Assert.assertTrue(deadline.limit(5000) <= 1000);
+        Assert.assertTrue(deadline.limit(0) <= 1000);
+        Assert.assertEquals(200, deadline.limit(200));
+        Assert.assertEquals(5000, Deadline.NONE.limit(5000));
+        Assert.assertEquals(0, Deadline.NONE.limit(0));
+        Assert.assertSame(Deadline.NONE, Deadline.after(0));
+        Assert.assertFalse(Deadline.NONE.isExpired());
+    }
+
+    /**
+     * Asserts that the read timeout bounds the time that logging an event takes when JIRA does not respond in time,
+     * and that the call counts as failed.
+     */
+    @Test
+    public void testReadTimeoutBoundsAppend() throws Exception {
+
+        // setup
+        jira.hold(null);
+        appender.setReadTimeout(100);
+        appender.activateOptions();
+
+        // do magic
+        final long elapsed = log("slow", TokenBucketTest.newThrowable(1));
+
+        // verify
+        Assert.assertTrue("Took " + elapsed + "ms", elapsed < BOUND_MILLIS);
+        Assert.assertEquals(0, jira.getIssueCount());
+        Assert.assertEquals(1, appender.getMetrics().getFailedCallCount());
+        Assert.assertEquals(0, appender.getMetrics().getAbandonedEventCount());
+    }
+
+    /**
+     * Asserts that the event timeout bounds the time that logging an event takes, even if it is shorter than the read
+     * timeout, and that the event is counted as abandoned.
+     */
+    @Test
+    public void testEventTimeoutBoundsAppend() throws Exception {
+
+        // setup
+        jira.hold(null);
+        appender.setEventTimeout(150);
+        appender.activateOptions();
+
+        // do magic
+        final long elapsed = log("slow", TokenBucketTest.newThrowable(1));
+
+        // verify
+        Assert.assertTrue("Took " + elapsed + "ms", elapsed < BOUND_MILLIS);
+        Assert.assertEquals(0, jira.getIssueCount());
+        Assert.assertEquals(1, appender.getMetrics().getAbandonedEventCount());
+    }
+
+    /**
+     * Asserts that a thread that waits for another thread to create an issue for the same fingerprint gives up when
+     * its event timeout passes.
+     */
+    @Test
+    public void testWaitForIssueCreationIsBounded() throws Exception {
+
+        // setup
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        log("login", TokenBucketTest.newThrowable(1));
+        jira.hold("jira1.createIssue");
+        final Throwable throwable = TokenBucketTest.newThrowable(2);
+        final Thread creator = new Thread() {
+            @Override
+            public void run() {
+                log("creates the issue", throwable);
+            }
+        };
+        creator.start();
+        Assert.assertTrue(jira.awaitHeldCalls(1));
+        appender.setEventTimeout(300);
+
+        // do magic
+        final long elapsed = log("waits for the issue", throwable);
+        jira.release();
+        creator.join();
+
+        // verify
+        Assert.assertTrue("Took " + elapsed + "ms", elapsed < BOUND_MILLIS);
+        Assert.assertEquals(2, jira.getIssueCount());
+        Assert.assertEquals(0, jira.getCommentCount());
+        Assert.assertEquals(1, appender.getMetrics().getAbandonedEventCount());
+    }
+
+    /**
+     * Asserts that calls that take longer than the stuck call threshold are reported once each. Logging in is part of
+     * the first call.
+     */
+    @Test
+    public void testStuckCallsAreReported() throws Exception {
+
+        // setup
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.setStuckCallThreshold(100);
+        appender.activateOptions();
+
+        // do magic
+        logUntilStuck("stuck", TokenBucketTest.newThrowable(1), 1);
+        logUntilStuck("stuck again", TokenBucketTest.newThrowable(1), 2);
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(1, jira.getCommentCount());
+        Assert.assertEquals(2, appender.getMetrics().getStuckCallCount());
+    }
+
+    /**
+     * Asserts that a trial call of the circuit breaker that is abandoned when the event timeout passes does not keep
+     * the breaker from permitting another trial call once the delay has passed.
+     */
+    @Test
+    public void testBreakerRecoversAfterAbandonedTrialCall() throws Exception {
+
+        // setup
+        final FakeTicker ticker = new FakeTicker();
+        appender.setTicker(ticker);
+        appender.setCircuitBreakerThreshold(1);
+        appender.setCircuitBreakerDelay(10000);
+        appender.activateOptions();
+        jira.setUnavailable(true);
+        log("opens the breaker", TokenBucketTest.newThrowable(1));
+        jira.setUnavailable(false);
+        ticker.advance(10, TimeUnit.SECONDS);
+        jira.hold(null);
+        appender.setEventTimeout(150);
+        log("abandoned trial call", TokenBucketTest.newThrowable(2));
+        jira.release();
+        appender.setEventTimeout(0);
+
+        // do magic
+        log("rejected", TokenBucketTest.newThrowable(3));
+        ticker.advance(10, TimeUnit.SECONDS);
+        log("next trial call", TokenBucketTest.newThrowable(4));
+
+        // verify
+        Assert.assertEquals(1, appender.getMetrics().getAbandonedEventCount());
+        Assert.assertEquals(1, appender.getRejectedCallCount());
+        Assert.assertEquals(1, jira.getIssueCount());
+    }
+
+    /**
+     * Logs an event on the current thread.
+     *
+     * @return the time (in milliseconds) it took.
+     */
+    private long log(String message, Throwable throwable) {
+        final long start = System.currentTimeMillis();
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, message, throwable));
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Logs an event on another thread while JIRA holds all calls, and lets the calls proceed once the watchdog has
+     * reported the given number of stuck calls in total.
+     */
+    private void logUntilStuck(final String message, final Throwable throwable, int stuckCalls) throws Exception {
+        jira.hold(null);
+        final Thread logger = new Thread() {
+            @Override
+            public void run() {
+                log(message, throwable);
+            }
+        };
+        logger.start();
+        final long giveUp = System.currentTimeMillis() + BOUND_MILLIS;
+        while (appender.getMetrics().getStuckCallCount() < stuckCalls && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        jira.release();
+        logger.join();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies that events are filtered and fingerprinted without rendering their stack traces, and reports the number of
+ * bytes that are allocated per event.
+ */
+public class EventFilteringTest {
+
+    private static final Logger LOGGER = Logger.getLogger(EventFilteringTest.class);
+
+    private FakeJira jira;
+    private RecordingEngine engine;
+    private JIRALog4jAppender appender;
+
+    @Before
+    public void setUp() {
+        jira = new FakeJira();
+        engine = new RecordingEngine();
+        appender = new JIRALog4jAppender(engine);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+    }
+
+    @After
+    public void tearDown() {
+        appender.close();
+    }
+
+    /**
+     * Asserts that events that are not sent to JIRA are rejected without rendering their stack traces.
+     */
+    @Test
+    public void testFilteredEventsAreNotRendered() throws Exception {
+
+        // setup
+        final CountingThrowable withoutStackTrace = new CountingThrowable();
+        withoutStackTrace.setStackTrace(new StackTraceElement[0]);
+        final CountingThrowable warning = new CountingThrowable();
+
+        // do magic
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "no throwable", null));
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "no stack trace", withoutStackTrace));
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.WARN, "warning", warning));
+
+        // verify
+        Assert.assertEquals(0, engine.dispatched.get());
+        Assert.assertEquals(0, withoutStackTrace.rendered.get());
+        Assert.assertEquals(0, warning.rendered.get());
+    }
+
+    /**
+     * Asserts that an event is fingerprinted and handed over for dispatching without rendering its stack trace, and
+     * that the stack trace is rendered once the event results in a new issue.
+     */
+    @Test
+    public void testStackTraceIsRenderedOnlyWhenSent() throws Exception {
+
+        // setup
+        final CountingThrowable throwable = new CountingThrowable();
+        engine.dispatching = false;
+
+        // do magic
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "message", throwable));
+
+        // verify
+        Assert.assertEquals(1, engine.dispatched.get());
+        Assert.assertEquals(0, throwable.rendered.get());
+
+        // do magic
+        engine.dispatching = true;
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "message", throwable));
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(1, throwable.rendered.get());
+    }
+
+    /**
+     * Asserts that events that are filtered do not allocate.
+     */
+    @Test
+    public void testFilteredEventsDoNotAllocate() throws Exception {
+
+        // setup
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        final int count = 2000;
+        final LoggingEvent filtered = new LoggingEvent(null, LOGGER, Priority.WARN, "filtered", new Throwable());
+
+        // do magic
+        final long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < count; i++) {
+            appender.doAppend(filtered); // warm-up
+        }
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count; i++) {
+            appender.doAppend(filtered);
+        }
+        final long filteredBytes = (threads.getThreadAllocatedBytes(threadId) - before) / count;
+
+        // verify
+        Assert.assertEquals(0, jira.getCallCount("jira1.createIssue"));
+        Assert.assertTrue("Filtered events allocate " + filteredBytes + " bytes each", filteredBytes < 16);
+    }
+
+    /**
+     * A Throwable that counts the number of times that its stack trace is rendered to text.
+     */
+    private static final class CountingThrowable extends Throwable {
+        final AtomicInteger rendered = new AtomicInteger();
+
+        /** Called once per rendering of the stack trace, for its first line. */
+        @Override
+        public String toString() {
+            rendered.incrementAndGet();
+            return super.toString();
+        }
+    }
+
+    /**
+     * An engine that counts the events that it dispatches, and that can be told not to send them to JIRA.
+     */
+    private static final class RecordingEngine extends JiraEngine {
+        final AtomicInteger dispatched = new AtomicInteger();
+        volatile boolean dispatching = true;
+
+        RecordingEngine() {
+            super("http://localhost", "user", "pass", "FILTER");
+        }
+
+        @Override
+        void dispatch(ErrorEvent event, long hash, int occurrences) {
+            dispatched.incrementAndGet();
+            if (dispatching) {
+                super.dispatch(event, hash, occurrences);
+            }
+        }
+    }
+}
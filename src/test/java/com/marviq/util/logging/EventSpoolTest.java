@@ -0,0 +1,357 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies that events that could not be sent survive restarts, torn writes and a full spool, and that they are sent
+ * once JIRA can be reached again.
+ */
+public class EventSpoolTest {
+
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Asserts that events are read in the order in which they were appended, with their fields intact, and that only
+     * acknowledged events are removed.
+     */
+    @Test
+    public void testAppendReadAcknowledge() throws Exception {
+
+        // setup
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "test", MAX_BYTES);
+        spool.append(new SpooledEvent(1L, 10L, 20L, 3, null, "summary", "description €", "project=OPS"));
+        spool.append(new SpooledEvent(2L, 30L, 30L, 1, "TEST-1", null, "comment"));
+        spool.append(new SpooledEvent(3L, 40L, 40L, 1, "TEST-2", null, "another comment"));
+
+        // do magic
+        final EventSpool.Batch batch = spool.read(2);
+
+        // verify
+        Assert.assertEquals(2, batch.getEvents().size());
+        final SpooledEvent first = batch.getEvents().get(0);
+        Assert.assertEquals(1L, first.getFingerprint());
+        Assert.assertEquals(10L, first.getFirstTimestamp());
+        Assert.assertEquals(20L, first.getLastTimestamp());
+        Assert.assertEquals(3, first.getOccurrences());
+        Assert.assertNull(first.getIssueKey());
+        Assert.assertEquals("summary", first.getSummary());
+        Assert.assertEquals("description €", first.getText());
+        Assert.assertEquals("project=OPS", first.getRoute());
+        Assert.assertNull(batch.getEvents().get(1).getRoute());
+        Assert.assertEquals("TEST-1", batch.getEvents().get(1).getIssueKey());
+        Assert.assertNull(batch.getEvents().get(1).getSummary());
+        Assert.assertEquals(3, spool.size());
+
+        // do magic
+        spool.acknowledge(batch);
+
+        // verify
+        Assert.assertEquals(1, spool.size());
+        Assert.assertEquals(3L, spool.read(10).getEvents().get(0).getFingerprint());
+        spool.close();
+    }
+
+    /**
+     * Asserts that events that were not acknowledged survive closing and reopening the spool.
+     */
+    @Test
+    public void testReopen() throws Exception {
+
+        // setup
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "test", MAX_BYTES);
+        for (int i = 1; i <= 3; i++) {
+            spool.append(newEvent(i, 10));
+        }
+        spool.acknowledge(spool.read(1));
+        spool.close();
+
+        // do magic
+        final EventSpool reopened = EventSpool.open(folder.getRoot(), "test", MAX_BYTES);
+
+        // verify
+        Assert.assertEquals(2, reopened.size());
+        final List<SpooledEvent> events = reopened.read(10).getEvents();
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(2L, events.get(0).getFingerprint());
+        Assert.assertEquals(3L, events.get(1).getFingerprint());
+        reopened.close();
+    }
+
+    /**
+     * Asserts that a record that was only partially written is ignored when the spool is reopened, while the records
+     * before it are retained, and that new records are appended after the last intact one.
+     */
+    @Test
+    public void testTornWriteIsTolerated() throws Exception {
+
+        // setup
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "test", MAX_BYTES);
+        spool.append(newEvent(1, 10));
+        spool.append(newEvent(2, 10));
+        spool.close();
+        final File segment = getSegmentFiles()[0];
+        final int secondRecord = EventSpool.HEADER_SIZE + EventSpool.encode(newEvent(1, 10), MAX_BYTES).limit();
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(secondRecord + EventSpool.RECORD_HEADER_SIZE + 3);
+        file.write(0xFF);
+        file.close();
+
+        // do magic
+        final EventSpool reopened = EventSpool.open(folder.getRoot(), "test", MAX_BYTES);
+        reopened.append(newEvent(3, 10));
+
+        // verify
+        final List<SpooledEvent> events = reopened.read(10).getEvents();
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(1L, events.get(0).getFingerprint());
+        Assert.assertEquals(3L, events.get(1).getFingerprint());
+        reopened.close();
+    }
+
+    /**
+     * Asserts that the spool does not grow beyond its maximum size, and that the oldest events are discarded to make
+     * room for new ones.
+     */
+    @Test
+    public void testOldestEventsAreEvicted() throws Exception {
+
+        // setup
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "test", 3 * 4096, 4096);
+
+        // do magic
+        for (int i = 1; i <= 20; i++) {
+            spool.append(newEvent(i, 1000));
+        }
+
+        // verify
+        Assert.assertEquals(3, spool.getSegmentCount());
+        Assert.assertEquals(3, getSegmentFiles().length);
+        Assert.assertTrue(spool.getEvictedCount() > 0);
+        Assert.assertEquals(20, spool.size() + spool.getEvictedCount());
+        final List<SpooledEvent> events = spool.read(100).getEvents();
+        Assert.assertEquals(spool.size(), events.size());
+        Assert.assertEquals(20 - spool.size() + 1, events.get(0).getFingerprint());
+        Assert.assertEquals(20L, events.get(events.size() - 1).getFingerprint());
+        spool.close();
+    }
+
+    /**
+     * Asserts that segments are deleted once all of their events have been acknowledged.
+     */
+    @Test
+    public void testReadSegmentsAreDeleted() throws Exception {
+
+        // setup
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "test", MAX_BYTES, 4096);
+        for (int i = 1; i <= 20; i++) {
+            spool.append(newEvent(i, 1000));
+        }
+        Assert.assertTrue(spool.getSegmentCount() > 2);
+
+        // do magic
+        int read = 0;
+        for (EventSpool.Batch batch = spool.read(3); !batch.getEvents().isEmpty(); batch = spool.read(3)) {
+            read += batch.getEvents().size();
+            spool.acknowledge(batch);
+        }
+
+        // verify
+        Assert.assertEquals(20, read);
+        Assert.assertEquals(0, spool.size());
+        Assert.assertEquals(1, spool.getSegmentCount());
+        Assert.assertEquals(1, getSegmentFiles().length);
+        spool.close();
+    }
+
+    /**
+     * Asserts that a text that does not fit in a segment is cut short, rather than rejected.
+     */
+    @Test
+    public void testLongTextIsCutShort() throws Exception {
+
+        // setup
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "test", MAX_BYTES, 4096);
+        final String text = newEvent(1, 10000).getText();
+
+        // do magic
+        Assert.assertTrue(spool.append(newEvent(1, 10000)));
+
+        // verify
+        final String read = spool.read(1).getEvents().get(0).getText();
+        Assert.assertTrue(read.length() < 4096);
+        Assert.assertTrue(text.startsWith(read));
+        spool.close();
+    }
+
+    /**
+     * Asserts that events that are logged while JIRA cannot be reached are spooled, and that they are sent once calls
+     * to JIRA succeed again, with similar events merged into a single issue.
+     */
+    @Test
+    public void testAppenderReplaysAfterOutage() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = newAppender(jira);
+        final Throwable recurring = TokenBucketTest.newThrowable(1);
+        jira.setUnavailable(true);
+
+        // do magic
+        log(appender, recurring);
+        log(appender, recurring);
+        log(appender, recurring);
+        log(appender, TokenBucketTest.newThrowable(2));
+
+        // verify
+        Assert.assertEquals(0, jira.getIssueCount());
+        Assert.assertEquals(4, appender.getSpoolSize());
+        Assert.assertEquals(4, appender.getMetrics().getSpooledEventCount());
+
+        // do magic
+        jira.setUnavailable(false);
+        log(appender, TokenBucketTest.newThrowable(3));
+        awaitEmptySpool(appender);
+        appender.close();
+
+        // verify
+        Assert.assertEquals(3, jira.getIssueCount());
+        Assert.assertEquals(0, jira.getCommentCount());
+        Assert.assertEquals(4, appender.getMetrics().getReplayedEventCount());
+        boolean merged = false;
+        for (final Map<String, Object> issue : jira.getIssues()) {
+            merged |= ((String) issue.get("description")).startsWith("This event occurred 3 times between");
+        }
+        Assert.assertTrue(merged);
+    }
+
+    /**
+     * Asserts that events are spooled when logging in to JIRA fails, both for a new issue and for a comment on an
+     * existing issue, and that they are sent once logging in succeeds again.
+     */
+    @Test
+    public void testAppenderSpoolsWhenLoginFails() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = newAppender(jira);
+        final Throwable recurring = TokenBucketTest.newThrowable(1);
+        log(appender, recurring);
+        jira.expireTokens();
+        jira.setLoginRejected(true);
+
+        // do magic
+        log(appender, recurring);
+        log(appender, TokenBucketTest.newThrowable(2));
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(0, jira.getCommentCount());
+        Assert.assertEquals(2, appender.getSpoolSize());
+
+        // do magic
+        jira.setLoginRejected(false);
+        log(appender, TokenBucketTest.newThrowable(3));
+        awaitEmptySpool(appender);
+        appender.close();
+
+        // verify
+        Assert.assertEquals(3, jira.getIssueCount());
+        Assert.assertEquals(1, jira.getCommentCount());
+        Assert.assertEquals(2, appender.getMetrics().getReplayedEventCount());
+    }
+
+    /**
+     * Asserts that events that were spooled before a restart are sent after the restart.
+     */
+    @Test
+    public void testAppenderReplaysAfterRestart() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender before = newAppender(jira);
+        jira.setUnavailable(true);
+        log(before, TokenBucketTest.newThrowable(1));
+        log(before, TokenBucketTest.newThrowable(1));
+        before.close();
+        jira.setUnavailable(false);
+
+        // do magic
+        final JIRALog4jAppender after = newAppender(jira);
+        awaitEmptySpool(after);
+        after.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(0, jira.getCommentCount());
+    }
+
+    private File[] getSegmentFiles() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".spool");
+            }
+        });
+    }
+
+    private JIRALog4jAppender newAppender(FakeJira jira) {
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "SPOOL");
+        appender.setName("spool");
+        appender.setJmx(false);
+        appender.setSpoolDirectory(folder.getRoot().getPath());
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        return appender;
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(EventSpoolTest.class), Priority.ERROR, "message",
+                throwable));
+    }
+
+    private static void awaitEmptySpool(JIRALog4jAppender appender) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (appender.getSpoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, appender.getSpoolSize());
+    }
+
+    private static SpooledEvent newEvent(long fingerprint, int textLength) {
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < textLength) {
+            text.append("line ").append(text.length()).append('\n');
+        }
+        return new SpooledEvent(fingerprint, fingerprint, fingerprint, 1, null, "summary " + fingerprint,
+                text.substring(0, textLength));
+    }
+}
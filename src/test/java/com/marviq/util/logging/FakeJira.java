@@ -0,0 +1,306 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory stand-in for the <tt>jira1</tt> XML-RPC interface of JIRA, to be used by tests.
+ *
+ * The stand-in is plugged into the XML-RPC client by means of {@link #getTransportFactory()}, which bypasses the
+ * network altogether. It keeps track of the issues and comments that were created, and of the number of calls made to
+ * every method.
+ */
+class FakeJira {
+
+    /** The fault message that JIRA returns when an authentication token is not (or no longer) valid. */
+    static final String AUTHENTICATION_FAULT = "com.atlassian.jira.rpc.exception.RemoteAuthenticationException: " +
+            "User not authenticated yet, or session timed out.";
+
+    private final Map<String, Map<String, Object>> issues = new LinkedHashMap<String, Map<String, Object>>();
+    private final Map<String, List<String>> comments = new HashMap<String, List<String>>();
+    /** The authentication tokens that are valid, and the time (in milliseconds) at which they were issued. */
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger tokenSequence = new AtomicInteger();
+    private final AtomicInteger issueSequence = new AtomicInteger();
+
+    private volatile long latencyMillis;
+    private volatile boolean unavailable;
+    private volatile boolean loginRejected;
+    private volatile long tokenLifetimeMillis;
+    /** Blocks calls to {@link #heldMethod} while it is set. */
+    private volatile CountDownLatch gate;
+    private volatile String heldMethod;
+    /** Counts the calls that reached the gate. */
+    private final Semaphore heldCalls = new Semaphore(0);
+
+    private final XmlRpcTransportFactory transportFactory = new XmlRpcTransportFactory() {
+        public XmlRpcTransport getTransport() {
+            return new XmlRpcTransport() {
+                public Object sendRequest(XmlRpcRequest request) throws XmlRpcException {
+                    final Object[] params = new Object[request.getParameterCount()];
+                    for (int i = 0; i < params.length; i++) {
+                        params[i] = request.getParameter(i);
+                    }
+                    return handle(request.getMethodName(), params);
+                }
+            };
+        }
+    };
+
+    XmlRpcTransportFactory getTransportFactory() {
+        return transportFactory;
+    }
+
+    /**
+     * Delays every call by the given amount of time, to simulate network and processing latency.
+     */
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Blocks calls until {@link #release()} is called, to simulate a JIRA that does not respond, or to hold a call in
+     * progress while a test does something else. Unlike {@link #setLatencyMillis(long)}, this does not depend on
+     * timing.
+     *
+     * @param method the method of which calls are held, or <tt>null</tt> to hold calls to all methods.
+     */
+    void hold(String method) {
+        heldMethod = method;
+        gate = new CountDownLatch(1);
+    }
+
+    /**
+     * Lets the calls that are held proceed, and stops holding calls.
+     */
+    void release() {
+        final CountDownLatch current = gate;
+        gate = null;
+        if (current != null) {
+            current.countDown();
+        }
+    }
+
+    /**
+     * Waits until a number of calls reached the gate that is set up by {@link #hold(String)}, counting from the
+     * previous time this method returned.
+     *
+     * @return <tt>true</tt> if the calls arrived within ten seconds.
+     */
+    boolean awaitHeldCalls(int count) throws InterruptedException {
+        return heldCalls.tryAcquire(count, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Makes every call fail (or succeed again), to simulate an outage.
+     */
+    void setUnavailable(boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+
+    /**
+     * Makes logging in fail (or succeed again), as if the credentials were no longer valid. Calls with a valid token
+     * still succeed.
+     */
+    void setLoginRejected(boolean loginRejected) {
+        this.loginRejected = loginRejected;
+    }
+
+    /**
+     * Invalidates all authentication tokens, as if all sessions timed out.
+     */
+    void expireTokens() {
+        tokens.clear();
+    }
+
+    /**
+     * Makes authentication tokens expire the given amount of time after they were issued, as if sessions timed out.
+     *
+     * @param tokenLifetimeMillis the lifetime of a token, or 0 for tokens that do not expire.
+     */
+    void setTokenLifetimeMillis(long tokenLifetimeMillis) {
+        this.tokenLifetimeMillis = tokenLifetimeMillis;
+    }
+
+    int getCallCount(String method) {
+        final AtomicInteger count = calls.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    synchronized int getIssueCount() {
+        return issues.size();
+    }
+
+    synchronized List<Map<String, Object>> getIssues() {
+        return new ArrayList<Map<String, Object>>(issues.values());
+    }
+
+    synchronized List<String> getComments(String key) {
+        final List<String> result = comments.get(key);
+        return result == null ? Collections.<String>emptyList() : new ArrayList<String>(result);
+    }
+
+    synchronized int getCommentCount() {
+        int result = 0;
+        for (final List<String> list : comments.values()) {
+            result += list.size();
+        }
+        return result;
+    }
+
+    Object handle(String method, Object[] params) throws XmlRpcException {
+        AtomicInteger count = calls.get(method);
+        if (count == null) {
+            calls.putIfAbsent(method, new AtomicInteger());
+            count = calls.get(method);
+        }
+        count.incrementAndGet();
+
+        final CountDownLatch current = gate;
+        final String held = heldMethod;
+        if (current != null && (held == null || held.equals(method))) {
+            heldCalls.release();
+            try {
+                current.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XmlRpcException("Interrupted");
+            }
+        }
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XmlRpcException("Interrupted");
+            }
+        }
+
+        if (unavailable) {
+            throw new XmlRpcException("Failed to read server's response: Connection refused");
+        }
+
+        if ("jira1.login".equals(method)) {
+            if (loginRejected) {
+                throw new XmlRpcException(0, "com.atlassian.jira.rpc.exception.RemoteAuthenticationException: " +
+                        "Invalid username or password.");
+            }
+            final String token = "token-" + tokenSequence.incrementAndGet();
+            tokens.put(token, System.currentTimeMillis());
+            return token;
+        }
+
+        final Long issued = params.length == 0 ? null : tokens.get(params[0]);
+        final long lifetime = tokenLifetimeMillis;
+        if (issued == null || (lifetime > 0 && System.currentTimeMillis() - issued > lifetime)) {
+            throw new XmlRpcException(0, AUTHENTICATION_FAULT);
+        }
+
+        if ("jira1.logout".equals(method)) {
+            tokens.remove(params[0]);
+            return Boolean.TRUE;
+        }
+        if ("jira1.createIssue".equals(method)) {
+            return createIssue((Map<?, ?>) params[1]);
+        }
+        if ("jira1.addComment".equals(method)) {
+            return addComment((String) params[1], (String) params[2]);
+        }
+        if ("jira1.getIssuesFromJqlSearch".equals(method)) {
+            return search((String) params[1], (Integer) params[2]);
+        }
+        throw new XmlRpcException(0, "No such method: " + method);
+    }
+
+    private synchronized Map<String, Object> createIssue(Map<?, ?> request) {
+        final String key = request.get("project") + "-" + issueSequence.incrementAndGet();
+        final Map<String, Object> issue = new Hashtable<String, Object>();
+        for (final Map.Entry<?, ?> entry : request.entrySet()) {
+            issue.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        issue.put("key", key);
+        issues.put(key, issue);
+        return issue;
+    }
+
+    /**
+     * Supports the queries of {@link IssueLookup} only: if the query names stamps, the issues of the projects of which
+     * the description holds any of them are returned; otherwise, all issues of the projects that carry a stamp.
+     */
+    private synchronized Object[] search(String jql, int maxResults) {
+        final Matcher projects = Pattern.compile("project in \\(([^)]*)\\)").matcher(jql);
+        final List<String> projectKeys = new ArrayList<String>();
+        final Matcher project = Pattern.compile("\"([^\"]*)\"").matcher(projects.find() ? projects.group(1) : "");
+        while (project.find()) {
+            projectKeys.add(project.group(1));
+        }
+        final List<String> stamps = new ArrayList<String>();
+        final Matcher stamp = Pattern.compile(IssueLookup.STAMP_PREFIX + "[0-9a-f]+").matcher(jql);
+        while (stamp.find()) {
+            stamps.add(stamp.group());
+        }
+        final List<Object> result = new ArrayList<Object>();
+        for (final Map<String, Object> issue : issues.values()) {
+            final String description = String.valueOf(issue.get("description"));
+            if (result.size() == maxResults || !projectKeys.contains(issue.get("project"))) {
+                continue;
+            }
+            boolean matches = stamps.isEmpty() && description.contains(IssueLookup.STAMP_PREFIX);
+            for (final String candidate : stamps) {
+                matches |= description.contains(candidate);
+            }
+            if (matches) {
+                result.add(new Hashtable<String, Object>(issue));
+            }
+        }
+        return result.toArray();
+    }
+
+    private synchronized Boolean addComment(String key, String body) throws XmlRpcException {
+        if (!issues.containsKey(key)) {
+            throw new XmlRpcException(0, "No such issue: " + key);
+        }
+        List<String> list = comments.get(key);
+        if (list == null) {
+            list = new ArrayList<String>();
+            comments.put(key, list);
+        }
+        list.add(body);
+        return Boolean.TRUE;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.xmlrpc.XmlRpcException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Serves a {@link FakeJira} over HTTP on a local socket, so that tests exercise the same network path as production:
+ * the HTTP transport of the XML-RPC client, serialization, connection reuse and HTTP errors.
+ *
+ * The server understands the subset of XML-RPC that the <tt>jira1</tt> methods use (strings, integers, booleans and
+ * structs). Failures of the fake are returned as XML-RPC faults. In addition, a fraction of the requests can be
+ * answered with an HTTP error, to simulate an overloaded server or proxy.
+ *
+ * The resources of the REST interface that {@link RestJiraTransport} uses are served as well, translated to and from
+ * the corresponding <tt>jira1</tt> methods of the fake. Compressed requests are accepted, and responses are
+ * compressed when the client asks for that.
+ *
+ * Latency and token expiry are configured on the {@link FakeJira} that is served.
+ */
+class FakeJiraServer {
+
+    static {
+        // Without TCP_NODELAY, the delayed acknowledgement of the request adds some 40ms to every call.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final FakeJira jira;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger compressedRequests = new AtomicInteger();
+    private final Random random = new Random();
+
+    private volatile double errorRate;
+
+    /**
+     * Starts serving a FakeJira on a free port of the loopback interface.
+     */
+    FakeJiraServer(FakeJira jira) throws IOException {
+        this.jira = jira;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/rpc/xmlrpc", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/rest/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respondRest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL of the server, as it is configured on the appender.
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    FakeJira getJira() {
+        return jira;
+    }
+
+    /**
+     * Answers the given fraction of requests with an HTTP 503 error instead of passing them on to the fake.
+     *
+     * @param errorRate a fraction between 0 (no errors) and 1 (only errors).
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @return the number of HTTP requests that were received.
+     */
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of HTTP requests of which the body was compressed.
+     */
+    int getCompressedRequestCount() {
+        return compressedRequests.get();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final byte[] request = readFully(exchange.getRequestBody());
+
+        final double rate = errorRate;
+        if (rate > 0 && nextDouble() < rate) {
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        String body;
+        try {
+            final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new ByteArrayInputStream(request));
+            final Element call = document.getDocumentElement();
+            final String method = child(call, "methodName").getTextContent().trim();
+            final List<Object> params = new ArrayList<Object>();
+            final Element paramsElement = child(call, "params");
+            if (paramsElement != null) {
+                for (final Element param : children(paramsElement, "param")) {
+                    params.add(parseValue(child(param, "value")));
+                }
+            }
+            final Object result = jira.handle(method, params.toArray());
+            final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            xml.append("<methodResponse><params><param>");
+            writeValue(xml, result);
+            xml.append("</param></params></methodResponse>");
+            body = xml.toString();
+        } catch (XmlRpcException e) {
+            body = fault(e.code, e.getMessage());
+        } catch (Exception e) {
+            body = fault(0, "Unable to process the request: " + e);
+        }
+
+        final byte[] response = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(200, response.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.flush();
+    }
+
+    private void respondRest(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            compressedRequests.incrementAndGet();
+            in = new GZIPInputStream(in);
+        }
+        final String request = new String(readFully(in), "UTF-8");
+
+        final double rate = errorRate;
+        if (rate > 0 && nextDouble() < rate) {
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        final String path = exchange.getRequestURI().getPath();
+        final String requestMethod = exchange.getRequestMethod();
+        final Map<?, ?> body = request.length() == 0 ? null : (Map<?, ?>) JsonParser.parse(request);
+        final String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        final String token = cookie == null ? null : cookie.substring(cookie.indexOf('=') + 1);
+
+        int status = 200;
+        final StringWriter response = new StringWriter();
+        final JsonWriter json = new JsonWriter(response);
+        try {
+            if ("/rest/auth/1/session".equals(path) && "POST".equals(requestMethod)) {
+                final Object session = jira.handle("jira1.login", new Object[] {body.get("username"),
+                        body.get("password")});
+                json.beginObject().name("session").beginObject().name("name").value("JSESSIONID");
+                json.name("value").value((String) session).endObject().endObject();
+            } else if ("/rest/auth/1/session".equals(path) && "DELETE".equals(requestMethod)) {
+                jira.handle("jira1.logout", new Object[] {token});
+                status = 204;
+            } else if ("/rest/api/2/issue".equals(path)) {
+                final Map<?, ?> fields = (Map<?, ?>) body.get("fields");
+                final Map<String, Object> issue = new HashMap<String, Object>();
+                issue.put("project", ((Map<?, ?>) fields.get("project")).get("key"));
+                issue.put("type", ((Map<?, ?>) fields.get("issuetype")).get("id"));
+                issue.put("summary", fields.get("summary"));
+                issue.put("description", fields.get("description"));
+                if (fields.get("assignee") != null) {
+                    issue.put("assignee", ((Map<?, ?>) fields.get("assignee")).get("name"));
+                }
+                final Map<?, ?> created = (Map<?, ?>) jira.handle("jira1.createIssue", new Object[] {token, issue});
+                json.beginObject().name("key").value((String) created.get("key")).endObject();
+                status = 201;
+            } else if (path.startsWith("/rest/api/2/issue/") && path.endsWith("/comment")) {
+                final String key = path.substring("/rest/api/2/issue/".length(), path.length() - "/comment".length());
+                jira.handle("jira1.addComment", new Object[] {token, key, body.get("body")});
+                json.beginObject().name("body").value((String) body.get("body")).endObject();
+                status = 201;
+            } else if ("/rest/api/2/search".equals(path)) {
+                final Object[] issues = (Object[]) jira.handle("jira1.getIssuesFromJqlSearch", new Object[] {token,
+                        body.get("jql"), ((Number) body.get("maxResults")).intValue()});
+                json.beginObject().name("issues").beginArray();
+                for (final Object issue : issues) {
+                    json.beginObject().name("key").value((String) ((Map<?, ?>) issue).get("key"));
+                    json.name("fields").beginObject();
+                    json.name("description").value((String) ((Map<?, ?>) issue).get("description"));
+                    json.endObject().endObject();
+                }
+                json.endArray().endObject();
+            } else {
+                status = 404;
+            }
+        } catch (XmlRpcException e) {
+            status = FakeJira.AUTHENTICATION_FAULT.equals(e.getMessage()) ? 401
+                    : e.getMessage().contains("Connection refused") ? 503 : 400;
+            response.getBuffer().setLength(0);
+            new JsonWriter(response).beginObject().name("errorMessages").beginArray().value(e.getMessage())
+                    .endArray().endObject();
+        }
+
+        final byte[] bytes = response.toString().getBytes("UTF-8");
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(status, 0);
+            final GZIPOutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+            out.write(bytes);
+            out.finish();
+            out.flush();
+        } else {
+            exchange.sendResponseHeaders(status, bytes.length);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private static String fault(int code, String message) {
+        final Map<String, Object> fault = new HashMap<String, Object>();
+        fault.put("faultCode", code);
+        fault.put("faultString", message);
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<methodResponse><fault>");
+        writeValue(xml, fault);
+        xml.append("</fault></methodResponse>");
+        return xml.toString();
+    }
+
+    private static Object parseValue(Element value) {
+        final Element typed = firstChild(value);
+        if (typed == null) {
+            return value.getTextContent(); // a value without a type is a string
+        }
+        final String type = typed.getTagName();
+        if ("string".equals(type)) {
+            return typed.getTextContent();
+        }
+        if ("int".equals(type) || "i4".equals(type)) {
+            return Integer.valueOf(typed.getTextContent().trim());
+        }
+        if ("boolean".equals(type)) {
+            return "1".equals(typed.getTextContent().trim());
+        }
+        if ("struct".equals(type)) {
+            final Map<String, Object> result = new HashMap<String, Object>();
+            for (final Element member : children(typed, "member")) {
+                result.put(child(member, "name").getTextContent(), parseValue(child(member, "value")));
+            }
+            return result;
+        }
+        if ("array".equals(type)) {
+            final List<Object> result = new ArrayList<Object>();
+            for (final Element element : children(child(typed, "data"), "value")) {
+                result.add(parseValue(element));
+            }
+            return result.toArray();
+        }
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+
+    private static void writeValue(StringBuilder xml, Object value) {
+        xml.append("<value>");
+        if (value instanceof Integer) {
+            xml.append("<int>").append(value).append("</int>");
+        } else if (value instanceof Boolean) {
+            xml.append("<boolean>").append((Boolean) value ? "1" : "0").append("</boolean>");
+        } else if (value instanceof Map) {
+            xml.append("<struct>");
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                xml.append("<member><name>").append(escape(String.valueOf(entry.getKey()))).append("</name>");
+                writeValue(xml, entry.getValue());
+                xml.append("</member>");
+            }
+            xml.append("</struct>");
+        } else {
+            xml.append("<string>").append(escape(String.valueOf(value))).append("</string>");
+        }
+        xml.append("</value>");
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static Element firstChild(Element parent) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static Element child(Element parent, String name) {
+        final List<Element> result = children(parent, name);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        final List<Element> result = new ArrayList<Element>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && name.equals(((Element) node).getTagName())) {
+                result.add((Element) node);
+            }
+        }
+        return result;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+}
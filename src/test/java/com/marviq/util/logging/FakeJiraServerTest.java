@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that the appender works over a real HTTP connection, by means of a {@link FakeJiraServer}: serialization,
+ * expired sessions and HTTP errors.
+ */
+public class FakeJiraServerTest {
+
+    private static final Logger LOGGER = Logger.getLogger(FakeJiraServerTest.class);
+
+    private FakeJira jira;
+    private FakeJiraServer server;
+    private JIRALog4jAppender appender;
+
+    @Before
+    public void setUp() throws Exception {
+        jira = new FakeJira();
+        server = new FakeJiraServer(jira);
+        appender = new JIRALog4jAppender(server.getUrl(), "user", "pass", "HTTP");
+        appender.setJmx(false);
+        appender.activateOptions();
+    }
+
+    @After
+    public void tearDown() {
+        appender.close();
+        server.stop();
+    }
+
+    /**
+     * Asserts that issues and comments are created over HTTP, with their fields intact.
+     */
+    @Test
+    public void testRoundTripOverHttp() throws Exception {
+
+        // setup
+        final Throwable first = TokenBucketTest.newThrowable(1);
+        final Throwable second = TokenBucketTest.newThrowable(2);
+
+        // do magic
+        log("first <message> & more", first);
+        log("again", first);
+        log("second", second);
+
+        // verify
+        Assert.assertEquals(2, jira.getIssueCount());
+        Assert.assertEquals(1, jira.getCommentCount());
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertEquals("HTTP", jira.getIssues().get(0).get("project"));
+        Assert.assertTrue(((String) jira.getIssues().get(0).get("summary")).endsWith("first <message> & more"));
+    }
+
+    /**
+     * Asserts that the appender logs in again when its session has expired.
+     */
+    @Test
+    public void testSessionExpiry() throws Exception {
+
+        // setup
+        jira.setTokenLifetimeMillis(300);
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        log("first", throwable);
+        Thread.sleep(400);
+        log("second", throwable);
+        jira.expireTokens();
+        log("third", throwable);
+
+        // verify
+        Assert.assertEquals(3, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(2, jira.getCommentCount());
+    }
+
+    /**
+     * Asserts that HTTP errors are counted as failed calls, and that the appender recovers once they stop.
+     */
+    @Test
+    public void testHttpErrors() throws Exception {
+
+        // setup
+        server.setErrorRate(1);
+
+        // do magic
+        log("fails", TokenBucketTest.newThrowable(1));
+
+        // verify
+        Assert.assertEquals(0, jira.getIssueCount());
+        Assert.assertEquals(1, appender.getMetrics().getFailedCallCount());
+
+        // do magic
+        server.setErrorRate(0);
+        log("succeeds", TokenBucketTest.newThrowable(1));
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+    }
+
+    private void log(String message, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, message, throwable));
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the bounds of {@link StackTraceFingerprintStrategy}, the memoization of fingerprints, and compares the
+ * collision rate of the strategy with that of the 32-bit hash that it replaced.
+ */
+public class FingerprintStrategyTest {
+
+    /**
+     * Asserts that frames beyond the frame limit do not affect the fingerprint, while frames within it do.
+     */
+    @Test
+    public void testFrameLimit() throws Exception {
+
+        // setup
+        final StackTraceFingerprintStrategy strategy = new StackTraceFingerprintStrategy(2, 0);
+
+        // do magic
+        final long base = strategy.fingerprint(newThrowable(1, 2, 3));
+        final long differentBeyondLimit = strategy.fingerprint(newThrowable(1, 2, 4));
+        final long differentWithinLimit = strategy.fingerprint(newThrowable(1, 3, 3));
+
+        // verify
+        Assert.assertEquals(base, differentBeyondLimit);
+        Assert.assertFalse(base == differentWithinLimit);
+    }
+
+    /**
+     * Asserts that causes beyond the cause limit do not affect the fingerprint, while causes within it do.
+     */
+    @Test
+    public void testCauseLimit() throws Exception {
+
+        // setup
+        final StackTraceFingerprintStrategy strategy = new StackTraceFingerprintStrategy(0, 1);
+
+        // do magic
+        final long base = strategy.fingerprint(newThrowable(1).initCause(newThrowable(2).initCause(newThrowable(3))));
+        final long differentBeyondLimit =
+                strategy.fingerprint(newThrowable(1).initCause(newThrowable(2).initCause(newThrowable(4))));
+        final long differentWithinLimit =
+                strategy.fingerprint(newThrowable(1).initCause(newThrowable(3).initCause(newThrowable(3))));
+
+        // verify
+        Assert.assertEquals(base, differentBeyondLimit);
+        Assert.assertFalse(base == differentWithinLimit);
+    }
+
+    /**
+     * Asserts that a chain of causes that loops back onto itself does not prevent a fingerprint from being computed,
+     * even without a limit on the number of causes.
+     */
+    @Test(timeout = 5000)
+    public void testCyclicCauses() throws Exception {
+
+        // setup
+        final StackTraceFingerprintStrategy strategy = new StackTraceFingerprintStrategy(0, 0);
+        final Throwable first = newThrowable(1);
+        final Throwable second = newThrowable(2);
+        first.initCause(second);
+        second.initCause(first);
+
+        // do magic
+        final long resultA = strategy.fingerprint(first);
+        final long resultB = strategy.fingerprint(first);
+
+        // verify
+        Assert.assertEquals(resultA, resultB);
+        Assert.assertFalse(resultA == strategy.fingerprint(second));
+    }
+
+    /**
+     * Asserts that a Throwable that is logged through two appenders that use equal strategies is fingerprinted once,
+     * even though each appender remembers its own issue.
+     */
+    @Test
+    public void testFingerprintIsMemoized() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender first = newAppender(jira);
+        final JIRALog4jAppender second = newAppender(jira);
+        final Throwable throwable = new Throwable();
+        CountingStrategy.COUNT.set(0);
+
+        // do magic
+        final LoggingEvent event = new LoggingEvent(null, Logger.getLogger(FingerprintStrategyTest.class),
+                Priority.ERROR, "message", throwable);
+        first.doAppend(event);
+        second.doAppend(event);
+        first.close();
+        second.close();
+
+        // verify
+        Assert.assertEquals(1, CountingStrategy.COUNT.get());
+        Assert.assertEquals(2, jira.getCallCount("jira1.createIssue"));
+    }
+
+    /**
+     * Fingerprints a grid of stack traces in which the line numbers of the two top frames vary, and counts the number
+     * of collisions. Shifts in line numbers like these are common between builds, and the 31-based folding of the
+     * 32-bit hash maps many of them onto the same value. The 64-bit fingerprint is not expected to collide at all.
+     */
+    @Test
+    public void testCollisions() throws Exception {
+
+        // setup
+        final int size = 500;
+        final StackTraceFingerprintStrategy strategy = new StackTraceFingerprintStrategy();
+        final Throwable throwable = new Throwable();
+        final long[] fingerprints = new long[size * size];
+        final int[] legacyHashes = new int[size * size];
+
+        // do magic
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                final StackTraceElement[] stackTrace = newStackTrace(i, j);
+                fingerprints[i * size + j] = strategy.fingerprint(throwable, stackTrace);
+                legacyHashes[i * size + j] = legacyHash(stackTrace);
+            }
+        }
+        final int collisions = countDuplicates(fingerprints);
+        final int legacyCollisions = countDuplicates(legacyHashes);
+
+        // verify
+        Assert.assertEquals(0, collisions);
+        Assert.assertTrue(legacyCollisions > 0);
+    }
+
+    private static JIRALog4jAppender newAppender(FakeJira jira) {
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "PRINT");
+        appender.setFingerprintStrategy(CountingStrategy.class.getName());
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        return appender;
+    }
+
+    /**
+     * The hash that was used before fingerprint strategies were introduced.
+     */
+    private static int legacyHash(Throwable throwable) {
+        int hash = legacyHash(throwable.getStackTrace());
+        if (throwable.getCause() != null) {
+            hash = 37 * hash + legacyHash(throwable.getCause());
+        }
+        return hash;
+    }
+
+    private static int legacyHash(StackTraceElement[] stackTrace) {
+        int hash = 0;
+        for (int i = 0; i < stackTrace.length; i++) {
+            hash = 31 * hash + (stackTrace[i] != null ? stackTrace[i].hashCode() : 0);
+        }
+        return hash;
+    }
+
+    private static int countDuplicates(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int result = 0;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] == sorted[i - 1]) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static int countDuplicates(int[] values) {
+        final int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int result = 0;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] == sorted[i - 1]) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static StackTraceElement[] newStackTrace(int... lines) {
+        final StackTraceElement[] result = new StackTraceElement[lines.length + 1];
+        for (int i = 0; i < lines.length; i++) {
+            result[i] = new StackTraceElement("com.example.Service", "method" + i, "Service.java", lines[i]);
+        }
+        result[lines.length] = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 745);
+        return result;
+    }
+
+    /**
+     * Creates a Throwable with a synthetic stack trace, of which the frames have the given line numbers.
+     */
+    private static Throwable newThrowable(int... lines) {
+        final Throwable throwable = new Throwable();
+        throwable.setStackTrace(newStackTrace(lines));
+        return throwable;
+    }
+
+    /**
+     * A strategy that counts the number of fingerprints it computes. Instances are equal to each other.
+     */
+    public static class CountingStrategy implements FingerprintStrategy {
+        static final AtomicInteger COUNT = new AtomicInteger();
+
+        private final FingerprintStrategy delegate = new StackTraceFingerprintStrategy();
+
+        public long fingerprint(Throwable throwable) {
+            COUNT.incrementAndGet();
+            return delegate.fingerprint(throwable);
+        }
+
+        public int getScheme() {
+            return -1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CountingStrategy;
+        }
+
+        @Override
+        public int hashCode() {
+            return CountingStrategy.class.hashCode();
+        }
+    }
+}
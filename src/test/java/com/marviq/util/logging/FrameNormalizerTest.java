@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Verifies that frames of classes that are generated at runtime do not make the fingerprints of the same problem
+ * differ.
+ */
+public class FrameNormalizerTest {
+
+    private final FingerprintStrategy strategy = new StackTraceFingerprintStrategy();
+
+    /**
+     * Asserts that a call through reflection has the same fingerprint, whether the JVM uses a native or a generated
+     * method accessor (which depends on the number of earlier invocations), and whatever the number of the accessor.
+     */
+    @Test
+    public void testReflectionAccessorVariants() throws Exception {
+
+        // setup
+        final Throwable nativeAccessor = newThrowable(
+                frame("sun.reflect.NativeMethodAccessorImpl", "invoke0"),
+                frame("sun.reflect.NativeMethodAccessorImpl", "invoke"),
+                frame("sun.reflect.DelegatingMethodAccessorImpl", "invoke"));
+        final Throwable generatedAccessor = newThrowable(
+                frame("sun.reflect.GeneratedMethodAccessor123", "invoke"),
+                frame("sun.reflect.DelegatingMethodAccessorImpl", "invoke"));
+        final Throwable otherGeneratedAccessor = newThrowable(
+                frame("sun.reflect.GeneratedMethodAccessor45", "invoke"),
+                frame("sun.reflect.DelegatingMethodAccessorImpl", "invoke"));
+        final Throwable modularAccessor = newThrowable(
+                frame("jdk.internal.reflect.GeneratedMethodAccessor7", "invoke"),
+                frame("jdk.internal.reflect.DelegatingMethodAccessorImpl", "invoke"));
+
+        // do magic
+        final long result = strategy.fingerprint(nativeAccessor);
+
+        // verify
+        Assert.assertEquals(result, strategy.fingerprint(generatedAccessor));
+        Assert.assertEquals(result, strategy.fingerprint(otherGeneratedAccessor));
+        Assert.assertEquals(result, strategy.fingerprint(modularAccessor));
+    }
+
+    /**
+     * Asserts that calls through distinct dynamic proxy classes have the same fingerprint.
+     */
+    @Test
+    public void testProxyVariants() throws Exception {
+
+        // setup
+        final Throwable proxy = newThrowable(frame("com.sun.proxy.$Proxy45", "process"));
+        final Throwable otherProxy = newThrowable(frame("com.sun.proxy.$Proxy46", "process"));
+        final Throwable modularProxy = newThrowable(frame("jdk.proxy2.$Proxy12", "process"));
+
+        // do magic
+        final long result = strategy.fingerprint(proxy);
+
+        // verify
+        Assert.assertEquals(result, strategy.fingerprint(otherProxy));
+        Assert.assertEquals(result, strategy.fingerprint(modularProxy));
+    }
+
+    /**
+     * Asserts that calls through distinct CGLIB subclasses of the same class have the same fingerprint.
+     */
+    @Test
+    public void testGeneratedSubclassVariants() throws Exception {
+
+        // setup
+        final Throwable enhanced = newThrowable(
+                frame("com.example.Service$$EnhancerBySpringCGLIB$$1a2b3c4d", "process"),
+                frame("com.example.Service$$FastClassBySpringCGLIB$$5e6f7a8b", "invoke"));
+        final Throwable otherEnhanced = newThrowable(
+                frame("com.example.Service$$EnhancerBySpringCGLIB$$9f8e7d6c", "process"),
+                frame("com.example.Service$$FastClassBySpringCGLIB$$0a1b2c3d", "invoke"));
+
+        // do magic
+        final long result = strategy.fingerprint(enhanced);
+
+        // verify
+        Assert.assertEquals(result, strategy.fingerprint(otherEnhanced));
+    }
+
+    /**
+     * Asserts that lambdas have the same fingerprint, regardless of the numbering of their classes and methods.
+     */
+    @Test
+    public void testLambdaVariants() throws Exception {
+
+        // setup
+        final Throwable lambda = newThrowable(
+                frame("com.example.Service", "lambda$process$3"),
+                frame("com.example.Service$$Lambda$12/1234567", "accept"));
+        final Throwable otherLambda = newThrowable(
+                frame("com.example.Service", "lambda$process$7"),
+                frame("com.example.Service$$Lambda$45/7654321", "accept"));
+
+        // do magic
+        final long result = strategy.fingerprint(lambda);
+
+        // verify
+        Assert.assertEquals(result, strategy.fingerprint(otherLambda));
+    }
+
+    /**
+     * Asserts that normalization does not hide genuine differences, such as those between similarly named classes that
+     * are not generated, or between lambdas in different methods.
+     */
+    @Test
+    public void testGenuineDifferencesRemain() throws Exception {
+
+        // setup
+        final Throwable factory = newThrowable(frame("com.example.Service$ProxyFactory", "create"));
+        final Throwable builder = newThrowable(frame("com.example.Service$ProxyBuilder", "create"));
+        final Throwable lambda = newThrowable(frame("com.example.Service", "lambda$process$1"));
+        final Throwable otherLambda = newThrowable(frame("com.example.Service", "lambda$validate$1"));
+
+        // do magic & verify
+        Assert.assertFalse(strategy.fingerprint(factory) == strategy.fingerprint(builder));
+        Assert.assertFalse(strategy.fingerprint(lambda) == strategy.fingerprint(otherLambda));
+        Assert.assertEquals("com.example.Service$ProxyFactory".length(),
+                FrameNormalizer.DEFAULT.canonicalLength("com.example.Service$ProxyFactory"));
+    }
+
+    /**
+     * Asserts that without normalization, the variants produce distinct fingerprints (which shows that the tests above
+     * are meaningful).
+     */
+    @Test
+    public void testVariantsDifferWithoutNormalization() throws Exception {
+
+        // setup
+        final FingerprintStrategy raw = new StackTraceFingerprintStrategy(0, 0, FrameNormalizer.NONE);
+
+        // do magic & verify
+        Assert.assertFalse(raw.fingerprint(newThrowable(frame("com.sun.proxy.$Proxy45", "process")))
+                == raw.fingerprint(newThrowable(frame("com.sun.proxy.$Proxy46", "process"))));
+    }
+
+    /**
+     * Asserts that truncate markers that do not start with a '$' are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTruncateMarker() throws Exception {
+        new FrameNormalizer(Collections.<String>emptyList(), Arrays.asList("EnhancerByCGLIB"));
+    }
+
+    /**
+     * Asserts that the same problem, logged through various generated classes, results in a single JIRA issue, and
+     * that the appender applies the rules that it is configured with.
+     */
+    @Test
+    public void testAppenderCreatesOneIssuePerProblem() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "NORMALIZE");
+        appender.setFingerprintSkipPrefixes("sun.reflect., com.example.generated.");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        final Logger logger = Logger.getLogger(FrameNormalizerTest.class);
+
+        // do magic
+        appender.doAppend(new LoggingEvent(null, logger, Priority.ERROR, "first", newThrowable(
+                frame("com.example.generated.Handler1", "handle"),
+                frame("sun.reflect.GeneratedMethodAccessor1", "invoke"))));
+        appender.doAppend(new LoggingEvent(null, logger, Priority.ERROR, "second", newThrowable(
+                frame("com.example.generated.Handler2", "handle"),
+                frame("sun.reflect.GeneratedMethodAccessor2", "invoke"))));
+        appender.doAppend(new LoggingEvent(null, logger, Priority.ERROR, "third", newThrowable(
+                frame("sun.reflect.NativeMethodAccessorImpl", "invoke0"),
+                frame("sun.reflect.NativeMethodAccessorImpl", "invoke"))));
+        appender.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(2, jira.getCallCount("jira1.addComment"));
+    }
+
+    private static StackTraceElement frame(String className, String methodName) {
+        return new StackTraceElement(className, methodName, null, -1);
+    }
+
+    /**
+     * Creates a Throwable with a stack trace of which the given frames sit between a failing method and its caller.
+     */
+    private static Throwable newThrowable(StackTraceElement... frames) {
+        final StackTraceElement[] stackTrace = new StackTraceElement[frames.length + 3];
+        stackTrace[0] = new StackTraceElement("com.example.Repository", "load", "Repository.java", 42);
+        stackTrace[1] = new StackTraceElement("java.lang.reflect.Method", "invoke", "Method.java", 606);
+        System.arraycopy(frames, 0, stackTrace, 2, frames.length);
+        stackTrace[frames.length + 2] = new StackTraceElement("com.example.Controller", "handle", "Controller.java", 7);
+        final Throwable throwable = new Throwable();
+        throwable.setStackTrace(stackTrace);
+        return throwable;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that closing the appender sends the events that are pending, takes no longer than the close timeout, keeps
+ * what could not be sent in the spool, and leaves the cache alone.
+ */
+public class GracefulCloseTest {
+
+    private static final Logger LOGGER = Logger.getLogger(GracefulCloseTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Asserts that the events that are buffered for dispatch when the appender is closed are sent to JIRA, and that
+     * events logged after that are refused.
+     */
+    @Test
+    public void testCloseSendsBufferedEvents() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        jira.setLatencyMillis(10);
+        final JIRALog4jAppender appender = newAppender(jira);
+        appender.activateOptions();
+        for (int i = 0; i < 10; i++) {
+            log(appender, i);
+        }
+
+        // do magic
+        appender.close();
+        log(appender, 10);
+
+        // verify
+        Assert.assertEquals(10, jira.getIssueCount());
+    }
+
+    /**
+     * Asserts that closing takes no longer than the close timeout (plus the duration of a call that was in progress)
+     * when JIRA is slow, and that the events that could not be sent in time are spooled instead of lost.
+     */
+    @Test
+    public void testCloseIsBoundedAndSpoolsTheRest() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        jira.setLatencyMillis(200);
+        final JIRALog4jAppender appender = newAppender(jira);
+        appender.setCloseTimeout(500);
+        appender.setSpoolDirectory(folder.getRoot().getPath());
+        appender.activateOptions();
+        for (int i = 0; i < 20; i++) {
+            log(appender, i);
+        }
+
+        // do magic
+        final long start = System.currentTimeMillis();
+        appender.close();
+        final long duration = System.currentTimeMillis() - start;
+
+        // verify
+        Assert.assertTrue("close took " + duration + "ms", duration < 2000);
+        final EventSpool spool = EventSpool.open(folder.getRoot(), "close", 1024 * 1024);
+        try {
+            Assert.assertTrue(spool.size() > 0);
+            Assert.assertEquals(20, jira.getIssueCount() + spool.size());
+        } finally {
+            spool.close();
+        }
+    }
+
+    /**
+     * Asserts that closing does not clear the cache, which may be shared with other appenders.
+     */
+    @Test
+    public void testCloseLeavesCacheAlone() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = newAppender(jira);
+        appender.activateOptions();
+        log(appender, 1);
+
+        // do magic
+        appender.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(1, appender.getEngine().getCache().size());
+    }
+
+    private static JIRALog4jAppender newAppender(FakeJira jira) {
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "CLOSE");
+        appender.setName("close");
+        appender.setJmx(false);
+        appender.setAsync(true);
+        appender.setTransportFactory(jira.getTransportFactory());
+        return appender;
+    }
+
+    /**
+     * Logs an error of which the fingerprint differs for every number.
+     */
+    private static void log(JIRALog4jAppender appender, int number) {
+        final Throwable throwable = new IllegalStateException("failure " + number);
+        throwable.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("com.example.Service" + number, "process", "Service.java", 42)});
+        appender.doAppend(new LoggingEvent(null, LOGGER, Priority.ERROR, "message " + number, throwable));
+    }
+}
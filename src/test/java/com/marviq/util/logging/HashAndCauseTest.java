@@ -26,8 +26,8 @@ public class HashAndCauseTest {
         final Throwable t1 = new Throwable("throwable", c1); final Throwable t2 = new Throwable("throwable", c2);
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertEquals(resultA, resultB);
@@ -46,8 +46,8 @@ public class HashAndCauseTest {
         final Throwable t1 = new Throwable("throwable 1", c1); final Throwable t2 = new Throwable("throwable 2", c2);
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertEquals(resultA, resultB);
@@ -66,8 +66,8 @@ public class HashAndCauseTest {
         final Throwable t1 = new Throwable("throwable", c1); final Throwable t2 = new Throwable("throwable", c2);
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertEquals(resultA, resultB);
@@ -86,8 +86,8 @@ public class HashAndCauseTest {
         final Throwable t1 = new Throwable("throwable", c1); final Throwable t2 = new Throwable("throwable", c2);
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertFalse(resultA == resultB);
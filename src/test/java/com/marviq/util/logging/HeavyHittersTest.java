@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Verifies that the most frequent fingerprints are found in a fixed amount of memory, with bounded errors, and that
+ * the appender posts them as a digest.
+ */
+public class HeavyHittersTest {
+
+    /**
+     * Asserts that counts are exact as long as the number of distinct fingerprints does not exceed the capacity.
+     */
+    @Test
+    public void testExactCountsBelowCapacity() throws Exception {
+
+        // setup
+        final HeavyHitters heavyHitters = new HeavyHitters(10);
+
+        // do magic
+        for (int fingerprint = 1; fingerprint <= 5; fingerprint++) {
+            for (int i = 0; i < fingerprint; i++) {
+                heavyHitters.offer(fingerprint, "java.lang.Exception", "logger");
+            }
+        }
+
+        // verify
+        final HeavyHitters.Snapshot snapshot = heavyHitters.snapshot(3, false);
+        Assert.assertEquals(15, snapshot.getTotal());
+        Assert.assertEquals(3, snapshot.getEntries().size());
+        for (int rank = 0; rank < 3; rank++) {
+            final HeavyHitters.Entry entry = snapshot.getEntries().get(rank);
+            Assert.assertEquals(5 - rank, entry.fingerprint);
+            Assert.assertEquals(5 - rank, entry.count);
+            Assert.assertEquals(0, entry.error);
+        }
+    }
+
+    /**
+     * Asserts that frequent fingerprints are ranked highest among many fingerprints that occur once, and that every
+     * estimate is within its error of the actual count.
+     */
+    @Test
+    public void testFrequentFingerprintsAmongManyDistinct() throws Exception {
+
+        // setup
+        final HeavyHitters heavyHitters = new HeavyHitters(50);
+        final Map<Long, Integer> actual = new HashMap<Long, Integer>();
+
+        // do magic
+        for (int i = 0; i < 10000; i++) {
+            offer(heavyHitters, actual, 1000 + i);
+            if (i % 10 == 0) {
+                offer(heavyHitters, actual, 1);
+            }
+            if (i % 20 == 0) {
+                offer(heavyHitters, actual, 2);
+            }
+        }
+
+        // verify
+        final List<HeavyHitters.Entry> top = heavyHitters.snapshot(2, false).getEntries();
+        Assert.assertEquals(1, top.get(0).fingerprint);
+        Assert.assertEquals(2, top.get(1).fingerprint);
+        for (final HeavyHitters.Entry entry : top) {
+            Assert.assertTrue(entry.toString(), entry.count >= actual.get(entry.fingerprint));
+            Assert.assertTrue(entry.toString(), entry.count - entry.error <= actual.get(entry.fingerprint));
+        }
+    }
+
+    /**
+     * Asserts that the number of fingerprints that are monitored does not grow beyond the capacity, however many
+     * distinct fingerprints occur.
+     */
+    @Test
+    public void testMemoryIsBounded() throws Exception {
+
+        // setup
+        final HeavyHitters heavyHitters = new HeavyHitters(16);
+
+        // do magic
+        for (int i = 0; i < 100000; i++) {
+            heavyHitters.offer(i, "java.lang.Exception", "logger");
+        }
+
+        // verify
+        final HeavyHitters.Snapshot snapshot = heavyHitters.snapshot(Integer.MAX_VALUE, false);
+        Assert.assertEquals(100000, snapshot.getTotal());
+        Assert.assertTrue(snapshot.getEntries().size() <= 16 * StripedCounter.CELLS);
+    }
+
+    /**
+     * Asserts that replacing fingerprints keeps the summary consistent when all fingerprints collide in its hash
+     * table: the counts always add up to the number of occurrences.
+     */
+    @Test
+    public void testCollidingFingerprintsAreReplacedConsistently() throws Exception {
+
+        // setup
+        final HeavyHitters heavyHitters = new HeavyHitters(8);
+        final Map<Long, Integer> actual = new HashMap<Long, Integer>();
+        final Random random = new Random(42);
+
+        // do magic
+        for (int i = 0; i < 20000; i++) {
+            // Multiples of 1024 all map to the same bucket.
+            offer(heavyHitters, actual, 1024L * (random.nextInt(random.nextBoolean() ? 4 : 64) + 1));
+        }
+
+        // verify
+        final HeavyHitters.Snapshot snapshot = heavyHitters.snapshot(Integer.MAX_VALUE, false);
+        long sum = 0;
+        for (final HeavyHitters.Entry entry : snapshot.getEntries()) {
+            sum += entry.count;
+            Assert.assertTrue(entry.toString(), entry.count >= actual.get(entry.fingerprint));
+            Assert.assertTrue(entry.toString(), entry.count - entry.error <= actual.get(entry.fingerprint));
+        }
+        Assert.assertEquals(8, snapshot.getEntries().size());
+        Assert.assertEquals(20000, sum);
+    }
+
+    /**
+     * Asserts that a snapshot that resets the summary starts counting from zero.
+     */
+    @Test
+    public void testReset() throws Exception {
+
+        // setup
+        final HeavyHitters heavyHitters = new HeavyHitters(4);
+        heavyHitters.offer(1, "java.lang.Exception", "logger");
+
+        // do magic
+        heavyHitters.snapshot(10, true);
+        heavyHitters.offer(2, "java.lang.Exception", "logger");
+
+        // verify
+        final HeavyHitters.Snapshot snapshot = heavyHitters.snapshot(10, false);
+        Assert.assertEquals(1, snapshot.getTotal());
+        Assert.assertEquals(2, snapshot.getEntries().get(0).fingerprint);
+    }
+
+    /**
+     * Asserts that the appender posts a digest to the configured issue, which counts every occurrence and names the
+     * issues that were created.
+     */
+    @Test
+    public void testAppenderPostsDigest() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "DIGEST");
+        appender.setJmx(false);
+        appender.setDigestIssue("DIGEST-1");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        final Throwable frequent = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        log(appender, frequent);
+        log(appender, frequent);
+        log(appender, frequent);
+        log(appender, TokenBucketTest.newThrowable(2));
+        appender.close();
+
+        // verify
+        final List<String> comments = jira.getComments("DIGEST-1");
+        final String digest = comments.get(comments.size() - 1);
+        Assert.assertTrue(digest, digest.contains("(4 errors in total)"));
+        Assert.assertTrue(digest, digest.contains("|1|3|"));
+        Assert.assertTrue(digest, digest.contains("|DIGEST-1|java.lang.Throwable, logged by "));
+        Assert.assertTrue(digest, digest.contains("|2|1|"));
+        Assert.assertTrue(digest, digest.contains("|DIGEST-2|"));
+    }
+
+    private static void offer(HeavyHitters heavyHitters, Map<Long, Integer> actual, long fingerprint) {
+        heavyHitters.offer(fingerprint, "java.lang.Exception", "logger");
+        final Integer count = actual.get(fingerprint);
+        actual.put(fingerprint, count == null ? 1 : count + 1);
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(HeavyHittersTest.class), Priority.ERROR, "message",
+                throwable));
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies that fingerprint-to-issue-key mappings survive restarts, torn writes and compaction.
+ */
+public class IssueKeyJournalTest {
+
+    private static final long EXPIRY = TimeUnit.DAYS.toMillis(7);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Asserts that entries survive closing and reopening a journal, and that later records supersede earlier ones.
+     */
+    @Test
+    public void testReopen() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final long now = System.currentTimeMillis();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        journal.record(1L, "TEST-1", now);
+        journal.record(2L, "TEST-2", now);
+        journal.record(1L, "TEST-3", now);
+        journal.close(Deadline.NONE);
+
+        // do magic
+        final Map<Long, String> loaded = load(file, 1);
+
+        // verify
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertEquals("TEST-3", loaded.get(1L));
+        Assert.assertEquals("TEST-2", loaded.get(2L));
+    }
+
+    /**
+     * Asserts that a record that was only partially written is ignored (and removed), while all records before it are
+     * retained.
+     */
+    @Test
+    public void testTornWriteIsTolerated() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final long now = System.currentTimeMillis();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        journal.record(1L, "TEST-1", now);
+        journal.record(2L, "TEST-2", now);
+        journal.close(Deadline.NONE);
+        final long intactLength = file.length();
+
+        final byte[] record = IssueKeyJournal.encode(3L, "TEST-3", now).array();
+        final FileOutputStream out = new FileOutputStream(file, true);
+        out.write(record, 0, record.length - 3);
+        out.close();
+
+        // do magic
+        final Map<Long, String> loaded = load(file, 1);
+
+        // verify
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertEquals(intactLength, file.length());
+    }
+
+    /**
+     * Asserts that a record with a corrupt checksum, and everything after it, is ignored.
+     */
+    @Test
+    public void testCorruptRecordIsTolerated() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final long now = System.currentTimeMillis();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        journal.record(1L, "TEST-1", now);
+        journal.record(2L, "TEST-2", now);
+        journal.close(Deadline.NONE);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write('X');
+        raf.close();
+
+        // do magic
+        final Map<Long, String> loaded = load(file, 1);
+
+        // verify
+        Assert.assertEquals(1, loaded.size());
+        Assert.assertEquals("TEST-1", loaded.get(1L));
+    }
+
+    /**
+     * Asserts that entries that have not been seen for longer than the expiry time are not loaded.
+     */
+    @Test
+    public void testExpiredEntriesAreIgnored() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final long now = System.currentTimeMillis();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        journal.record(1L, "TEST-1", now - EXPIRY - 1000);
+        journal.record(2L, "TEST-2", now);
+        journal.close(Deadline.NONE);
+
+        // do magic
+        final Map<Long, String> loaded = load(file, 1);
+
+        // verify
+        Assert.assertEquals(1, loaded.size());
+        Assert.assertEquals("TEST-2", loaded.get(2L));
+    }
+
+    /**
+     * Asserts that a journal written with another fingerprint scheme is discarded.
+     */
+    @Test
+    public void testOtherFingerprintSchemeIsDiscarded() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        journal.record(1L, "TEST-1", System.currentTimeMillis());
+        journal.close(Deadline.NONE);
+
+        // do magic
+        final Map<Long, String> loaded = load(file, 2);
+
+        // verify
+        Assert.assertTrue(loaded.isEmpty());
+        Assert.assertEquals(IssueKeyJournal.HEADER_SIZE, file.length());
+    }
+
+    /**
+     * Asserts that a journal that holds many superseded records is compacted, without losing live entries or the
+     * records that are written while a compaction is in progress.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final long now = System.currentTimeMillis();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+
+        // do magic
+        for (int i = 0; i < IssueKeyJournal.MINIMUM_RECORDS_BEFORE_COMPACTION * 3; i++) {
+            journal.record(i % 100, "TEST-" + i, now);
+        }
+        journal.close(Deadline.NONE);
+
+        // verify
+        Assert.assertTrue(journal.getRecordCount() < IssueKeyJournal.MINIMUM_RECORDS_BEFORE_COMPACTION);
+        final Map<Long, String> loaded = load(file, 1);
+        Assert.assertEquals(100, loaded.size());
+        for (long fingerprint = 0; fingerprint < 100; fingerprint++) {
+            Assert.assertEquals("TEST-" + (IssueKeyJournal.MINIMUM_RECORDS_BEFORE_COMPACTION * 3 - 100 + fingerprint),
+                    loaded.get(fingerprint));
+        }
+    }
+
+    /**
+     * Asserts that an interrupted compaction is completed when the journal is opened: the compacted file is used if
+     * the original journal was already removed.
+     */
+    @Test
+    public void testInterruptedCompactionIsRecovered() throws Exception {
+
+        // setup
+        final File file = new File(folder.getRoot(), "test.journal");
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        journal.record(1L, "TEST-1", System.currentTimeMillis());
+        journal.close(Deadline.NONE);
+        Assert.assertTrue(file.renameTo(new File(file.getPath() + ".compact")));
+
+        // do magic
+        final Map<Long, String> loaded = load(file, 1);
+
+        // verify
+        Assert.assertEquals("TEST-1", loaded.get(1L));
+    }
+
+    /**
+     * Asserts that a journal with a few hundred thousand entries opens quickly.
+     */
+    @Test
+    public void testLargeJournalOpensQuickly() throws Exception {
+
+        // setup
+        final int size = 300000;
+        final File file = new File(folder.getRoot(), "large.journal");
+        final long now = System.currentTimeMillis();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        for (int i = 0; i < size; i++) {
+            journal.record(i * 0x9E3779B97F4A7C15L, "PROJECT-" + i, now);
+        }
+        journal.close(Deadline.NONE);
+
+        // do magic
+        final long start = System.nanoTime();
+        final IssueKeyJournal reopened = IssueKeyJournal.open(file, 1, EXPIRY, null);
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        reopened.close(Deadline.NONE);
+
+        // verify
+        Assert.assertEquals(size, reopened.size());
+        Assert.assertTrue("Opening took " + elapsedMillis + "ms", elapsedMillis < 5000);
+    }
+
+    /**
+     * Asserts that an appender that is configured with a store directory remembers the issues that it created across
+     * restarts: after a restart, a similar event becomes a comment rather than a new issue.
+     */
+    @Test
+    public void testAppenderRemembersIssuesAcrossRestarts() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final Throwable throwable = new Throwable();
+        final JIRALog4jAppender before = newAppender(jira);
+        log(before, throwable);
+        before.close();
+
+        // do magic
+        final JIRALog4jAppender after = newAppender(jira);
+        log(after, throwable);
+        after.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+    }
+
+    private JIRALog4jAppender newAppender(FakeJira jira) {
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "STORE");
+        appender.setName("store");
+        appender.setStoreDirectory(folder.getRoot().getPath());
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        return appender;
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(IssueKeyJournalTest.class), Priority.ERROR,
+                "message", throwable));
+    }
+
+    private static Map<Long, String> load(File file, int fingerprintScheme) throws Exception {
+        final Map<Long, String> result = new HashMap<Long, String>();
+        final IssueKeyJournal journal = IssueKeyJournal.open(file, fingerprintScheme, EXPIRY,
+                new IssueKeyJournal.Visitor() {
+                    public void visit(long fingerprint, String issueKey, long lastSeen) {
+                        result.put(fingerprint, issueKey);
+                    }
+                });
+        journal.close(Deadline.NONE);
+        return result;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Verifies that issues that were created before the appender knew about them are found, rather than created again.
+ */
+public class IssueLookupTest {
+
+    private final FakeJira jira = new FakeJira();
+    private JIRALog4jAppender appender;
+
+    @After
+    public void tearDown() {
+        if (appender != null) {
+            appender.close();
+        }
+    }
+
+    /**
+     * Asserts that the fingerprint of a stamp is recovered from a description, for the same fingerprint scheme only.
+     */
+    @Test
+    public void testStampIsParsed() throws Exception {
+
+        // setup
+        final Map<String, Object> issue = new Hashtable<String, Object>();
+        issue.put("key", "TEST-1");
+        issue.put("description", "Text.\nFingerprint: " + IssueLookup.stamp(-7, -42L));
+
+        // do magic
+        final Map<Long, String> result = IssueLookup.parse(new Object[]{issue}, -7);
+
+        // verify
+        Assert.assertEquals("TEST-1", result.get(-42L));
+        Assert.assertTrue(IssueLookup.parse(new Object[]{issue}, 7).isEmpty());
+        Assert.assertEquals(4 + 8 + 16, IssueLookup.stamp(0, 1L).length());
+    }
+
+    /**
+     * Asserts that an appender loads the issues that were created before a restart, and comments on them.
+     */
+    @Test
+    public void testIssuesArePrefetched() throws Exception {
+
+        // setup
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+        final JIRALog4jAppender before = newAppender(false, 0);
+        log(before, throwable);
+        before.close();
+
+        // do magic
+        appender = newAppender(true, 100);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (appender.getMetrics().getIssuesFoundCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        log(appender, throwable);
+
+        // verify
+        Assert.assertEquals(1, appender.getMetrics().getIssuesFoundCount());
+        Assert.assertEquals(1, jira.getIssueCount());
+        Assert.assertEquals(1, jira.getCommentCount());
+        Assert.assertEquals(1, jira.getCallCount("jira1.getIssuesFromJqlSearch"));
+    }
+
+    /**
+     * Asserts that an appender that does not prefetch issues looks up the issue of a fingerprint that it does not
+     * know, and that it creates an issue if none exists.
+     */
+    @Test
+    public void testIssueIsLookedUpOnCacheMiss() throws Exception {
+
+        // setup
+        final Throwable existing = TokenBucketTest.newThrowable(1);
+        final JIRALog4jAppender before = newAppender(false, 0);
+        log(before, existing);
+        before.close();
+        appender = newAppender(true, 0);
+
+        // do magic
+        log(appender, existing);
+        log(appender, existing);
+        log(appender, TokenBucketTest.newThrowable(2));
+
+        // verify
+        Assert.assertEquals(2, jira.getIssueCount());
+        Assert.assertEquals(2, jira.getCommentCount());
+        Assert.assertEquals(2, jira.getCallCount("jira1.getIssuesFromJqlSearch"));
+        Assert.assertEquals(1, appender.getMetrics().getIssuesFoundCount());
+    }
+
+    /**
+     * Asserts that lookups that are requested while another lookup is in progress are combined into a single search.
+     */
+    @Test
+    public void testConcurrentLookupsAreBatched() throws Exception {
+
+        // setup
+        appender = newAppender(true, 0);
+        log(appender, TokenBucketTest.newThrowable(0));
+        jira.setLatencyMillis(100);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 1; i <= threads; i++) {
+            final Throwable throwable = TokenBucketTest.newThrowable(i);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        log(appender, throwable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // do magic
+        start.countDown();
+        done.await();
+
+        // verify
+        Assert.assertEquals(threads + 1, jira.getIssueCount());
+        Assert.assertTrue(jira.getCallCount("jira1.getIssuesFromJqlSearch") < threads + 1);
+    }
+
+    private JIRALog4jAppender newAppender(boolean findExistingIssues, int prefetchMaxIssues) {
+        final JIRALog4jAppender result = new JIRALog4jAppender("http://localhost", "user", "pass", "LOOKUP");
+        result.setJmx(false);
+        result.setFindExistingIssues(findExistingIssues);
+        result.setPrefetchMaxIssues(prefetchMaxIssues);
+        result.setTransportFactory(jira.getTransportFactory());
+        result.activateOptions();
+        return result;
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(IssueLookupTest.class), Priority.ERROR, "message",
+                throwable));
+    }
+}
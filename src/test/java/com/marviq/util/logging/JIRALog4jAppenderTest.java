@@ -37,8 +37,8 @@ public class JIRALog4jAppenderTest {
         final Throwable throwable = new Throwable();
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(throwable);
-        final int resultB = JIRALog4jAppender.getHash(throwable);
+        final long resultA = JIRALog4jAppender.getHash(throwable);
+        final long resultB = JIRALog4jAppender.getHash(throwable);
 
         // verify
         Assert.assertEquals(resultA, resultB);
@@ -93,8 +93,8 @@ public class JIRALog4jAppenderTest {
         final Throwable t1 = new Throwable(message); final Throwable t2 = new Throwable(message);
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertEquals(resultA, resultB);
@@ -112,8 +112,8 @@ public class JIRALog4jAppenderTest {
         final Throwable t1 = new Throwable("one"); final Throwable t2 = new Throwable("two");
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertEquals(resultA, resultB);
@@ -131,8 +131,8 @@ public class JIRALog4jAppenderTest {
         final Throwable t2 = new Throwable(); // CANNOT be on the same line as the one above (need different line numbers!)
 
         // do magic
-        final int resultA = JIRALog4jAppender.getHash(t1);
-        final int resultB = JIRALog4jAppender.getHash(t2);
+        final long resultA = JIRALog4jAppender.getHash(t1);
+        final long resultB = JIRALog4jAppender.getHash(t2);
 
         // verify
         Assert.assertTrue(resultA != resultB);
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies that the engine works with events of any logging framework, without log4j 1.x events being involved.
+ */
+public class JiraEngineTest {
+
+    @After
+    public void tearDown() throws Exception {
+        InternalLog.setSink(null);
+    }
+
+    /**
+     * Asserts that events that were copied into snapshots are sent to JIRA as issues and comments, with the parts that
+     * the logging framework provided.
+     */
+    @Test
+    public void testSnapshotsAreSent() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JiraEngine engine = new JiraEngine("http://localhost", "user", "pass", "ENGINE");
+        engine.setName("engine-test");
+        engine.setJmx(false);
+        engine.setTransportFactory(jira.getTransportFactory());
+        engine.activateOptions();
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        engine.append(ErrorEvent.of("com.example.Service", System.currentTimeMillis(), throwable, "main", "first",
+                null, "  ERROR com.example.Service - first  "));
+        engine.append(ErrorEvent.of("com.example.Service", System.currentTimeMillis(), throwable, "main", "second",
+                null, "ERROR com.example.Service - second"));
+        engine.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        final Map<String, Object> issue = jira.getIssues().get(0);
+        Assert.assertTrue(String.valueOf(issue.get("summary")).endsWith("com.example.Service:first"));
+        final String description = String.valueOf(issue.get("description"));
+        Assert.assertTrue(description.contains("{code}\nERROR com.example.Service - first\n"));
+        Assert.assertEquals(1, jira.getCommentCount());
+        final String comment = jira.getComments((String) issue.get("key")).get(0);
+        Assert.assertTrue(comment.contains("ERROR com.example.Service - second"));
+        Assert.assertTrue(engine.isClosed());
+    }
+
+    /**
+     * Asserts that a snapshot keeps the mapped diagnostic context that it was created with, even if the framework
+     * reuses its map for later events.
+     */
+    @Test
+    public void testSnapshotCopiesContext() throws Exception {
+
+        // setup
+        final Map<String, String> context = new HashMap<String, String>();
+        context.put("tenant", "acme");
+
+        // do magic
+        final ErrorEvent event = ErrorEvent.of("test", 0, new Throwable(), "main", "message", context, "formatted");
+        context.put("tenant", "globex");
+
+        // verify
+        Assert.assertEquals("acme", event.getMdc("tenant"));
+        Assert.assertNull(event.getMdc("user"));
+        Assert.assertEquals("formatted", event.format());
+    }
+
+    /**
+     * Asserts that the problems of the engine are reported to the sink that the adapter installed.
+     */
+    @Test
+    public void testProblemsGoToSink() throws Exception {
+
+        // setup
+        final List<String> warnings = new ArrayList<String>();
+        InternalLog.setSink(new InternalLog.Sink() {
+            public void debug(String message, Throwable throwable) {
+            }
+
+            public void warn(String message, Throwable throwable) {
+                warnings.add(message);
+            }
+
+            public void error(String message, Throwable throwable) {
+            }
+        });
+        final JiraEngine engine = new JiraEngine("http://localhost", null, null, "ENGINE");
+        engine.setJmx(false);
+        engine.activateOptions();
+
+        // do magic
+        engine.append(ErrorEvent.of("test", 0, TokenBucketTest.newThrowable(2), "main", "message", null, "message"));
+        engine.close();
+
+        // verify
+        Assert.assertEquals(1, warnings.size());
+        Assert.assertTrue(warnings.get(0).contains("Missing authentication details"));
+        Assert.assertEquals(1, engine.getMetrics().getFilteredEventCount());
+    }
+}
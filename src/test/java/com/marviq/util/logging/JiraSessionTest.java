@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.xmlrpc.XmlRpcException;
+import org.junit.Test;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+public class JiraSessionTest {
+
+    /**
+     * Asserts that a session logs in once, and reuses its token for subsequent calls.
+     */
+    @Test
+    public void testTokenIsReused() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JiraSession session = new JiraSession("http://localhost", "user", "pass", jira.getTransportFactory());
+
+        // do magic
+        final Map<?, ?> issue = (Map<?, ?>) session.call("jira1.createIssue", newIssue());
+        session.call("jira1.addComment", issue.get("key"), "first");
+        session.call("jira1.addComment", issue.get("key"), "second");
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(1, session.getLoginCount());
+        Assert.assertEquals(2, jira.getCommentCount());
+    }
+
+    /**
+     * Asserts that a session logs in again when JIRA no longer accepts its token, and retries the call.
+     */
+    @Test
+    public void testLoginAgainAfterTokenExpiry() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JiraSession session = new JiraSession("http://localhost", "user", "pass", jira.getTransportFactory());
+        final Map<?, ?> issue = (Map<?, ?>) session.call("jira1.createIssue", newIssue());
+
+        // do magic
+        jira.expireTokens();
+        session.call("jira1.addComment", issue.get("key"), "after expiry");
+
+        // verify
+        Assert.assertEquals(2, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(1, jira.getCommentCount());
+    }
+
+    /**
+     * Asserts that failures that are unrelated to authentication are not retried.
+     */
+    @Test
+    public void testOtherFailuresAreNotRetried() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JiraSession session = new JiraSession("http://localhost", "user", "pass", jira.getTransportFactory());
+
+        // do magic
+        try {
+            session.call("jira1.addComment", "TEST-404", "no such issue");
+            Assert.fail();
+        } catch (XmlRpcException e) {
+            // verify
+            Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+            Assert.assertEquals(1, jira.getCallCount("jira1.login"));
+        }
+    }
+
+    /**
+     * Asserts that logging out invalidates the token at JIRA, and that a later call logs in again.
+     */
+    @Test
+    public void testLogout() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JiraSession session = new JiraSession("http://localhost", "user", "pass", jira.getTransportFactory());
+        session.call("jira1.createIssue", newIssue());
+
+        // do magic
+        session.logout();
+        session.call("jira1.createIssue", newIssue());
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.logout"));
+        Assert.assertEquals(2, jira.getCallCount("jira1.login"));
+    }
+
+    /**
+     * Asserts that an appender logs in only once for many events, and logs out on close when configured to do so.
+     */
+    @Test
+    public void testAppenderReusesSession() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "SESSION");
+        appender.setAssignee("assignee");
+        appender.setLogoutOnClose(true);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        final Logger logger = Logger.getLogger(JiraSessionTest.class);
+
+        // do magic
+        final Throwable throwable = new Throwable();
+        for (int i = 0; i < 5; i++) {
+            appender.doAppend(new LoggingEvent(null, logger, Priority.ERROR, "event " + i, throwable));
+        }
+        appender.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(4, jira.getCallCount("jira1.addComment"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.logout"));
+    }
+
+    /**
+     * Asserts that the fault by which JIRA reports an invalid token is recognized.
+     */
+    @Test
+    public void testIsAuthenticationFailure() throws Exception {
+        Assert.assertTrue(JiraSession.isAuthenticationFailure(new XmlRpcException(0, FakeJira.AUTHENTICATION_FAULT)));
+        Assert.assertFalse(JiraSession.isAuthenticationFailure(new XmlRpcException(0, "No such issue")));
+        Assert.assertFalse(JiraSession.isAuthenticationFailure(new XmlRpcException(0, null)));
+    }
+
+    private static Hashtable<String, String> newIssue() {
+        final Hashtable<String, String> issue = new Hashtable<String, String>();
+        issue.put("project", "TEST");
+        issue.put("summary", "summary");
+        return issue;
+    }
+}
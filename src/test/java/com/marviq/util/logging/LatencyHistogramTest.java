@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the bucketing, the percentiles and the thread-safety of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Asserts that every value falls in a bucket of which the highest equivalent value is within about 6% of it, and
+     * that bucket indexes increase with the value.
+     */
+    @Test
+    public void testBucketPrecision() throws Exception {
+
+        // setup
+        final Random random = new Random(42);
+        int previousIndex = -1;
+
+        // do magic & verify
+        for (long value = 0; value < 100000; value++) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            Assert.assertTrue(index >= previousIndex);
+            Assert.assertTrue(LatencyHistogram.highestEquivalentValue(index) >= value);
+            Assert.assertTrue(LatencyHistogram.highestEquivalentValue(index) <= value + value / 16);
+            previousIndex = index;
+        }
+        for (int i = 0; i < 100000; i++) {
+            final long value = random.nextLong() & Long.MAX_VALUE;
+            final long highest = LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(value));
+            Assert.assertTrue(highest >= value);
+            Assert.assertTrue(highest - value <= value / 16);
+        }
+        Assert.assertEquals(Long.MAX_VALUE,
+                LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+    /**
+     * Asserts that percentiles, the mean and the maximum are reported within the precision of the histogram.
+     */
+    @Test
+    public void testPercentiles() throws Exception {
+
+        // setup
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        // do magic
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        // verify
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(50.5, histogram.getMean(TimeUnit.MILLISECONDS), 0.001);
+        Assert.assertEquals(100.0, histogram.getMax(TimeUnit.MILLISECONDS), 0.001);
+        Assert.assertEquals(50.0, histogram.getValueAtPercentile(50, TimeUnit.MILLISECONDS), 50.0 / 16);
+        Assert.assertEquals(99.0, histogram.getValueAtPercentile(99, TimeUnit.MILLISECONDS), 99.0 / 16);
+        Assert.assertEquals(100.0, histogram.getValueAtPercentile(100, TimeUnit.MILLISECONDS), 0.001);
+        Assert.assertEquals(0.0, new LatencyHistogram().getValueAtPercentile(99, TimeUnit.MILLISECONDS), 0.0);
+    }
+
+    /**
+     * Asserts that values that are recorded concurrently are all counted.
+     */
+    @Test
+    public void testConcurrentRecording() throws Exception {
+
+        // setup
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 8;
+        final int values = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < values; i++) {
+                            histogram.record(i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // do magic
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        // verify
+        Assert.assertEquals(threads * values, histogram.getCount());
+        Assert.assertEquals(values - 1, histogram.getMax(TimeUnit.NANOSECONDS), 0.0);
+        Assert.assertEquals((values - 1) / 2.0, histogram.getMean(TimeUnit.NANOSECONDS), 0.001);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Drives an appender from a number of logging threads, and reports what that cost the threads and what it did to
+ * JIRA.
+ *
+ * Every thread logs ERROR events with Throwables that are picked from a fixed set of distinct fingerprints. Which one
+ * is picked follows a Zipf distribution: a few fingerprints occur very often, most occur rarely (as is common for
+ * errors in production). An exponent of 0 makes the distribution uniform.
+ *
+ * The harness measures the time that every call to {@link JIRALog4jAppender#doAppend(LoggingEvent)} takes on the
+ * logging thread. It does not configure the appender, so the same harness serves synchronous and asynchronous
+ * dispatching, coalescing, rate limits and so on.
+ */
+class LoadHarness {
+
+    private static final Logger LOGGER = Logger.getLogger(LoadHarness.class);
+
+    private int threads = 8;
+    private int eventsPerThread = 1000;
+    private int distinctFingerprints = 100;
+    private double zipfExponent = 1.0;
+    private long seed = 42;
+
+    void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    void setEventsPerThread(int eventsPerThread) {
+        this.eventsPerThread = eventsPerThread;
+    }
+
+    void setDistinctFingerprints(int distinctFingerprints) {
+        this.distinctFingerprints = distinctFingerprints;
+    }
+
+    /**
+     * @param zipfExponent the skew of the distribution of fingerprints: 0 for uniform, larger for more skewed.
+     */
+    void setZipfExponent(double zipfExponent) {
+        this.zipfExponent = zipfExponent;
+    }
+
+    void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Logs the configured events through an appender, and closes the appender afterwards (so that events that are
+     * buffered or coalesced are sent before the results are taken).
+     *
+     * @param appender the appender to drive. Its options must have been activated.
+     * @param jira     the fake that the appender sends its events to.
+     * @return the results.
+     */
+    Result run(final JIRALog4jAppender appender, FakeJira jira) throws InterruptedException {
+        final Throwable[] throwables = new Throwable[distinctFingerprints];
+        for (int i = 0; i < throwables.length; i++) {
+            throwables[i] = newThrowable(i);
+        }
+        final double[] cumulative = cumulativeZipf(distinctFingerprints, zipfExponent);
+        final AtomicIntegerArray used = new AtomicIntegerArray(distinctFingerprints);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(seed + t);
+            final Thread thread = new Thread("load-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < eventsPerThread; i++) {
+                            final int index = pick(cumulative, random.nextDouble());
+                            used.incrementAndGet(index);
+                            final LoggingEvent event = new LoggingEvent(null, LOGGER, Priority.ERROR,
+                                    "Event " + i + " of " + getName(), throwables[index]);
+                            final long before = System.nanoTime();
+                            appender.doAppend(event);
+                            latency.record(System.nanoTime() - before);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+        appender.close();
+
+        int distinctUsed = 0;
+        for (int i = 0; i < used.length(); i++) {
+            if (used.get(i) > 0) {
+                distinctUsed++;
+            }
+        }
+        final int calls = jira.getCallCount(AppenderMetrics.LOGIN) + jira.getCallCount(AppenderMetrics.CREATE_ISSUE) +
+                jira.getCallCount(AppenderMetrics.ADD_COMMENT);
+        return new Result(threads * eventsPerThread, distinctUsed, jira.getIssueCount(), calls, latency, elapsed);
+    }
+
+    /**
+     * Computes the cumulative distribution function of a Zipf distribution over the given number of elements.
+     */
+    static double[] cumulativeZipf(int elements, double exponent) {
+        final double[] result = new double[elements];
+        double sum = 0;
+        for (int i = 0; i < elements; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            result[i] = sum;
+        }
+        for (int i = 0; i < elements; i++) {
+            result[i] /= sum;
+        }
+        return result;
+    }
+
+    private static int pick(double[] cumulative, double value) {
+        final int index = Arrays.binarySearch(cumulative, value);
+        return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    /**
+     * Creates a Throwable with a synthetic stack trace, of which the fingerprint is determined by the id.
+     */
+    private static Throwable newThrowable(int id) {
+        final Throwable throwable = new IllegalStateException("Load");
+        throwable.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Service", "process", "Service.java", id),
+                new StackTraceElement("com.example.Controller", "handle", "Controller.java", 7)
+        });
+        return throwable;
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    static final class Result {
+        final int events;
+        final int distinctFingerprints;
+        final int issuesCreated;
+        final int calls;
+        final LatencyHistogram latency;
+        final long elapsedNanos;
+
+        Result(int events, int distinctFingerprints, int issuesCreated, int calls, LatencyHistogram latency,
+               long elapsedNanos) {
+            this.events = events;
+            this.distinctFingerprints = distinctFingerprints;
+            this.issuesCreated = issuesCreated;
+            this.calls = calls;
+            this.latency = latency;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of calls to JIRA (logins, issues and comments) per event logged.
+         */
+        double getCallsPerEvent() {
+            return (double) calls / events;
+        }
+
+        @Override
+        public String toString() {
+            return events + " events (" + distinctFingerprints + " distinct fingerprints) in " +
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms: " + issuesCreated + " issues created, " +
+                    String.format("%.3f", getCallsPerEvent()) + " calls per event; latency on the logging thread " +
+                    String.format("p50 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus",
+                            latency.getValueAtPercentile(50, TimeUnit.MICROSECONDS),
+                            latency.getValueAtPercentile(99, TimeUnit.MICROSECONDS),
+                            latency.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS),
+                            latency.getMax(TimeUnit.MICROSECONDS));
+        }
+    }
+}
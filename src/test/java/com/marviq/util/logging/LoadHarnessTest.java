@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the {@link LoadHarness} against a {@link FakeJiraServer}, reports the results, and verifies that every distinct
+ * problem results in exactly one issue, however many threads report it at the same time.
+ */
+public class LoadHarnessTest {
+
+    private FakeJira jira;
+    private FakeJiraServer server;
+    private LoadHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+        jira = new FakeJira();
+        server = new FakeJiraServer(jira);
+        harness = new LoadHarness();
+        harness.setThreads(8);
+        harness.setEventsPerThread(200);
+        harness.setDistinctFingerprints(50);
+        harness.setZipfExponent(1.0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Asserts that, when events are sent on the logging thread, every event results in exactly one call (after a
+     * single login): an issue for the first occurrence of every fingerprint, and a comment for every other occurrence.
+     */
+    @Test
+    public void testSynchronousDispatch() throws Exception {
+
+        // setup
+        final JIRALog4jAppender appender = newAppender();
+        appender.activateOptions();
+
+        // do magic
+        final LoadHarness.Result result = harness.run(appender, jira);
+        System.out.println("Synchronous: " + result);
+
+        // verify
+        Assert.assertEquals(result.distinctFingerprints, result.issuesCreated);
+        Assert.assertEquals(result.events + 1, result.calls);
+    }
+
+    /**
+     * Asserts that, when events are sent asynchronously and repeated occurrences are coalesced, every fingerprint still
+     * results in exactly one issue, while far fewer calls are made than events are logged.
+     */
+    @Test
+    public void testAsynchronousCoalescedDispatch() throws Exception {
+
+        // setup
+        final JIRALog4jAppender appender = newAppender();
+        appender.setAsync(true);
+        appender.setBufferSize(2048);
+        appender.setCommentWindow(60000);
+        appender.activateOptions();
+
+        // do magic
+        final LoadHarness.Result result = harness.run(appender, jira);
+        System.out.println("Asynchronous, coalesced: " + result);
+
+        // verify
+        Assert.assertEquals(result.distinctFingerprints, result.issuesCreated);
+        Assert.assertTrue(result.getCallsPerEvent() < 0.2);
+    }
+
+    private JIRALog4jAppender newAppender() {
+        final JIRALog4jAppender appender = new JIRALog4jAppender(server.getUrl(), "user", "pass", "LOAD");
+        appender.setJmx(false);
+        return appender;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies that the default cache of issues remembers issue keys exactly, stays within its bounds, and forgets issues
+ * according to its expiry policy; and that every appender has a cache of its own.
+ */
+public class LongIssueKeyCacheTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    /**
+     * Asserts that issue keys come back exactly as they were put in, including keys that do not end in a number, or of
+     * which the number has leading zeros.
+     */
+    @Test
+    public void testKeysRoundTrip() throws Exception {
+
+        // setup
+        final LongIssueKeyCache cache = new LongIssueKeyCache(100, 0, false, ticker);
+        final String[] keys = {"PROJ-1", "PROJ-1234", "PROJ-0", "PROJ-007", "OTHER-2147483647", "PROJ-12345678901",
+                "no-number-", "plain", "A-B-3", "-5"};
+
+        // do magic
+        for (int i = 0; i < keys.length; i++) {
+            cache.put(i, keys[i]);
+        }
+
+        // verify
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals(keys[i], cache.get(i));
+        }
+        Assert.assertNull(cache.get(keys.length));
+        Assert.assertEquals(keys.length, cache.size());
+    }
+
+    /**
+     * Asserts that the cache does not grow beyond its maximum size, and that recently used entries survive eviction.
+     */
+    @Test
+    public void testSizeIsBounded() throws Exception {
+
+        // setup
+        final LongIssueKeyCache cache = new LongIssueKeyCache(1000, 0, false, ticker);
+        for (long fingerprint = 0; fingerprint < 100; fingerprint++) {
+            cache.put(fingerprint, "HOT-" + fingerprint);
+        }
+
+        // do magic
+        for (long fingerprint = 100; fingerprint < 10000; fingerprint++) {
+            ticker.advance(1, TimeUnit.SECONDS);
+            for (long hot = 0; hot < 100; hot += 10) {
+                cache.get(hot);
+            }
+            cache.put(fingerprint, "COLD-" + fingerprint);
+        }
+
+        // verify
+        Assert.assertTrue(cache.size() <= 1000);
+        Assert.assertEquals(10000 - cache.size(), cache.getEvictionCount());
+        for (long hot = 0; hot < 100; hot += 10) {
+            Assert.assertEquals("HOT-" + hot, cache.get(hot));
+        }
+        Assert.assertEquals("COLD-9999", cache.get(9999));
+
+        // do magic
+        final LongIssueKeyCache small = new LongIssueKeyCache(3, 0, false, ticker);
+        for (long fingerprint = 0; fingerprint < 100; fingerprint++) {
+            small.put(fingerprint, "TEST-" + fingerprint);
+        }
+
+        // verify
+        Assert.assertEquals(3, small.size());
+        Assert.assertEquals("TEST-99", small.get(99));
+    }
+
+    /**
+     * Asserts that entries that are used keep being remembered when they expire after access, but not when they expire
+     * after they were written.
+     */
+    @Test
+    public void testExpiryPolicies() throws Exception {
+
+        // setup
+        final LongIssueKeyCache afterAccess = new LongIssueKeyCache(100, TimeUnit.MINUTES.toMillis(10), false, ticker);
+        final LongIssueKeyCache afterWrite = new LongIssueKeyCache(100, TimeUnit.MINUTES.toMillis(10), true, ticker);
+        afterAccess.put(1, "TEST-1");
+        afterAccess.put(2, "TEST-2");
+        afterWrite.put(1, "TEST-1");
+
+        // do magic
+        for (int i = 0; i < 3; i++) {
+            ticker.advance(5, TimeUnit.MINUTES);
+            afterAccess.get(1);
+            afterWrite.get(1);
+        }
+
+        // verify
+        Assert.assertEquals("TEST-1", afterAccess.get(1));
+        Assert.assertNull(afterAccess.get(2));
+        Assert.assertNull(afterWrite.get(1));
+        Assert.assertEquals(1, afterAccess.size());
+        Assert.assertEquals(0, afterWrite.size());
+    }
+
+    /**
+     * Asserts that putIfAbsent only replaces entries that are missing or have expired.
+     */
+    @Test
+    public void testPutIfAbsent() throws Exception {
+
+        // setup
+        final LongIssueKeyCache cache = new LongIssueKeyCache(100, TimeUnit.MINUTES.toMillis(1), true, ticker);
+
+        // do magic & verify
+        Assert.assertTrue(cache.putIfAbsent(1, "TEST-1"));
+        Assert.assertFalse(cache.putIfAbsent(1, "TEST-2"));
+        Assert.assertEquals("TEST-1", cache.get(1));
+        ticker.advance(1, TimeUnit.MINUTES);
+        Assert.assertTrue(cache.putIfAbsent(1, "TEST-3"));
+        Assert.assertEquals("TEST-3", cache.get(1));
+    }
+
+    /**
+     * Asserts that the cache agrees with a plain map while entries are added, replaced and evicted in random order, so
+     * that probe sequences keep running across slots that were emptied.
+     */
+    @Test
+    public void testChurnStaysConsistent() throws Exception {
+
+        // setup
+        final LongIssueKeyCache cache = new LongIssueKeyCache(64, 0, false, ticker);
+        final Map<Long, String> expected = new HashMap<Long, String>();
+        final Random random = new Random(42);
+
+        // do magic
+        for (int i = 0; i < 100000; i++) {
+            final long fingerprint = random.nextInt(256) * (1L << 32);
+            final String key = "TEST-" + i;
+            cache.put(fingerprint, key);
+            expected.put(fingerprint, key);
+
+            // verify
+            final long probe = random.nextInt(256) * (1L << 32);
+            final String found = cache.get(probe);
+            Assert.assertTrue(found == null || found.equals(expected.get(probe)));
+            Assert.assertEquals(key, cache.get(fingerprint));
+        }
+        Assert.assertTrue(cache.size() <= 64);
+    }
+
+    /**
+     * Asserts that appenders no longer share the issues that they know about: each one creates an issue of its own.
+     */
+    @Test
+    public void testAppendersHaveTheirOwnCache() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender first = newAppender(jira, null);
+        final JIRALog4jAppender second = newAppender(jira, null);
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        log(first, throwable);
+        log(second, throwable);
+        log(second, throwable);
+        first.close();
+        second.close();
+
+        // verify
+        Assert.assertEquals(2, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+    }
+
+    /**
+     * Asserts that an appender uses the cache class that it is configured with.
+     */
+    @Test
+    public void testCustomCacheClass() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = newAppender(jira, MapIssueKeyCache.class.getName());
+
+        // do magic
+        log(appender, TokenBucketTest.newThrowable(1));
+
+        // verify
+        Assert.assertTrue(appender.getEngine().getCache() instanceof MapIssueKeyCache);
+        Assert.assertEquals(1, appender.getEngine().getCache().size());
+        appender.close();
+    }
+
+    /**
+     * Asserts that the cache of an appender expires its entries by the time of the appender, rather than by that of
+     * the system.
+     */
+    @Test
+    public void testCacheUsesTheTickerOfTheAppender() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "CACHE");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.setJmx(false);
+        appender.setTicker(ticker);
+        appender.setCacheExpiry(TimeUnit.MINUTES.toMillis(1));
+        appender.activateOptions();
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        log(appender, throwable);
+        ticker.advance(1, TimeUnit.MINUTES);
+        log(appender, throwable);
+        appender.close();
+
+        // verify
+        Assert.assertEquals(0, jira.getCallCount("jira1.addComment"));
+        Assert.assertEquals(2, jira.getCallCount("jira1.createIssue"));
+    }
+
+    private static JIRALog4jAppender newAppender(FakeJira jira, String cacheClass) {
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "CACHE");
+        appender.setCacheClass(cacheClass);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.setJmx(false);
+        appender.activateOptions();
+        return appender;
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(LongIssueKeyCacheTest.class), Priority.ERROR,
+                "message", throwable));
+    }
+
+    /**
+     * An unbounded cache, which shows that the cache can be replaced.
+     */
+    public static class MapIssueKeyCache implements IssueKeyCache {
+        private final ConcurrentMap<Long, String> map = new ConcurrentHashMap<Long, String>();
+
+        public String get(long fingerprint) {
+            return map.get(fingerprint);
+        }
+
+        public void put(long fingerprint, String issueKey) {
+            map.put(fingerprint, issueKey);
+        }
+
+        public boolean putIfAbsent(long fingerprint, String issueKey) {
+            return map.putIfAbsent(fingerprint, issueKey) == null;
+        }
+
+        public void clear() {
+            map.clear();
+        }
+
+        public long size() {
+            return map.size();
+        }
+
+        public long getEvictionCount() {
+            return 0;
+        }
+    }
+}
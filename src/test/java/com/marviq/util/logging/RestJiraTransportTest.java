@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.xmlrpc.XmlRpcException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies that calls made through the REST interface of JIRA have the same outcome as calls made through XML-RPC,
+ * including logging in again when a session expires, finding issues, compressed requests and HTTP errors.
+ */
+public class RestJiraTransportTest {
+
+    private FakeJira jira;
+    private FakeJiraServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        jira = new FakeJira();
+        server = new FakeJiraServer(jira);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Asserts that an appender that uses the REST interface creates an issue, with the text of the event intact, and
+     * adds comments to it for similar events.
+     */
+    @Test
+    public void testAppenderOverRest() throws Exception {
+
+        // setup
+        final JIRALog4jAppender appender = new JIRALog4jAppender(server.getUrl(), "user", "pass", "REST");
+        appender.setProtocol("rest");
+        appender.setAssignee("assignee");
+        appender.setLogoutOnClose(true);
+        appender.setJmx(false);
+        appender.activateOptions();
+        final Logger logger = Logger.getLogger(RestJiraTransportTest.class);
+        final Throwable throwable = new IllegalStateException("\"quoted\" \\ tab\t caf\u00e9 \u20ac \u0001");
+
+        // do magic
+        for (int i = 0; i < 3; i++) {
+            appender.doAppend(new LoggingEvent(null, logger, Priority.ERROR, "event " + i, throwable));
+        }
+        appender.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getIssueCount());
+        final Map<String, Object> issue = jira.getIssues().get(0);
+        Assert.assertEquals("REST", issue.get("project"));
+        Assert.assertEquals("assignee", issue.get("assignee"));
+        Assert.assertTrue(issue.get("description").toString().contains(throwable.getMessage()));
+        Assert.assertEquals(2, jira.getComments((String) issue.get("key")).size());
+        Assert.assertEquals(1, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.logout"));
+    }
+
+    /**
+     * Asserts that a session logs in again when JIRA no longer accepts its session cookie, and retries the call.
+     */
+    @Test
+    public void testLoginAgainAfterSessionExpiry() throws Exception {
+
+        // setup
+        final JiraSession session = newSession(false);
+        final Map<?, ?> issue = (Map<?, ?>) session.call("jira1.createIssue", newIssue("description"));
+
+        // do magic
+        jira.expireTokens();
+        session.call("jira1.addComment", issue.get("key"), "after expiry");
+
+        // verify
+        Assert.assertEquals(2, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(1, jira.getCommentCount());
+    }
+
+    /**
+     * Asserts that large requests are compressed when that is enabled, and that small requests are not.
+     */
+    @Test
+    public void testCompressedRequests() throws Exception {
+
+        // setup
+        final JiraSession session = newSession(true);
+        final StringBuilder description = new StringBuilder();
+        while (description.length() < 10000) {
+            description.append("\tat com.example.Service.process(Service.java:").append(description.length())
+                    .append(")\n");
+        }
+
+        // do magic
+        session.call("jira1.createIssue", newIssue(description.toString()));
+
+        // verify
+        Assert.assertEquals(1, server.getCompressedRequestCount()); // not the login
+        Assert.assertEquals(description.toString(), jira.getIssues().get(0).get("description"));
+    }
+
+    /**
+     * Asserts that issues are found by their stamp, in the same form as through XML-RPC.
+     */
+    @Test
+    public void testSearch() throws Exception {
+
+        // setup
+        final JiraSession session = newSession(false);
+        final String stamp = IssueLookup.stamp(1, 42L);
+        final Map<?, ?> issue = (Map<?, ?>) session.call("jira1.createIssue", newIssue("text\nFingerprint: " + stamp));
+
+        // do magic
+        final Object[] found = (Object[]) session.call("jira1.getIssuesFromJqlSearch",
+                "project in (\"TEST\") AND text ~ \"" + stamp + "\"", 10);
+
+        // verify
+        Assert.assertEquals(1, found.length);
+        Assert.assertEquals(issue.get("key"), IssueLookup.parse(found, 1).get(42L));
+    }
+
+    /**
+     * Asserts that HTTP errors and errors reported by JIRA are reported with their status, and are not retried.
+     */
+    @Test
+    public void testErrors() throws Exception {
+
+        // setup
+        final JiraSession session = newSession(false);
+
+        // do magic & verify
+        try {
+            session.call("jira1.addComment", "TEST-404", "no such issue");
+            Assert.fail();
+        } catch (XmlRpcException e) {
+            Assert.assertEquals(400, e.code);
+            Assert.assertTrue(e.getMessage().contains("No such issue"));
+            Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+        }
+        server.setErrorRate(1);
+        try {
+            session.call("jira1.addComment", "TEST-404", "unavailable");
+            Assert.fail();
+        } catch (XmlRpcException e) {
+            Assert.assertEquals(503, e.code);
+        }
+    }
+
+    /**
+     * Asserts that strings with characters that must be escaped survive writing and parsing JSON.
+     */
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+
+        // setup
+        final String text = "\"quoted\" \\ / \n\r\t \u0000\u001f caf\u00e9 \u20ac \ud83d\ude00";
+        final StringWriter out = new StringWriter();
+
+        // do magic
+        new JsonWriter(out).beginObject().name("text").value(text).name("number").value(-12L)
+                .name("list").beginArray().value(true).value((String) null).beginObject().endObject().endArray()
+                .endObject();
+        final Map<?, ?> result = (Map<?, ?>) JsonParser.parse(out.toString());
+
+        // verify
+        Assert.assertEquals(text, result.get("text"));
+        Assert.assertEquals(-12L, result.get("number"));
+        final List<?> list = (List<?>) result.get("list");
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals(Boolean.TRUE, list.get(0));
+        Assert.assertNull(list.get(1));
+        Assert.assertTrue(((Map<?, ?>) list.get(2)).isEmpty());
+        Assert.assertEquals(1.5e3, ((List<?>) JsonParser.parse(" [ 1.5e3 ] ")).get(0));
+    }
+
+    private JiraSession newSession(boolean compressRequests) {
+        return new JiraSession(server.getUrl(), "user", "pass",
+                new RestJiraTransport(server.getUrl(), compressRequests), null, 5000, 5000);
+    }
+
+    private static Hashtable<String, String> newIssue(String description) {
+        final Hashtable<String, String> issue = new Hashtable<String, String>();
+        issue.put("project", "TEST");
+        issue.put("type", "1");
+        issue.put("summary", "summary");
+        issue.put("description", description);
+        return issue;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RingBufferTest {
+
+    /**
+     * Asserts that the capacity of a buffer is rounded up to the next power of two.
+     */
+    @Test
+    public void testCapacityIsRoundedUp() throws Exception {
+        Assert.assertEquals(1, new RingBuffer<Object>(1).capacity());
+        Assert.assertEquals(8, new RingBuffer<Object>(5).capacity());
+        Assert.assertEquals(256, new RingBuffer<Object>(256).capacity());
+    }
+
+    /**
+     * Asserts that elements are returned in the order in which they were added, and that a full buffer rejects
+     * elements rather than blocking.
+     */
+    @Test
+    public void testFifoAndFull() throws Exception {
+
+        // setup
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+
+        // do magic
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(buffer.offer(i));
+        }
+        final boolean acceptedWhenFull = buffer.offer(4);
+
+        // verify
+        Assert.assertFalse(acceptedWhenFull);
+        Assert.assertEquals(4, buffer.size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        Assert.assertNull(buffer.poll());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    /**
+     * Asserts that a buffer can be used for more than one lap.
+     */
+    @Test
+    public void testWrapAround() throws Exception {
+
+        // setup
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(2);
+
+        // do magic & verify
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(buffer.offer(i));
+            Assert.assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+    }
+
+    /**
+     * Asserts that no element is lost or duplicated when many producers and a consumer use a buffer concurrently.
+     */
+    @Test
+    public void testConcurrentProducers() throws Exception {
+
+        // setup
+        final int producers = 4;
+        final int perProducer = 50000;
+        final RingBuffer<Long> buffer = new RingBuffer<Long>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final long base = (long) p * perProducer;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (long i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        // do magic
+        start.countDown();
+        final AtomicLong sum = new AtomicLong();
+        int received = 0;
+        while (received < producers * perProducer) {
+            final Long element = buffer.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            sum.addAndGet(element);
+            received++;
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        // verify
+        final long total = (long) producers * perProducer;
+        Assert.assertEquals(total * (total - 1) / 2, sum.get());
+        Assert.assertNull(buffer.poll());
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Verifies that routing rules send events to the right project, assignee and issue type, and that a single appender
+ * that routes events to several projects keeps the issues of each route apart.
+ */
+public class RoutingTableTest {
+
+    private static final String RULES = "logger=com.example.billing -> project=BILL, assignee=jdoe; " +
+            "exception=java.io.IOException, exception=java.lang.Runnable -> project=OPS, type=3; " +
+            "mdc=tenant:acme -> project=ACME, label=acme; " +
+            "logger=com.example, mdc=tenant -> assignee=support";
+
+    @After
+    public void tearDown() {
+        MDC.remove("tenant");
+    }
+
+    /**
+     * Asserts that logger conditions match the logger of the given name and its descendants only.
+     */
+    @Test
+    public void testLoggerPrefixes() throws Exception {
+
+        // setup
+        final RoutingTable table = RoutingTable.compile(RULES);
+
+        // do magic & verify
+        Assert.assertEquals("BILL", route(table, "com.example.billing", new Throwable()).getProjectKey());
+        Assert.assertEquals("jdoe", route(table, "com.example.billing.Invoice", new Throwable()).getAssignee());
+        Assert.assertNull(route(table, "com.example.billingextra", new Throwable()));
+        Assert.assertNull(route(table, "com.example", new Throwable()));
+    }
+
+    /**
+     * Asserts that exception conditions match subclasses and implementations, and that the first matching rule wins.
+     */
+    @Test
+    public void testExceptionHierarchy() throws Exception {
+
+        // setup
+        final RoutingTable table = RoutingTable.compile(RULES);
+
+        // do magic & verify
+        Assert.assertEquals("OPS", route(table, "com.example.Service", new IOException()).getProjectKey());
+        Assert.assertEquals("3", route(table, "com.example.Service", new InterruptedIOException()).getIssueType());
+        Assert.assertEquals("OPS", route(table, "com.example.Service", new RunnableException()).getProjectKey());
+        Assert.assertNull(route(table, "com.example.Service", new SQLException()));
+        Assert.assertEquals("BILL", route(table, "com.example.billing", new IOException()).getProjectKey());
+    }
+
+    /**
+     * Asserts that MDC conditions require the key to be present, or to have the given value.
+     */
+    @Test
+    public void testMdcConditions() throws Exception {
+
+        // setup
+        final RoutingTable table = RoutingTable.compile(RULES);
+
+        // do magic & verify
+        MDC.put("tenant", "acme");
+        Assert.assertEquals("ACME", route(table, "org.other", new Throwable()).getProjectKey());
+        Assert.assertEquals("acme", route(table, "com.example.Service", new Throwable()).getLabel());
+        MDC.put("tenant", "globex");
+        Assert.assertNull(route(table, "org.other", new Throwable()));
+        Assert.assertEquals("support", route(table, "com.example.Service", new Throwable()).getAssignee());
+    }
+
+    /**
+     * Asserts that malformed rules are rejected, and that routes keep their written form.
+     */
+    @Test
+    public void testSyntax() throws Exception {
+
+        // do magic & verify
+        for (final String rules : new String[]{"logger=com.example", "color=red -> project=RED",
+                "logger= -> project=A", "logger=a -> project", "logger=a -> team=A"}) {
+            try {
+                RoutingTable.compile(rules);
+                Assert.fail("Accepted '" + rules + "'");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        final Route route = Route.parse(" label=x,project=A ");
+        Assert.assertEquals("project=A, label=x", route.toString());
+        Assert.assertEquals(route, Route.parse(route.toString()));
+        Assert.assertTrue(RoutingTable.compile(" ; ").isEmpty());
+    }
+
+    /**
+     * Asserts that the fingerprint of a routed event depends on the project of its route only.
+     */
+    @Test
+    public void testFingerprintDependsOnProjectOnly() throws Exception {
+
+        // setup
+        final long fingerprint = 0x0123456789ABCDEFL;
+
+        // do magic
+        final long bill = Route.parse("project=BILL").fingerprint(fingerprint);
+        final long reassigned = Route.parse("project=BILL, assignee=jdoe, type=3, label=billing")
+                .fingerprint(fingerprint);
+        final long ops = Route.parse("project=OPS").fingerprint(fingerprint);
+        final long sameProject = Route.parse("assignee=dba, label=database").fingerprint(fingerprint);
+
+        // verify
+        Assert.assertEquals(bill, reassigned);
+        Assert.assertTrue(bill != ops);
+        Assert.assertEquals(fingerprint, sameProject);
+    }
+
+    /**
+     * Asserts that a single appender creates the issues of routed events in the right projects, with the right
+     * assignee and type, and that similar events that follow routes to different projects get issues of their own.
+     */
+    @Test
+    public void testAppenderRoutesIssues() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "MAIN");
+        appender.setAssignee("lead");
+        appender.setRoutes(RULES);
+        appender.setJmx(false);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+        final Throwable throwable = TokenBucketTest.newThrowable(1);
+
+        // do magic
+        log(appender, "com.example.billing.Invoice", throwable);
+        log(appender, "com.example.billing.Invoice", throwable);
+        log(appender, "com.example.Service", throwable);
+        log(appender, "com.example.Service", new IOException());
+        appender.close();
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.login"));
+        Assert.assertEquals(3, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+        final Map<String, Object> billing = jira.getIssues().get(0);
+        Assert.assertEquals("BILL", billing.get("project"));
+        Assert.assertEquals("jdoe", billing.get("assignee"));
+        Assert.assertEquals("1", billing.get("type"));
+        final Map<String, Object> main = jira.getIssues().get(1);
+        Assert.assertEquals("MAIN", main.get("project"));
+        Assert.assertEquals("lead", main.get("assignee"));
+        final Map<String, Object> ops = jira.getIssues().get(2);
+        Assert.assertEquals("OPS", ops.get("project"));
+        Assert.assertEquals("3", ops.get("type"));
+    }
+
+    /**
+     * Asserts that an appender with invalid rules sends all events to its own project.
+     */
+    @Test
+    public void testInvalidRulesAreIgnored() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "MAIN");
+        appender.setRoutes("logger=com.example.billing => project=BILL");
+        appender.setJmx(false);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+
+        // do magic
+        log(appender, "com.example.billing", TokenBucketTest.newThrowable(1));
+        appender.close();
+
+        // verify
+        Assert.assertEquals("MAIN", jira.getIssues().get(0).get("project"));
+    }
+
+    private static Route route(RoutingTable table, String loggerName, Throwable throwable) {
+        return table.route(new JIRALog4jAppender().toErrorEvent(
+                new LoggingEvent(null, Logger.getLogger(loggerName), Priority.ERROR, "message", throwable)));
+    }
+
+    private static void log(JIRALog4jAppender appender, String loggerName, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(loggerName), Priority.ERROR, "message", throwable));
+    }
+
+    /**
+     * An exception that implements an interface, which a rule matches.
+     */
+    private static class RunnableException extends RuntimeException implements Runnable {
+        public void run() {
+        }
+    }
+}
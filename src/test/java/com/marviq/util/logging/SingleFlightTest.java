@@ -0,0 +1,184 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Verifies that events are sent to JIRA concurrently when their fingerprints differ, and that concurrent events with
+ * the same fingerprint result in exactly one issue (plus comments).
+ *
+ * JIRA holds the calls that create issues until the test releases them, so that the calls that are in progress at the
+ * same time can be counted without depending on timing.
+ */
+public class SingleFlightTest {
+
+    private FakeJira jira;
+    private JIRALog4jAppender appender;
+
+    @Before
+    public void setUp() {
+        jira = new FakeJira();
+        appender = new JIRALog4jAppender("http://localhost", "user", "pass", "FLIGHT");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+    }
+
+    @After
+    public void tearDown() {
+        jira.release();
+        appender.close();
+    }
+
+    /**
+     * Asserts that many threads that log the same Throwable concurrently create exactly one issue, and that all other
+     * events become comments on that issue, also when they are logged while the issue is being created.
+     */
+    @Test
+    public void testOneIssuePerFingerprint() throws Exception {
+
+        // setup
+        final int threads = 16;
+        final Throwable throwable = newThrowable("same", 1);
+        jira.hold("jira1.createIssue");
+
+        // do magic
+        final CountDownLatch done = startConcurrently(threads, new Throwable[]{throwable});
+        Assert.assertTrue(jira.awaitHeldCalls(1));
+        jira.release();
+        done.await();
+
+        // verify
+        Assert.assertEquals(1, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(threads - 1, jira.getCallCount("jira1.addComment"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.login"));
+    }
+
+    /**
+     * Asserts that threads that log distinct Throwables do not wait for each other: all of them are creating their
+     * issue at the same time.
+     */
+    @Test
+    public void testDistinctFingerprintsProceedInParallel() throws Exception {
+
+        // setup
+        final int threads = 16;
+        final Throwable[] throwables = new Throwable[threads];
+        for (int i = 0; i < threads; i++) {
+            throwables[i] = newThrowable("distinct", i);
+        }
+        jira.hold("jira1.createIssue");
+
+        // do magic
+        final CountDownLatch done = startConcurrently(threads, throwables);
+        final boolean parallel = jira.awaitHeldCalls(threads);
+        jira.release();
+        done.await();
+
+        // verify
+        Assert.assertTrue(parallel);
+        Assert.assertEquals(threads, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(threads, jira.getIssueCount());
+    }
+
+    /**
+     * Logs a fixed number of events for a varying number of distinct fingerprints, and asserts that the number of
+     * issues that are created at the same time grows with the number of fingerprints, while threads that log the same
+     * fingerprint wait for its issue. Every fingerprint gets exactly one issue.
+     */
+    @Test
+    public void testParallelismScalesWithDistinctFingerprints() throws Exception {
+
+        // setup
+        final int threads = 16;
+        final int[] fingerprints = {1, 4, 16};
+
+        for (int run = 0; run < fingerprints.length; run++) {
+            final Throwable[] throwables = new Throwable[fingerprints[run]];
+            for (int i = 0; i < throwables.length; i++) {
+                throwables[i] = newThrowable("scaling" + run, i);
+            }
+            final int issuesBefore = jira.getIssueCount();
+            final int createsBefore = jira.getCallCount("jira1.createIssue");
+            jira.hold("jira1.createIssue");
+
+            // do magic
+            final CountDownLatch done = startConcurrently(threads, throwables);
+            final boolean parallel = jira.awaitHeldCalls(fingerprints[run]);
+            final int creating = jira.getCallCount("jira1.createIssue") - createsBefore;
+            jira.release();
+            done.await();
+
+            // verify
+            Assert.assertTrue(parallel);
+            Assert.assertEquals(fingerprints[run], creating);
+            Assert.assertEquals(fingerprints[run], jira.getIssueCount() - issuesBefore);
+            Assert.assertEquals(fingerprints[run], jira.getCallCount("jira1.createIssue") - createsBefore);
+        }
+    }
+
+    /**
+     * Makes a number of threads log an event each, all at the same time.
+     *
+     * @param threads    the number of threads (and events).
+     * @param throwables the Throwables to log (thread <tt>i</tt> logs Throwable <tt>i % throwables.length</tt>).
+     * @return a latch that is released once all threads are finished.
+     */
+    private CountDownLatch startConcurrently(int threads, final Throwable[] throwables) {
+        final Logger logger = Logger.getLogger(SingleFlightTest.class);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Throwable throwable = throwables[i % throwables.length];
+            final String message = "event " + i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        appender.doAppend(new LoggingEvent(null, logger, Priority.ERROR, message, throwable));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        return done;
+    }
+
+    /**
+     * Creates a Throwable with a synthetic stack trace, so that any number of distinct fingerprints can be produced.
+     */
+    private static Throwable newThrowable(String name, int line) {
+        final Throwable throwable = new Throwable(name);
+        throwable.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement(SingleFlightTest.class.getName() + "$" + name, "fail", "Synthetic.java", line),
+                new StackTraceElement(SingleFlightTest.class.getName(), "run", "SingleFlightTest.java", 1)
+        });
+        return throwable;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+/**
+ * Verifies that texts show stack traces as {@link Throwable#printStackTrace()} does, and that they stay within their
+ * bounds.
+ */
+public class TextRendererTest {
+
+    /**
+     * Asserts that without limits, the text is the same as when it is built from the rendering of log4j, which uses
+     * {@link Throwable#printStackTrace()} of the running JVM. That includes suppressed Throwables (Java 7 and later).
+     */
+    @Test
+    public void testSameAsPrintStackTrace() throws Exception {
+
+        // setup
+        final Throwable throwable = newNestedThrowable();
+        final boolean suppressed = addSuppressed(throwable.getCause(), new IllegalArgumentException("suppressed"));
+        final LoggingEvent event = newEvent(throwable);
+        final StringBuilder expected = new StringBuilder("The following was logged by the application:\n{code}\n");
+        expected.append("message");
+        for (final String line : event.getThrowableStrRep()) {
+            expected.append('\n').append(line);
+        }
+        expected.append("{code}\n");
+
+        // do magic
+        final String result = new TextRenderer(0, 0).render("message", throwable, false);
+
+        // verify
+        Assert.assertEquals(expected.toString(), result);
+        Assert.assertTrue(result.contains("\nCaused by: java.lang.IllegalStateException: inner"));
+        Assert.assertTrue(result.contains(" more\n") || result.contains(" more{code}"));
+        if (suppressed) {
+            Assert.assertTrue(result.contains("\n\tSuppressed: java.lang.IllegalArgumentException: suppressed\n" +
+                    "\t\tat "));
+        }
+    }
+
+    /**
+     * Asserts that of a long stack trace, the first and the last frames are shown.
+     */
+    @Test
+    public void testFramesAreLimited() throws Exception {
+
+        // setup
+        final Throwable throwable = newThrowable(500);
+
+        // do magic
+        final String result = new TextRenderer(0, 20).render("message", throwable, false);
+
+        // verify
+        Assert.assertTrue(result.contains("\tat com.example.Frame.method0(Frame.java:0)\n"));
+        Assert.assertTrue(result.contains("\tat com.example.Frame.method14(Frame.java:14)\n\t... 480 frames omitted\n" +
+                "\tat com.example.Frame.method495(Frame.java:495)\n"));
+        Assert.assertTrue(result.contains("\tat com.example.Frame.method499(Frame.java:499){code}\n"));
+        Assert.assertEquals(20, result.split("\tat ").length - 1);
+    }
+
+    /**
+     * Asserts that a deep stack trace with causes does not exceed the maximum length, and that the text says so.
+     */
+    @Test
+    public void testLengthIsLimited() throws Exception {
+
+        // setup
+        final Throwable throwable = newThrowable(2000);
+        throwable.initCause(newThrowable(2000));
+
+        // do magic
+        final String result = new TextRenderer(5000, 0).render("message", throwable, false);
+        final String withoutLimit = new TextRenderer(0, 0).render("message", throwable, false);
+
+        // verify
+        Assert.assertEquals(5000, result.length());
+        Assert.assertTrue(result.endsWith("\n...\n(Cut short to stay within 5000 characters.)\n{code}\n"));
+        Assert.assertTrue(withoutLimit.startsWith(result.substring(0, 4900)));
+        Assert.assertTrue(withoutLimit.length() > 50000);
+    }
+
+    /**
+     * Asserts that a text that fits is not cut short, and that comments leave out the stack trace.
+     */
+    @Test
+    public void testShortTexts() throws Exception {
+
+        // setup
+        final TextRenderer renderer = new TextRenderer(JiraEngine.DEFAULT_TEXT_MAX_LENGTH,
+                JiraEngine.DEFAULT_TEXT_MAX_FRAMES);
+
+        // do magic
+        final String description = renderer.render("message", newThrowable(3), false);
+        final String comment = renderer.render("message", newThrowable(3), true);
+
+        // verify
+        Assert.assertFalse(description.contains("Cut short"));
+        Assert.assertFalse(description.contains("omitted"));
+        Assert.assertTrue(comment.contains("Stacktrace omitted"));
+        Assert.assertFalse(comment.contains("\tat "));
+    }
+
+    /**
+     * Asserts that a chain of causes that loops is rendered once.
+     */
+    @Test
+    public void testCircularCause() throws Exception {
+
+        // setup
+        final CyclicException first = new CyclicException("first");
+        final CyclicException second = new CyclicException("second");
+        first.cause = second;
+        second.cause = first;
+
+        // do magic
+        final String result = new TextRenderer(0, 0).render("message", first, false);
+
+        // verify
+        Assert.assertTrue(result.contains("[CIRCULAR REFERENCE:"));
+    }
+
+    /**
+     * Asserts that limits that leave no room for a text are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxLength() throws Exception {
+        new TextRenderer(50, 0);
+    }
+
+    /**
+     * Asserts that the appender keeps the descriptions of its issues within the configured length.
+     */
+    @Test
+    public void testAppenderLimitsDescriptions() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "TEXT");
+        appender.setTextMaxLength(2000);
+        appender.setJmx(false);
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.activateOptions();
+
+        // do magic
+        appender.doAppend(newEvent(newThrowable(2000)));
+        appender.close();
+
+        // verify
+        final String description = (String) jira.getIssues().get(0).get("description");
+        Assert.assertTrue(description.contains("Cut short"));
+        Assert.assertTrue(description.length() < 2100);
+    }
+
+    private static LoggingEvent newEvent(Throwable throwable) {
+        return new LoggingEvent(null, Logger.getLogger(TextRendererTest.class), Priority.ERROR, "message", throwable);
+    }
+
+    private static Throwable newThrowable(int frames) {
+        final StackTraceElement[] trace = new StackTraceElement[frames];
+        for (int i = 0; i < frames; i++) {
+            trace[i] = new StackTraceElement("com.example.Frame", "method" + i, "Frame.java", i);
+        }
+        final Throwable throwable = new IllegalStateException("deep");
+        throwable.setStackTrace(trace);
+        return throwable;
+    }
+
+    private static Throwable newNestedThrowable() {
+        try {
+            try {
+                throw new IllegalStateException("inner");
+            } catch (IllegalStateException e) {
+                throw new RuntimeException("outer", e);
+            }
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Calls <tt>Throwable.addSuppressed(Throwable)</tt>, which is not available before Java 7.
+     *
+     * @return <tt>true</tt> if the Throwable was added.
+     */
+    private static boolean addSuppressed(Throwable throwable, Throwable suppressed) throws Exception {
+        try {
+            Throwable.class.getMethod("addSuppressed", Throwable.class).invoke(throwable, suppressed);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * An exception of which the cause can be set to form a loop.
+     */
+    private static class CyclicException extends Exception {
+        Throwable cause;
+
+        CyclicException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable getCause() {
+            return cause;
+        }
+    }
+}
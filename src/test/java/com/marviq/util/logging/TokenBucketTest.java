@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011,2012 Marviq B.V.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.marviq.util.logging;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the token bucket, and the rate limits that the appender applies to its calls to JIRA.
+ */
+public class TokenBucketTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    /**
+     * Asserts that a full bucket permits a burst, after which permits become available at the configured rate.
+     */
+    @Test
+    public void testBurstThenRefill() throws Exception {
+
+        // setup
+        final TokenBucket bucket = new TokenBucket(60, TimeUnit.MINUTES.toNanos(1), 3, ticker);
+
+        // do magic & verify
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertFalse(bucket.tryAcquire());
+
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(bucket.tryAcquire());
+
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertFalse(bucket.tryAcquire());
+    }
+
+    /**
+     * Asserts that a bucket never holds more tokens than its capacity, however long it was not used.
+     */
+    @Test
+    public void testCapacityIsBounded() throws Exception {
+
+        // setup
+        final TokenBucket bucket = new TokenBucket(60, TimeUnit.MINUTES.toNanos(1), 2, ticker);
+
+        // do magic
+        ticker.advance(1, TimeUnit.HOURS);
+
+        // verify
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertFalse(bucket.tryAcquire());
+    }
+
+    /**
+     * Asserts that the appender does not make more calls than its global rate limit permits.
+     */
+    @Test
+    public void testAppenderRateLimit() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = newAppender(jira);
+        appender.setRateLimit(60);
+        appender.setRateLimitBurst(2);
+        appender.activateOptions();
+
+        // do magic
+        for (int i = 0; i < 5; i++) {
+            log(appender, newThrowable(i));
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        log(appender, newThrowable(5));
+        appender.close();
+
+        // verify
+        Assert.assertEquals(3, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(3, appender.getRejectedCallCount());
+    }
+
+    /**
+     * Asserts that the appender does not make more calls for the same issue than its rate limit per issue permits,
+     * while calls for other issues are not affected.
+     */
+    @Test
+    public void testAppenderIssueRateLimit() throws Exception {
+
+        // setup
+        final FakeJira jira = new FakeJira();
+        final JIRALog4jAppender appender = newAppender(jira);
+        appender.setIssueRateLimit(10);
+        appender.activateOptions();
+        final Throwable throwable = newThrowable(1);
+
+        // do magic
+        for (int i = 0; i < 5; i++) {
+            log(appender, throwable);
+        }
+        log(appender, newThrowable(2));
+        ticker.advance(6, TimeUnit.SECONDS);
+        log(appender, throwable);
+        appender.close();
+
+        // verify
+        Assert.assertEquals(2, jira.getCallCount("jira1.createIssue"));
+        Assert.assertEquals(1, jira.getCallCount("jira1.addComment"));
+        Assert.assertEquals(4, appender.getRejectedCallCount());
+    }
+
+    private JIRALog4jAppender newAppender(FakeJira jira) {
+        final JIRALog4jAppender appender = new JIRALog4jAppender("http://localhost", "user", "pass", "LIMIT");
+        appender.setTransportFactory(jira.getTransportFactory());
+        appender.setTicker(ticker);
+        return appender;
+    }
+
+    private static void log(JIRALog4jAppender appender, Throwable throwable) {
+        appender.doAppend(new LoggingEvent(null, Logger.getLogger(TokenBucketTest.class), Priority.ERROR, "message",
+                throwable));
+    }
+
+    /**
+     * Creates a Throwable with a synthetic stack trace, so that any number of distinct fingerprints can be produced.
+     */
+    static Throwable newThrowable(int line) {
+        final Throwable throwable = new Throwable();
+        throwable.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Service", "fail", "Service.java", line)
+        });
+        return throwable;
+    }
+}